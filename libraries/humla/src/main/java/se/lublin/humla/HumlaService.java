@@ -36,6 +36,7 @@ import android.util.Log;
 
 import org.minidns.dnsserverlookup.android21.AndroidUsingLinkProperties;
 
+import java.io.File;
 import java.security.Security;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
@@ -51,6 +52,7 @@ import se.lublin.humla.audio.javacpp.CELT7;
 import se.lublin.humla.exception.AudioException;
 import se.lublin.humla.exception.NotConnectedException;
 import se.lublin.humla.exception.NotSynchronizedException;
+import se.lublin.humla.model.BlobCache;
 import se.lublin.humla.model.Channel;
 import se.lublin.humla.model.IChannel;
 import se.lublin.humla.model.IUser;
@@ -61,11 +63,15 @@ import se.lublin.humla.model.TalkState;
 import se.lublin.humla.model.User;
 import se.lublin.humla.model.WhisperTarget;
 import se.lublin.humla.model.WhisperTargetList;
+import se.lublin.humla.net.ConnectionStats;
 import se.lublin.humla.net.HumlaConnection;
 import se.lublin.humla.net.HumlaTCPMessageType;
 import se.lublin.humla.net.HumlaUDPMessageType;
+import se.lublin.humla.net.NetworkRuntime;
+import se.lublin.humla.net.TLSCredentialsCache;
 import se.lublin.humla.protobuf.Mumble;
 import se.lublin.humla.protocol.AudioHandler;
+import se.lublin.humla.protocol.HumlaTCPMessageListener;
 import se.lublin.humla.protocol.ModelHandler;
 import se.lublin.humla.util.HumlaCallbacks;
 import se.lublin.humla.util.HumlaDisconnectedException;
@@ -121,6 +127,8 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
     public static final String EXTRAS_ENABLE_PREPROCESSOR = "enable_preprocessor";
     /** Voice hold time in milliseconds for voice activity detection mode. */
     public static final String EXTRAS_VOICE_HOLD_TIME = "voice_hold_time";
+    /** The jitter buffer implementation, see {@link AudioOutput#JITTER_BUFFER_ADAPTIVE}. */
+    public static final String EXTRAS_JITTER_BUFFER = "jitter_buffer";
 
     // Service settings
     private Server mServer;
@@ -147,6 +155,12 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
     private PowerManager.WakeLock mWakeLock;
     private Handler mHandler;
     private HumlaCallbacks mCallbacks;
+    /** Avatars, comments and descriptions, shared by all connections of the service. */
+    private BlobCache mBlobCache;
+    /** TLS contexts of recent servers, so that reconnects resume the TLS session. */
+    private final TLSCredentialsCache mCredentialsCache = new TLSCredentialsCache();
+    /** Network threads and DNS cache, kept across connections so that reconnects reuse them. */
+    private NetworkRuntime mNetworkRuntime;
 
     private HumlaConnection mConnection;
     private ConnectionState mConnectionState;
@@ -274,6 +288,9 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
         mActivityInputMode = new ActivityInputMode(0); // FIXME: reasonable default
         mContinuousInputMode = new ContinuousInputMode();
         mWhisperTargetList = new WhisperTargetList();
+        mBlobCache = new BlobCache(new File(getCacheDir(), "blobs"),
+                BlobCache.DEFAULT_MEMORY_BUDGET, BlobCache.DEFAULT_DISK_BUDGET);
+        mNetworkRuntime = new NetworkRuntime();
 
         // initialize minidns dns lookup mechanisms
         AndroidUsingLinkProperties.setup(this);
@@ -282,6 +299,8 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
     @Override
     public void onDestroy() {
         unregisterReceiver(mBluetoothReceiver);
+        mBlobCache.close();
+        mNetworkRuntime.stop();
         super.onDestroy();
     }
 
@@ -301,8 +320,10 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
             mConnection.setUseTor(mUseTor);
             mConnection.setKeys(mCertificate, mCertificatePassword);
             mConnection.setTrustStore(mTrustStore, mTrustStorePassword, mTrustStoreFormat);
+            mConnection.setCredentialsCache(mCredentialsCache);
+            mConnection.setNetworkRuntime(mNetworkRuntime);
 
-            mModelHandler = new ModelHandler(this, mCallbacks, this,
+            mModelHandler = new ModelHandler(this, mCallbacks, this, mBlobCache,
                     mLocalMuteHistory, mLocalIgnoreHistory);
             mConnection.addTCPMessageHandlers(mModelHandler);
 
@@ -310,7 +331,7 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
 
             mCallbacks.onConnecting();
 
-            mConnection.connect(mServer.getSrvHost(), mServer.getSrvPort());
+            mConnection.connect(mServer.getHost(), mServer.getPort());
         } catch (HumlaException e) {
             e.printStackTrace();
             mCallbacks.onDisconnected(e);
@@ -340,7 +361,7 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
         // Send version information and authenticate.
         final Mumble.Version.Builder version = Mumble.Version.newBuilder();
         version.setRelease(mClientName);
-        version.setVersion(Constants.PROTOCOL_VERSION);
+        version.setVersionV1(Constants.PROTOCOL_VERSION);
         version.setOs("Android");
         version.setOsVersion(Build.VERSION.RELEASE);
 
@@ -380,7 +401,7 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
                     mModelHandler.getUser(mConnection.getSession()),
                     mConnection.getMaxBandwidth(), mConnection.getCodec(),
                     mVoiceTargetId);
-            mConnection.addTCPMessageHandlers(mAudioHandler);
+            mConnection.addTCPMessageHandler(mAudioHandler, HumlaTCPMessageListener.Dispatch.AUDIO);
             mConnection.addUDPMessageHandlers(mAudioHandler);
         } catch (AudioException e) {
             e.printStackTrace();
@@ -509,7 +530,7 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
                     mModelHandler.getUser(mConnection.getSession()),
                     mConnection.getMaxBandwidth(), mConnection.getCodec(),
                     mVoiceTargetId);
-            mConnection.addTCPMessageHandlers(mAudioHandler);
+            mConnection.addTCPMessageHandler(mAudioHandler, HumlaTCPMessageListener.Dispatch.AUDIO);
             mConnection.addUDPMessageHandlers(mAudioHandler);
         } catch (NotSynchronizedException e) {
             throw new RuntimeException("Attempted to create audio handler when not synchronized!");
@@ -636,6 +657,9 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
         if (extras.containsKey(EXTRAS_ENABLE_PREPROCESSOR)) {
             mAudioBuilder.setPreprocessorEnabled(extras.getBoolean(EXTRAS_ENABLE_PREPROCESSOR));
         }
+        if (extras.containsKey(EXTRAS_JITTER_BUFFER)) {
+            mAudioBuilder.setJitterBuffer(extras.getInt(EXTRAS_JITTER_BUFFER));
+        }
 
         // Reload audio subsystem if initialized
         if (mAudioHandler != null && mAudioHandler.isInitialized()) {
@@ -769,6 +793,18 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
         }
     }
 
+    @Override
+    public ConnectionStats getConnectionStats() {
+        return getConnection().getConnectionStats();
+    }
+
+    /**
+     * @return The threads shared by connections, for their per-subsystem CPU time.
+     */
+    public NetworkRuntime getNetworkRuntime() {
+        return mNetworkRuntime;
+    }
+
     @Override
     public int getMaxBandwidth() {
         try {
@@ -1004,7 +1040,7 @@ public class HumlaService extends Service implements IHumlaService, IHumlaSessio
                         mModelHandler.getUser(mConnection.getSession()),
                         mConnection.getMaxBandwidth(), mConnection.getCodec(),
                         mVoiceTargetId);
-                mConnection.addTCPMessageHandlers(mAudioHandler);
+                mConnection.addTCPMessageHandler(mAudioHandler, HumlaTCPMessageListener.Dispatch.AUDIO);
                 mConnection.addUDPMessageHandlers(mAudioHandler);
                 
                 Log.i(TAG, "setTransmitMode: AudioHandler reinitialized successfully");
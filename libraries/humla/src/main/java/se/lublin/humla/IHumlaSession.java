@@ -7,6 +7,7 @@ import se.lublin.humla.model.IUser;
 import se.lublin.humla.model.Message;
 import se.lublin.humla.model.ServerSettings;
 import se.lublin.humla.model.WhisperTarget;
+import se.lublin.humla.net.ConnectionStats;
 import se.lublin.humla.net.HumlaUDPMessageType;
 import se.lublin.humla.util.VoiceTargetMode;
 
@@ -26,6 +27,14 @@ public interface IHumlaSession {
      */
     long getUDPLatency();
 
+    /**
+     * Samples the connection quality counters: traffic rates, RTT percentiles, crypt counters
+     * and per-speaker jitter. Rates are averaged since the previous call, so sample at a steady
+     * rate (e.g. once a second).
+     * @return a snapshot of the connection quality.
+     */
+    ConnectionStats getConnectionStats();
+
     /**
      * @return the maximum bandwidth in bps for audio allowed by the server, or -1 if not set.
      */
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.audio;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * {@link JitterBuffer} in plain Java, sized up front so that neither side allocates.
+ *
+ * Packets are kept in a ring of slots indexed by their frame number, i.e. timestamp over frame
+ * size, so reordered packets fall into place and duplicates find their slot taken. Packets that
+ * arrive after their playout time are dropped and counted.
+ *
+ * The delay adapts to the arrivals. For every packet, how early it arrived before its playout
+ * time is recorded, over a window of recent packets. When more than one in
+ * {@link #LATE_TOLERANCE} would have been late, playout is held back by concealed frames, one
+ * between each two packets played. When even the earliest of those arrived a packet's span
+ * ahead, one packet is dropped to catch up, at most once every {@link #SHRINK_INTERVAL} frames.
+ * The playout clock is {@link #tick}, so the buffer behaves the same in replay as live.
+ *
+ * The recorded arrivals survive a {@link #reset}, so that a buffer reused for the user's next
+ * talk spurt starts playout with the delay their packets needed before.
+ */
+public class AdaptiveJitterBuffer implements JitterBuffer {
+    /** Frames of timestamps held ahead of playout; a power of two. */
+    private static final int SLOTS = 64;
+    /** The largest packet held. Mumble keeps voice datagrams under 1024 bytes. */
+    private static final int SLOT_SIZE = 1024;
+    /** The number of recent arrivals the delay is estimated from. */
+    private static final int WINDOW = 256;
+    /** One in this many packets may be late before the delay grows. */
+    private static final int LATE_TOLERANCE = 100;
+    /** The fewest frames played between two packets dropped to shrink the delay. */
+    private static final int SHRINK_INTERVAL = 50;
+    /** The delay before playout starts, in frames, until arrivals were seen. */
+    private static final int DEFAULT_START_FRAMES = 2;
+    /** The longest delay grown to, in frames. */
+    private static final int MAX_DELAY_FRAMES = 40;
+
+    private final int mFrameSize;
+    private final int mMaxDelay;
+
+    // Slots by frame number & (SLOTS - 1)
+    private final byte[][] mData = new byte[SLOTS][SLOT_SIZE];
+    private final int[] mLength = new int[SLOTS];
+    private final int[] mTimestamp = new int[SLOTS];
+    private final int[] mSpan = new int[SLOTS];
+    private final int[] mUserData = new int[SLOTS];
+    private final boolean[] mFull = new boolean[SLOTS];
+    private int mCount;
+
+    private boolean mPlaying;
+    /** The timestamp of the frame playing next. */
+    private int mPointer;
+    private int mBufferingFrames;
+    /** Frames still to insert to grow the delay. */
+    private int mGrowFrames;
+    /** Whether the frame playing is inserted, so that its tick does not advance the pointer. */
+    private boolean mInserting;
+    /** Samples of delay that may be dropped without making packets late, or 0. */
+    private int mShrinkAllowance;
+    private int mSinceShrink;
+
+    /**
+     * How early recent packets arrived before their playout time, in samples, each less the
+     * adjustment at the time. Adding the current adjustment gives how early it would be now.
+     */
+    private final int[] mEarliness = new int[WINDOW];
+    private final int[] mSorted = new int[WINDOW];
+    private int mArrivals;
+    /** Total delay inserted less delay dropped, in samples. */
+    private int mAdjustment;
+
+    private int mLateCount;
+
+    /**
+     * @param frameSize The number of samples in a frame.
+     */
+    public AdaptiveJitterBuffer(int frameSize) {
+        mFrameSize = frameSize;
+        mMaxDelay = MAX_DELAY_FRAMES * frameSize;
+    }
+
+    @Override
+    public void put(Packet packet) {
+        if (packet.length > SLOT_SIZE || packet.span <= 0) return;
+        final int timestamp = packet.timestamp;
+
+        if (mPlaying) {
+            final int early = timestamp - mPointer;
+            record(early);
+            if (early < 0) {
+                mLateCount++;
+                return;
+            }
+            // Too far ahead to have a slot; the stream most likely jumped.
+            if (early >= SLOTS * mFrameSize) return;
+        }
+
+        final int slot = slot(timestamp);
+        if (mFull[slot]) {
+            if (mTimestamp[slot] == timestamp) return; // Duplicate
+            mCount--; // Older packet a whole ring behind, never to be played
+        }
+        final ByteBuffer data = packet.data;
+        data.clear();
+        data.get(mData[slot], 0, packet.length);
+        mLength[slot] = packet.length;
+        mTimestamp[slot] = timestamp;
+        mSpan[slot] = packet.span;
+        mUserData[slot] = packet.userData;
+        mFull[slot] = true;
+        mCount++;
+    }
+
+    @Override
+    public int get(Packet packet) {
+        if (!mPlaying) {
+            if (mCount == 0) return MISSING;
+            if (!start()) {
+                mBufferingFrames++;
+                return BUFFERING;
+            }
+        }
+
+        // Insert one frame between each two packets played until the delay has grown.
+        if (mGrowFrames > 0 && !mInserting) {
+            mGrowFrames--;
+            mAdjustment += mFrameSize;
+            mInserting = true;
+            return MISSING;
+        }
+        mInserting = false;
+
+        int slot = slot(mPointer);
+        if (!mFull[slot] || mTimestamp[slot] != mPointer) return MISSING;
+
+        // Drop this packet to catch up, if the one after it is here to play instead.
+        final int span = mSpan[slot];
+        if (mShrinkAllowance >= span && mSinceShrink >= SHRINK_INTERVAL) {
+            final int next = slot(mPointer + span);
+            if (mFull[next] && mTimestamp[next] == mPointer + span) {
+                release(slot);
+                mPointer += span;
+                mAdjustment -= span;
+                mShrinkAllowance = 0;
+                mSinceShrink = 0;
+                slot = next;
+            }
+        }
+
+        final ByteBuffer data = packet.data;
+        data.clear();
+        data.put(mData[slot], 0, mLength[slot]);
+        packet.length = mLength[slot];
+        packet.timestamp = mTimestamp[slot];
+        packet.span = mSpan[slot];
+        packet.userData = mUserData[slot];
+        release(slot);
+        return OK;
+    }
+
+    @Override
+    public int getPointerTimestamp() {
+        return mPlaying ? mPointer : 0;
+    }
+
+    @Override
+    public int getAvailableCount() {
+        return mCount;
+    }
+
+    /**
+     * Does nothing; the delay adapts as packets arrive.
+     */
+    @Override
+    public void updateDelay() {
+    }
+
+    @Override
+    public void tick() {
+        if (!mPlaying) return;
+        mSinceShrink++;
+        if (mInserting) return;
+        // A packet overlapping the one played is never played.
+        final int slot = slot(mPointer);
+        if (mFull[slot] && mTimestamp[slot] == mPointer) {
+            release(slot);
+            mLateCount++;
+        }
+        mPointer += mFrameSize;
+    }
+
+    @Override
+    public int getDelay() {
+        final int count = Math.min(mArrivals, WINDOW);
+        if (count == 0) return 0;
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += mEarliness[i];
+        }
+        return Math.max(0, (int) (total / count) + mAdjustment);
+    }
+
+    @Override
+    public int getLateCount() {
+        return mLateCount;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(mFull, false);
+        mCount = 0;
+        mPlaying = false;
+        mPointer = 0;
+        mBufferingFrames = 0;
+        mGrowFrames = 0;
+        mInserting = false;
+        mShrinkAllowance = 0;
+        mSinceShrink = 0;
+        mLateCount = 0;
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private int slot(int timestamp) {
+        return (timestamp / mFrameSize) & (SLOTS - 1);
+    }
+
+    private void release(int slot) {
+        mFull[slot] = false;
+        mCount--;
+    }
+
+    /**
+     * Starts playout at the earliest packet held, once packets have waited for the delay recent
+     * arrivals called for, or enough of them are buffered to cover it.
+     * @return Whether playout started.
+     */
+    private boolean start() {
+        int first = 0, end = 0;
+        boolean found = false;
+        for (int i = 0; i < SLOTS; i++) {
+            if (!mFull[i]) continue;
+            if (!found || mTimestamp[i] - first < 0) first = mTimestamp[i];
+            if (!found || mTimestamp[i] + mSpan[i] - end > 0) end = mTimestamp[i] + mSpan[i];
+            found = true;
+        }
+        final int spare = mArrivals > 0 ? Math.max(0, lowEarliness()) : 0;
+        final int delay = mArrivals > 0
+                ? Math.max(mFrameSize, Math.min(mMaxDelay, getDelay() - spare))
+                : DEFAULT_START_FRAMES * mFrameSize;
+        if (mBufferingFrames * mFrameSize < delay && end - first < delay) return false;
+
+        mPlaying = true;
+        mPointer = first;
+        mBufferingFrames = 0;
+        mGrowFrames = 0;
+        mInserting = false;
+        mShrinkAllowance = 0;
+        // The delay starts without what could be spared, so later arrivals will be that much
+        // less early than the recorded ones.
+        mAdjustment -= spare;
+        return true;
+    }
+
+    /**
+     * Records how early a packet arrived and adapts the delay to it.
+     */
+    private void record(int early) {
+        mEarliness[mArrivals % WINDOW] = early - mAdjustment;
+        mArrivals++;
+
+        // Pending insertions already make up for the late arrivals seen so far.
+        final int low = lowEarliness() + mGrowFrames * mFrameSize;
+        if (low < 0) {
+            final int room = (mMaxDelay - getDelay()) / mFrameSize - mGrowFrames;
+            mGrowFrames += Math.max(0, Math.min(room, (-low + mFrameSize - 1) / mFrameSize));
+            mShrinkAllowance = 0;
+        } else if (mGrowFrames == 0) {
+            mShrinkAllowance = low;
+        }
+    }
+
+    /**
+     * @return How early the packets that arrived last within the late tolerance were, as of the
+     *         current adjustment, in samples.
+     */
+    private int lowEarliness() {
+        final int count = Math.min(mArrivals, WINDOW);
+        System.arraycopy(mEarliness, 0, mSorted, 0, count);
+        Arrays.sort(mSorted, 0, count);
+        return mSorted[count / LATE_TOLERANCE] + mAdjustment;
+    }
+}
@@ -31,11 +31,9 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import se.lublin.humla.exception.AudioInitializationException;
@@ -44,15 +42,39 @@ import se.lublin.humla.model.TalkState;
 import se.lublin.humla.model.User;
 import se.lublin.humla.net.HumlaUDPMessageType;
 import se.lublin.humla.net.PacketBuffer;
+import se.lublin.humla.net.PooledPacket;
 import se.lublin.humla.protocol.AudioHandler;
 
 /**
+ * Plays the voice of other users. Each speaking user is assigned to one of a few decode workers,
+ * which decode ahead of playback into the user's PCM ring. The playback thread only mixes what
+ * the workers have decoded, without locks or allocation, and then wakes them to refill.
+ *
  * Created by andrew on 16/07/13.
  */
 public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListener {
     private static final String TAG = AudioOutput.class.getName();
-
+    private static final AudioOutputSpeech[] NO_SPEAKERS = new AudioOutputSpeech[0];
+    /** Upper bound on decode workers; decoding one user takes a fraction of a core. */
+    private static final int MAX_DECODE_WORKERS = 2;
+    /** The most idle decoders, and jitter buffers, kept for users' next talk spurts. */
+    private static final int POOL_CAPACITY = 8;
+    /** How long idle decoders and jitter buffers are kept, in nanoseconds. */
+    private static final long POOL_IDLE_TIMEOUT = TimeUnit.MINUTES.toNanos(2);
+
+    /** Buffers voice in {@link AdaptiveJitterBuffer}. */
+    public static final int JITTER_BUFFER_ADAPTIVE = 0;
+    /** Buffers voice in the native Speex jitter buffer, see {@link SpeexJitterBuffer}. */
+    public static final int JITTER_BUFFER_SPEEX = 1;
+
+    /** Speakers by session, guarded by mPacketLock. */
     private Map<Integer, AudioOutputSpeech> mAudioOutputs = new HashMap<>();
+    /**
+     * All speakers, including ones still playing out after being replaced in mAudioOutputs.
+     * Copy on write under mPacketLock, so that the playback thread reads it without locking.
+     */
+    private volatile AudioOutputSpeech[] mSpeakers = NO_SPEAKERS;
+    private DecodeWorker[] mDecodeWorkers;
     private AudioTrack mAudioTrack;
     private int mBufferSize;
     private Thread mThread;
@@ -61,16 +83,49 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
     private boolean mRunning = false;
     private Handler mMainHandler;
     private AudioOutputListener mListener;
-    private final IAudioMixer<float[], short[]> mMixer;
-    private ExecutorService mDecodeExecutorService;
-    private float mOutputGain = 1.0f;
+    private final SoftLimitingShortMixer mMixer;
+    /** Sources of the current mix, only touched by the playback thread. */
+    private final List<IAudioMixerSource<float[]>> mSources = new ArrayList<>();
+    private final int mJitterBufferType;
+    private final DecoderPool mPool;
+
+    // Render metrics, only written by the playback thread
+    private volatile long mRenderCount;
+    private volatile long mRenderTotalNanos;
+    private volatile long mRenderMaxNanos;
+    private volatile long mUnderrunCount;
+
+    // Speaker metrics, guarded by mPacketLock
+    private long mSetupCount;
+    private long mSetupTotalNanos;
+    private long mFirstFrameCount;
+    private long mFirstFrameTotalNanos;
 
-    public AudioOutput(AudioOutputListener listener) {
+    /**
+     * @param jitterBuffer The jitter buffer implementation, {@link #JITTER_BUFFER_ADAPTIVE} or
+     *                     {@link #JITTER_BUFFER_SPEEX}.
+     */
+    public AudioOutput(AudioOutputListener listener, int jitterBuffer) {
         mListener = listener;
+        mJitterBufferType = jitterBuffer;
         mMainHandler = new Handler(Looper.getMainLooper());
-        mDecodeExecutorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         mPacketLock = new ReentrantLock();
-        mMixer = new BasicClippingShortMixer();
+        mMixer = new SoftLimitingShortMixer();
+        mPool = new DecoderPool(new DecoderPool.Factory() {
+            @Override
+            public IDecoder createDecoder(HumlaUDPMessageType codec) throws NativeAudioException {
+                return AudioOutputSpeech.createDecoder(codec);
+            }
+
+            @Override
+            public JitterBuffer createJitterBuffer(User user) {
+                if (mJitterBufferType == JITTER_BUFFER_SPEEX) {
+                    return new SpeexJitterBuffer(AudioHandler.FRAME_SIZE,
+                            10 * AudioHandler.FRAME_SIZE, user);
+                }
+                return new AdaptiveJitterBuffer(AudioHandler.FRAME_SIZE);
+            }
+        }, POOL_CAPACITY, POOL_IDLE_TIMEOUT);
     }
 
     public Thread startPlaying(int audioStream) throws AudioInitializationException {
@@ -93,6 +148,12 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
             throw new AudioInitializationException(e);
         }
 
+        final int workers = Math.min(MAX_DECODE_WORKERS, Runtime.getRuntime().availableProcessors());
+        mDecodeWorkers = new DecodeWorker[workers];
+        for (int i = 0; i < workers; i++) {
+            mDecodeWorkers[i] = new DecodeWorker("HumlaDecode-" + i);
+        }
+
         mThread = new Thread(this);
         mThread.start();
         return mThread;
@@ -113,13 +174,23 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
         }
         mThread = null;
 
+        for (DecodeWorker worker : mDecodeWorkers) {
+            worker.stop();
+        }
+        mDecodeWorkers = null;
+
         mPacketLock.lock();
-        for(AudioOutputSpeech speech : mAudioOutputs.values()) {
-            speech.destroy();
+        try {
+            for (AudioOutputSpeech speech : mSpeakers) {
+                speech.release(mPool);
+            }
+            mSpeakers = NO_SPEAKERS;
+            mAudioOutputs.clear();
+        } finally {
+            mPacketLock.unlock();
         }
-        mPacketLock.unlock();
+        mPool.clear();
 
-        mAudioOutputs.clear();
         mAudioTrack.release();
         mAudioTrack = null;
     }
@@ -137,7 +208,13 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
         final short[] mix = new short[mBufferSize];
 
         while(mRunning) {
-            if(fetchAudio(mix, 0, mBufferSize)) {
+            final long start = System.nanoTime();
+            final boolean active = fetchAudio(mix, 0, mBufferSize);
+            final long elapsed = System.nanoTime() - start;
+            mRenderTotalNanos += elapsed;
+            mRenderCount++;
+            if (elapsed > mRenderMaxNanos) mRenderMaxNanos = elapsed;
+            if(active) {
                 mAudioTrack.write(mix, 0, mBufferSize);
             } else {
                 synchronized (mInactiveLock) {
@@ -160,64 +237,46 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
     }
 
     /**
-     * Fetches audio data from registered audio output users and mixes them into the given buffer.
+     * Mixes the samples the decode workers have ready into the given buffer, then wakes them to
+     * decode the next buffer. Does not lock or allocate.
      * TODO: add priority speaker support.
      * @param buffer The buffer to mix output data into.
      * @param bufferOffset The offset of the
      * @param bufferSize The size of the buffer.
-     * @return true if the buffer contains audio data.
+     * @return true if any user is speaking, even if none had samples ready.
      */
     private boolean fetchAudio(short[] buffer, int bufferOffset, int bufferSize) {
-        Arrays.fill(buffer, bufferOffset, bufferOffset + bufferSize, (short) 0);
-        final List<IAudioMixerSource<float[]>> sources = new ArrayList<>();
-        try {
-            mPacketLock.lock();
-            // Parallelize decoding using a fixed thread pool equal to the number of cores
-            List<Future<AudioOutputSpeech.Result>> futureResults =
-                    mDecodeExecutorService.invokeAll(mAudioOutputs.values());
-            for(Future<AudioOutputSpeech.Result> future : futureResults) {
-                AudioOutputSpeech.Result result = future.get();
-                if (result.isAlive()) {
-                    sources.add(result);
-                } else {
-                    AudioOutputSpeech speech = result.getSpeechOutput();
-                    Log.v(TAG, "Deleted audio user " + speech.getUser().getName());
-                    mAudioOutputs.remove(speech.getSession());
-                    speech.destroy();
-                }
-            }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        final AudioOutputSpeech[] speakers = mSpeakers;
+        if (speakers.length == 0) {
+            Arrays.fill(buffer, bufferOffset, bufferOffset + bufferSize, (short) 0);
             return false;
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-            return false;
-        } finally {
-            mPacketLock.unlock();
         }
 
-        if (sources.size() == 0)
-            return false;
-
-        mMixer.mix(sources, buffer, bufferOffset, bufferSize);
-        
-        // Apply output gain
-        for (int i = bufferOffset; i < bufferOffset + bufferSize; i++) {
-            float sample = buffer[i] * mOutputGain;
-            if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
-            if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
-            buffer[i] = (short) sample;
+        mSources.clear();
+        for (AudioOutputSpeech speech : speakers) {
+            final int read = speech.read();
+            if (read > 0) mSources.add(speech);
+            if (read < bufferSize && !speech.isFinished()) mUnderrunCount++;
+        }
+        for (DecodeWorker worker : mDecodeWorkers) {
+            worker.wake();
         }
-        
+
+        // Mixes silence if no speaker had samples ready.
+        mMixer.mix(mSources, buffer, bufferOffset, bufferSize);
         return true;
     }
 
-    public void queueVoiceData(byte[] data, HumlaUDPMessageType messageType) {
+    /**
+     * Queues a voice packet for decoding. The packet is not retained.
+     */
+    public void queueVoiceData(PooledPacket packet, HumlaUDPMessageType messageType) {
         if(!mRunning)
             return;
 
+        final byte[] data = packet.getData();
         byte msgFlags = (byte) (data[0] & 0x1f);
-        PacketBuffer pds = new PacketBuffer(data, data.length);
+        PacketBuffer pds = new PacketBuffer(data, packet.getLength());
         pds.skip(1);
         int session = (int) pds.readLong();
         User user = mListener.getUser(session);
@@ -225,28 +284,43 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
             // TODO check for whispers here
             int seq = (int) pds.readLong();
 
-            // Synchronize so we don't destroy an output while we add a buffer to it.
+            // Synchronize so we don't destroy an output while we add a buffer to it: its worker
+            // takes it out of mAudioOutputs under this lock before destroying it, so no put is
+            // in flight by then. Decoding happens on the workers, so this never waits on a
+            // decoder.
+            AudioOutputSpeech aop;
             mPacketLock.lock();
-            AudioOutputSpeech aop = mAudioOutputs.get(session);
-            if(aop != null && aop.getCodec() != messageType) {
-                aop.destroy();
-                aop = null;
-            }
-            if(aop == null) {
-                try {
-                    aop = new AudioOutputSpeech(user, messageType, mBufferSize, this);
-                } catch (NativeAudioException e) {
-                    Log.v(TAG, "Failed to create audio user " + user.getName());
-                    e.printStackTrace();
-                    return;
+            try {
+                aop = mAudioOutputs.get(session);
+                if (aop != null && (aop.getCodec() != messageType || aop.isFinished())) {
+                    // Plays out what it decoded already, then its worker destroys it.
+                    aop.finish();
+                    aop = null;
+                }
+                if (aop == null) {
+                    final long start = System.nanoTime();
+                    try {
+                        aop = new AudioOutputSpeech(user, messageType, mBufferSize, this,
+                                mPool.takeDecoder(messageType), mPool.takeJitterBuffer(user));
+                    } catch (NativeAudioException e) {
+                        Log.v(TAG, "Failed to create audio user " + user.getName());
+                        e.printStackTrace();
+                        return;
+                    }
+                    mSetupTotalNanos += System.nanoTime() - start;
+                    mSetupCount++;
+                    Log.v(TAG, "Created audio user " + user.getName());
+                    mAudioOutputs.put(session, aop);
+                    mSpeakers = append(mSpeakers, aop);
+                    workerFor(session).add(aop);
                 }
-                Log.v(TAG, "Created audio user " + user.getName());
-                mAudioOutputs.put(session, aop);
-            }
-            mPacketLock.unlock();
 
-            PacketBuffer dataBuffer = new PacketBuffer(pds.bufferBlock(pds.left()));
-            aop.addFrameToBuffer(dataBuffer, msgFlags, seq);
+                final int left = pds.left();
+                aop.addFrameToBuffer(data, packet.getLength() - left, left, msgFlags, seq);
+            } finally {
+                mPacketLock.unlock();
+            }
+            workerFor(session).wake();
 
             synchronized (mInactiveLock) {
                 mInactiveLock.notify();
@@ -255,6 +329,120 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
 
     }
 
+    private DecodeWorker workerFor(int session) {
+        return mDecodeWorkers[(session & Integer.MAX_VALUE) % mDecodeWorkers.length];
+    }
+
+    /**
+     * Removes a speaker that has played out and returns its decoder and jitter buffer to the
+     * pool. Called on its decode worker, so that the decoder is not in use.
+     */
+    private void removeSpeaker(AudioOutputSpeech speech) {
+        mPacketLock.lock();
+        try {
+            if (mAudioOutputs.get(speech.getSession()) == speech) {
+                mAudioOutputs.remove(speech.getSession());
+            }
+            mSpeakers = remove(mSpeakers, speech);
+            final long latency = speech.getFirstFrameLatency();
+            if (latency >= 0) {
+                mFirstFrameTotalNanos += latency;
+                mFirstFrameCount++;
+            }
+        } finally {
+            mPacketLock.unlock();
+        }
+        Log.v(TAG, "Deleted audio user " + speech.getUser().getName());
+        speech.release(mPool);
+    }
+
+    private static AudioOutputSpeech[] append(AudioOutputSpeech[] speakers, AudioOutputSpeech speech) {
+        final AudioOutputSpeech[] result = Arrays.copyOf(speakers, speakers.length + 1);
+        result[speakers.length] = speech;
+        return result;
+    }
+
+    private static AudioOutputSpeech[] remove(AudioOutputSpeech[] speakers, AudioOutputSpeech speech) {
+        for (int i = 0; i < speakers.length; i++) {
+            if (speakers[i] != speech) continue;
+            final AudioOutputSpeech[] result = new AudioOutputSpeech[speakers.length - 1];
+            System.arraycopy(speakers, 0, result, 0, i);
+            System.arraycopy(speakers, i + 1, result, i, speakers.length - i - 1);
+            return result;
+        }
+        return speakers;
+    }
+
+    /**
+     * @return The mean time in nanoseconds the playback thread took to mix one output buffer,
+     *         or 0 if none were mixed.
+     */
+    public long getAverageRenderNanos() {
+        final long count = mRenderCount;
+        return count > 0 ? mRenderTotalNanos / count : 0;
+    }
+
+    /**
+     * @return The longest time in nanoseconds the playback thread took to mix one output buffer.
+     */
+    public long getMaxRenderNanos() {
+        return mRenderMaxNanos;
+    }
+
+    /**
+     * @return How often a speaking user's decoder had not caught up when a buffer was mixed.
+     */
+    public long getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    /**
+     * @return The mean time in nanoseconds taken to get a decoder and jitter buffer for a user
+     *         who started talking, either reused or created, or 0 if none were set up.
+     */
+    public long getAverageSetupNanos() {
+        mPacketLock.lock();
+        try {
+            return mSetupCount > 0 ? mSetupTotalNanos / mSetupCount : 0;
+        } finally {
+            mPacketLock.unlock();
+        }
+    }
+
+    /**
+     * @return The mean time in nanoseconds from the first packet of a talk spurt arriving to its
+     *         first frame being decoded, over the talk spurts that played out, or 0 if none did.
+     */
+    public long getAverageFirstFrameNanos() {
+        mPacketLock.lock();
+        try {
+            return mFirstFrameCount > 0 ? mFirstFrameTotalNanos / mFirstFrameCount : 0;
+        } finally {
+            mPacketLock.unlock();
+        }
+    }
+
+    /**
+     * @return The pool of decoders and jitter buffers, e.g. for its create and destroy counts.
+     */
+    public DecoderPool getDecoderPool() {
+        return mPool;
+    }
+
+    /**
+     * @return The playout statistics of every user currently speaking or playing out.
+     */
+    public List<PlayoutStats> getPlayoutStats() {
+        final AudioOutputSpeech[] speakers = mSpeakers;
+        final List<PlayoutStats> stats = new ArrayList<>(speakers.length);
+        for (AudioOutputSpeech speech : speakers) {
+            stats.add(new PlayoutStats(speech.getSession(),
+                    speech.getJitterDelay() * 1000 / AudioHandler.SAMPLE_RATE,
+                    speech.getLateCount(), speech.getConcealedFrames()));
+        }
+        return stats;
+    }
+
     @Override
     public void onTalkStateUpdated(final int session, final TalkState state) {
         mMainHandler.post(new Runnable() {
@@ -274,8 +462,8 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
      * @param gain The gain multiplier (0.5 to 3.0 recommended).
      */
     public void setOutputGain(float gain) {
-        mOutputGain = Math.max(0.1f, Math.min(gain, 5.0f)); // Clamp between 0.1 and 5.0
-        Log.v(TAG, "Output gain set to: " + mOutputGain);
+        mMixer.setGain(Math.max(0.1f, Math.min(gain, 5.0f))); // Clamp between 0.1 and 5.0
+        Log.v(TAG, "Output gain set to: " + mMixer.getGain());
     }
     
     /**
@@ -323,6 +511,64 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
         return null;
     }
 
+    /**
+     * A thread that keeps the PCM rings of its speakers filled one buffer ahead of playback. A
+     * speaker is only ever decoded on the worker it was assigned to.
+     */
+    private final class DecodeWorker implements Runnable {
+        private final Thread mWorkerThread;
+        /** Copy on write under mPacketLock. */
+        private volatile AudioOutputSpeech[] mWorkerSpeakers = NO_SPEAKERS;
+        private volatile boolean mWakePending;
+        private volatile boolean mWorkerRunning = true;
+
+        DecodeWorker(String name) {
+            mWorkerThread = new Thread(this, name);
+            mWorkerThread.start();
+        }
+
+        /** Called with mPacketLock held. */
+        void add(AudioOutputSpeech speech) {
+            mWorkerSpeakers = append(mWorkerSpeakers, speech);
+        }
+
+        void wake() {
+            mWakePending = true;
+            LockSupport.unpark(mWorkerThread);
+        }
+
+        void stop() {
+            mWorkerRunning = false;
+            LockSupport.unpark(mWorkerThread);
+            try {
+                mWorkerThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            while (mWorkerRunning) {
+                mWakePending = false;
+                for (AudioOutputSpeech speech : mWorkerSpeakers) {
+                    speech.decode(mBufferSize);
+                    if (speech.isDrained()) {
+                        mPacketLock.lock();
+                        try {
+                            mWorkerSpeakers = remove(mWorkerSpeakers, speech);
+                        } finally {
+                            mPacketLock.unlock();
+                        }
+                        removeSpeaker(speech);
+                    }
+                }
+                if (!mWakePending) LockSupport.park(this);
+            }
+        }
+    }
+
     public static interface AudioOutputListener {
         /**
          * Called when a user's talking state is changed.
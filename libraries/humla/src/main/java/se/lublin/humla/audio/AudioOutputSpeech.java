@@ -17,15 +17,9 @@
 
 package se.lublin.humla.audio;
 
-import com.googlecode.javacpp.IntPointer;
-
-import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Queue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import se.lublin.humla.audio.javacpp.CELT11;
 import se.lublin.humla.audio.javacpp.CELT7;
@@ -39,61 +33,94 @@ import se.lublin.humla.net.PacketBuffer;
 import se.lublin.humla.protocol.AudioHandler;
 
 /**
+ * Decodes the voice of one user. A decode worker keeps decoding ahead of playback into a PCM
+ * ring, from which the mixing thread takes one buffer per output tick, see {@link #decode} and
+ * {@link #read}. Once running, neither side allocates: packets, frames and samples all move
+ * through buffers preallocated per speaker.
+ *
  * Created by andrew on 16/07/13.
  */
-public class AudioOutputSpeech implements Callable<AudioOutputSpeech.Result> {
+public class AudioOutputSpeech implements IAudioMixerSource<float[]> {
+    private static final int MAX_PACKET_SIZE = 4096;
+    /** Frames per packet kept; Mumble clients send at most a handful. */
+    private static final int MAX_FRAMES = 32;
 
-    interface TalkStateListener {
+    public interface TalkStateListener {
         public void onTalkStateUpdated(int session, TalkState state);
     }
 
     private IDecoder mDecoder;
-    private Speex.JitterBuffer mJitterBuffer;
+    /** Null once released or destroyed, guarded by mJitterLock. */
+    private JitterBuffer mJitterBuffer;
     private final Object mJitterLock = new Object();
+    /** Staging area for packets entering the jitter buffer, guarded by mJitterLock. */
+    private final JitterBuffer.Packet mPutPacket = new JitterBuffer.Packet(MAX_PACKET_SIZE);
+    private final PacketBuffer mPutReader = new PacketBuffer(mPutPacket.data);
 
     private User mUser;
     private HumlaUDPMessageType mCodec;
     private int mAudioBufferSize = AudioHandler.FRAME_SIZE;
-    private int mRequestedSamples; // Number of samples requested
 
-    // State-specific
-    private float[] mBuffer;
+    // State-specific, only touched by the decode worker unless noted
+    /** Decoded samples, written by the decode worker and read by the mixing thread. */
+    private final PcmRing mPcm;
+    /** The buffer handed to the mixer, only touched by the mixing thread. */
+    private final float[] mMix;
     private float[] mOut;
     private float[] mFadeOut;
     private float[] mFadeIn;
-    private Queue<ByteBuffer> mFrames = new ConcurrentLinkedQueue<ByteBuffer>();
+    /** The packet being decoded, and the frames in it as offsets and lengths into its data. */
+    private final JitterBuffer.Packet mGetPacket = new JitterBuffer.Packet(MAX_PACKET_SIZE);
+    private final PacketBuffer mGetReader = new PacketBuffer(mGetPacket.data);
+    private final int[] mFrameOffsets = new int[MAX_FRAMES];
+    private final int[] mFrameLengths = new int[MAX_FRAMES];
+    private int mFrameCount;
+    private int mFrameIndex;
+    /** One frame at a time, from position 0 where the native decoders expect it. */
+    private final ByteBuffer mFrameData = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
     private int mMissCount = 0;
     private boolean mHasTerminator = false;
-    private boolean mLastAlive = true;
-    private int mBufferFilled, mLastConsume = 0;
+    private volatile boolean mFinished;
+    private TalkState mTalkState;
     private int ucFlags;
-    private IntPointer avail = new IntPointer(1);
+    /** Frames concealed for packets that were lost, late or held back. */
+    private volatile int mConcealedFrames;
+    /** When the first packet was queued, guarded by mJitterLock, or 0. */
+    private long mFirstPacketNanos;
+    /** Nanoseconds from queueing the first packet to decoding it, or -1 until decoded. */
+    private volatile long mFirstFrameLatency = -1;
 
     private TalkStateListener mTalkStateListener;
 
-    public AudioOutputSpeech(User user, HumlaUDPMessageType codec, int requestedSamples, TalkStateListener listener) throws NativeAudioException {
+    /**
+     * @param jitterBuffer An empty jitter buffer. Destroyed or released along with the speaker.
+     */
+    public AudioOutputSpeech(User user, HumlaUDPMessageType codec, int requestedSamples,
+                             TalkStateListener listener, JitterBuffer jitterBuffer) throws NativeAudioException {
         // TODO: consider implementing resampling if some Android devices not support 48kHz?
+        this(user, codec, requestedSamples, listener, createDecoder(codec), jitterBuffer);
+    }
+
+    /**
+     * @param decoder A new or reset decoder for the codec. Destroyed or released along with the
+     *                speaker.
+     * @param jitterBuffer An empty jitter buffer. Destroyed or released along with the speaker.
+     */
+    public AudioOutputSpeech(User user, HumlaUDPMessageType codec, int requestedSamples,
+                             TalkStateListener listener, IDecoder decoder,
+                             JitterBuffer jitterBuffer) {
         mUser = user;
         mCodec = codec;
-        mRequestedSamples = requestedSamples;
         mTalkStateListener = listener;
-        switch (codec) {
-            case UDPVoiceOpus:
-                mAudioBufferSize *= 12;
-                mDecoder = new Opus.OpusDecoder(AudioHandler.SAMPLE_RATE, 1);
-                break;
-            case UDPVoiceCELTBeta:
-                mDecoder = new CELT11.CELT11Decoder(AudioHandler.SAMPLE_RATE, 1);
-                break;
-            case UDPVoiceCELTAlpha:
-                mDecoder = new CELT7.CELT7Decoder(AudioHandler.SAMPLE_RATE, AudioHandler.FRAME_SIZE, 1);
-                break;
-            case UDPVoiceSpeex:
-                mDecoder = new Speex.SpeexDecoder();
-                break;
+        mDecoder = decoder;
+        mJitterBuffer = jitterBuffer;
+        if (codec == HumlaUDPMessageType.UDPVoiceOpus) {
+            mAudioBufferSize *= 12;
         }
 
-        mBuffer = new float[mAudioBufferSize*2]; // Make initial buffer size larger so we can save performance by not resizing at runtime.
+        // A buffer decoded ahead, and room for the largest chunk the decoder returns on top.
+        mPcm = new PcmRing(requestedSamples + mAudioBufferSize);
+        mMix = new float[requestedSamples];
         mOut = new float[mAudioBufferSize];
         mFadeIn = new float[AudioHandler.FRAME_SIZE];
         mFadeOut = new float[AudioHandler.FRAME_SIZE];
@@ -102,205 +129,229 @@ public class AudioOutputSpeech implements Callable<AudioOutputSpeech.Result> {
         float mul = (float)(Math.PI / (2.0 * (float) AudioHandler.FRAME_SIZE));
         for (int i = 0; i < AudioHandler.FRAME_SIZE; i++)
             mFadeIn[i] = mFadeOut[AudioHandler.FRAME_SIZE-i-1] = (float) Math.sin((float) i * mul);
+    }
 
-        mJitterBuffer = new Speex.JitterBuffer(AudioHandler.FRAME_SIZE);
-        IntPointer margin = new IntPointer(1);
-        margin.put(10 * AudioHandler.FRAME_SIZE);
-        mJitterBuffer.control(Speex.JitterBuffer.JITTER_BUFFER_SET_MARGIN, margin);
+    /**
+     * @return A new native decoder for the codec.
+     */
+    static IDecoder createDecoder(HumlaUDPMessageType codec) throws NativeAudioException {
+        switch (codec) {
+            case UDPVoiceOpus:
+                return new Opus.OpusDecoder(AudioHandler.SAMPLE_RATE, 1);
+            case UDPVoiceCELTBeta:
+                return new CELT11.CELT11Decoder(AudioHandler.SAMPLE_RATE, 1);
+            case UDPVoiceCELTAlpha:
+                return new CELT7.CELT7Decoder(AudioHandler.SAMPLE_RATE, AudioHandler.FRAME_SIZE, 1);
+            case UDPVoiceSpeex:
+                return new Speex.SpeexDecoder();
+            default:
+                throw new NativeAudioException("No decoder for " + codec);
+        }
     }
 
-    public void addFrameToBuffer(PacketBuffer pb, byte flags, int seq) {
-        if(pb.capacity() < 2)
+    /**
+     * Queues a voice packet in the jitter buffer. The data is copied, so the caller may reuse the
+     * array as soon as this returns.
+     * @param data Array containing the packet's audio payload, following the sequence number.
+     * @param offset Offset of the payload in data.
+     * @param length Length of the payload.
+     * @param flags Target flags of the packet header.
+     * @param seq Sequence number of the packet.
+     */
+    public void addFrameToBuffer(byte[] data, int offset, int length, byte flags, int seq) {
+        if(length < 2 || length > MAX_PACKET_SIZE)
             return;
 
         synchronized (mJitterLock) {
+            // Released to the pool, where another speaker may already be using the buffer.
+            if (mJitterBuffer == null) return;
+
+            // The jitter buffer copies packets on put, so one staging buffer is enough.
+            final ByteBuffer staging = mPutPacket.data;
+            staging.clear();
+            staging.put(data, offset, length);
+            staging.flip();
+
             try {
                 int samples = 0;
                 if (mCodec == HumlaUDPMessageType.UDPVoiceOpus) {
-                    long header = pb.readLong();
+                    long header = mPutReader.readLong();
                     int size = (int) (header & ((1 << 13) - 1));
+                    int position = staging.position();
 
-                    if (size > 0) {
-                        byte[] data = pb.dataBlock(size);
-                        if (data.length != size) return;
-
-                        int frames = Opus.opus_packet_get_nb_frames(data, size);
-                        samples = frames * Opus.opus_packet_get_samples_per_frame(data, AudioHandler.SAMPLE_RATE);
+                    if (size > 0 && size <= staging.remaining()) {
+                        int frames = Opus.getPacketFrameCount(staging, position, size);
+                        if (frames < 0) return;
+                        samples = frames * Opus.getPacketSamplesPerFrame(staging.get(position), AudioHandler.SAMPLE_RATE);
                     } else {
                         return;
                     }
                 } else {
-                    try {
-                        int header;
-                        do {
-                            header = pb.next();
-                            samples += AudioHandler.FRAME_SIZE;
-                            pb.skip(header & 0x7f);
-                        } while ((header & 0x80) > 0);
-                    } catch (BufferUnderflowException e) {
-                        // reached end of buffer
-                    }
+                    int header;
+                    do {
+                        if (staging.remaining() == 0) break; // reached end of buffer
+                        header = mPutReader.next();
+                        samples += AudioHandler.FRAME_SIZE;
+                        final int skip = Math.min(header & 0x7f, staging.remaining());
+                        mPutReader.skip(skip);
+                    } while ((header & 0x80) > 0);
                 }
-                pb.rewind();
 
-                int size = pb.left();
-                byte[] data = pb.dataBlock(size);
-                Speex.JitterBufferPacket packet = new Speex.JitterBufferPacket(data, size, AudioHandler.FRAME_SIZE * seq, samples, 0, flags);
-                synchronized (mJitterLock) {
-                    mJitterBuffer.put(packet);
-                }
-            } catch (BufferOverflowException e) {
+                mPutPacket.length = length;
+                mPutPacket.timestamp = AudioHandler.FRAME_SIZE * seq;
+                mPutPacket.span = samples;
+                mPutPacket.userData = flags;
+                mJitterBuffer.put(mPutPacket);
+                if (mFirstPacketNanos == 0) mFirstPacketNanos = System.nanoTime();
+            } catch (BufferUnderflowException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    @Override
-    public Result call() throws Exception {
-        if (mBufferFilled - mLastConsume > 0) {
-            // Shift over the remaining unconsumed data in the buffer.
-            System.arraycopy(mBuffer, mLastConsume, mBuffer, 0, mBufferFilled - mLastConsume);
+    /**
+     * Splits the packet just taken from the jitter buffer into frames. Parsing stops at the first
+     * frame that overruns the packet, keeping the frames before it.
+     */
+    private void readFrames() {
+        final ByteBuffer data = mGetPacket.data;
+        data.clear();
+        data.limit(mGetPacket.length);
+        mFrameCount = 0;
+        mFrameIndex = 0;
+        mHasTerminator = false;
+        try {
+            if (mCodec == HumlaUDPMessageType.UDPVoiceOpus) {
+                long header = mGetReader.readLong();
+                int size = (int) (header & ((1 << 13) - 1));
+                mHasTerminator = (header & (1 << 13)) > 0;
+                if (size > data.remaining()) return;
+                addFrame(data.position(), size);
+            } else {
+                int header;
+                do {
+                    header = mGetReader.next();
+                    int size = header & 0x7f;
+                    if (header > 0) {
+                        if (size > data.remaining()) return;
+                        addFrame(data.position(), size);
+                        mGetReader.skip(size);
+                    } else {
+                        mHasTerminator = true;
+                    }
+                } while ((header & 0x80) > 0);
+            }
+        } catch (BufferUnderflowException e) {
+            // Malformed header, keep the frames read so far.
         }
-        mBufferFilled -= mLastConsume;
+    }
 
-        mLastConsume = mRequestedSamples;
+    private void addFrame(int offset, int length) {
+        if (mFrameCount == MAX_FRAMES) return;
+        mFrameOffsets[mFrameCount] = offset;
+        mFrameLengths[mFrameCount] = length;
+        mFrameCount++;
+    }
 
-        if(mBufferFilled >= mRequestedSamples)
-            return new Result(this, mLastAlive, mBuffer, mBufferFilled);
+    /**
+     * Decodes until at least the given number of samples are ready in the PCM ring, or the user
+     * stops talking. Only called on the decode worker this speaker is assigned to.
+     * @param targetSamples The number of samples to keep ready. At most the ring's capacity less
+     *                      one decoded chunk.
+     */
+    public void decode(int targetSamples) {
+        if (mFinished) return;
 
-        boolean nextAlive = mLastAlive;
+        boolean nextAlive = true;
 
-        while(mBufferFilled < mRequestedSamples) {
+        while(nextAlive && mPcm.available() < targetSamples) {
             int decodedSamples = AudioHandler.FRAME_SIZE;
-            resizeBuffer(mBufferFilled + mAudioBufferSize);
 
-            if(!mLastAlive)
-                Arrays.fill(mOut, 0);
-            else {
-                avail.put(0);
+            int ts;
+            synchronized (mJitterLock) {
+                ts = mJitterBuffer.getPointerTimestamp();
+            }
 
-                int ts;
+            if(mFrameIndex == mFrameCount) {
+                int result;
                 synchronized (mJitterLock) {
-                    ts = mJitterBuffer.getPointerTimestamp();
-                    mJitterBuffer.control(Speex.JitterBuffer.JITTER_BUFFER_GET_AVAILABLE_COUNT, avail);
+                    result = mJitterBuffer.get(mGetPacket);
                 }
-                float availPackets = (float) avail.get();
-
-                // This bit of code here will make sure that we have enough packets in the jitter
-                // buffer before we even begin decoding, based on the average # of packets available.
-                // It's useful in preventing a metallic 'twang' when the user starts talking,
-                // caused by buffer underrun. The official Mumble project uses the same technique.
-                if(ts == 0) {
-                    int want = (int) Math.ceil(mUser.getAverageAvailable());
-                    if (availPackets < want) {
-                        mMissCount++;
-                        if(mMissCount < 20) {
-                            Arrays.fill(mOut, 0);
-                            System.arraycopy(mOut, 0, mBuffer, mBufferFilled, decodedSamples);
-                            mBufferFilled += decodedSamples;
-                            continue;
+
+                if(result == JitterBuffer.BUFFERING) {
+                    // Not enough buffered to start playout without underrunning right after.
+                    mPcm.writeSilence(decodedSamples);
+                    synchronized (mJitterLock) {
+                        mJitterBuffer.tick();
+                    }
+                    continue;
+                } else if(result == JitterBuffer.OK) {
+                    mMissCount = 0;
+                    ucFlags = mGetPacket.userData;
+                    if (mFirstFrameLatency < 0) {
+                        synchronized (mJitterLock) {
+                            mFirstFrameLatency = System.nanoTime() - mFirstPacketNanos;
                         }
                     }
-                }
-
-                if(mFrames.isEmpty()) {
-                    ByteBuffer packet = ByteBuffer.allocateDirect(4096);
-                    Speex.JitterBufferPacket jbp = new Speex.JitterBufferPacket(packet, 4096, 0, 0, 0, 0);
-                    int result;
 
+                    readFrames();
+                } else {
                     synchronized (mJitterLock) {
-                        result = mJitterBuffer.get(jbp, null);
+                        mJitterBuffer.updateDelay();
                     }
 
-                    if(result == Speex.JitterBuffer.JITTER_BUFFER_OK) {
-                        packet.limit(jbp.getLength());
-                        PacketBuffer pb = new PacketBuffer(packet);
-
-                        mMissCount = 0;
-                        ucFlags = jbp.getUserData();
-
-                        mHasTerminator = false;
-                        try {
-                            if (mCodec == HumlaUDPMessageType.UDPVoiceOpus) {
-                                long header = pb.readLong();
-                                int size = (int) (header & ((1 << 13) - 1));
-                                mHasTerminator = (header & (1 << 13)) > 0;
-
-                                ByteBuffer audioData = pb.bufferBlock(size);
-                                mFrames.add(audioData);
-                            } else {
-                                int header;
-                                do {
-                                    header = pb.next();
-                                    int size = header & 0x7f;
-                                    if (header > 0) {
-                                        mFrames.add(pb.bufferBlock(size));
-                                    } else {
-                                        mHasTerminator = true;
-                                    }
-                                } while ((header & 0x80) > 0);
-                            }
-                        } catch (BufferOverflowException e) {
-                            e.printStackTrace();
-                        } catch (BufferUnderflowException e) {
-                            e.printStackTrace();
-                        }
-
-                        if(availPackets >= mUser.getAverageAvailable())
-                            mUser.setAverageAvailable(availPackets);
-                        else
-                            mUser.setAverageAvailable(mUser.getAverageAvailable() * 0.99f);
+                    mMissCount++;
+                    if(mMissCount > 10)
+                        nextAlive = false;
+                }
+            }
 
-                    } else {
+            try {
+                if(mFrameIndex < mFrameCount) {
+                    final int offset = mFrameOffsets[mFrameIndex];
+                    final int length = mFrameLengths[mFrameIndex];
+                    mFrameIndex++;
+                    final ByteBuffer packet = mGetPacket.data;
+                    packet.limit(offset + length);
+                    packet.position(offset);
+                    mFrameData.clear();
+                    mFrameData.put(packet);
+                    mFrameData.flip();
+
+                    decodedSamples = mDecoder.decodeFloat(mFrameData, length, mOut, mAudioBufferSize);
+
+                    if(mFrameIndex == mFrameCount)
                         synchronized (mJitterLock) {
-                            mJitterBuffer.updateDelay(jbp, null);
+                            mJitterBuffer.updateDelay();
                         }
 
-                        mMissCount++;
-                        if(mMissCount > 10)
-                            nextAlive = false;
-                    }
+                    if(mFrameIndex == mFrameCount && mHasTerminator)
+                        nextAlive = false;
+                } else {
+                    decodedSamples = mDecoder.decodeFloat(null, 0, mOut, AudioHandler.FRAME_SIZE);
+                    mConcealedFrames++;
                 }
+            } catch (NativeAudioException e) {
+                e.printStackTrace();
+                decodedSamples = AudioHandler.FRAME_SIZE;
+            }
 
-                try {
-                    if(!mFrames.isEmpty()) {
-                        ByteBuffer data = mFrames.poll();
-
-                        decodedSamples = mDecoder.decodeFloat(data, data.limit(), mOut, mAudioBufferSize);
-
-                        if(mFrames.isEmpty())
-                            synchronized (mJitterLock) {
-                                mJitterBuffer.updateDelay(null, new IntPointer(1));
-                            }
-
-                        if(mFrames.isEmpty() && mHasTerminator)
-                            nextAlive = false;
-                    } else {
-                        decodedSamples = mDecoder.decodeFloat(null, 0, mOut, AudioHandler.FRAME_SIZE);
-                    }
-                } catch (NativeAudioException e) {
-                    e.printStackTrace();
-                    decodedSamples = AudioHandler.FRAME_SIZE;
+            if (!nextAlive) {
+                for (int i = 0; i < AudioHandler.FRAME_SIZE; i++) {
+                    mOut[i] *= mFadeOut[i];
                 }
-
-                if (!nextAlive) {
-                    for (int i = 0; i < AudioHandler.FRAME_SIZE; i++) {
-                        mOut[i] *= mFadeOut[i];
-                    }
-                } else if (ts == 0) {
-                    for (int i = 0; i < AudioHandler.FRAME_SIZE; i++) {
-                        mOut[i] *= mFadeIn[i];
-                    }
+            } else if (ts == 0) {
+                for (int i = 0; i < AudioHandler.FRAME_SIZE; i++) {
+                    mOut[i] *= mFadeIn[i];
                 }
+            }
 
-                synchronized (mJitterLock) {
-                    for(int i = decodedSamples / AudioHandler.FRAME_SIZE; i > 0; i--)
-                        mJitterBuffer.tick();
-                }
+            synchronized (mJitterLock) {
+                for(int i = decodedSamples / AudioHandler.FRAME_SIZE; i > 0; i--)
+                    mJitterBuffer.tick();
             }
 
-            System.arraycopy(mOut, 0, mBuffer, mBufferFilled, decodedSamples);
-            mBufferFilled += decodedSamples;
+            mPcm.write(mOut, 0, decodedSamples);
         }
 
         if(!nextAlive) ucFlags = 0xFF;
@@ -321,27 +372,94 @@ public class AudioOutputSpeech implements Callable<AudioOutputSpeech.Result> {
                 break;
         }
 
-        mTalkStateListener.onTalkStateUpdated(mUser.getSession(), talkState);
+        if (talkState != mTalkState) {
+            mTalkState = talkState;
+            mTalkStateListener.onTalkStateUpdated(mUser.getSession(), talkState);
+        }
+
+        // Published after the fade out, so that the speaker is only removed once it played.
+        if (!nextAlive) mFinished = true;
+    }
+
+    /**
+     * Takes the next buffer of decoded samples for mixing, padded with silence if the decoder
+     * has not caught up. Only called on the mixing thread.
+     * @return The number of decoded samples taken.
+     */
+    public int read() {
+        final int read = mPcm.read(mMix, 0, mMix.length);
+        if (read < mMix.length) Arrays.fill(mMix, read, mMix.length, 0);
+        return read;
+    }
+
+    /**
+     * Stops decoding, e.g. because the user switched codecs. Samples already decoded still play.
+     */
+    public void finish() {
+        mFinished = true;
+    }
+
+    /**
+     * @return Whether the user stopped talking, or was {@link #finish finished}.
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * @return Whether the speaker is finished and all of its samples were mixed, so that it can
+     *         be destroyed.
+     */
+    public boolean isDrained() {
+        return mFinished && mPcm.available() == 0;
+    }
+
+    @Override
+    public float[] getSamples() {
+        return mMix;
+    }
+
+    @Override
+    public int getNumSamples() {
+        return mMix.length;
+    }
 
-        boolean tmp = mLastAlive;
-        mLastAlive = nextAlive;
+    @Override
+    public float getGain() {
+        return mUser.getLocalVolume();
+    }
 
-        return new Result(this, tmp, mBuffer, mRequestedSamples);
+    /**
+     * @return How long packets recently waited in the jitter buffer, in samples.
+     */
+    public int getJitterDelay() {
+        synchronized (mJitterLock) {
+            return mJitterBuffer != null ? mJitterBuffer.getDelay() : 0;
+        }
     }
 
-    private void resizeBuffer(int newSize) {
-        if(newSize > mBuffer.length) {
-            float[] newBuffer = Arrays.copyOf(mBuffer, newSize);
-            mBuffer = newBuffer;
+    /**
+     * @return The number of packets dropped for arriving after their playout time.
+     */
+    public int getLateCount() {
+        synchronized (mJitterLock) {
+            return mJitterBuffer != null ? mJitterBuffer.getLateCount() : 0;
         }
     }
 
     /**
-     * Sets the preferred number of samples to return when the callable is executed.
-     * @param samples The number of floating point samples to retrieve.
+     * @return The number of frames concealed by the decoder.
      */
-    public void setRequestedSamples(int samples) {
-        mRequestedSamples = samples;
+    public int getConcealedFrames() {
+        return mConcealedFrames;
+    }
+
+    /**
+     * @return The nanoseconds from queueing the first packet to decoding it, which includes the
+     *         time the jitter buffer held it back, or -1 if none was decoded yet.
+     */
+    public long getFirstFrameLatency() {
+        return mFirstFrameLatency;
     }
 
     public HumlaUDPMessageType getCodec() {
@@ -361,43 +479,26 @@ public class AudioOutputSpeech implements Callable<AudioOutputSpeech.Result> {
      * This MUST be called eventually, otherwise we get memory leaks!
      */
     public void destroy() {
-        if(mDecoder != null) mDecoder.destroy();
-        mJitterBuffer.destroy();
+        synchronized (mJitterLock) {
+            if (mJitterBuffer == null) return;
+            if(mDecoder != null) mDecoder.destroy();
+            mJitterBuffer.destroy();
+            mDecoder = null;
+            mJitterBuffer = null;
+        }
     }
 
     /**
-     * The outcome of a decoding pass.
+     * Hands the decoder and jitter buffer to the pool to be reset and reused, instead of
+     * destroying them. Must not be called while the speaker decodes. Packets queued after this
+     * are dropped.
      */
-    protected static class Result implements IAudioMixerSource<float[]> {
-        private AudioOutputSpeech mSpeechOutput;
-        private boolean mAlive;
-        private float[] mSamples;
-        private int mNumSamples;
-
-        private Result(AudioOutputSpeech speechOutput,
-                      boolean alive,
-                      float[] samples,
-                      int numSamples) {
-            mSpeechOutput = speechOutput;
-            mAlive = alive;
-            mSamples = samples;
-            mNumSamples = numSamples;
-        }
-
-        public AudioOutputSpeech getSpeechOutput() {
-            return mSpeechOutput;
-        }
-
-        public boolean isAlive() {
-            return mAlive;
-        }
-
-        public float[] getSamples() {
-            return mSamples;
-        }
-
-        public int getNumSamples() {
-            return mNumSamples;
+    public void release(DecoderPool pool) {
+        synchronized (mJitterLock) {
+            if (mJitterBuffer == null) return;
+            pool.release(mUser, mCodec, mDecoder, mJitterBuffer);
+            mDecoder = null;
+            mJitterBuffer = null;
         }
     }
 }
@@ -12,7 +12,7 @@ public class BasicClippingShortMixer implements IAudioMixer<float[], short[]> {
         for (int i = 0; i < bufferLength; i++) {
             float mix = 0;
             for (IAudioMixerSource<float[]> source : sources) {
-                mix += source.getSamples()[i];
+                mix += source.getSamples()[i] * source.getGain();
             }
             // Clip to [-1,1].
             if (mix > 1)
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.audio;
+
+import se.lublin.humla.exception.NativeAudioException;
+import se.lublin.humla.model.User;
+import se.lublin.humla.net.HumlaUDPMessageType;
+
+/**
+ * Keeps the decoders and jitter buffers of users who stopped talking, reset, for the next talk
+ * spurt, instead of destroying them and creating new ones for every over.
+ *
+ * Decoders hold no state worth keeping once reset, so any idle decoder of the codec is reused.
+ * Jitter buffers are kept by user, so that a user's next talk spurt starts out with the delay
+ * their packets needed before, see {@link JitterBuffer#reset}. They are matched by the
+ * {@link User} object rather than its session, since a session may be reassigned to a new user,
+ * and a {@link SpeexJitterBuffer} stays bound to the user it was created for.
+ *
+ * At most a fixed number of each are kept; when full, the one idle the longest is destroyed.
+ * Ones idle for longer than the timeout are destroyed the next time the pool is used.
+ *
+ * Thread-safe. Resetting and destroying happen outside the lock, on the calling thread.
+ */
+public class DecoderPool {
+    /** Creates what the pool has none of idle. */
+    public interface Factory {
+        IDecoder createDecoder(HumlaUDPMessageType codec) throws NativeAudioException;
+        JitterBuffer createJitterBuffer(User user);
+    }
+
+    private final Factory mFactory;
+    private final long mIdleTimeout;
+    /** Idle decoders, by codec. */
+    private final IdleList<IDecoder> mDecoders;
+    /** Idle jitter buffers, by user. */
+    private final IdleList<JitterBuffer> mJitterBuffers;
+
+    // Guarded by this
+    private int mCreateCount;
+    private int mReuseCount;
+    private int mDestroyCount;
+
+    /**
+     * @param capacity The most decoders, and the most jitter buffers, to keep idle. 0 destroys
+     *                 them as soon as they are released.
+     * @param idleTimeout How long to keep them idle for, in nanoseconds.
+     */
+    public DecoderPool(Factory factory, int capacity, long idleTimeout) {
+        mFactory = factory;
+        mIdleTimeout = idleTimeout;
+        mDecoders = new IdleList<>(capacity);
+        mJitterBuffers = new IdleList<>(capacity);
+    }
+
+    /**
+     * @return An idle decoder for the codec, reset, or a new one if there is none.
+     */
+    public IDecoder takeDecoder(HumlaUDPMessageType codec) throws NativeAudioException {
+        evictExpired();
+        final IDecoder decoder;
+        synchronized (this) {
+            decoder = mDecoders.take(codec);
+            if (decoder != null) mReuseCount++;
+        }
+        if (decoder != null) return decoder;
+        final IDecoder created = mFactory.createDecoder(codec);
+        synchronized (this) {
+            mCreateCount++;
+        }
+        return created;
+    }
+
+    /**
+     * @return The user's idle jitter buffer, reset, or a new one if there is none.
+     */
+    public JitterBuffer takeJitterBuffer(User user) {
+        evictExpired();
+        final JitterBuffer buffer;
+        synchronized (this) {
+            buffer = mJitterBuffers.take(user);
+            if (buffer != null) mReuseCount++;
+        }
+        if (buffer != null) return buffer;
+        final JitterBuffer created = mFactory.createJitterBuffer(user);
+        synchronized (this) {
+            mCreateCount++;
+        }
+        return created;
+    }
+
+    /**
+     * Resets the decoder and jitter buffer of a speaker that finished, and keeps them idle.
+     * @param user The user they were decoding.
+     * @param codec The codec of the decoder.
+     */
+    public void release(User user, HumlaUDPMessageType codec, IDecoder decoder,
+                        JitterBuffer jitterBuffer) {
+        final long now = System.nanoTime();
+        if (decoder != null) {
+            try {
+                decoder.reset();
+                final IDecoder evicted;
+                synchronized (this) {
+                    evicted = mDecoders.add(codec, decoder, now);
+                }
+                destroy(evicted);
+            } catch (NativeAudioException e) {
+                e.printStackTrace();
+                destroy(decoder);
+            }
+        }
+        jitterBuffer.reset();
+        final JitterBuffer evicted;
+        synchronized (this) {
+            evicted = mJitterBuffers.add(user, jitterBuffer, now);
+        }
+        destroy(evicted);
+        evictExpired();
+    }
+
+    /**
+     * Destroys all idle decoders and jitter buffers.
+     */
+    public void clear() {
+        while (true) {
+            final Object idle;
+            synchronized (this) {
+                idle = mDecoders.mCount > 0 ? mDecoders.removeAt(0)
+                        : mJitterBuffers.mCount > 0 ? mJitterBuffers.removeAt(0) : null;
+            }
+            if (idle == null) return;
+            destroy(idle);
+        }
+    }
+
+    /**
+     * @return The number of decoders and jitter buffers created.
+     */
+    public synchronized int getCreateCount() {
+        return mCreateCount;
+    }
+
+    /**
+     * @return The number of idle decoders and jitter buffers taken instead of creating new ones.
+     */
+    public synchronized int getReuseCount() {
+        return mReuseCount;
+    }
+
+    /**
+     * @return The number of decoders and jitter buffers destroyed.
+     */
+    public synchronized int getDestroyCount() {
+        return mDestroyCount;
+    }
+
+    /**
+     * @return The number of decoders and jitter buffers kept idle.
+     */
+    public synchronized int getIdleCount() {
+        return mDecoders.mCount + mJitterBuffers.mCount;
+    }
+
+    private void evictExpired() {
+        final long deadline = System.nanoTime() - mIdleTimeout;
+        while (true) {
+            final Object expired;
+            synchronized (this) {
+                final IDecoder decoder = mDecoders.expire(deadline);
+                expired = decoder != null ? decoder : mJitterBuffers.expire(deadline);
+            }
+            if (expired == null) return;
+            destroy(expired);
+        }
+    }
+
+    private void destroy(Object idle) {
+        if (idle == null) return;
+        if (idle instanceof IDecoder) {
+            ((IDecoder) idle).destroy();
+        } else {
+            ((JitterBuffer) idle).destroy();
+        }
+        synchronized (this) {
+            mDestroyCount++;
+        }
+    }
+
+    /**
+     * Idle items with their key and the time they were released, oldest first.
+     */
+    private static final class IdleList<T> {
+        final Object[] mItems;
+        /** Compared by identity. */
+        final Object[] mKeys;
+        final long[] mSince;
+        int mCount;
+
+        IdleList(int capacity) {
+            mItems = new Object[capacity];
+            mKeys = new Object[capacity];
+            mSince = new long[capacity];
+        }
+
+        /**
+         * @return The item released last with the key, or null.
+         */
+        T take(Object key) {
+            for (int i = mCount - 1; i >= 0; i--) {
+                if (mKeys[i] == key) return removeAt(i);
+            }
+            return null;
+        }
+
+        /**
+         * Adds an item, making room by removing the oldest if full.
+         * @return The item removed to make room, or the item itself if there is no room at all.
+         */
+        T add(Object key, T item, long now) {
+            if (mItems.length == 0) return item;
+            final T evicted = mCount == mItems.length ? removeAt(0) : null;
+            mItems[mCount] = item;
+            mKeys[mCount] = key;
+            mSince[mCount] = now;
+            mCount++;
+            return evicted;
+        }
+
+        /**
+         * @return The oldest item if it was released before the deadline, removed, or null.
+         */
+        T expire(long deadline) {
+            return mCount > 0 && mSince[0] - deadline < 0 ? removeAt(0) : null;
+        }
+
+        @SuppressWarnings("unchecked")
+        T removeAt(int index) {
+            final T item = (T) mItems[index];
+            System.arraycopy(mItems, index + 1, mItems, index, mCount - index - 1);
+            System.arraycopy(mKeys, index + 1, mKeys, index, mCount - index - 1);
+            System.arraycopy(mSince, index + 1, mSince, index, mCount - index - 1);
+            mCount--;
+            mItems[mCount] = null;
+            mKeys[mCount] = null;
+            return item;
+        }
+    }
+}
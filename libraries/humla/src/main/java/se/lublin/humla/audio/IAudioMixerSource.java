@@ -7,4 +7,9 @@ package se.lublin.humla.audio;
 public interface IAudioMixerSource<T> {
     T getSamples();
     int getNumSamples();
+
+    /**
+     * @return The linear gain to mix the samples at, 1 to leave them unchanged.
+     */
+    float getGain();
 }
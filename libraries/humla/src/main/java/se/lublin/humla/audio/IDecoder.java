@@ -47,6 +47,13 @@ public interface IDecoder {
      */
     public int decodeShort(ByteBuffer input, int inputSize, short[] output, int frameSize) throws NativeAudioException;
 
+    /**
+     * Resets the decoder to its initial state, so that it can decode a new stream as if newly
+     * created.
+     * @throws NativeAudioException if resetting failed.
+     */
+    public void reset() throws NativeAudioException;
+
     /**
      * Deallocates native resources. The decoder must no longer be called after this.
      */
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Orders the voice packets of one user by timestamp and hands them out at playout time, so that
+ * network jitter does not reach the decoder. Timestamps and spans are in samples.
+ *
+ * The playout side calls {@link #get} whenever it has decoded all frames of the previous packet,
+ * decodes or conceals what it got, and then calls {@link #tick} once for every frame it played.
+ *
+ * Not thread-safe; callers serialize put with the playout side.
+ */
+public interface JitterBuffer {
+    /** {@link #get} found the packet for the current playout time. */
+    int OK = 0;
+    /** {@link #get} found no packet for the current playout time; conceal it. */
+    int MISSING = 1;
+    /** {@link #get} holds packets back until enough are buffered to start; play silence. */
+    int BUFFERING = 2;
+
+    /**
+     * A packet going into or coming out of a jitter buffer. Reused, so that neither direction
+     * allocates.
+     */
+    final class Packet {
+        /** Direct buffer holding the packet data from position 0. */
+        public final ByteBuffer data;
+        public int length;
+        public int timestamp;
+        public int span;
+        public int userData;
+
+        public Packet(int capacity) {
+            data = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /**
+     * Queues a packet. Its data is copied, so the packet may be reused once this returns. The
+     * position and limit of its data buffer may change.
+     */
+    void put(Packet packet);
+
+    /**
+     * Takes the packet for the current playout time.
+     * @param packet Receives the packet; its data is filled from position 0 up to its capacity.
+     * @return {@link #OK}, {@link #MISSING} or {@link #BUFFERING}.
+     */
+    int get(Packet packet);
+
+    /**
+     * @return The timestamp of the current playout time, or 0 while buffering up at the start.
+     */
+    int getPointerTimestamp();
+
+    /**
+     * @return The number of packets waiting to be played out.
+     */
+    int getAvailableCount();
+
+    /**
+     * Adjusts the buffering delay, after a miss or once all frames of a packet were decoded.
+     */
+    void updateDelay();
+
+    /**
+     * Advances the playout time by one frame.
+     */
+    void tick();
+
+    /**
+     * @return How long packets have recently waited in the buffer before playout, in samples.
+     */
+    int getDelay();
+
+    /**
+     * @return The number of packets dropped for arriving after their playout time.
+     */
+    int getLateCount();
+
+    /**
+     * Drops all packets and the late count, so that playout starts over as for a new talk spurt.
+     * What the buffer learned about the delay of the user's packets is kept, so that the next
+     * talk spurt starts out with it.
+     */
+    void reset();
+
+    /**
+     * Frees native resources. The buffer must no longer be used after this.
+     */
+    void destroy();
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.audio;
+
+/**
+ * Fixed size ring of float samples between one producer thread, which decodes into it, and one
+ * consumer thread, which mixes out of it. Neither side locks or allocates.
+ */
+public class PcmRing {
+    private final float[] mSamples;
+    private final int mMask;
+    /** Total samples written; only advanced by the producer. */
+    private volatile long mWritten;
+    /** Total samples read; only advanced by the consumer. */
+    private volatile long mRead;
+
+    /**
+     * @param minCapacity The number of samples the ring must hold. Rounded up to a power of two.
+     */
+    public PcmRing(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(1, minCapacity));
+        if (capacity < minCapacity) capacity <<= 1;
+        mSamples = new float[capacity];
+        mMask = capacity - 1;
+    }
+
+    public int capacity() {
+        return mSamples.length;
+    }
+
+    /**
+     * @return The number of samples ready to be read.
+     */
+    public int available() {
+        return (int) (mWritten - mRead);
+    }
+
+    /**
+     * @return The number of samples that can be written without overwriting unread ones.
+     */
+    public int free() {
+        return mSamples.length - available();
+    }
+
+    /**
+     * Appends samples. Only called by the producer.
+     * @return The number of samples written, less than length if the ring filled up.
+     */
+    public int write(float[] src, int offset, int length) {
+        final long written = mWritten;
+        final int count = Math.min(length, mSamples.length - (int) (written - mRead));
+        final int start = (int) written & mMask;
+        final int first = Math.min(count, mSamples.length - start);
+        System.arraycopy(src, offset, mSamples, start, first);
+        System.arraycopy(src, offset + first, mSamples, 0, count - first);
+        mWritten = written + count;
+        return count;
+    }
+
+    /**
+     * Appends silence. Only called by the producer.
+     * @return The number of samples written, less than length if the ring filled up.
+     */
+    public int writeSilence(int length) {
+        final long written = mWritten;
+        final int count = Math.min(length, mSamples.length - (int) (written - mRead));
+        for (int i = 0; i < count; i++) {
+            mSamples[(int) (written + i) & mMask] = 0;
+        }
+        mWritten = written + count;
+        return count;
+    }
+
+    /**
+     * Takes samples out of the ring. Only called by the consumer.
+     * @return The number of samples read, less than length if the ring ran empty.
+     */
+    public int read(float[] dst, int offset, int length) {
+        final long read = mRead;
+        final int count = Math.min(length, (int) (mWritten - read));
+        final int start = (int) read & mMask;
+        final int first = Math.min(count, mSamples.length - start);
+        System.arraycopy(mSamples, start, dst, offset, first);
+        System.arraycopy(mSamples, 0, dst, offset + first, count - first);
+        mRead = read + count;
+        return count;
+    }
+
+    /**
+     * Drops all unread samples. Only called by the consumer, or while neither side runs.
+     */
+    public void clear() {
+        mRead = mWritten;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.audio;
+
+/**
+ * Immutable snapshot of how the voice of one user is played out, taken by
+ * {@link AudioOutput#getPlayoutStats()}. Counts are totals since the user started speaking.
+ */
+public final class PlayoutStats {
+    private final int mSession;
+    private final int mDelay;
+    private final int mLateCount;
+    private final int mConcealedFrames;
+
+    PlayoutStats(int session, int delay, int lateCount, int concealedFrames) {
+        mSession = session;
+        mDelay = delay;
+        mLateCount = lateCount;
+        mConcealedFrames = concealedFrames;
+    }
+
+    public int getSession() {
+        return mSession;
+    }
+
+    /** @return How long packets recently waited in the jitter buffer, in milliseconds. */
+    public int getDelay() {
+        return mDelay;
+    }
+
+    /** @return Packets dropped for arriving after their playout time. */
+    public int getLateCount() {
+        return mLateCount;
+    }
+
+    /** @return Frames the decoder concealed for packets lost, late or held back. */
+    public int getConcealedFrames() {
+        return mConcealedFrames;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.audio;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Mixes float PCM sources to shorts, applying each source's gain and a master gain, and
+ * limiting softly instead of clipping.
+ *
+ * Sources are summed one at a time into a float scratch buffer, so that each inner loop is a
+ * plain multiply-add over two arrays that the JIT can unroll and vectorize. A single final pass
+ * then limits and converts to shorts. The master gain is folded into each source's gain, so it
+ * costs nothing per sample.
+ *
+ * The limiter is a static curve: samples below {@link #KNEE} of full scale pass unchanged, and
+ * above it they are compressed smoothly towards full scale, which they never reach. The slope is
+ * continuous at the knee, so loud passages are rounded off rather than squared like clipping.
+ *
+ * Not thread-safe; only the playback thread mixes.
+ */
+public class SoftLimitingShortMixer implements IAudioMixer<float[], short[]> {
+    /** The level, as a fraction of full scale, above which the limiter starts compressing. */
+    public static final float KNEE = 0.8f;
+
+    private float[] mScratch = new float[0];
+    private volatile float mGain = 1.0f;
+
+    /**
+     * @param gain The master gain, applied on top of each source's gain.
+     */
+    public void setGain(float gain) {
+        mGain = gain;
+    }
+
+    public float getGain() {
+        return mGain;
+    }
+
+    @Override
+    public void mix(Collection<IAudioMixerSource<float[]>> sources, short[] buffer,
+                    int bufferOffset, int bufferLength) {
+        if (mScratch.length < bufferLength) {
+            mScratch = new float[bufferLength];
+        }
+        final float[] mix = mScratch;
+        final float gain = mGain;
+
+        boolean first = true;
+        if (sources instanceof RandomAccess) {
+            // Avoids an iterator per call on the playback thread.
+            final List<IAudioMixerSource<float[]>> list = (List<IAudioMixerSource<float[]>>) sources;
+            for (int s = 0; s < list.size(); s++) {
+                accumulate(list.get(s), mix, bufferLength, gain, first);
+                first = false;
+            }
+        } else {
+            for (IAudioMixerSource<float[]> source : sources) {
+                accumulate(source, mix, bufferLength, gain, first);
+                first = false;
+            }
+        }
+        if (first) {
+            for (int i = 0; i < bufferLength; i++) {
+                mix[i] = 0;
+            }
+        }
+
+        final float range = 1 - KNEE;
+        for (int i = 0; i < bufferLength; i++) {
+            final float sample = mix[i];
+            final float level = Math.abs(sample);
+            float limited = sample;
+            if (level > KNEE) {
+                // u / (1 + u) maps [0, inf) onto [0, 1) with slope 1 at 0.
+                final float over = (level - KNEE) / range;
+                final float compressed = KNEE + range * over / (1 + over);
+                limited = sample < 0 ? -compressed : compressed;
+            }
+            buffer[bufferOffset + i] = (short) (limited * Short.MAX_VALUE);
+        }
+    }
+
+    private static void accumulate(IAudioMixerSource<float[]> source, float[] mix, int length,
+                                   float masterGain, boolean first) {
+        final float[] samples = source.getSamples();
+        final float gain = source.getGain() * masterGain;
+        if (first) {
+            for (int i = 0; i < length; i++) {
+                mix[i] = samples[i] * gain;
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                mix[i] += samples[i] * gain;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.audio;
+
+import com.googlecode.javacpp.IntPointer;
+
+import se.lublin.humla.audio.javacpp.Speex;
+import se.lublin.humla.model.User;
+
+/**
+ * {@link JitterBuffer} backed by the native Speex jitter buffer. Binds one native packet to each
+ * {@link JitterBuffer.Packet} it is given, so that a speaker reusing its packets causes no
+ * allocation past the first call.
+ *
+ * Speex starts playout as soon as it has a packet. To avoid underrunning right after, playout
+ * is held back until as many packets are buffered as were on average during the user's recent
+ * speech, which is kept on the {@link User} across talk spurts. This is the same technique the
+ * official Mumble client uses.
+ */
+public class SpeexJitterBuffer implements JitterBuffer {
+    /** The most frames to hold back playout for at the start of a talk spurt. */
+    private static final int MAX_BUFFERING_FRAMES = 20;
+
+    private final Speex.JitterBuffer mBuffer;
+    private final User mUser;
+    private final IntPointer mAvailable = new IntPointer(1);
+    private Packet mPutPacket;
+    private Speex.JitterBufferPacket mNativePutPacket;
+    private Packet mGetPacket;
+    private Speex.JitterBufferPacket mNativeGetPacket;
+    private int mBufferingFrames;
+    /** Whether the last get returned BUFFERING, in which case the native buffer is not ticked. */
+    private boolean mBuffering;
+    /** Moving average of how early packets arrived before playout, in samples. */
+    private int mDelay;
+    private int mLateCount;
+
+    /**
+     * @param frameSize The number of samples in a frame.
+     * @param margin The number of samples packets may arrive late by and still be played.
+     * @param user The user whose voice is buffered.
+     */
+    public SpeexJitterBuffer(int frameSize, int margin, User user) {
+        mBuffer = new Speex.JitterBuffer(frameSize);
+        mUser = user;
+        final IntPointer value = new IntPointer(1);
+        value.put(margin);
+        mBuffer.control(Speex.JitterBuffer.JITTER_BUFFER_SET_MARGIN, value);
+    }
+
+    @Override
+    public void put(Packet packet) {
+        final int pointer = mBuffer.getPointerTimestamp();
+        if (pointer != 0) {
+            final int early = packet.timestamp - pointer;
+            if (early < 0) mLateCount++;
+            mDelay += (early - mDelay) >> 4;
+        }
+        if (packet != mPutPacket) {
+            mPutPacket = packet;
+            mNativePutPacket = new Speex.JitterBufferPacket(packet.data, 0, 0, 0, 0, 0);
+        }
+        mNativePutPacket.setLength(packet.length);
+        mNativePutPacket.setTimestamp(packet.timestamp);
+        mNativePutPacket.setSpan(packet.span);
+        mNativePutPacket.setSequence(0);
+        mNativePutPacket.setUserData(packet.userData);
+        mBuffer.put(mNativePutPacket);
+    }
+
+    @Override
+    public int get(Packet packet) {
+        final int available = getAvailableCount();
+        if (mBuffer.getPointerTimestamp() == 0
+                && available < Math.ceil(mUser.getAverageAvailable())
+                && mBufferingFrames < MAX_BUFFERING_FRAMES) {
+            mBufferingFrames++;
+            mBuffering = true;
+            return BUFFERING;
+        }
+        mBuffering = false;
+
+        if (packet != mGetPacket) {
+            mGetPacket = packet;
+            mNativeGetPacket = new Speex.JitterBufferPacket(packet.data, 0, 0, 0, 0, 0);
+        }
+        // The native buffer copies at most len bytes into data.
+        mNativeGetPacket.setLength(packet.data.capacity());
+        if (mBuffer.get(mNativeGetPacket, null) != Speex.JitterBuffer.JITTER_BUFFER_OK) {
+            return MISSING;
+        }
+        mBufferingFrames = 0;
+        if (available >= mUser.getAverageAvailable())
+            mUser.setAverageAvailable(available);
+        else
+            mUser.setAverageAvailable(mUser.getAverageAvailable() * 0.99f);
+        packet.length = mNativeGetPacket.getLength();
+        packet.timestamp = mNativeGetPacket.getTimestamp();
+        packet.span = mNativeGetPacket.getSpan();
+        packet.userData = mNativeGetPacket.getUserData();
+        return OK;
+    }
+
+    @Override
+    public int getPointerTimestamp() {
+        return mBuffer.getPointerTimestamp();
+    }
+
+    @Override
+    public int getAvailableCount() {
+        mAvailable.put(0);
+        mBuffer.control(Speex.JitterBuffer.JITTER_BUFFER_GET_AVAILABLE_COUNT, mAvailable);
+        return mAvailable.get();
+    }
+
+    @Override
+    public void updateDelay() {
+        // Speex ignores both arguments.
+        mBuffer.updateDelay(null, null);
+    }
+
+    @Override
+    public void tick() {
+        if (!mBuffering) mBuffer.tick();
+    }
+
+    @Override
+    public int getDelay() {
+        return Math.max(0, mDelay);
+    }
+
+    @Override
+    public int getLateCount() {
+        return mLateCount;
+    }
+
+    /**
+     * Resets the native buffer, which also forgets its delay estimate. The average of buffered
+     * packets is kept on the user.
+     */
+    @Override
+    public void reset() {
+        mBuffer.reset();
+        mBufferingFrames = 0;
+        mBuffering = false;
+        mLateCount = 0;
+    }
+
+    @Override
+    public void destroy() {
+        mBuffer.destroy();
+    }
+}
@@ -37,6 +37,7 @@ public class CELT11 {
     public static final int CELT_GET_BITSTREAM_VERSION = 2000;
     public static final int CELT_SET_BITRATE_REQUEST = 6;
     public static final int CELT_SET_PREDICTION_REQUEST = 4;
+    public static final int CELT_RESET_STATE = 8;
 
     static {
         Loader.load();
@@ -94,6 +95,12 @@ public class CELT11 {
             return frameSize;
         }
 
+        @Override
+        public void reset() throws NativeAudioException {
+            int result = celt_decoder_ctl(mState, CELT_RESET_STATE, null);
+            if(result < 0) throw new NativeAudioException("CELT 0.11.0 decoder reset failed with error: "+result);
+        }
+
         @Override
         public void destroy() {
             celt_decoder_destroy(mState);
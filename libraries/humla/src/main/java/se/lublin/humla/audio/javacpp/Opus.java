@@ -36,6 +36,9 @@ import se.lublin.humla.exception.NativeAudioException;
 public class Opus {
     public static final int OPUS_APPLICATION_VOIP = 2048;
 
+    public static final int OPUS_BAD_ARG = -1;
+    public static final int OPUS_INVALID_PACKET = -4;
+
     public static final int OPUS_SET_BITRATE_REQUEST = 4002;
     public static final int OPUS_GET_BITRATE_REQUEST = 4003;
     public static final int OPUS_SET_VBR_REQUEST = 4006;
@@ -68,11 +71,42 @@ public class Opus {
         Loader.load();
     }
 
+    /**
+     * Java equivalent of opus_packet_get_nb_frames that reads from a buffer at an offset.
+     * @return The number of frames in the packet, or a negative error code.
+     */
+    public static int getPacketFrameCount(ByteBuffer packet, int offset, int length) {
+        if (length < 1) return OPUS_BAD_ARG;
+        final int count = packet.get(offset) & 0x3;
+        if (count == 0) return 1;
+        if (count != 3) return 2;
+        if (length < 2) return OPUS_INVALID_PACKET;
+        return packet.get(offset + 1) & 0x3F;
+    }
+
+    /**
+     * Java equivalent of opus_packet_get_samples_per_frame, taking the packet's TOC byte.
+     */
+    public static int getPacketSamplesPerFrame(byte toc, int fs) {
+        if ((toc & 0x80) != 0) {
+            return (fs << ((toc >> 3) & 0x3)) / 400;
+        } else if ((toc & 0x60) == 0x60) {
+            return (toc & 0x08) != 0 ? fs / 50 : fs / 100;
+        } else {
+            final int size = (toc >> 3) & 0x3;
+            return size == 3 ? fs * 60 / 1000 : (fs << size) / 100;
+        }
+    }
+
     public static class OpusDecoder implements IDecoder {
 
         private Pointer mState;
+        private final int mSampleRate;
+        private final int mChannels;
 
         public OpusDecoder(int sampleRate, int channels) throws NativeAudioException {
+            mSampleRate = sampleRate;
+            mChannels = channels;
             IntPointer error = new IntPointer(1);
             error.put(0);
             mState = opus_decoder_create(sampleRate, channels, error);
@@ -93,6 +127,13 @@ public class Opus {
             return result;
         }
 
+        @Override
+        public void reset() throws NativeAudioException {
+            // Initializes the state in place, without reallocating it.
+            int result = opus_decoder_init(mState, mSampleRate, mChannels);
+            if(result < 0) throw new NativeAudioException("Opus decoder reset failed with error: "+result);
+        }
+
         @Override
         public void destroy() {
             opus_decoder_destroy(mState);
@@ -501,6 +501,11 @@ public class Speex {
             return frameSize;
         }
 
+        @Override
+        public void reset() {
+            Speex.speex_decoder_ctl(mState, Speex.SPEEX_RESET_STATE, null);
+        }
+
         @Override
         public void destroy() {
             speex_decoder_destroy(mState);
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.model;
+
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Content addressed store for the large optional fields of the model: avatar textures, comments
+ * and channel descriptions. Blobs are keyed by their SHA-1 hash, the same hash the server sends
+ * in place of a blob, so a blob that was seen once can be found again by its hash alone.
+ *
+ * The most recently used blobs are kept in memory up to a byte budget. Older ones are written to
+ * the spill directory in the background and read back when asked for, so the heap used for blobs
+ * stays bounded however many users a server has. Without a spill directory, evicted blobs are
+ * dropped and have to be requested from the server again. Thread safe.
+ *
+ * The spill directory is listed once, in the background, when the cache is created; after that
+ * {@link #put} and {@link #find} only consult that index and never touch the disk, so they are
+ * safe to call on the main thread. Reading the contents of a spilled blob does block, see
+ * {@link Blob#getBytes()}.
+ */
+public class BlobCache {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Memory budget used when none is given. */
+    public static final int DEFAULT_MEMORY_BUDGET = 1024 * 1024;
+    /** Spill directory size that is trimmed back to when the cache is created. */
+    public static final long DEFAULT_DISK_BUDGET = 32 * 1024 * 1024;
+    private static final int SHA1_LENGTH = 20;
+    /** Longest to wait for the spill directory to be indexed before going without it. */
+    private static final int INDEX_TIMEOUT_SECONDS = 5;
+
+    private final File mDirectory;
+    private final int mMemoryBudget;
+    /** In access order, so iteration starts at the least recently used blob. Guarded by this. */
+    private final LinkedHashMap<ByteString, byte[]> mMemory =
+            new LinkedHashMap<ByteString, byte[]>(16, 0.75f, true);
+    /** Evicted blobs that are still being written to disk. Guarded by this. */
+    private final Map<ByteString, byte[]> mPendingWrites = new HashMap<ByteString, byte[]>();
+    /** Sizes of the blobs in the spill directory. Guarded by this. */
+    private final Map<ByteString, Integer> mOnDisk = new HashMap<ByteString, Integer>();
+    private int mMemoryBytes;
+    private final ExecutorService mWriter;
+    /** Released once mOnDisk holds what was in the spill directory at creation. */
+    private final CountDownLatch mIndexed = new CountDownLatch(1);
+
+    /**
+     * Creates a cache that only keeps blobs in memory.
+     */
+    public BlobCache(int memoryBudget) {
+        this(null, memoryBudget, 0);
+    }
+
+    /**
+     * @param directory The directory to spill blobs to, or null to keep them in memory only.
+     * @param memoryBudget The number of blob bytes to keep on the heap.
+     * @param diskBudget The size to trim the spill directory to, oldest files first.
+     */
+    public BlobCache(File directory, int memoryBudget, final long diskBudget) {
+        mDirectory = directory;
+        mMemoryBudget = memoryBudget;
+        if (directory == null) {
+            mWriter = null;
+            mIndexed.countDown();
+            return;
+        }
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "HumlaBlobCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mDirectory.isDirectory() || mDirectory.mkdirs()) {
+                        trim(diskBudget);
+                        index();
+                    }
+                } finally {
+                    mIndexed.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stores a copy of the data, unless a blob with the same contents is already known.
+     * @param data The blob. May be a slice of a larger buffer; only its own bytes are kept.
+     * @return A handle to the blob, or null if the data is empty.
+     */
+    public Blob put(ByteString data) {
+        if (data == null || data.isEmpty()) return null;
+        final ByteString key = hash(data);
+        awaitIndex();
+        synchronized (this) {
+            if (!mMemory.containsKey(key) && !mPendingWrites.containsKey(key)
+                    && !mOnDisk.containsKey(key)) {
+                insert(key, data.toByteArray());
+            }
+        }
+        return new Blob(this, key, data.size());
+    }
+
+    /**
+     * Looks up a blob by the hash the server announced for it, without reading its contents.
+     * @return A handle to the blob, or null if its contents are not cached.
+     */
+    public Blob find(ByteString hash) {
+        if (hash == null) return null;
+        awaitIndex();
+        synchronized (this) {
+            byte[] data = mMemory.get(hash);
+            if (data == null) data = mPendingWrites.get(hash);
+            if (data != null) return new Blob(this, hash, data.length);
+            final Integer size = mOnDisk.get(hash);
+            return size != null ? new Blob(this, hash, size) : null;
+        }
+    }
+
+    /**
+     * Writes the blobs still in memory to the spill directory in the background, so that they
+     * can be found by hash next time, and stops the writer once that is done.
+     */
+    public void close() {
+        if (mWriter == null) return;
+        synchronized (this) {
+            for (Map.Entry<ByteString, byte[]> entry : mMemory.entrySet()) {
+                spill(entry.getKey(), entry.getValue());
+            }
+            mMemory.clear();
+            mMemoryBytes = 0;
+        }
+        mWriter.shutdown();
+    }
+
+    /**
+     * @return The contents of the blob, from memory or disk, or null if they were dropped.
+     */
+    byte[] load(ByteString key) {
+        synchronized (this) {
+            byte[] data = mMemory.get(key);
+            if (data == null) data = mPendingWrites.get(key);
+            if (data != null) return data;
+            if (!mOnDisk.containsKey(key)) return null;
+        }
+        final byte[] data = read(fileFor(key));
+        if (data == null || !hash(ByteString.copyFrom(data)).equals(key)) {
+            synchronized (this) {
+                mOnDisk.remove(key);
+            }
+            return null; // Truncated or corrupt; it will be requested again.
+        }
+        synchronized (this) {
+            if (!mMemory.containsKey(key)) insert(key, data);
+        }
+        return data;
+    }
+
+    /**
+     * @return Bytes of blob data currently held on the heap, including those waiting for disk.
+     */
+    public synchronized int getMemoryBytes() {
+        int pending = 0;
+        for (byte[] data : mPendingWrites.values()) pending += data.length;
+        return mMemoryBytes + pending;
+    }
+
+    private void insert(ByteString key, byte[] data) {
+        mMemory.put(key, data);
+        mMemoryBytes += data.length;
+        final Iterator<Map.Entry<ByteString, byte[]>> eldest = mMemory.entrySet().iterator();
+        // Always keep the newest blob, even if it is larger than the budget by itself.
+        while (mMemoryBytes > mMemoryBudget && mMemory.size() > 1) {
+            final Map.Entry<ByteString, byte[]> entry = eldest.next();
+            eldest.remove();
+            mMemoryBytes -= entry.getValue().length;
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void spill(final ByteString key, final byte[] data) {
+        if (mWriter == null) return;
+        mPendingWrites.put(key, data);
+        try {
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final File file = fileFor(key);
+                    // Blobs read back from disk are evicted again unchanged.
+                    final boolean written = file.isFile() || write(file, data);
+                    synchronized (BlobCache.this) {
+                        mPendingWrites.remove(key);
+                        if (written) mOnDisk.put(key, data.length);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mPendingWrites.remove(key); // Closed.
+        }
+    }
+
+    /**
+     * Waits for the spill directory to be indexed. Only waits right after creation, before a
+     * connection could have delivered any blobs.
+     */
+    private void awaitIndex() {
+        try {
+            mIndexed.await(INDEX_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records the spill files that are named by a hash, so that they can be found without
+     * checking the disk. Runs on the writer thread.
+     */
+    private void index() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        final Map<ByteString, Integer> found = new HashMap<ByteString, Integer>();
+        for (File file : files) {
+            final ByteString key = keyFor(file.getName());
+            if (key != null) found.put(key, (int) file.length());
+        }
+        synchronized (this) {
+            mOnDisk.putAll(found);
+        }
+    }
+
+    /**
+     * @return The hash a spill file is named by, or null if it is not named by one.
+     */
+    private static ByteString keyFor(String name) {
+        if (name.length() != SHA1_LENGTH * 2) return null;
+        final byte[] key = new byte[SHA1_LENGTH];
+        for (int i = 0; i < key.length; i++) {
+            final int high = Character.digit(name.charAt(i * 2), 16);
+            final int low = Character.digit(name.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) return null;
+            key[i] = (byte) ((high << 4) | low);
+        }
+        return ByteString.copyFrom(key);
+    }
+
+    /**
+     * @return The spill file of the blob, named by its hash in hex, or null without a directory.
+     */
+    private File fileFor(ByteString key) {
+        if (mDirectory == null) return null;
+        final StringBuilder name = new StringBuilder(key.size() * 2);
+        for (int i = 0; i < key.size(); i++) {
+            name.append(Character.forDigit((key.byteAt(i) >> 4) & 0xF, 16));
+            name.append(Character.forDigit(key.byteAt(i) & 0xF, 16));
+        }
+        return new File(mDirectory, name.toString());
+    }
+
+    /**
+     * @return Whether the file was written.
+     */
+    private static boolean write(File file, byte[] data) {
+        // Written under a temporary name, so that a partial file is never found by its hash.
+        final File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temporary);
+            output.write(data);
+            output.close();
+            output = null;
+            if (temporary.renameTo(file)) return true;
+            temporary.delete();
+            return false;
+        } catch (IOException e) {
+            temporary.delete();
+            return false;
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // Already failed.
+                }
+            }
+        }
+    }
+
+    private static byte[] read(File file) {
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            final byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                final int count = input.read(data, read, data.length - read);
+                if (count < 0) return null;
+                read += count;
+            }
+            return data;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // Read already.
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently modified files until the directory fits the budget.
+     */
+    private void trim(long budget) {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= budget) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                final long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (total <= budget) break;
+            total -= file.length();
+            file.delete();
+        }
+    }
+
+    private static ByteString hash(ByteString data) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (ByteBuffer buffer : data.asReadOnlyByteBufferList()) {
+                digest.update(buffer);
+            }
+            return ByteString.copyFrom(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Required on every Java and Android platform.
+        }
+    }
+
+    /**
+     * Handle to a cached blob. Holds only the key, so a model object referring to a blob does
+     * not keep its contents on the heap.
+     */
+    public static final class Blob {
+        private final BlobCache mCache;
+        private final ByteString mKey;
+        private final int mSize;
+
+        Blob(BlobCache cache, ByteString key, int size) {
+            mCache = cache;
+            mKey = key;
+            mSize = size;
+        }
+
+        /** @return The SHA-1 hash of the contents. */
+        public ByteString getKey() {
+            return mKey;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Reads the blob back from the spill directory if it is no longer in memory, blocking the
+         * calling thread on the disk. Callers that must not block, such as the UI thread when
+         * many avatars are shown at once, should call this from a background thread.
+         * @return The contents, or null if they were dropped from the cache. The array is shared
+         *         with the cache and must not be modified.
+         */
+        public byte[] getBytes() {
+            return mCache.load(mKey);
+        }
+
+        /**
+         * May block on the disk like {@link #getBytes()}.
+         * @return The contents decoded as UTF-8, or null if they were dropped from the cache.
+         */
+        public String getString() {
+            final byte[] data = getBytes();
+            return data != null ? new String(data, UTF_8) : null;
+        }
+    }
+}
@@ -28,7 +28,7 @@ public final class Channel implements IChannel, Comparable<Channel> {
     private boolean mTemporary;
     private Channel mParent;
     private String mName;
-    private String mDescription;
+    private BlobCache.Blob mDescription;
     private byte[] mDescriptionHash;
     private List<Channel> mSubchannels;
     private List<User> mUsers;
@@ -120,11 +120,11 @@ public final class Channel implements IChannel, Comparable<Channel> {
 
     @Override
     public String getDescription() {
-        return mDescription;
+        return mDescription != null ? mDescription.getString() : null;
     }
 
-    public void setDescription(String mDescription) {
-        this.mDescription = mDescription;
+    public void setDescription(BlobCache.Blob description) {
+        mDescription = description;
     }
 
     @Override
@@ -33,6 +33,10 @@ public interface IUser {
 
     byte[] getCommentHash();
 
+    /**
+     * @return The avatar image, or null if it is unknown or has to be requested again. The array
+     *         is shared with the blob cache and must not be modified.
+     */
     byte[] getTexture();
 
     byte[] getTextureHash();
@@ -61,5 +65,12 @@ public interface IUser {
 
     void setLocalIgnored(boolean ignored);
 
+    /**
+     * @return The linear gain the user's voice is played at, 1 by default.
+     */
+    float getLocalVolume();
+
+    void setLocalVolume(float volume);
+
     TalkState getTalkState();
 }
@@ -19,26 +19,8 @@ package se.lublin.humla.model;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
-
-import com.google.common.net.InetAddresses;
-
-import org.minidns.hla.ResolverApi;
-import org.minidns.hla.SrvResolverResult;
-import org.minidns.record.SRV;
-import org.minidns.util.SrvUtil;
-
-import java.io.IOException;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-
-import se.lublin.humla.Constants;
 
 public class Server implements Parcelable {
-    private static final String TAG = Server.class.getName();
-
     private long mId;
     private String mName;
     private String mHost;
@@ -46,9 +28,6 @@ public class Server implements Parcelable {
     private String mUsername;
     private String mPassword;
 
-    private String mResolvedHost = null;
-    private int mResolvedPort;
-
     public static final Parcelable.Creator<Server> CREATOR = new Parcelable.Creator<Server>() {
 
         @Override
@@ -69,7 +48,6 @@ public class Server implements Parcelable {
         mPort = port;
         mUsername = username;
         mPassword = password;
-        mResolvedHost = null;
     }
 
     private Server(Parcel in) {
@@ -93,7 +71,6 @@ public class Server implements Parcelable {
         mPort = in.readInt();
         mUsername = in.readString();
         mPassword = in.readString();
-        mResolvedHost = null;
     }
 
     @Override
@@ -127,7 +104,6 @@ public class Server implements Parcelable {
 
     public void setHost(String mHost) {
         this.mHost = mHost;
-        this.mResolvedHost = null;
     }
 
     public int getPort() {
@@ -136,7 +112,6 @@ public class Server implements Parcelable {
 
     public void setPort(int mPort) {
         this.mPort = mPort;
-        this.mResolvedHost = null;
     }
 
     public String getUsername() {
@@ -162,75 +137,4 @@ public class Server implements Parcelable {
     public boolean isSaved() {
         return mId != -1;
     }
-
-    public String getSrvHost() {
-        srvResolve();
-        return mResolvedHost;
-    }
-
-    public int getSrvPort() {
-        srvResolve();
-        return mResolvedPort;
-    }
-
-    private synchronized void srvResolve() {
-        if (mResolvedHost != null) {
-            return;
-        }
-        // if we have a port then don't bother with SRV
-        if (mPort != 0) {
-            mResolvedHost = mHost;
-            mResolvedPort = mPort;
-            return;
-        }
-        // skip also IP addresses and Tor Onion Services (a pseudo-TLD)
-        if (InetAddresses.isInetAddress(mHost)
-                || mHost.endsWith(".onion")) {
-            mResolvedHost = mHost;
-            mResolvedPort = Constants.DEFAULT_PORT;
-            return;
-        }
-        // set to our fallback values in case of no SRV or resolve fail
-        final AtomicReference<String> srvHost = new AtomicReference<>(mHost);
-        final AtomicInteger srvPort = new AtomicInteger(Constants.DEFAULT_PORT);
-        try {
-            Thread t = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        final String lookup = "_mumble._tcp." + srvHost.get();
-                        SrvResolverResult res = ResolverApi.INSTANCE.resolveSrv(lookup);
-                        if (!res.wasSuccessful()) {
-                            Log.d(TAG, "resolveSrv " + lookup + ": " + res.getResponseCode());
-                            return;
-                        }
-                        Set<SRV> answers = res.getAnswersOrEmptySet();
-                        if (answers.isEmpty()) {
-                            Log.d(TAG, "resolveSrv " + lookup + ": empty answer");
-                            return;
-                        }
-                        List<SRV> srvs = SrvUtil.sortSrvRecords(answers);
-                        for (SRV srv : srvs) {
-                            Log.d(TAG, "resolved " + lookup + " SRV: " + srv.toString());
-                            srvHost.set(srv.target.toString());
-                            srvPort.set(srv.port);
-                            // TODO SRV just picking the first record.
-                            return;
-                        }
-                    } catch (IOException | IllegalArgumentException e) {
-                        // java.net.IDN.toASCII down in resolveSrv() happens to throw IAE
-                        // https://github.com/MiniDNS/minidns/issues/104
-                        Log.d(TAG, "exception in srvResolve: " + e);
-                    }
-                }
-            });
-            t.start();
-            t.join();
-        }
-        catch (Exception e) {
-            Log.d(TAG, "resolveSRV() " + e);
-        }
-        mResolvedHost = srvHost.get();
-        mResolvedPort = srvPort.get();
-    }
 }
@@ -24,9 +24,9 @@ public class User implements IUser, Comparable<User> {
     private int mSession;
     private int mId = -1;
     private String mName;
-    private String mComment;
+    private BlobCache.Blob mComment;
     private ByteString mCommentHash;
-    private ByteString mTexture;
+    private BlobCache.Blob mTexture;
     private ByteString mTextureHash;
     private String mHash;
 
@@ -47,6 +47,8 @@ public class User implements IUser, Comparable<User> {
     // Local state
     private boolean mLocalMuted;
     private boolean mLocalIgnored;
+    /** Read by the playback thread while mixing. */
+    private volatile float mLocalVolume = 1.0f;
 
     /** The number of samples normally available from the user. */
     private float mAverageAvailable;
@@ -104,11 +106,11 @@ public class User implements IUser, Comparable<User> {
 
     @Override
     public String getComment() {
-        return mComment;
+        return mComment != null ? mComment.getString() : null;
     }
 
-    public void setComment(String mComment) {
-        this.mComment = mComment;
+    public void setComment(BlobCache.Blob comment) {
+        mComment = comment;
     }
 
     @Override
@@ -122,10 +124,10 @@ public class User implements IUser, Comparable<User> {
 
     @Override
     public byte[] getTexture() {
-        return mTexture != null ? mTexture.toByteArray() : null;
+        return mTexture != null ? mTexture.getBytes() : null;
     }
 
-    public void setTexture(ByteString texture) {
+    public void setTexture(BlobCache.Blob texture) {
         mTexture = texture;
     }
 
@@ -228,6 +230,16 @@ public class User implements IUser, Comparable<User> {
         mLocalIgnored = localIgnored;
     }
 
+    @Override
+    public float getLocalVolume() {
+        return mLocalVolume;
+    }
+
+    @Override
+    public void setLocalVolume(float volume) {
+        mLocalVolume = volume;
+    }
+
     @Override
     public TalkState getTalkState() {
         return mTalkState;
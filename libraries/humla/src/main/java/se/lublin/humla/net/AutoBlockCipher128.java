@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Block backend that picks the fastest of several candidate backends.
+ * Every call to {@link #init(byte[])} initializes all candidates, drops any that disagree with the
+ * first working one on a test block, and times short bursts of blocks through each. All further
+ * blocks go to the winner until the next init.
+ */
+public class AutoBlockCipher128 implements BlockCipher128 {
+    /** Blocks per timed burst. A 60 byte Opus packet is roughly 7 blocks. */
+    private static final int CALIBRATION_BLOCKS = 256;
+    /** Timed bursts per candidate; the best one counts, to filter out scheduling noise. */
+    private static final int CALIBRATION_ROUNDS = 8;
+
+    private final BlockCipher128[] mCandidates;
+    private BlockCipher128 mSelected;
+    private long[] mCalibrationNanos;
+
+    /**
+     * Selects between the pure-Java table backend and the platform JCE backend.
+     */
+    public AutoBlockCipher128() {
+        this(new TableBlockCipher128(), new JceBlockCipher128());
+    }
+
+    public AutoBlockCipher128(BlockCipher128... candidates) {
+        if (candidates.length == 0) {
+            throw new IllegalArgumentException("At least one candidate backend is required");
+        }
+        mCandidates = candidates;
+        mCalibrationNanos = new long[candidates.length];
+    }
+
+    @Override
+    public void init(byte[] key) throws GeneralSecurityException {
+        final byte[] in = new byte[CryptState.AES_BLOCK_SIZE];
+        final byte[] out = new byte[CryptState.AES_BLOCK_SIZE];
+        final byte[] reference = new byte[CryptState.AES_BLOCK_SIZE];
+        final boolean[] usable = new boolean[mCandidates.length];
+
+        GeneralSecurityException failure = null;
+        boolean haveReference = false;
+        for (int i = 0; i < mCandidates.length; i++) {
+            final BlockCipher128 candidate = mCandidates[i];
+            try {
+                candidate.init(key);
+            } catch (GeneralSecurityException e) {
+                failure = e;
+                continue;
+            }
+
+            // Sanity check against the first working backend before trusting it with traffic.
+            Arrays.fill(in, (byte) 0);
+            candidate.encryptBlock(in, 0, out, 0);
+            if (!haveReference) {
+                System.arraycopy(out, 0, reference, 0, CryptState.AES_BLOCK_SIZE);
+                haveReference = true;
+            } else if (!Arrays.equals(reference, out)) {
+                continue;
+            }
+            usable[i] = true;
+        }
+
+        if (!haveReference) {
+            throw failure != null ? failure : new GeneralSecurityException("No usable AES backend");
+        }
+
+        // Interleave the timed bursts so that no candidate benefits from running later, when the
+        // JIT and CPU frequency have warmed up. The first round only warms up.
+        final long[] nanos = new long[mCandidates.length];
+        Arrays.fill(nanos, Long.MAX_VALUE);
+        for (int round = 0; round <= CALIBRATION_ROUNDS; round++) {
+            for (int i = 0; i < mCandidates.length; i++) {
+                if (!usable[i]) continue;
+                final long elapsed = burst(mCandidates[i], in, out);
+                if (round > 0) {
+                    nanos[i] = Math.min(nanos[i], elapsed);
+                }
+            }
+        }
+
+        int selected = -1;
+        for (int i = 0; i < mCandidates.length; i++) {
+            if (usable[i] && (selected < 0 || nanos[i] < nanos[selected])) {
+                selected = i;
+            }
+        }
+        mCalibrationNanos = nanos;
+        mSelected = mCandidates[selected];
+    }
+
+    private static long burst(BlockCipher128 cipher, byte[] in, byte[] out) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < CALIBRATION_BLOCKS; i++) {
+            cipher.encryptBlock(in, 0, out, 0);
+            cipher.decryptBlock(out, 0, in, 0);
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        mSelected.encryptBlock(in, inOffset, out, outOffset);
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        mSelected.decryptBlock(in, inOffset, out, outOffset);
+    }
+
+    /**
+     * @return The backend chosen by the last calibration, or null if not initialized.
+     */
+    public BlockCipher128 getSelected() {
+        return mSelected;
+    }
+
+    /**
+     * @return The best calibration burst time of each candidate in nanoseconds, in constructor
+     *         order. Long.MAX_VALUE marks a candidate that failed to initialize or verify.
+     */
+    public long[] getCalibrationNanos() {
+        return mCalibrationNanos.clone();
+    }
+
+    @Override
+    public String getName() {
+        return mSelected != null ? "auto(" + mSelected.getName() + ")" : "auto";
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * A raw 128-bit block cipher backend for {@link CryptState}.
+ * Implementations transform exactly one {@link CryptState#AES_BLOCK_SIZE} block per call and
+ * must not allocate once initialized. Input and output ranges must not overlap.
+ */
+public interface BlockCipher128 {
+    /**
+     * (Re)initializes the cipher with a new raw key.
+     * @param key A 128-bit AES key.
+     * @throws GeneralSecurityException if the key is invalid or the backend is unavailable.
+     */
+    void init(byte[] key) throws GeneralSecurityException;
+
+    void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset);
+
+    void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset);
+
+    /**
+     * @return A short human-readable name for this backend, for logging and stats.
+     */
+    String getName();
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of connection quality counters, taken by
+ * {@link HumlaConnection#getConnectionStats()}.
+ *
+ * Rates are averaged over the time since the previous snapshot, so sampling at a steady rate
+ * (e.g. once per second) gives per-interval throughput. Times are in microseconds.
+ */
+public final class ConnectionStats {
+    /**
+     * Upper bounds in microseconds of the inter-arrival jitter histogram buckets. The last bucket
+     * holds everything above the last bound.
+     */
+    public static final long[] JITTER_BUCKET_BOUNDS = { 5000, 10000, 20000, 40000, 80000, 160000 };
+
+    private final long mTimestamp;
+    private final long mInterval;
+    private final Traffic mUDP;
+    private final Traffic mTCP;
+    private final Traffic mTLS;
+    private final QueueDelay[] mQueueDelays;
+    private final int mGood, mLate, mLost, mResync;
+    private final int mRemoteGood, mRemoteLate, mRemoteLost, mRemoteResync;
+    private final Rtt mUDPRtt;
+    private final Rtt mTCPRtt;
+    private final List<Speaker> mSpeakers;
+    private final HumlaConnection.UDPState mUDPState;
+    private final TransportSelector.Stats mTransport;
+    private final long mUDPSendOverflows;
+    private final long mStaleVoiceDrops;
+
+    ConnectionStats(long timestamp, long interval, Traffic udp, Traffic tcp, Traffic tls,
+                    QueueDelay[] queueDelays, CryptState crypt, Rtt udpRtt, Rtt tcpRtt, List<Speaker> speakers,
+                    HumlaConnection.UDPState udpState, TransportSelector.Stats transport,
+                    long udpSendOverflows, long staleVoiceDrops) {
+        mTimestamp = timestamp;
+        mInterval = interval;
+        mUDP = udp;
+        mTCP = tcp;
+        mTLS = tls;
+        mQueueDelays = queueDelays;
+        mGood = crypt.mUiGood;
+        mLate = crypt.mUiLate;
+        mLost = crypt.mUiLost;
+        mResync = crypt.mUiResync;
+        mRemoteGood = crypt.mUiRemoteGood;
+        mRemoteLate = crypt.mUiRemoteLate;
+        mRemoteLost = crypt.mUiRemoteLost;
+        mRemoteResync = crypt.mUiRemoteResync;
+        mUDPRtt = udpRtt;
+        mTCPRtt = tcpRtt;
+        mSpeakers = Collections.unmodifiableList(speakers);
+        mUDPState = udpState;
+        mTransport = transport;
+        mUDPSendOverflows = udpSendOverflows;
+        mStaleVoiceDrops = staleVoiceDrops;
+    }
+
+    /** @return When the snapshot was taken, in {@link System#nanoTime()} nanoseconds. */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /** @return Nanoseconds since the previous snapshot, over which rates are averaged. */
+    public long getInterval() {
+        return mInterval;
+    }
+
+    public Traffic getUDPTraffic() {
+        return mUDP;
+    }
+
+    public Traffic getTCPTraffic() {
+        return mTCP;
+    }
+
+    /**
+     * @return TLS records of the control connection and their size on the wire, counted as
+     *         packets and bytes. Bytes per record shows how well messages are batched.
+     */
+    public Traffic getTLSTraffic() {
+        return mTLS;
+    }
+
+    /**
+     * @return How long TCP messages of the given class waited in the send queue, over the
+     *         interval.
+     */
+    public QueueDelay getTCPQueueDelay(HumlaTCP.SendPriority priority) {
+        return mQueueDelays[priority.ordinal()];
+    }
+
+    /** @return UDP packets from the server that decrypted in order. */
+    public int getGood() {
+        return mGood;
+    }
+
+    public int getLate() {
+        return mLate;
+    }
+
+    public int getLost() {
+        return mLost;
+    }
+
+    public int getResync() {
+        return mResync;
+    }
+
+    /** @return UDP packets the server reports as received from us in order. */
+    public int getRemoteGood() {
+        return mRemoteGood;
+    }
+
+    public int getRemoteLate() {
+        return mRemoteLate;
+    }
+
+    public int getRemoteLost() {
+        return mRemoteLost;
+    }
+
+    public int getRemoteResync() {
+        return mRemoteResync;
+    }
+
+    public Rtt getUDPRtt() {
+        return mUDPRtt;
+    }
+
+    public Rtt getTCPRtt() {
+        return mTCPRtt;
+    }
+
+    /** @return Per speaker arrival statistics, for every session voice was received from. */
+    public List<Speaker> getSpeakers() {
+        return mSpeakers;
+    }
+
+    public HumlaConnection.UDPState getUDPState() {
+        return mUDPState;
+    }
+
+    public TransportSelector.Stats getTransport() {
+        return mTransport;
+    }
+
+    public long getUDPSendOverflows() {
+        return mUDPSendOverflows;
+    }
+
+    public long getStaleVoiceDrops() {
+        return mStaleVoiceDrops;
+    }
+
+    /**
+     * Packet and byte totals of one transport in each direction, with rates over the interval.
+     */
+    public static final class Traffic {
+        private final long mPacketsIn, mBytesIn, mPacketsOut, mBytesOut;
+        private final float mPacketsInRate, mBytesInRate, mPacketsOutRate, mBytesOutRate;
+
+        Traffic(long packetsIn, long bytesIn, long packetsOut, long bytesOut, Traffic previous,
+                long interval) {
+            mPacketsIn = packetsIn;
+            mBytesIn = bytesIn;
+            mPacketsOut = packetsOut;
+            mBytesOut = bytesOut;
+            final float seconds = interval / 1e9f;
+            if (previous != null && seconds > 0) {
+                mPacketsInRate = (packetsIn - previous.mPacketsIn) / seconds;
+                mBytesInRate = (bytesIn - previous.mBytesIn) / seconds;
+                mPacketsOutRate = (packetsOut - previous.mPacketsOut) / seconds;
+                mBytesOutRate = (bytesOut - previous.mBytesOut) / seconds;
+            } else {
+                mPacketsInRate = mBytesInRate = mPacketsOutRate = mBytesOutRate = 0;
+            }
+        }
+
+        public long getPacketsIn() {
+            return mPacketsIn;
+        }
+
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        public long getPacketsOut() {
+            return mPacketsOut;
+        }
+
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        public float getPacketsInPerSecond() {
+            return mPacketsInRate;
+        }
+
+        public float getBytesInPerSecond() {
+            return mBytesInRate;
+        }
+
+        public float getPacketsOutPerSecond() {
+            return mPacketsOutRate;
+        }
+
+        public float getBytesOutPerSecond() {
+            return mBytesOutRate;
+        }
+    }
+
+    /**
+     * Time that the TCP messages of one send class, sent during the interval, spent queued before
+     * being handed to TLS.
+     */
+    public static final class QueueDelay {
+        private final long mMessages;
+        private final long mTotal;
+        private final long mMax;
+
+        QueueDelay(long messages, long total, long max) {
+            mMessages = messages;
+            mTotal = total;
+            mMax = max;
+        }
+
+        public long getMessages() {
+            return mMessages;
+        }
+
+        public float getMean() {
+            return mMessages > 0 ? (float) mTotal / mMessages : 0;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+    }
+
+    /**
+     * Round trip time distribution over the most recent pings of one transport.
+     */
+    public static final class Rtt {
+        private final int mSamples;
+        private final float mMean, mVariance;
+        private final long mP50, mP90, mP99, mMax;
+
+        /**
+         * @param sorted Recent samples in ascending order.
+         */
+        Rtt(long[] sorted) {
+            mSamples = sorted.length;
+            if (sorted.length == 0) {
+                mMean = mVariance = 0;
+                mP50 = mP90 = mP99 = mMax = 0;
+                return;
+            }
+            double sum = 0;
+            for (long sample : sorted) sum += sample;
+            final double mean = sum / sorted.length;
+            double squares = 0;
+            for (long sample : sorted) squares += (sample - mean) * (sample - mean);
+            mMean = (float) mean;
+            mVariance = (float) (squares / sorted.length);
+            mP50 = percentile(sorted, 50);
+            mP90 = percentile(sorted, 90);
+            mP99 = percentile(sorted, 99);
+            mMax = sorted[sorted.length - 1];
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            final int rank = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+        }
+
+        /** @return The number of pings the distribution is taken over. */
+        public int getSamples() {
+            return mSamples;
+        }
+
+        public float getMean() {
+            return mMean;
+        }
+
+        /** @return Variance in square microseconds. */
+        public float getVariance() {
+            return mVariance;
+        }
+
+        public long getP50() {
+            return mP50;
+        }
+
+        public long getP90() {
+            return mP90;
+        }
+
+        public long getP99() {
+            return mP99;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+    }
+
+    /**
+     * Arrival statistics of the voice received from one session.
+     *
+     * Jitter is the variation in transit time between consecutive packets as in RFC 3550, using
+     * the voice sequence number (10ms per frame) as the send timestamp.
+     */
+    public static final class Speaker {
+        private final int mSession;
+        private final long mPackets;
+        private final float mJitter;
+        private final long[] mHistogram;
+
+        Speaker(int session, long packets, float jitter, long[] histogram) {
+            mSession = session;
+            mPackets = packets;
+            mJitter = jitter;
+            mHistogram = histogram;
+        }
+
+        public int getSession() {
+            return mSession;
+        }
+
+        public long getPackets() {
+            return mPackets;
+        }
+
+        /** @return Smoothed inter-arrival jitter in microseconds. */
+        public float getJitter() {
+            return mJitter;
+        }
+
+        /**
+         * @return Packet counts by transit variation, bucketed by {@link #JITTER_BUCKET_BOUNDS}.
+         */
+        public long[] getJitterHistogram() {
+            return mHistogram.clone();
+        }
+    }
+}
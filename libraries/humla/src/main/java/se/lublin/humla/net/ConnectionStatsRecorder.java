@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the counters behind {@link ConnectionStats}.
+ *
+ * The record methods are called from the network and audio threads and only touch atomics, so
+ * they never block or allocate (except the first time a new speaker is heard). All aggregation
+ * happens in {@link #snapshot}, on whichever thread samples the stats.
+ */
+public class ConnectionStatsRecorder {
+    /** Number of recent pings per transport that RTT percentiles are taken over. */
+    public static final int RTT_WINDOW = 128;
+    /** Nominal duration of one voice sequence number step, in nanoseconds. */
+    private static final long FRAME_NANOS = 10000000L;
+    /** Arrival gap after which a speaker's next packet is taken as the start of a new talk spurt. */
+    private static final long TALK_SPURT_GAP = 1000000000L;
+
+    private final AtomicLong mUDPPacketsIn = new AtomicLong();
+    private final AtomicLong mUDPBytesIn = new AtomicLong();
+    private final AtomicLong mUDPPacketsOut = new AtomicLong();
+    private final AtomicLong mUDPBytesOut = new AtomicLong();
+    private final AtomicLong mTCPPacketsIn = new AtomicLong();
+    private final AtomicLong mTCPBytesIn = new AtomicLong();
+    private final AtomicLong mTCPPacketsOut = new AtomicLong();
+    private final AtomicLong mTCPBytesOut = new AtomicLong();
+    private final AtomicLong mTLSRecordsIn = new AtomicLong();
+    private final AtomicLong mTLSBytesIn = new AtomicLong();
+    private final AtomicLong mTLSRecordsOut = new AtomicLong();
+    private final AtomicLong mTLSBytesOut = new AtomicLong();
+
+    private final QueueDelayCounter[] mQueueDelays =
+            new QueueDelayCounter[HumlaTCP.SendPriority.values().length];
+
+    private final RttWindow mUDPRtt = new RttWindow();
+    private final RttWindow mTCPRtt = new RttWindow();
+
+    /** Copied on write when a new speaker appears; looked up linearly. */
+    private volatile SpeakerState[] mSpeakers = new SpeakerState[0];
+
+    // Previous snapshot, for rates. Guarded by this.
+    private long mLastSnapshot;
+    private ConnectionStats.Traffic mLastUDP;
+    private ConnectionStats.Traffic mLastTCP;
+    private ConnectionStats.Traffic mLastTLS;
+
+    public ConnectionStatsRecorder(long now) {
+        mLastSnapshot = now;
+        for (int i = 0; i < mQueueDelays.length; i++) {
+            mQueueDelays[i] = new QueueDelayCounter();
+        }
+    }
+
+    public void onUDPReceived(int bytes) {
+        mUDPPacketsIn.incrementAndGet();
+        mUDPBytesIn.addAndGet(bytes);
+    }
+
+    public void onUDPSent(int bytes) {
+        mUDPPacketsOut.incrementAndGet();
+        mUDPBytesOut.addAndGet(bytes);
+    }
+
+    public void onTCPReceived(int bytes) {
+        mTCPPacketsIn.incrementAndGet();
+        mTCPBytesIn.addAndGet(bytes);
+    }
+
+    public void onTCPSent(int bytes) {
+        mTCPPacketsOut.incrementAndGet();
+        mTCPBytesOut.addAndGet(bytes);
+    }
+
+    /** @param bytes Size of the record on the wire, including TLS overhead. */
+    public void onTLSRecordReceived(int bytes) {
+        mTLSRecordsIn.incrementAndGet();
+        mTLSBytesIn.addAndGet(bytes);
+    }
+
+    /** @param bytes Size of the record on the wire, including TLS overhead. */
+    public void onTLSRecordSent(int bytes) {
+        mTLSRecordsOut.incrementAndGet();
+        mTLSBytesOut.addAndGet(bytes);
+    }
+
+    /**
+     * Records how long a TCP message waited between being queued and being handed to TLS.
+     * @param delay The wait in nanoseconds.
+     */
+    public void onTCPQueueDelay(HumlaTCP.SendPriority priority, long delay) {
+        mQueueDelays[priority.ordinal()].add(delay);
+    }
+
+    /** @param rtt Round trip time of a UDP ping in microseconds. */
+    public void onUDPPingReply(long rtt) {
+        mUDPRtt.add(rtt);
+    }
+
+    /** @param rtt Round trip time of a TCP ping in microseconds. */
+    public void onTCPPingReply(long rtt) {
+        mTCPRtt.add(rtt);
+    }
+
+    /**
+     * Records the arrival of a voice packet from the server, over either transport.
+     * @param data The decrypted packet, starting with the header byte.
+     * @param length The length of the packet.
+     * @param now Arrival time in {@link System#nanoTime()} nanoseconds.
+     */
+    public void onVoiceReceived(byte[] data, int length, long now) {
+        // Header byte, then the session and sequence number as Mumble varints.
+        int offset = 1;
+        final int sessionLength = varintLength(data, offset, length);
+        if (sessionLength < 0) return;
+        final long session = readVarint(data, offset);
+        offset += sessionLength;
+        final int sequenceLength = varintLength(data, offset, length);
+        if (sequenceLength < 0) return;
+        final long sequence = readVarint(data, offset);
+
+        speaker((int) session).onPacket(sequence, now);
+    }
+
+    private SpeakerState speaker(int session) {
+        SpeakerState[] speakers = mSpeakers;
+        for (SpeakerState speaker : speakers) {
+            if (speaker.session == session) return speaker;
+        }
+        synchronized (this) {
+            speakers = mSpeakers;
+            for (SpeakerState speaker : speakers) {
+                if (speaker.session == session) return speaker;
+            }
+            final SpeakerState speaker = new SpeakerState(session);
+            final SpeakerState[] grown = Arrays.copyOf(speakers, speakers.length + 1);
+            grown[speakers.length] = speaker;
+            mSpeakers = grown;
+            return speaker;
+        }
+    }
+
+    /**
+     * @return The number of UDP ping replies received since the recorder was created.
+     */
+    public int getUDPPingCount() {
+        return mUDPRtt.count.get();
+    }
+
+    /**
+     * @return The number of TCP ping replies received since the recorder was created.
+     */
+    public int getTCPPingCount() {
+        return mTCPRtt.count.get();
+    }
+
+    public ConnectionStats.Rtt getUDPRtt() {
+        return mUDPRtt.summarize();
+    }
+
+    public ConnectionStats.Rtt getTCPRtt() {
+        return mTCPRtt.summarize();
+    }
+
+    /**
+     * Aggregates the counters into a snapshot. Rates are taken over the time since the previous
+     * call.
+     * @param now Current time in {@link System#nanoTime()} nanoseconds.
+     */
+    public synchronized ConnectionStats snapshot(long now, CryptState crypt,
+                                                 HumlaConnection.UDPState udpState,
+                                                 TransportSelector.Stats transport,
+                                                 long udpSendOverflows, long staleVoiceDrops) {
+        final long interval = now - mLastSnapshot;
+        final ConnectionStats.Traffic udp = new ConnectionStats.Traffic(mUDPPacketsIn.get(),
+                mUDPBytesIn.get(), mUDPPacketsOut.get(), mUDPBytesOut.get(), mLastUDP, interval);
+        final ConnectionStats.Traffic tcp = new ConnectionStats.Traffic(mTCPPacketsIn.get(),
+                mTCPBytesIn.get(), mTCPPacketsOut.get(), mTCPBytesOut.get(), mLastTCP, interval);
+        final ConnectionStats.Traffic tls = new ConnectionStats.Traffic(mTLSRecordsIn.get(),
+                mTLSBytesIn.get(), mTLSRecordsOut.get(), mTLSBytesOut.get(), mLastTLS, interval);
+        mLastSnapshot = now;
+        mLastUDP = udp;
+        mLastTCP = tcp;
+        mLastTLS = tls;
+
+        final ConnectionStats.QueueDelay[] queueDelays =
+                new ConnectionStats.QueueDelay[mQueueDelays.length];
+        for (int i = 0; i < queueDelays.length; i++) {
+            queueDelays[i] = mQueueDelays[i].summarize();
+        }
+
+        final SpeakerState[] states = mSpeakers;
+        final List<ConnectionStats.Speaker> speakers = new ArrayList<>(states.length);
+        for (SpeakerState state : states) {
+            speakers.add(state.summarize());
+        }
+        return new ConnectionStats(now, interval, udp, tcp, tls, queueDelays, crypt,
+                mUDPRtt.summarize(),
+                mTCPRtt.summarize(), speakers, udpState, transport, udpSendOverflows,
+                staleVoiceDrops);
+    }
+
+    /**
+     * @return The encoded length of the Mumble varint at the given offset, or -1 if it is
+     *         truncated or negative.
+     */
+    private static int varintLength(byte[] data, int offset, int length) {
+        if (offset >= length) return -1;
+        final int b = data[offset] & 0xFF;
+        final int size;
+        if ((b & 0x80) == 0x00) size = 1;
+        else if ((b & 0xC0) == 0x80) size = 2;
+        else if ((b & 0xE0) == 0xC0) size = 3;
+        else if ((b & 0xF0) == 0xE0) size = 4;
+        else if ((b & 0xFC) == 0xF0) size = 5;
+        else if ((b & 0xFC) == 0xF4) size = 9;
+        else return -1;
+        return offset + size <= length ? size : -1;
+    }
+
+    private static long readVarint(byte[] data, int offset) {
+        final int b = data[offset] & 0xFF;
+        if ((b & 0x80) == 0x00) return b;
+        if ((b & 0xC0) == 0x80) return (b & 0x3F) << 8 | (data[offset + 1] & 0xFF);
+        if ((b & 0xE0) == 0xC0) {
+            return (b & 0x1F) << 16 | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF);
+        }
+        if ((b & 0xF0) == 0xE0) {
+            return (b & 0x0F) << 24 | (data[offset + 1] & 0xFF) << 16
+                    | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+        }
+        long value = 0;
+        final int bytes = (b & 0xFC) == 0xF0 ? 4 : 8;
+        for (int i = 1; i <= bytes; i++) {
+            value = value << 8 | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Queue delay totals of one send class. Written by the reactor thread; the interval fields are
+     * guarded by the recorder.
+     */
+    private static class QueueDelayCounter {
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+        long lastMessages;
+        long lastTotal;
+
+        void add(long delay) {
+            messages.incrementAndGet();
+            total.addAndGet(delay);
+            long current;
+            while (delay > (current = max.get()) && !max.compareAndSet(current, delay)) {
+                // Retry.
+            }
+        }
+
+        /** Summarizes the messages since the previous call. */
+        ConnectionStats.QueueDelay summarize() {
+            final long maxDelay = max.getAndSet(0);
+            final long count = messages.get();
+            final long sum = total.get();
+            final ConnectionStats.QueueDelay delay = new ConnectionStats.QueueDelay(
+                    count - lastMessages, (sum - lastTotal) / 1000, maxDelay / 1000);
+            lastMessages = count;
+            lastTotal = sum;
+            return delay;
+        }
+    }
+
+    /**
+     * Ring of the most recent round trip times. Samples are written by a single thread at a time
+     * (the main thread, where ping replies are handled).
+     */
+    private static class RttWindow {
+        final AtomicLongArray samples = new AtomicLongArray(RTT_WINDOW);
+        final AtomicInteger count = new AtomicInteger();
+
+        void add(long rtt) {
+            final int index = count.get();
+            samples.set(index % RTT_WINDOW, rtt);
+            count.lazySet(index + 1);
+        }
+
+        ConnectionStats.Rtt summarize() {
+            final long[] sorted = new long[Math.min(count.get(), RTT_WINDOW)];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            return new ConnectionStats.Rtt(sorted);
+        }
+    }
+
+    /**
+     * Inter-arrival jitter of one speaker. Updated by whichever thread delivers voice, which is a
+     * single thread except briefly while voice moves between UDP and the TCP tunnel.
+     */
+    private static class SpeakerState {
+        final int session;
+        final AtomicLong packets = new AtomicLong();
+        final AtomicLongArray histogram =
+                new AtomicLongArray(ConnectionStats.JITTER_BUCKET_BOUNDS.length + 1);
+        volatile long lastSequence = -1;
+        volatile long lastArrival;
+        /** Smoothed jitter in nanoseconds, as in RFC 3550. */
+        volatile float jitter;
+
+        SpeakerState(int session) {
+            this.session = session;
+        }
+
+        void onPacket(long sequence, long now) {
+            packets.incrementAndGet();
+            final long previousSequence = lastSequence;
+            final long previousArrival = lastArrival;
+            lastSequence = sequence;
+            lastArrival = now;
+            final long sequenceDelta = sequence - previousSequence;
+            if (previousSequence < 0 || sequenceDelta <= 0 ||
+                    now - previousArrival > TALK_SPURT_GAP) {
+                return; // First packet of a talk spurt, or out of order.
+            }
+
+            final long deviation = Math.abs((now - previousArrival) - sequenceDelta * FRAME_NANOS);
+            final long micros = deviation / 1000;
+            int bucket = 0;
+            while (bucket < ConnectionStats.JITTER_BUCKET_BOUNDS.length &&
+                    micros >= ConnectionStats.JITTER_BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            histogram.incrementAndGet(bucket);
+            jitter += (deviation - jitter) / 16;
+        }
+
+        ConnectionStats.Speaker summarize() {
+            final long[] counts = new long[histogram.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram.get(i);
+            }
+            return new ConnectionStats.Speaker(session, packets.get(), jitter / 1000, counts);
+        }
+    }
+}
@@ -17,16 +17,14 @@
 
 package se.lublin.humla.net;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Based off of the official Mumble project's 'CryptState.h' and 'CryptState.cpp' files.
@@ -36,29 +34,74 @@ import javax.crypto.spec.SecretKeySpec;
  * As of January 2013, the author has given a free license for any open source software certified by the OSI (Apache v2 included)
  * http://www.cs.ucdavis.edu/~rogaway/ocb/license.htm
  *
+ * All encrypt and decrypt paths work in per-instance scratch blocks, so steady-state voice
+ * traffic does not allocate. The byte array returning variants are kept for convenience.
+ * The raw AES block operations are delegated to a {@link BlockCipher128} backend; by default the
+ * fastest available one is picked by {@link AutoBlockCipher128} whenever keys are set.
+ *
+ * Encrypt state and decrypt state are guarded by separate locks, so the capture thread encrypting
+ * outgoing voice never waits on the network thread decrypting incoming voice, and vice versa. Each
+ * half owns its own block backend, as JCE ciphers are not thread safe. Key and IV changes take
+ * the relevant locks, so they are safe against both paths.
+ *
  * Created by andrew on 24/06/13.
  */
 public class CryptState {
     public static final int AES_BLOCK_SIZE = 16;
-    private static final String AES_TRANSFORMATION = "AES/ECB/NoPadding";
+
+    private final Object mEncryptLock = new Object();
+    private final Object mDecryptLock = new Object();
 
     byte[] mRawKey = new byte[AES_BLOCK_SIZE];
     byte[] mEncryptIV = new byte[AES_BLOCK_SIZE];
     byte[] mDecryptIV = new byte[AES_BLOCK_SIZE];
     byte[] mDecryptHistory = new byte[0x100];
-    int mUiGood = 0;
-    int mUiLate = 0;
-    int mUiLost = 0;
-    int mUiResync = 0;
-    int mUiRemoteGood = 0;
-    int mUiRemoteLate = 0;
-    int mUiRemoteLost = 0;
-    int mUiRemoteResync = 0;
-    Cipher mEncryptCipher;
-    Cipher mDecryptCipher;
-    long mLastGoodStart;
-    long mLastRequestStart;
-    boolean mInit = false;
+    // Local counters are only written with the decrypt lock held, but read from other threads.
+    volatile int mUiGood = 0;
+    volatile int mUiLate = 0;
+    volatile int mUiLost = 0;
+    volatile int mUiResync = 0;
+    volatile int mUiRemoteGood = 0;
+    volatile int mUiRemoteLate = 0;
+    volatile int mUiRemoteLost = 0;
+    volatile int mUiRemoteResync = 0;
+    final BlockCipher128 mEncryptBlockCipher;
+    final BlockCipher128 mDecryptBlockCipher;
+    volatile long mLastGoodStart;
+    volatile long mLastRequestStart;
+    volatile boolean mInit = false;
+
+    // Scratch blocks for the encrypt path.
+    private final byte[] mEncryptDelta = new byte[AES_BLOCK_SIZE];
+    private final byte[] mEncryptChecksum = new byte[AES_BLOCK_SIZE];
+    private final byte[] mEncryptTmp = new byte[AES_BLOCK_SIZE];
+    private final byte[] mEncryptPad = new byte[AES_BLOCK_SIZE];
+    private final byte[] mEncryptTag = new byte[AES_BLOCK_SIZE];
+    private byte[] mEncryptStage = new byte[0];
+
+    // Scratch blocks for the decrypt path.
+    private final byte[] mDecryptDelta = new byte[AES_BLOCK_SIZE];
+    private final byte[] mDecryptChecksum = new byte[AES_BLOCK_SIZE];
+    private final byte[] mDecryptTmp = new byte[AES_BLOCK_SIZE];
+    private final byte[] mDecryptPad = new byte[AES_BLOCK_SIZE];
+    private final byte[] mDecryptTag = new byte[AES_BLOCK_SIZE];
+    private final byte[] mDecryptSaveIV = new byte[AES_BLOCK_SIZE];
+    private byte[] mDecryptStage = new byte[0];
+
+    public CryptState() {
+        this(new AutoBlockCipher128(), new AutoBlockCipher128());
+    }
+
+    /**
+     * Keys are loaded into the backends by {@link #setKeys(byte[], byte[], byte[])}.
+     * @param encryptBlockCipher The AES block backend used by the encrypt path.
+     * @param decryptBlockCipher The AES block backend used by the decrypt path. Must be a
+     *                           different instance unless the backend is thread safe.
+     */
+    public CryptState(BlockCipher128 encryptBlockCipher, BlockCipher128 decryptBlockCipher) {
+        mEncryptBlockCipher = encryptBlockCipher;
+        mDecryptBlockCipher = decryptBlockCipher;
+    }
 
     public boolean isValid() {
         return mInit;
@@ -85,167 +128,256 @@ public class CryptState {
         mLastRequestStart = System.nanoTime();
     }
 
+    /**
+     * @return A copy of the current encrypt IV.
+     */
     public byte[] getEncryptIV() {
-        return mEncryptIV;
+        synchronized (mEncryptLock) {
+            return mEncryptIV.clone();
+        }
     }
 
+    /**
+     * @return A copy of the current decrypt IV.
+     */
     public byte[] getDecryptIV() {
-        return mDecryptIV;
+        synchronized (mDecryptLock) {
+            return mDecryptIV.clone();
+        }
     }
 
-    public synchronized void setKeys(final byte[] rkey, final byte[] eiv, final byte[] div) throws InvalidKeyException {
-        try {
-            mEncryptCipher = Cipher.getInstance(AES_TRANSFORMATION);
-            mDecryptCipher = Cipher.getInstance(AES_TRANSFORMATION);
-        } catch (final NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return;
-        } catch (final NoSuchPaddingException e) {
-            e.printStackTrace();
-            return;
+    /**
+     * Replaces the decrypt IV with a nonce sent by the server, counting a resync.
+     * @param div The new server nonce.
+     */
+    public void resyncDecryptIV(final byte[] div) {
+        synchronized (mDecryptLock) {
+            System.arraycopy(div, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
+            mUiResync++;
         }
+    }
 
-        final SecretKeySpec cryptKey = new SecretKeySpec(rkey, "AES");
-        mRawKey = new byte[rkey.length];
-        System.arraycopy(rkey, 0, mRawKey, 0, AES_BLOCK_SIZE);
-        mEncryptIV = new byte[eiv.length];
-        System.arraycopy(eiv, 0, mEncryptIV, 0, AES_BLOCK_SIZE);
-        mDecryptIV = new byte[div.length];
-        System.arraycopy(div, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
+    public void setKeys(final byte[] rkey, final byte[] eiv, final byte[] div) throws InvalidKeyException {
+        // Always take the encrypt lock first to avoid lock order inversion.
+        synchronized (mEncryptLock) {
+            synchronized (mDecryptLock) {
+                try {
+                    mEncryptBlockCipher.init(rkey);
+                    mDecryptBlockCipher.init(rkey);
+                } catch (final InvalidKeyException e) {
+                    throw e;
+                } catch (final GeneralSecurityException e) {
+                    e.printStackTrace();
+                    return;
+                }
 
-        mEncryptCipher.init(Cipher.ENCRYPT_MODE, cryptKey);
-        mDecryptCipher.init(Cipher.DECRYPT_MODE, cryptKey);
+                mRawKey = new byte[rkey.length];
+                System.arraycopy(rkey, 0, mRawKey, 0, AES_BLOCK_SIZE);
+                mEncryptIV = new byte[eiv.length];
+                System.arraycopy(eiv, 0, mEncryptIV, 0, AES_BLOCK_SIZE);
+                mDecryptIV = new byte[div.length];
+                System.arraycopy(div, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
 
-        mInit = true;
+                mInit = true;
+            }
+        }
     }
 
     /**
      * Decrypts data using the OCB-AES128 standard.
      * @param source The encoded audio data.
      * @param length The length of the source array.
+     * @return A newly allocated array with the plain data, or null if the packet was rejected.
      */
-    public synchronized byte[] decrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+    public byte[] decrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
         if (length < 4) return null;
 
-        final int plainLength = length - 4;
-        byte[] dst = new byte[plainLength];
-
-        final byte[] saveiv = new byte[AES_BLOCK_SIZE];
-        final short ivbyte = (short) (source[0] & 0xFF);
-        boolean restore = false;
-        final byte[] tag = new byte[AES_BLOCK_SIZE];
-
-        int lost = 0;
-        int late = 0;
-
-        System.arraycopy(mDecryptIV, 0, saveiv, 0, AES_BLOCK_SIZE);
+        final byte[] dst = new byte[length - 4];
+        if (decrypt(source, 0, length, dst, 0) < 0) {
+            return null;
+        }
+        return dst;
+    }
 
-        if (((mDecryptIV[0] + 1) & 0xFF) == ivbyte) {
-            // In order as expected.
-            if (ivbyte > (mDecryptIV[0] & 0xFF)) {
-                mDecryptIV[0] = (byte) ivbyte;
-            } else if (ivbyte < (mDecryptIV[0] & 0xFF)) {
-                mDecryptIV[0] = (byte) ivbyte;
-                for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-                    if ((++mDecryptIV[i]) != 0) {
-                        break;
-                    }
+    /**
+     * Decrypts the remaining bytes of the source buffer into the destination buffer.
+     * On success, the source position is advanced to its limit and the destination position is
+     * advanced by the number of plain bytes written. On rejection, neither position is modified.
+     * @param src A buffer containing a single encrypted datagram between position and limit.
+     * @param dst A buffer with at least {@code src.remaining() - 4} bytes remaining.
+     * @return The number of plain bytes written, or -1 if the packet was rejected.
+     */
+    public int decrypt(final ByteBuffer src, final ByteBuffer dst) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        synchronized (mDecryptLock) {
+            final int length = src.remaining();
+            if (length < 4) return -1;
+            if (dst.remaining() < length - 4) throw new ShortBufferException();
+
+            final int written;
+            if (src.hasArray() && dst.hasArray()) {
+                written = decrypt(src.array(), src.arrayOffset() + src.position(), length,
+                        dst.array(), dst.arrayOffset() + dst.position());
+                if (written >= 0) {
+                    src.position(src.limit());
+                    dst.position(dst.position() + written);
                 }
             } else {
-                return null;
-            }
-        } else {
-            // This is either out of order or a repeat.
-            int diff = ivbyte - (mDecryptIV[0] & 0xFF);
-            if (diff > 128) {
-                diff = diff - 256;
-            } else if (diff < -128) {
-                diff = diff + 256;
+                // Direct or read-only buffers are staged through a reusable scratch array.
+                final byte[] stage = growStage(mDecryptStage, length * 2);
+                mDecryptStage = stage;
+                final int position = src.position();
+                src.get(stage, 0, length);
+                written = decrypt(stage, 0, length, stage, length);
+                if (written >= 0) {
+                    dst.put(stage, length, written);
+                } else {
+                    src.position(position);
+                }
             }
+            return written;
+        }
+    }
 
-            if ((ivbyte < (mDecryptIV[0] & 0xFF)) && (diff > -30) && (diff < 0)) {
-                // Late packet, but no wraparound.
-                late = 1;
-                lost = -1;
-                mDecryptIV[0] = (byte) ivbyte;
-                restore = true;
-            } else if ((ivbyte > (mDecryptIV[0] & 0xFF)) && (diff > -30) &&
-                    (diff < 0)) {
-                // Last was 0x02, here comes 0xff from last round
-                late = 1;
-                lost = -1;
-                mDecryptIV[0] = (byte) ivbyte;
-                for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-                    if ((mDecryptIV[i]--) != 0) {
-                        break;
+    /**
+     * Decrypts a datagram into a caller-owned array without allocating.
+     * The source and destination ranges must not overlap.
+     * @param source The encrypted datagram.
+     * @param sourceOffset The offset of the datagram in the source array.
+     * @param length The length of the encrypted datagram, including the 4 byte header.
+     * @param dst The array to write plain data into.
+     * @param dstOffset The offset to start writing plain data at.
+     * @return The number of plain bytes written ({@code length - 4}), or -1 if the packet was rejected.
+     */
+    public int decrypt(final byte[] source, final int sourceOffset, final int length,
+                                    final byte[] dst, final int dstOffset) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        synchronized (mDecryptLock) {
+            if (length < 4) return -1;
+
+            final int plainLength = length - 4;
+            if (dst.length - dstOffset < plainLength) throw new ShortBufferException();
+
+            final byte[] saveiv = mDecryptSaveIV;
+            final short ivbyte = (short) (source[sourceOffset] & 0xFF);
+            boolean restore = false;
+            final byte[] tag = mDecryptTag;
+
+            int lost = 0;
+            int late = 0;
+
+            System.arraycopy(mDecryptIV, 0, saveiv, 0, AES_BLOCK_SIZE);
+
+            if (((mDecryptIV[0] + 1) & 0xFF) == ivbyte) {
+                // In order as expected.
+                if (ivbyte > (mDecryptIV[0] & 0xFF)) {
+                    mDecryptIV[0] = (byte) ivbyte;
+                } else if (ivbyte < (mDecryptIV[0] & 0xFF)) {
+                    mDecryptIV[0] = (byte) ivbyte;
+                    for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+                        if ((++mDecryptIV[i]) != 0) {
+                            break;
+                        }
                     }
+                } else {
+                    return -1;
                 }
-                restore = true;
-            } else if ((ivbyte > (mDecryptIV[0] & 0xFF)) && (diff > 0)) {
-                // Lost a few packets, but beyond that we're good.
-                lost = ivbyte - mDecryptIV[0] - 1;
-                mDecryptIV[0] = (byte) ivbyte;
-            } else if ((ivbyte < (mDecryptIV[0] & 0xFF)) && (diff > 0)) {
-                // Lost a few packets, and wrapped around
-                lost = 256 - (mDecryptIV[0] & 0xFF) + ivbyte - 1;
-                mDecryptIV[0] = (byte) ivbyte;
-                for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-                    if ((++mDecryptIV[i]) != 0) {
-                        break;
+            } else {
+                // This is either out of order or a repeat.
+                int diff = ivbyte - (mDecryptIV[0] & 0xFF);
+                if (diff > 128) {
+                    diff = diff - 256;
+                } else if (diff < -128) {
+                    diff = diff + 256;
+                }
+
+                if ((ivbyte < (mDecryptIV[0] & 0xFF)) && (diff > -30) && (diff < 0)) {
+                    // Late packet, but no wraparound.
+                    late = 1;
+                    lost = -1;
+                    mDecryptIV[0] = (byte) ivbyte;
+                    restore = true;
+                } else if ((ivbyte > (mDecryptIV[0] & 0xFF)) && (diff > -30) &&
+                        (diff < 0)) {
+                    // Last was 0x02, here comes 0xff from last round
+                    late = 1;
+                    lost = -1;
+                    mDecryptIV[0] = (byte) ivbyte;
+                    for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+                        if ((mDecryptIV[i]--) != 0) {
+                            break;
+                        }
                     }
+                    restore = true;
+                } else if ((ivbyte > (mDecryptIV[0] & 0xFF)) && (diff > 0)) {
+                    // Lost a few packets, but beyond that we're good.
+                    lost = ivbyte - mDecryptIV[0] - 1;
+                    mDecryptIV[0] = (byte) ivbyte;
+                } else if ((ivbyte < (mDecryptIV[0] & 0xFF)) && (diff > 0)) {
+                    // Lost a few packets, and wrapped around
+                    lost = 256 - (mDecryptIV[0] & 0xFF) + ivbyte - 1;
+                    mDecryptIV[0] = (byte) ivbyte;
+                    for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+                        if ((++mDecryptIV[i]) != 0) {
+                            break;
+                        }
+                    }
+                } else {
+                    return -1;
+                }
+
+                if (mDecryptHistory[mDecryptIV[0] & 0xFF] == mDecryptIV[1]) {
+                    System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
+                    return -1;
                 }
-            } else {
-                return null;
             }
 
-            if (mDecryptHistory[mDecryptIV[0] & 0xFF] == mEncryptIV[0]) {
+            ocbDecrypt(source, sourceOffset + 4, plainLength, dst, dstOffset, mDecryptIV, tag);
+
+            if (tag[0] != source[sourceOffset + 1] || tag[1] != source[sourceOffset + 2] || tag[2] != source[sourceOffset + 3]) {
                 System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
-                return null;
+                return -1;
             }
-        }
+            mDecryptHistory[mDecryptIV[0] & 0xff] = mDecryptIV[1];
 
-        final byte[] tagShiftedDst = new byte[plainLength];
-        System.arraycopy(source, 4, tagShiftedDst, 0, plainLength);
+            if (restore)
+                System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
 
-        ocbDecrypt(tagShiftedDst, dst, mDecryptIV, tag);
+            mUiGood++;
+            mUiLate += late;
+            mUiLost += lost;
 
-        if (tag[0] != source[1] || tag[1] != source[2] || tag[2] != source[3]) {
-            System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
-            return null;
+            mLastGoodStart = System.nanoTime();
+            return plainLength;
         }
-        mDecryptHistory[mDecryptIV[0] & 0xff] = mDecryptIV[1];
-
-        if (restore)
-            System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
-
-        mUiGood++;
-        mUiLate += late;
-        mUiLost += lost;
-
-        mLastGoodStart = System.nanoTime();
-        return dst;
     }
 
     public void ocbDecrypt(byte[] encrypted, byte[] plain, byte[] nonce, byte[] tag) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
-        final byte[] checksum = new byte[AES_BLOCK_SIZE];
-        final byte[] tmp = new byte[AES_BLOCK_SIZE];
+        synchronized (mDecryptLock) {
+            ocbDecrypt(encrypted, 0, encrypted.length, plain, 0, nonce, tag);
+        }
+    }
 
-        final byte[] delta = mEncryptCipher.doFinal(nonce);
+    private void ocbDecrypt(byte[] encrypted, int encryptedOffset, int length, byte[] plain, int plainOffset,
+                            byte[] nonce, byte[] tag) {
+        final byte[] checksum = mDecryptChecksum;
+        final byte[] tmp = mDecryptTmp;
+        final byte[] pad = mDecryptPad;
+        final byte[] delta = mDecryptDelta;
+
+        CryptSupport.ZERO(checksum);
+        mDecryptBlockCipher.encryptBlock(nonce, 0, delta, 0);
 
         int offset = 0;
-        int len = encrypted.length;
+        int len = length;
         while (len > AES_BLOCK_SIZE) {
-            final byte[] buffer = new byte[AES_BLOCK_SIZE];
             CryptSupport.S2(delta);
-            System.arraycopy(encrypted, offset, buffer, 0, AES_BLOCK_SIZE);
-
-            CryptSupport.XOR(tmp, delta, buffer);
-            mDecryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
-
-            CryptSupport.XOR(buffer, delta, tmp);
-            System.arraycopy(buffer, 0, plain, offset, AES_BLOCK_SIZE);
+            CryptSupport.XOR(tmp, delta, encrypted, encryptedOffset + offset);
+            mDecryptBlockCipher.decryptBlock(tmp, 0, pad, 0);
 
-            CryptSupport.XOR(checksum, checksum, buffer);
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                final byte b = (byte) (delta[i] ^ pad[i]);
+                plain[plainOffset + offset + i] = b;
+                checksum[i] ^= b;
+            }
             len -= AES_BLOCK_SIZE;
             offset += AES_BLOCK_SIZE;
         }
@@ -258,62 +390,130 @@ public class CryptState {
         tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
         CryptSupport.XOR(tmp, tmp, delta);
 
-        final byte[] pad = mEncryptCipher.doFinal(tmp);
+        mDecryptBlockCipher.encryptBlock(tmp, 0, pad, 0);
         CryptSupport.ZERO(tmp);
-        System.arraycopy(encrypted, offset, tmp, 0, len);
+        System.arraycopy(encrypted, encryptedOffset + offset, tmp, 0, len);
 
         CryptSupport.XOR(tmp, tmp, pad);
         CryptSupport.XOR(checksum, checksum, tmp);
 
-        System.arraycopy(tmp, 0, plain, offset, len);
+        System.arraycopy(tmp, 0, plain, plainOffset + offset, len);
 
         CryptSupport.S3(delta);
         CryptSupport.XOR(tmp, delta, checksum);
 
-        mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
+        mDecryptBlockCipher.encryptBlock(tmp, 0, tag, 0);
     }
 
-    public synchronized byte[] encrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
-        final byte[] tag = new byte[AES_BLOCK_SIZE];
+    /**
+     * Encrypts data using the OCB-AES128 standard.
+     * @param source The plain data.
+     * @param length The number of bytes of the source array to encrypt.
+     * @return A newly allocated array of {@code length + 4} bytes containing the datagram.
+     */
+    public byte[] encrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        final byte[] dst = new byte[length + 4];
+        encrypt(source, 0, length, dst, 0);
+        return dst;
+    }
 
-        // First, increase our IV.
-        for (int i = 0; i < AES_BLOCK_SIZE; i++) {
-            if ((++mEncryptIV[i]) != 0) {
-                break;
+    /**
+     * Encrypts the remaining bytes of the source buffer into the destination buffer.
+     * The source position is advanced to its limit and the destination position is advanced by
+     * the number of encrypted bytes written.
+     * @param src A buffer containing the plain data between position and limit.
+     * @param dst A buffer with at least {@code src.remaining() + 4} bytes remaining.
+     * @return The number of bytes written to the destination buffer.
+     */
+    public int encrypt(final ByteBuffer src, final ByteBuffer dst) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        synchronized (mEncryptLock) {
+            final int length = src.remaining();
+            if (dst.remaining() < length + 4) throw new ShortBufferException();
+
+            final int written;
+            if (src.hasArray() && dst.hasArray()) {
+                written = encrypt(src.array(), src.arrayOffset() + src.position(), length,
+                        dst.array(), dst.arrayOffset() + dst.position());
+                src.position(src.limit());
+                dst.position(dst.position() + written);
+            } else {
+                // Direct or read-only buffers are staged through a reusable scratch array.
+                final byte[] stage = growStage(mEncryptStage, length * 2 + 4);
+                mEncryptStage = stage;
+                src.get(stage, 0, length);
+                written = encrypt(stage, 0, length, stage, length);
+                dst.put(stage, length, written);
             }
+            return written;
         }
+    }
 
-        final byte[] dst = new byte[length + 4];
-        ocbEncrypt(source, dst, length, mEncryptIV, tag);
+    /**
+     * Encrypts plain data into a caller-owned array without allocating.
+     * The source and destination ranges must not overlap.
+     * @param source The plain data.
+     * @param sourceOffset The offset of the plain data in the source array.
+     * @param length The number of plain bytes to encrypt.
+     * @param dst The array to write the datagram into.
+     * @param dstOffset The offset to start writing the datagram at.
+     * @return The number of bytes written, {@code length + 4}.
+     */
+    public int encrypt(final byte[] source, final int sourceOffset, final int length,
+                                    final byte[] dst, final int dstOffset) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        synchronized (mEncryptLock) {
+            if (dst.length - dstOffset < length + 4) throw new ShortBufferException();
 
-        System.arraycopy(dst, 0, dst, 4, length);
-        dst[0] = mEncryptIV[0];
-        dst[1] = tag[0];
-        dst[2] = tag[1];
-        dst[3] = tag[2];
+            final byte[] tag = mEncryptTag;
 
-        return dst;
+            // First, increase our IV.
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                if ((++mEncryptIV[i]) != 0) {
+                    break;
+                }
+            }
+
+            ocbEncrypt(source, sourceOffset, length, dst, dstOffset + 4, mEncryptIV, tag);
+
+            dst[dstOffset] = mEncryptIV[0];
+            dst[dstOffset + 1] = tag[0];
+            dst[dstOffset + 2] = tag[1];
+            dst[dstOffset + 3] = tag[2];
+
+            return length + 4;
+        }
     }
 
     public void ocbEncrypt(byte[] plain, byte[] encrypted, int plainLength, byte[] nonce, byte[] tag) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
-        final byte[] checksum = new byte[AES_BLOCK_SIZE];
-        final byte[] tmp = new byte[AES_BLOCK_SIZE];
+        synchronized (mEncryptLock) {
+            ocbEncrypt(plain, 0, plainLength, encrypted, 0, nonce, tag);
+        }
+    }
+
+    private void ocbEncrypt(byte[] plain, int plainOffset, int plainLength, byte[] encrypted, int encryptedOffset,
+                            byte[] nonce, byte[] tag) {
+        final byte[] checksum = mEncryptChecksum;
+        final byte[] tmp = mEncryptTmp;
+        final byte[] pad = mEncryptPad;
+        final byte[] delta = mEncryptDelta;
 
-        final byte[] delta = mEncryptCipher.doFinal(nonce);
+        CryptSupport.ZERO(checksum);
+        mEncryptBlockCipher.encryptBlock(nonce, 0, delta, 0);
 
         int offset = 0;
         int len = plainLength;
         while (len > AES_BLOCK_SIZE) {
-            final byte[] buffer = new byte[AES_BLOCK_SIZE];
             CryptSupport.S2(delta);
-            System.arraycopy(plain, offset, buffer, 0, AES_BLOCK_SIZE);
-            CryptSupport.XOR(checksum, checksum, buffer);
-            CryptSupport.XOR(tmp, delta, buffer);
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                final byte b = plain[plainOffset + offset + i];
+                checksum[i] ^= b;
+                tmp[i] = (byte) (delta[i] ^ b);
+            }
 
-            mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
+            mEncryptBlockCipher.encryptBlock(tmp, 0, pad, 0);
 
-            CryptSupport.XOR(buffer, delta, tmp);
-            System.arraycopy(buffer, 0, encrypted, offset, AES_BLOCK_SIZE);
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                encrypted[encryptedOffset + offset + i] = (byte) (delta[i] ^ pad[i]);
+            }
             len -= AES_BLOCK_SIZE;
             offset += AES_BLOCK_SIZE;
         }
@@ -325,17 +525,24 @@ public class CryptState {
         tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
         CryptSupport.XOR(tmp, tmp, delta);
 
-        final byte[] pad = mEncryptCipher.doFinal(tmp);
+        mEncryptBlockCipher.encryptBlock(tmp, 0, pad, 0);
 
-        System.arraycopy(plain, offset, tmp, 0, len);
+        System.arraycopy(plain, plainOffset + offset, tmp, 0, len);
         System.arraycopy(pad, len, tmp, len, AES_BLOCK_SIZE - len);
         CryptSupport.XOR(checksum, checksum, tmp);
         CryptSupport.XOR(tmp, pad, tmp);
 
-        System.arraycopy(tmp, 0, encrypted, offset, len);
+        System.arraycopy(tmp, 0, encrypted, encryptedOffset + offset, len);
         CryptSupport.S3(delta);
         CryptSupport.XOR(tmp, delta, checksum);
-        mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
+        mEncryptBlockCipher.encryptBlock(tmp, 0, tag, 0);
+    }
+
+    /**
+     * Returns a staging array of at least the given size, reusing the current one if possible.
+     */
+    private static byte[] growStage(byte[] stage, int size) {
+        return stage.length >= size ? stage : new byte[size];
     }
 
     /**
@@ -351,6 +558,12 @@ public class CryptState {
             }
         }
 
+        public static void XOR(final byte[] dst, final byte[] a, final byte[] b, final int bOffset) {
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                dst[i] = (byte) (a[i] ^ b[bOffset + i]);
+            }
+        }
+
         public static void S2(final byte[] block) {
             int carry = (block[0] >> SHIFTBITS) & 0x1;
             for (int i = 0; i < AES_BLOCK_SIZE - 1; i++) {
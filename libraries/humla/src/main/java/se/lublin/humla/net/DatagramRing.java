@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.net.DatagramPacket;
+
+/**
+ * Fixed size single-producer, single-consumer ring of preallocated datagrams.
+ *
+ * The producer fills the buffer returned by {@link #claim()} and publishes it with
+ * {@link #publish(int)}; the consumer checks with {@link #poll()} and hands the slot back with
+ * {@link #advance()}. Neither side allocates. The ring does not wake the consumer; the producer
+ * does that some other way, such as by posting to the reactor thread that consumes. When the
+ * ring is full, {@link #claim()} returns null and the datagram is counted as an overflow.
+ *
+ * Each slot also records when it was published and whether it may be dropped once stale, so the
+ * consumer can discard voice that has waited too long.
+ */
+public class DatagramRing {
+    private final DatagramPacket[] mSlots;
+    private final long[] mPublishNanos;
+    private final boolean[] mExpendable;
+
+    /** Index of the next slot to consume. Only written by the consumer. */
+    private volatile long mHead;
+    /** Index of the next slot to produce. Only written by the producer. */
+    private volatile long mTail;
+
+    private volatile long mOverflows;
+
+    /**
+     * @param depth The number of datagrams that can be queued.
+     * @param slotSize The maximum size of each datagram.
+     */
+    public DatagramRing(int depth, int slotSize) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Ring depth must be positive");
+        }
+        mSlots = new DatagramPacket[depth];
+        mPublishNanos = new long[depth];
+        mExpendable = new boolean[depth];
+        for (int i = 0; i < depth; i++) {
+            mSlots[i] = new DatagramPacket(new byte[slotSize], slotSize);
+        }
+    }
+
+    /**
+     * Producer only. Returns the buffer of the next free slot, to be filled and then published.
+     * @return The slot's buffer, or null if the ring is full.
+     */
+    public byte[] claim() {
+        final long tail = mTail;
+        if (tail - mHead >= mSlots.length) {
+            mOverflows++;
+            return null;
+        }
+        return mSlots[(int) (tail % mSlots.length)].getData();
+    }
+
+    /**
+     * Producer only. Makes the last claimed slot available to the consumer.
+     * @param length The number of bytes written to the slot.
+     */
+    public void publish(int length) {
+        publish(length, false);
+    }
+
+    /**
+     * Producer only. Makes the last claimed slot available to the consumer.
+     * @param length The number of bytes written to the slot.
+     * @param expendable Whether the consumer may drop the datagram once it is stale.
+     */
+    public void publish(int length, boolean expendable) {
+        final long tail = mTail;
+        final int index = (int) (tail % mSlots.length);
+        mSlots[index].setLength(length);
+        mPublishNanos[index] = System.nanoTime();
+        mExpendable[index] = expendable;
+        mTail = tail + 1;
+    }
+
+    /**
+     * Consumer only. Returns the oldest queued datagram without removing it, or null if there is
+     * none.
+     * @return The oldest queued datagram, valid until {@link #advance()}.
+     */
+    public DatagramPacket poll() {
+        final long head = mHead;
+        return mTail == head ? null : mSlots[(int) (head % mSlots.length)];
+    }
+
+    /**
+     * Consumer only. Checks whether the datagram returned by the last {@link #poll()} may
+     * be dropped and has been queued for longer than the given age.
+     */
+    public boolean isStale(long maxAgeNanos) {
+        final int index = (int) (mHead % mSlots.length);
+        return mExpendable[index] && System.nanoTime() - mPublishNanos[index] > maxAgeNanos;
+    }
+
+    /**
+     * Consumer only. Releases the datagram returned by the last {@link #poll()}.
+     */
+    public void advance() {
+        mHead = mHead + 1;
+    }
+
+    /**
+     * @return The number of datagrams currently queued.
+     */
+    public int size() {
+        return (int) (mTail - mHead);
+    }
+
+    public int getDepth() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return The number of datagrams dropped because the ring was full.
+     */
+    public long getOverflowCount() {
+        return mOverflows;
+    }
+}
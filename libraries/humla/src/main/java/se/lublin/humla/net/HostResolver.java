@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import android.util.Log;
+
+import com.google.common.base.Ticker;
+import com.google.common.net.InetAddresses;
+
+import org.minidns.hla.ResolverApi;
+import org.minidns.hla.SrvResolverResult;
+import org.minidns.record.Record;
+import org.minidns.record.SRV;
+import org.minidns.util.SrvUtil;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import se.lublin.humla.Constants;
+
+/**
+ * Resolves a server address into the endpoints to connect to, off the calling thread.
+ *
+ * A server without a port is looked up as a _mumble._tcp SRV record. Its targets are ordered by
+ * priority and weight (RFC 2782), falling back to the host itself on the default port if there
+ * is none. Each target's addresses come from the system resolver and are interleaved by family
+ * (RFC 8305), so that a connection attempt to one family can be raced against the other.
+ * Targets that do not resolve are skipped, so one dead record does not fail the connection.
+ *
+ * SRV answers are cached for their TTL and addresses for {@link #ADDRESS_TTL}. Thread-safe; all
+ * lookups run on one background thread. The queries themselves go through a {@link Lookup}, by
+ * default {@link #DNS}.
+ */
+public class HostResolver {
+    private static final String TAG = HostResolver.class.getName();
+    /** How long resolved addresses are reused, in nanoseconds. */
+    static final long ADDRESS_TTL = TimeUnit.SECONDS.toNanos(30);
+    /** Bounds on how long an SRV answer, or its absence, is reused, in nanoseconds. */
+    static final long SRV_MIN_TTL = TimeUnit.SECONDS.toNanos(30);
+    static final long SRV_MAX_TTL = TimeUnit.HOURS.toNanos(1);
+
+    /**
+     * Receives the result of {@link #resolve}, on the resolver thread.
+     */
+    public interface Callback {
+        /** @param endpoints The endpoints to try, in order. Never empty. */
+        void onResolved(List<Endpoint> endpoints);
+        void onResolveFailed(IOException e);
+    }
+
+    /**
+     * The queries behind the resolver, called on the resolver thread.
+     */
+    public interface Lookup {
+        /**
+         * @param name The full SRV name, e.g. _mumble._tcp.example.org.
+         * @return The SRV records, or an empty list if the name has none.
+         */
+        List<Record<SRV>> lookupSrv(String name) throws IOException;
+
+        /**
+         * @return The addresses of the host, the preferred family first.
+         * @throws UnknownHostException if it has none.
+         */
+        InetAddress[] lookupAddresses(String host) throws UnknownHostException;
+    }
+
+    /**
+     * Looks up SRV records with minidns and addresses with the system resolver.
+     */
+    public static final Lookup DNS = new Lookup() {
+        @Override
+        public List<Record<SRV>> lookupSrv(String name) throws IOException {
+            final SrvResolverResult result = ResolverApi.INSTANCE.resolveSrv(name);
+            if (!result.wasSuccessful()) {
+                Log.d(TAG, "resolveSrv " + name + ": " + result.getResponseCode());
+                return Collections.emptyList();
+            }
+            return Record.filter(SRV.class, result.getRawAnswer().answerSection);
+        }
+
+        @Override
+        public InetAddress[] lookupAddresses(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * An address to connect to, along with the host name it was resolved from.
+     */
+    public static final class Endpoint {
+        private final String mHost;
+        private final InetSocketAddress mAddress;
+
+        public Endpoint(String host, InetSocketAddress address) {
+            mHost = host;
+            mAddress = address;
+        }
+
+        /** @return The host name, for TLS. */
+        public String getHost() {
+            return mHost;
+        }
+
+        public InetSocketAddress getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public String toString() {
+            return mHost + "/" + mAddress;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final Lookup mLookup;
+    /** Clock for cache expiry. */
+    private final Ticker mTicker;
+    /** Guarded by itself. */
+    private final Map<String, CacheEntry> mCache = new HashMap<>();
+
+    /**
+     * Creates a resolver with a thread of its own, which exits when idle.
+     */
+    public HostResolver() {
+        this(createExecutor());
+    }
+
+    /**
+     * @param executor Runs the lookups. Should run them one at a time, as they block.
+     */
+    public HostResolver(Executor executor) {
+        this(executor, DNS, Ticker.systemTicker());
+    }
+
+    /**
+     * @param executor Runs the lookups. Should run them one at a time, as they block.
+     * @param lookup Answers the queries.
+     * @param ticker Measures how long answers have been cached.
+     */
+    public HostResolver(Executor executor, Lookup lookup, Ticker ticker) {
+        mExecutor = executor;
+        mLookup = lookup;
+        mTicker = ticker;
+    }
+
+    private static Executor createExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "HumlaResolver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Resolves the server on the resolver thread and reports to the callback there.
+     * @param port The server port, or 0 to look up an SRV record.
+     */
+    public void resolve(final String host, final int port, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Endpoint> endpoints;
+                try {
+                    endpoints = resolve(host, port);
+                } catch (IOException e) {
+                    callback.onResolveFailed(e);
+                    return;
+                }
+                callback.onResolved(endpoints);
+            }
+        });
+    }
+
+    /**
+     * Runs other blocking connection setup, such as a proxy handshake, on the resolver thread
+     * after the lookups queued before it.
+     */
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Resolves the server on the calling thread.
+     * @param port The server port, or 0 to look up an SRV record.
+     * @return The endpoints to try, in order.
+     * @throws UnknownHostException if no target resolved.
+     */
+    public List<Endpoint> resolve(String host, int port) throws IOException {
+        final List<Target> targets;
+        if (port != 0) {
+            targets = Collections.singletonList(new Target(host, port));
+        } else if (InetAddresses.isInetAddress(host) || host.endsWith(".onion")) {
+            // Tor Onion Services are a pseudo-TLD without SRV records.
+            targets = Collections.singletonList(new Target(host, Constants.DEFAULT_PORT));
+        } else {
+            targets = lookupSrv(host);
+        }
+
+        final List<Endpoint> endpoints = new ArrayList<>();
+        UnknownHostException failure = null;
+        for (Target target : targets) {
+            try {
+                for (InetAddress address : lookupAddresses(target.host)) {
+                    endpoints.add(new Endpoint(target.host,
+                            new InetSocketAddress(address, target.port)));
+                }
+            } catch (UnknownHostException e) {
+                Log.d(TAG, "Could not resolve " + target.host + ": " + e);
+                failure = e;
+            }
+        }
+        if (endpoints.isEmpty()) {
+            throw failure != null ? failure : new UnknownHostException(host);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Drops all cached answers, e.g. after a network change.
+     */
+    public void clearCache() {
+        synchronized (mCache) {
+            mCache.clear();
+        }
+    }
+
+    /**
+     * @return The SRV targets of the host in the order to try them, or the host itself on the
+     *         default port if it has none.
+     */
+    private List<Target> lookupSrv(String host) {
+        final String lookup = "_mumble._tcp." + host;
+        @SuppressWarnings("unchecked")
+        List<SRV> records = (List<SRV>) cached(lookup);
+        if (records == null) {
+            long ttl = SRV_MIN_TTL;
+            records = Collections.emptyList();
+            try {
+                final List<Record<SRV>> answer = mLookup.lookupSrv(lookup);
+                if (!answer.isEmpty()) {
+                    records = new ArrayList<>(answer.size());
+                    ttl = SRV_MAX_TTL;
+                    for (Record<SRV> record : answer) {
+                        records.add(record.getPayload());
+                        ttl = Math.min(ttl, TimeUnit.SECONDS.toNanos(record.getTtl()));
+                    }
+                    ttl = Math.max(ttl, SRV_MIN_TTL);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // java.net.IDN.toASCII down in resolveSrv() happens to throw IAE
+                // https://github.com/MiniDNS/minidns/issues/104
+                Log.d(TAG, "exception in resolveSrv: " + e);
+            }
+            cache(lookup, records, ttl);
+        }
+        if (records.isEmpty()) {
+            return Collections.singletonList(new Target(host, Constants.DEFAULT_PORT));
+        }
+        // Selection by weight is random, so sort on every lookup rather than once per answer.
+        final List<Target> targets = new ArrayList<>(records.size());
+        for (SRV srv : SrvUtil.sortSrvRecords(records)) {
+            Log.d(TAG, "resolved " + lookup + " SRV: " + srv.toString());
+            targets.add(new Target(srv.target.toString(), srv.port));
+        }
+        return targets;
+    }
+
+    private List<InetAddress> lookupAddresses(String host) throws UnknownHostException {
+        @SuppressWarnings("unchecked")
+        List<InetAddress> addresses = (List<InetAddress>) cached(host);
+        if (addresses == null) {
+            addresses = interleave(Arrays.asList(mLookup.lookupAddresses(host)));
+            cache(host, addresses, ADDRESS_TTL);
+        }
+        return addresses;
+    }
+
+    /**
+     * Orders addresses to alternate between IPv6 and IPv4, starting with the family of the first
+     * one, as the system resolver puts the preferred family first.
+     */
+    public static List<InetAddress> interleave(List<InetAddress> addresses) {
+        final List<InetAddress> first = new ArrayList<>();
+        final List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            final boolean sameFamily = first.isEmpty() ||
+                    (address instanceof Inet6Address) == (first.get(0) instanceof Inet6Address);
+            (sameFamily ? first : second).add(address);
+        }
+        final List<InetAddress> result = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) result.add(first.get(i));
+            if (i < second.size()) result.add(second.get(i));
+        }
+        return result;
+    }
+
+    private Object cached(String key) {
+        synchronized (mCache) {
+            final CacheEntry entry = mCache.get(key);
+            if (entry == null) return null;
+            if (mTicker.read() - entry.expiry >= 0) {
+                mCache.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    private void cache(String key, Object value, long ttl) {
+        synchronized (mCache) {
+            mCache.put(key, new CacheEntry(value, mTicker.read() + ttl));
+        }
+    }
+
+    private static final class Target {
+        final String host;
+        final int port;
+
+        Target(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private static final class CacheEntry {
+        final Object value;
+        final long expiry;
+
+        CacheEntry(Object value, long expiry) {
+            this.value = value;
+            this.expiry = expiry;
+        }
+    }
+}
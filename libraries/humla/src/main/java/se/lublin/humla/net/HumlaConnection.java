@@ -23,13 +23,13 @@ import android.util.Log;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
@@ -43,14 +43,16 @@ import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import se.lublin.humla.BuildConfig;
 import se.lublin.humla.exception.NotConnectedException;
 import se.lublin.humla.exception.NotSynchronizedException;
 import se.lublin.humla.protobuf.Mumble;
@@ -72,6 +74,25 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         UNLOGGED_MESSAGES.add(HumlaTCPMessageType.UDPTunnel);
         UNLOGGED_MESSAGES.add(HumlaTCPMessageType.Ping);
     }
+    /** Idle receive buffers kept around; a few dozen covers bursts from many talkers. */
+    private static final int PACKET_POOL_SIZE = 32;
+
+    /** Backoff bounds in milliseconds for recreating a failed UDP socket. */
+    private static final long UDP_RETRY_MIN_DELAY = 1000;
+    private static final long UDP_RETRY_MAX_DELAY = 60000;
+    /** Interval in milliseconds between UDP pings while probing a recovered socket. */
+    private static final long UDP_PROBE_INTERVAL = 1000;
+    /** Probes sent before giving up on a socket; spans a few TCP pings for the remote counters. */
+    private static final int UDP_PROBE_LIMIT = 15;
+    /** Packets that must get through in each direction before voice returns to UDP. */
+    private static final int UDP_PROBE_REQUIRED_GOOD = 3;
+    /** Interval in milliseconds of the extra UDP pings that track the path while voice flows. */
+    private static final long VOICE_PING_INTERVAL = 1000;
+    /** How long in nanoseconds after the last voice packet the extra pings continue. */
+    private static final long VOICE_ACTIVITY_WINDOW = TimeUnit.SECONDS.toNanos(3);
+    /** Default time in milliseconds outgoing voice may be queued before it is dropped. */
+    public static final int DEFAULT_VOICE_SEND_MAX_AGE = 500;
+
     private HumlaConnectionListener mListener;
 
     // Tor connection details
@@ -84,16 +105,32 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
     private String mTrustStorePath;
     private String mTrustStorePassword;
     private String mTrustStoreFormat;
+    private TLSCredentialsCache mCredentialsCache;
+    /** Time from {@link #connect} to ServerSync in microseconds, or -1 until synchronized. */
+    private volatile long mSyncTime = -1;
 
     // Threading
-    private ScheduledExecutorService mPingExecutorService;
+    private NetworkRuntime mRuntime;
+    /** Whether {@link #mRuntime} was created by this connection and is stopped with it. */
+    private boolean mOwnsRuntime;
+    /** Cleared on disconnect, so that queued listener tasks of this connection are dropped. */
+    private volatile boolean mDispatching;
     private Handler mMainHandler;
 
     // Networking and protocols
+    private NetworkReactor mReactor;
     private HumlaTCP mTCP;
-    private HumlaUDP mUDP;
+    private volatile HumlaUDP mUDP;
+    private int mUDPSendQueueDepth = HumlaUDP.DEFAULT_SEND_QUEUE_DEPTH;
+    private long mVoiceSendMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_VOICE_SEND_MAX_AGE);
+    private long mTCPFlushDelayNanos;
     private ScheduledFuture<?> mPingTask;
-    private boolean mUsingUDP = true;
+    private ScheduledFuture<?> mVoicePingTask;
+    private volatile TransportSelector mTransportSelector = new TransportSelector(System.nanoTime());
+    private volatile ConnectionStatsRecorder mStatsRecorder = new ConnectionStatsRecorder(System.nanoTime());
+    /** Last time voice was sent or received, in nanoseconds. */
+    private volatile long mLastVoiceActivity;
+    private volatile boolean mUsingUDP = true;
     private boolean mForceTCP;
     private boolean mUseTor;
     private boolean mConnected;
@@ -103,9 +140,20 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
     private long mStartTimestamp; // Time that the connection was initiated in nanoseconds
     private final CryptState mCryptState = new CryptState();
 
+    // UDP recovery, only touched on the main thread
+    private volatile UDPState mUDPState = UDPState.DISABLED;
+    private long mUDPRetryDelay = UDP_RETRY_MIN_DELAY;
+    private int mUDPProbesSent;
+    private long mUDPProbeGoodBaseline;
+    private long mUDPProbeRemoteGoodBaseline;
+    private int mUDPFallbackCount;
+    private int mUDPRecoveryCount;
+    private int mUDPReconnectCount;
+    private final PacketPool mPacketPool = new PacketPool(PACKET_POOL_SIZE, HumlaUDP.BUFFER_SIZE, BuildConfig.DEBUG);
+
     // Latency
-    private long mLastUDPPing;
-    private long mLastTCPPing;
+    private volatile long mLastUDPPing;
+    private volatile long mLastTCPPing;
 
     // Server
     private String mHost;
@@ -121,7 +169,28 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
     private int mSession;
 
     // Message handlers
-    private ConcurrentLinkedQueue<HumlaTCPMessageListener> mTCPHandlers = new ConcurrentLinkedQueue<HumlaTCPMessageListener>();
+    private final TCPMessageDispatcher mTCPDispatcher = new TCPMessageDispatcher(new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            mMainHandler.post(task);
+        }
+    }, new Executor() {
+        @Override
+        public void execute(final Runnable task) {
+            final NetworkRuntime runtime = mRuntime;
+            if (runtime == null || !mDispatching) return;
+            try {
+                runtime.getDispatchExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDispatching) task.run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Disconnected; the listeners are being torn down.
+            }
+        }
+    });
     private ConcurrentLinkedQueue<HumlaUDPMessageListener> mUDPHandlers = new ConcurrentLinkedQueue<HumlaUDPMessageListener>();
 
     /**
@@ -138,11 +207,18 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
 
             // Start TCP/UDP ping thread. FIXME is this the right place?
             try {
-                mPingTask = mPingExecutorService.scheduleAtFixedRate(mPingRunnable, 0, 5, TimeUnit.SECONDS);
+                final ScheduledExecutorService scheduler = mRuntime.getScheduler();
+                mPingTask = scheduler.scheduleAtFixedRate(mPingRunnable, 0, 5, TimeUnit.SECONDS);
+                mVoicePingTask = scheduler.scheduleAtFixedRate(mVoicePingRunnable,
+                        VOICE_PING_INTERVAL, VOICE_PING_INTERVAL, TimeUnit.MILLISECONDS);
             } catch(RejectedExecutionException e) {
                 Log.w(TAG, "failed to start ping thread, in \"shutdown\"? ", e);
             }
 
+            mSyncTime = getElapsed();
+            Log.i(TAG, String.format(Locale.US, "Synchronized %d ms after connecting, TLS session %s",
+                    mSyncTime / 1000, mTCP.isSessionResumed() ? "resumed" : "new"));
+
             mSession = msg.getSession();
             mMaxBandwidth = msg.hasMaxBandwidth() ? msg.getMaxBandwidth() : -1;
             mSynchronized = true;
@@ -195,12 +271,11 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
                 } else if(msg.hasServerNonce()) {
                     ByteString serverNonce = msg.getServerNonce();
                     if(serverNonce.size() == CryptState.AES_BLOCK_SIZE) {
-                        mCryptState.mUiResync++;
-                        mCryptState.mDecryptIV = serverNonce.toByteArray();
+                        mCryptState.resyncDecryptIV(serverNonce.toByteArray());
                     }
                 } else {
                     Mumble.CryptSetup.Builder csb = Mumble.CryptSetup.newBuilder();
-                    csb.setClientNonce(ByteString.copyFrom(mCryptState.mEncryptIV));
+                    csb.setClientNonce(ByteString.copyFrom(mCryptState.getEncryptIV()));
                     sendTCPMessage(csb.build(), HumlaTCPMessageType.CryptSetup);
                 }
             } catch (InvalidKeyException e) {
@@ -211,7 +286,7 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
 
         @Override
         public void messageVersion(Mumble.Version msg) {
-            mServerVersion = msg.getVersion();
+            mServerVersion = msg.getVersionV1();
             mServerRelease = msg.getRelease();
             mServerOSName = msg.getOs();
             mServerOSVersion = msg.getOsVersion();
@@ -228,20 +303,25 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
             long elapsed = getElapsed();
             mLastTCPPing = elapsed-msg.getTimestamp();
 
-            if(((mCryptState.mUiRemoteGood == 0) || (mCryptState.mUiGood == 0)) && mUsingUDP && elapsed > 20000000) {
-                mUsingUDP = false;
-                if(!shouldForceTCP() && mListener != null) {
-                    if((mCryptState.mUiRemoteGood == 0) && (mCryptState.mUiGood == 0))
-                        mListener.onConnectionWarning("UDP packets cannot be sent to or received from the server. Switching to TCP mode.");
-                    else if(mCryptState.mUiRemoteGood == 0)
-                        mListener.onConnectionWarning("UDP packets cannot be sent to the server. Switching to TCP mode.");
-                    else
-                        mListener.onConnectionWarning("UDP packets cannot be received from the server. Switching to TCP mode.");
-                }
-            } else if (!mUsingUDP && (mCryptState.mUiRemoteGood > 3) && (mCryptState.mUiGood > 3)) {
-                mUsingUDP = true;
-                if (!shouldForceTCP() && mListener != null)
-                    mListener.onConnectionWarning("UDP packets can be sent to and received from the server. Switching back to UDP mode.");
+            mStatsRecorder.onTCPPingReply(mLastTCPPing);
+            final TransportSelector selector = mTransportSelector;
+            selector.onTCPPingReply(mLastTCPPing);
+            selector.onCryptCounters(mCryptState.mUiGood, mCryptState.mUiLate, mCryptState.mUiLost,
+                    mCryptState.mUiRemoteGood, mCryptState.mUiRemoteLate, mCryptState.mUiRemoteLost);
+
+            if (mUDPState == UDPState.ACTIVE &&
+                    selector.evaluate(System.nanoTime()) == TransportSelector.Transport.TCP) {
+                if((mCryptState.mUiRemoteGood == 0) && (mCryptState.mUiGood == 0))
+                    fallBackToTCP("UDP packets cannot be sent to or received from the server. Switching to TCP mode.");
+                else if(mCryptState.mUiRemoteGood == 0)
+                    fallBackToTCP("UDP packets cannot be sent to the server. Switching to TCP mode.");
+                else if(mCryptState.mUiGood == 0)
+                    fallBackToTCP("UDP packets cannot be received from the server. Switching to TCP mode.");
+                else
+                    fallBackToTCP("UDP connection is degraded (" + selector.getStats().getReason() + "). Switching to TCP mode.");
+                startUDPProbe();
+            } else if (mUDPState == UDPState.PROBING) {
+                checkUDPProbe();
             }
         }
     };
@@ -249,18 +329,28 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
     private HumlaUDPMessageListener mUDPPingListener = new HumlaUDPMessageListener.Stub() {
 
         @Override
-        public void messageUDPPing(byte[] data) {
+        public void messageUDPPing(PooledPacket packet) {
 //            Log.v(TAG, "IN: UDP Ping");
-            byte[] timedata = new byte[8];
-            System.arraycopy(data, 1, timedata, 0, 8);
-            ByteBuffer buffer = ByteBuffer.allocate(8);
-            buffer.put(timedata);
-            buffer.flip();
-
-            long timestamp = buffer.getLong();
+            if (packet.getLength() < 9) return;
+            long timestamp = ByteBuffer.wrap(packet.getData(), 1, 8).getLong();
             long now = getElapsed();
             mLastUDPPing = now-timestamp;
-            // TODO refresh UDP?
+            mTransportSelector.onUDPPingReply(mLastUDPPing);
+            mStatsRecorder.onUDPPingReply(mLastUDPPing);
+        }
+    };
+
+    /**
+     * Pings over UDP more often while voice is flowing, so that the transport estimates follow
+     * the path closely when it matters.
+     */
+    private Runnable mVoicePingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mUsingUDP && !shouldForceTCP() &&
+                    System.nanoTime() - mLastVoiceActivity < VOICE_ACTIVITY_WINDOW) {
+                sendUDPPing(getElapsed());
+            }
         }
     };
 
@@ -272,12 +362,7 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
             long t = getElapsed();
 
             if (!shouldForceTCP()) {
-                ByteBuffer buffer = ByteBuffer.allocate(16);
-                buffer.put((byte) ((HumlaUDPMessageType.UDPPing.ordinal() << 5) & 0xFF));
-                buffer.putLong(t);
-
-                sendUDPMessage(buffer.array(), 16, true);
-//                Log.v(TAG, "OUT: UDP Ping");
+                sendUDPPing(t);
             }
 
             Mumble.Ping.Builder pb = Mumble.Ping.newBuilder();
@@ -286,11 +371,66 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
             pb.setLate(mCryptState.mUiLate);
             pb.setLost(mCryptState.mUiLost);
             pb.setResync(mCryptState.mUiResync);
-            // TODO accumulate stats and send with ping
+
+            // Ping statistics in milliseconds, as the server expects.
+            final ConnectionStatsRecorder stats = mStatsRecorder;
+            final ConnectionStats.Rtt udp = stats.getUDPRtt();
+            final ConnectionStats.Rtt tcp = stats.getTCPRtt();
+            pb.setUdpPackets(stats.getUDPPingCount());
+            pb.setTcpPackets(stats.getTCPPingCount());
+            pb.setUdpPingAvg(udp.getMean() / 1000);
+            pb.setUdpPingVar(udp.getVariance() / 1000000);
+            pb.setTcpPingAvg(tcp.getMean() / 1000);
+            pb.setTcpPingVar(tcp.getVariance() / 1000000);
             sendTCPMessage(pb.build(), HumlaTCPMessageType.Ping);
         }
     };
 
+    private void sendUDPPing(long timestamp) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put((byte) ((HumlaUDPMessageType.UDPPing.ordinal() << 5) & 0xFF));
+        buffer.putLong(timestamp);
+
+        mTransportSelector.onUDPPingSent();
+        sendUDPMessage(buffer.array(), 16, true);
+//        Log.v(TAG, "OUT: UDP Ping");
+    }
+
+    /**
+     * Recreates the UDP socket after a failure, then probes it.
+     */
+    private final Runnable mUDPReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mConnected || mUDPState != UDPState.RECONNECTING) return;
+            mUDPReconnectCount++;
+            Log.i(TAG, "Recreating UDP socket, attempt " + mUDPReconnectCount);
+            startUDP();
+            startUDPProbe();
+        }
+    };
+
+    /**
+     * Pings the server over UDP until the path is proven in both directions, or gives up on the
+     * socket after {@link #UDP_PROBE_LIMIT} probes.
+     */
+    private final Runnable mUDPProbeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mConnected || mUDPState != UDPState.PROBING) return;
+            if (checkUDPProbe()) return;
+
+            if (mUDPProbesSent >= UDP_PROBE_LIMIT && !isUDPProven()) {
+                Log.i(TAG, "UDP probe timed out");
+                scheduleUDPReconnect();
+                return;
+            }
+            mUDPProbesSent++;
+            sendUDPPing(getElapsed());
+            mMainHandler.postDelayed(this, UDP_PROBE_INTERVAL);
+        }
+    };
+
     /**
      * Calculates the bandwidth required to send audio with the given parameters.
      * Includes packet overhead.
@@ -311,10 +451,14 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
     public HumlaConnection(HumlaConnectionListener listener) {
         mListener = listener;
         mMainHandler = new Handler(Looper.getMainLooper());
-        mTCPHandlers.add(mConnectionMessageHandler);
+        mTCPDispatcher.addListener(mConnectionMessageHandler, HumlaTCPMessageListener.Dispatch.MAIN);
         mUDPHandlers.add(mUDPPingListener);
     }
 
+    /**
+     * Connects to the server. Returns right away; the host is resolved in the background.
+     * @param port The server port, or 0 to look up the host's SRV record.
+     */
     public void connect(String host, int port) throws HumlaException {
         mHost = host;
         mPort = port;
@@ -324,17 +468,31 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         mExceptionHandled = false;
         mUsingUDP = !shouldForceTCP();
         mStartTimestamp = System.nanoTime();
+        mSyncTime = -1;
+        mTransportSelector = new TransportSelector(mStartTimestamp);
+        mStatsRecorder = new ConnectionStatsRecorder(mStartTimestamp);
 
-        mPingExecutorService = Executors.newSingleThreadScheduledExecutor();
+        mDispatching = true;
 
         HumlaSSLSocketFactory socketFactory = createSocketFactory();
 
         try {
-            mTCP = new HumlaTCP(socketFactory);
+            if (mRuntime == null) {
+                mRuntime = new NetworkRuntime();
+                mOwnsRuntime = true;
+            }
+            // Brings the threads back up if they were stopped or the reactor failed.
+            mRuntime.start();
+            // One thread for all socket I/O; it also dispatches incoming voice.
+            mReactor = mRuntime.getReactor();
+            mTCP = new HumlaTCP(socketFactory, mReactor, mRuntime.getHostResolver(), mMainHandler);
             mTCP.setTCPConnectionListener(this);
+            mTCP.setVoiceMaxAge(mVoiceSendMaxAgeNanos);
+            mTCP.setFlushDelay(mTCPFlushDelayNanos);
+            mTCP.setStatsRecorder(mStatsRecorder);
             mTCP.connect(host, port, mUseTor);
-            // UDP thread is formally started after TCP connection.
-        } catch (ConnectException e) {
+            // UDP is formally started after TCP connection.
+        } catch (IOException e) {
             throw new HumlaException(e, HumlaException.HumlaDisconnectReason.CONNECTION_ERROR);
         }
     }
@@ -356,12 +514,26 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         return (System.nanoTime()-mStartTimestamp)/1000;
     }
 
+    /**
+     * Registers listeners for control messages on the main thread.
+     */
     public void addTCPMessageHandlers(HumlaTCPMessageListener... handlers) {
-        Collections.addAll(mTCPHandlers, handlers);
+        for (HumlaTCPMessageListener handler : handlers) {
+            mTCPDispatcher.addListener(handler, HumlaTCPMessageListener.Dispatch.MAIN);
+        }
+    }
+
+    /**
+     * Registers a listener for control messages on the given thread. Messages are parsed on the
+     * network thread, so listeners that do not need the main thread do not wait for it.
+     */
+    public void addTCPMessageHandler(HumlaTCPMessageListener handler,
+                                     HumlaTCPMessageListener.Dispatch dispatch) {
+        mTCPDispatcher.addListener(handler, dispatch);
     }
 
     public void removeTCPMessageHandler(HumlaTCPMessageListener handler) {
-        mTCPHandlers.remove(handler);
+        mTCPDispatcher.removeListener(handler);
     }
     public void addUDPMessageHandlers(HumlaUDPMessageListener... handlers) {
         Collections.addAll(mUDPHandlers, handlers);
@@ -389,6 +561,64 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         mForceTCP = forceTcp;
     }
 
+    /**
+     * Sets the number of outgoing UDP datagrams that can be queued before new ones are dropped.
+     * Takes effect when the UDP connection is next established.
+     * @param depth The queue depth, in datagrams.
+     */
+    public void setUDPSendQueueDepth(int depth) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Queue depth must be positive");
+        }
+        mUDPSendQueueDepth = depth;
+    }
+
+    /**
+     * Sets how long outgoing voice may wait in the UDP or TCP send queues. Older voice is dropped
+     * instead of being sent in a burst after the link stalls. Control messages are never dropped.
+     * @param maxAge The maximum age in milliseconds.
+     */
+    public void setVoiceSendMaxAge(int maxAge) {
+        mVoiceSendMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAge);
+        final HumlaTCP tcp = mTCP;
+        if (tcp != null) tcp.setVoiceMaxAge(mVoiceSendMaxAgeNanos);
+        final HumlaUDP udp = mUDP;
+        if (udp != null) udp.setVoiceMaxAge(mVoiceSendMaxAgeNanos);
+    }
+
+    /**
+     * Sets how long an outgoing TCP message may be held back so that messages sent shortly after
+     * it share its TLS record. Defaults to 0, which only batches messages that queue up while the
+     * network thread is busy.
+     * @param delay The delay in milliseconds.
+     */
+    public void setTCPFlushDelay(int delay) {
+        mTCPFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(delay);
+        final HumlaTCP tcp = mTCP;
+        if (tcp != null) tcp.setFlushDelay(mTCPFlushDelayNanos);
+    }
+
+    /**
+     * @return The number of outgoing voice packets dropped for exceeding the maximum age, over
+     *         the current TCP and UDP connections.
+     */
+    public long getStaleVoiceDropCount() {
+        long count = 0;
+        final HumlaTCP tcp = mTCP;
+        if (tcp != null) count += tcp.getStaleVoiceDropCount();
+        final HumlaUDP udp = mUDP;
+        if (udp != null) count += udp.getStaleVoiceDropCount();
+        return count;
+    }
+
+    /**
+     * @return The number of outgoing datagrams dropped because the UDP send queue was full.
+     */
+    public long getUDPSendOverflowCount() {
+        final HumlaUDP udp = mUDP;
+        return udp != null ? udp.getSendOverflowCount() : 0;
+    }
+
     /**
      * Sets the PKCS12 certificate data and password to use when authenticating.
      * @param certificate A PKCS12-formatted certificate.
@@ -405,6 +635,40 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         mTrustStoreFormat = format;
     }
 
+    /**
+     * Sets the cache to reuse the TLS context of earlier connections from, so that reconnecting
+     * can resume the TLS session. Without one, every connection does a full handshake.
+     */
+    public void setCredentialsCache(TLSCredentialsCache cache) {
+        mCredentialsCache = cache;
+    }
+
+    /**
+     * Sets the runtime to run on, shared with other connections. Must be called before
+     * {@link #connect}. Without one, the connection creates its own and stops it on disconnect.
+     */
+    public void setNetworkRuntime(NetworkRuntime runtime) {
+        mRuntime = runtime;
+        mOwnsRuntime = false;
+        mMainHandler = runtime.getMainHandler();
+    }
+
+    /**
+     * @return Microseconds from {@link #connect} to the ServerSync message, or -1 if the
+     *         connection is not synchronized yet.
+     */
+    public long getSyncTime() {
+        return mSyncTime;
+    }
+
+    /**
+     * @return Whether the TLS handshake resumed a session of an earlier connection.
+     */
+    public boolean isTLSSessionResumed() {
+        final HumlaTCP tcp = mTCP;
+        return tcp != null && tcp.isSessionResumed();
+    }
+
     public int getServerVersion() throws NotSynchronizedException {
         if (!isSynchronized())
             throw new NotSynchronizedException();
@@ -441,6 +705,22 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         return mLastUDPPing;
     }
 
+    /**
+     * @return The mean time in nanoseconds from a voice datagram being read from the UDP socket
+     *         until it was queued for playback, or 0 if no voice has been received over UDP.
+     */
+    public long getUDPVoiceDispatchLatency() {
+        final HumlaUDP udp = mUDP;
+        return udp != null ? udp.getAverageVoiceDispatchNanos() : 0;
+    }
+
+    /**
+     * @return The pool that received datagrams are read into, for its hit/miss/leak counters.
+     */
+    public PacketPool getPacketPool() {
+        return mPacketPool;
+    }
+
     public int getSession() throws NotSynchronizedException {
         if (!isSynchronized())
             throw new NotSynchronizedException("Session is set during synchronization");
@@ -481,14 +761,22 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         mPort = 0;
 
         // Stop running network resources
-        if(mPingTask != null) mPingTask.cancel(true);
+        mMainHandler.removeCallbacks(mUDPReconnectRunnable);
+        mMainHandler.removeCallbacks(mUDPProbeRunnable);
+        mUDPState = UDPState.DISABLED;
+        mDispatching = false;
+        if(mPingTask != null) mPingTask.cancel(false);
+        if(mVoicePingTask != null) mVoicePingTask.cancel(false);
         if(mTCP != null) mTCP.disconnect();
         if(mUDP != null) mUDP.disconnect();
-        mPingExecutorService.shutdown();
+        // The reactor runs the close tasks queued by the disconnects above before stopping.
+        if(mOwnsRuntime && mRuntime != null) mRuntime.stop();
 
         mTCP = null;
         mUDP = null;
+        mReactor = null;
         mPingTask = null;
+        mVoicePingTask = null;
     }
 
     /**
@@ -506,12 +794,22 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         disconnect();
     }
 
+    private TLSCredentialsCache.Key credentialsKey() {
+        return new TLSCredentialsCache.Key(mHost, mPort, mCertificate, mCertificatePassword,
+                mTrustStorePath, mTrustStorePassword, mTrustStoreFormat);
+    }
+
     /**
      * Attempts to create a socket factory using the HumlaConnection's certificate and trust
      * store configuration.
      * @return A socket factory set to authenticate with a certificate and trust store, if set.
      */
     private HumlaSSLSocketFactory createSocketFactory() throws HumlaException {
+        final TLSCredentialsCache cache = mCredentialsCache;
+        if (cache != null) {
+            final HumlaSSLSocketFactory factory = cache.get(credentialsKey());
+            if (factory != null) return factory;
+        }
         try {
             KeyStore keyStore = null;
             if(mCertificate != null) {
@@ -521,8 +819,11 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
                         mCertificatePassword.toCharArray() : new char[0]);
             }
 
-            return new HumlaSSLSocketFactory(keyStore, mCertificatePassword, mTrustStorePath,
-                    mTrustStorePassword, mTrustStoreFormat);
+            final HumlaSSLSocketFactory factory = new HumlaSSLSocketFactory(keyStore,
+                    mCertificatePassword, mTrustStorePath, mTrustStorePassword, mTrustStoreFormat);
+            // Keyed after creation, as the factory creates the trust store file if missing.
+            if (cache != null) cache.put(credentialsKey(), factory);
+            return factory;
         } catch (KeyManagementException e) {
             throw new HumlaException("Could not recover keys from certificate", e,
                     HumlaException.HumlaDisconnectReason.OTHER_ERROR);
@@ -560,7 +861,7 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
      * @param message A built protobuf message.
      * @param messageType The corresponding protobuf message type.
      */
-    public void sendTCPMessage(Message message, HumlaTCPMessageType messageType) {
+    public void sendTCPMessage(MessageLite message, HumlaTCPMessageType messageType) {
         if(!mConnected || mTCP == null) return;
         mTCP.sendMessage(message, messageType);
     }
@@ -578,6 +879,7 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
                     "available data length " + data.length + "!");
         }
         if (mServerVersion == 0x10202) applyLegacyCodecWorkaround(data);
+        if (!force) mLastVoiceActivity = System.nanoTime();
         if (!force && (shouldForceTCP() || !mUsingUDP) && mTCP != null) {
             mTCP.sendMessage(data, length, HumlaTCPMessageType.UDPTunnel);
         } else if (!shouldForceTCP() && mUDP != null) {
@@ -606,21 +908,27 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         sendTCPMessage(ab.build(), HumlaTCPMessageType.Authenticate);
     }
 
+    /**
+     * Called on the network thread. Tunneled voice goes straight to the audio path, other
+     * messages are parsed here and dispatched to the threads their listeners asked for.
+     */
     @Override
     public void onTCPMessageReceived(HumlaTCPMessageType type, int length, byte[] data) {
         if(!UNLOGGED_MESSAGES.contains(type))
             Log.v(TAG, "IN: " + type);
 
         if(type == HumlaTCPMessageType.UDPTunnel) {
-            onUDPDataReceived(data);
+            PooledPacket packet = PooledPacket.wrap(data, data.length);
+            try {
+                onUDPDataReceived(packet);
+            } finally {
+                packet.release();
+            }
             return;
         }
 
         try {
-            Message message = getProtobufMessage(data, type);
-            for(HumlaTCPMessageListener handler : mTCPHandlers) {
-                broadcastTCPMessage(handler, message, type);
-            }
+            mTCPDispatcher.dispatch(type, data);
         } catch (InvalidProtocolBufferException e) {
             e.printStackTrace();
         }
@@ -630,10 +938,13 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
     public void onTCPConnectionEstablished() {
         mConnected = true;
 
-        // Attempt to start UDP thread once connected.
+        // Attempt to start UDP once connected.
         if (!shouldForceTCP()) {
-            mUDP = new HumlaUDP(mCryptState, this, mMainHandler);
-            mUDP.connect(mHost, mPort);
+            startUDP();
+            mUDPState = UDPState.ACTIVE;
+            mUDPRetryDelay = UDP_RETRY_MIN_DELAY;
+        } else {
+            mUDPState = UDPState.DISABLED;
         }
 
         if (mListener != null) mListener.onConnectionEstablished();
@@ -660,23 +971,147 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
     }
 
     @Override
-    public void onUDPDataReceived(byte[] data) {
+    public void onUDPDataReceived(PooledPacket packet) {
+        if (packet.getLength() < 1) return;
+        final byte[] data = packet.getData();
         if(mServerVersion == 0x10202) applyLegacyCodecWorkaround(data);
         int dataType = data[0] >> 5 & 0x7;
         if(dataType < 0 || dataType > HumlaUDPMessageType.values().length - 1) return; // Discard invalid data types
         HumlaUDPMessageType udpDataType = HumlaUDPMessageType.values()[dataType];
+        if (udpDataType != HumlaUDPMessageType.UDPPing) {
+            final long now = System.nanoTime();
+            mLastVoiceActivity = now;
+            mStatsRecorder.onVoiceReceived(data, packet.getLength(), now);
+        }
 
         for(HumlaUDPMessageListener handler : mUDPHandlers) {
-            broadcastUDPMessage(handler, data, udpDataType);
+            broadcastUDPMessage(handler, packet, udpDataType);
         }
     }
 
     @Override
     public void onUDPConnectionError(Exception e) {
         e.printStackTrace();
-        if(mListener != null) mListener.onConnectionWarning("UDP connection thread failed. Falling back to TCP.");
+        if (!mConnected || mUDPState == UDPState.DISABLED) return;
+        if (mUDPState == UDPState.ACTIVE) {
+            fallBackToTCP("UDP connection thread failed. Falling back to TCP.");
+        }
+        scheduleUDPReconnect();
+    }
+
+    private void startUDP() {
+        if (mReactor == null) return;
+        if (mUDP != null) mUDP.disconnect();
+        mUDP = new HumlaUDP(mCryptState, this, mMainHandler, mPacketPool, mReactor, mUDPSendQueueDepth);
+        mUDP.setVoiceMaxAge(mVoiceSendMaxAgeNanos);
+        mUDP.setStatsRecorder(mStatsRecorder);
+        final InetSocketAddress address = mTCP.getRemoteAddress();
+        if (address == null) return;
+        mUDP.connect(address);
+    }
+
+    /**
+     * Moves voice onto the TCP tunnel, telling the server to do the same.
+     */
+    private void fallBackToTCP(String warning) {
+        mUsingUDP = false;
+        mTransportSelector.setCurrent(TransportSelector.Transport.TCP, warning, System.nanoTime());
+        mUDPFallbackCount++;
         enableForceTCP();
-        // TODO recover UDP thread automagically
+        if (mListener != null) mListener.onConnectionWarning(warning);
+    }
+
+    private void scheduleUDPReconnect() {
+        mMainHandler.removeCallbacks(mUDPProbeRunnable);
+        mUDPState = UDPState.RECONNECTING;
+        mMainHandler.removeCallbacks(mUDPReconnectRunnable);
+        mMainHandler.postDelayed(mUDPReconnectRunnable, mUDPRetryDelay);
+        Log.i(TAG, "Retrying UDP in " + mUDPRetryDelay + "ms");
+        mUDPRetryDelay = Math.min(mUDPRetryDelay * 2, UDP_RETRY_MAX_DELAY);
+    }
+
+    /**
+     * Starts pinging over UDP, remembering the crypt counters so that only packets getting through
+     * from now on count as proof.
+     */
+    private void startUDPProbe() {
+        mUDPState = UDPState.PROBING;
+        mUDPProbesSent = 0;
+        mUDPProbeGoodBaseline = mCryptState.mUiGood;
+        mUDPProbeRemoteGoodBaseline = mCryptState.mUiRemoteGood;
+        mMainHandler.removeCallbacks(mUDPProbeRunnable);
+        mMainHandler.post(mUDPProbeRunnable);
+    }
+
+    private boolean isUDPProven() {
+        return mCryptState.mUiGood - mUDPProbeGoodBaseline >= UDP_PROBE_REQUIRED_GOOD &&
+                mCryptState.mUiRemoteGood - mUDPProbeRemoteGoodBaseline >= UDP_PROBE_REQUIRED_GOOD;
+    }
+
+    /**
+     * Switches voice back to UDP if enough probes got through in both directions and the
+     * transport selector prefers it.
+     * @return true if UDP was restored.
+     */
+    private boolean checkUDPProbe() {
+        if (!isUDPProven() ||
+                mTransportSelector.evaluate(System.nanoTime()) != TransportSelector.Transport.UDP) {
+            return false;
+        }
+        mMainHandler.removeCallbacks(mUDPProbeRunnable);
+        mUDPState = UDPState.ACTIVE;
+        mUsingUDP = true;
+        mUDPRetryDelay = UDP_RETRY_MIN_DELAY;
+        mUDPRecoveryCount++;
+        if (mListener != null)
+            mListener.onConnectionWarning("UDP packets can be sent to and received from the server. Switching back to UDP mode.");
+        return true;
+    }
+
+    /**
+     * @return The current RTT, jitter and loss estimates of both transports, and why voice is
+     *         using the one it is.
+     */
+    public TransportSelector.Stats getTransportStats() {
+        return mTransportSelector.getStats();
+    }
+
+    /**
+     * Takes a snapshot of the connection quality counters. Rates in the snapshot are averaged
+     * since the previous call, so this is meant to be sampled periodically (e.g. once a second)
+     * from a single place. Safe to call from any thread; never blocks the network or audio threads.
+     */
+    public ConnectionStats getConnectionStats() {
+        return mStatsRecorder.snapshot(System.nanoTime(), mCryptState, mUDPState,
+                mTransportSelector.getStats(), getUDPSendOverflowCount(), getStaleVoiceDropCount());
+    }
+
+    /**
+     * @return The state of the UDP voice path.
+     */
+    public UDPState getUDPState() {
+        return mUDPState;
+    }
+
+    /**
+     * @return The number of times voice fell back from UDP to the TCP tunnel.
+     */
+    public int getUDPFallbackCount() {
+        return mUDPFallbackCount;
+    }
+
+    /**
+     * @return The number of times voice was switched back to UDP after a fallback.
+     */
+    public int getUDPRecoveryCount() {
+        return mUDPRecoveryCount;
+    }
+
+    /**
+     * @return The number of times the UDP socket was recreated after failing.
+     */
+    public int getUDPReconnectCount() {
+        return mUDPReconnectCount;
     }
 
     @Override
@@ -704,66 +1139,13 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
     /**
      * Gets the protobuf message from the passed TCP data.
      * We isolate this so we can first parse the message and then inform all handlers. Saves processing power.
-     * @param data Raw protobuf TCP data.
+     * @param data Raw protobuf TCP data. Bytes fields of the message refer into it, so it must not be reused.
      * @param messageType Type of the message.
      * @return The parsed protobuf message.
      * @throws InvalidProtocolBufferException Called if the messageType does not match the data.
      */
-    public static Message getProtobufMessage(byte[] data, HumlaTCPMessageType messageType) throws InvalidProtocolBufferException {
-        switch (messageType) {
-            case Authenticate:
-                return Mumble.Authenticate.parseFrom(data);
-            case BanList:
-                return Mumble.BanList.parseFrom(data);
-            case Reject:
-                return Mumble.Reject.parseFrom(data);
-            case ServerSync:
-                return Mumble.ServerSync.parseFrom(data);
-            case ServerConfig:
-                return Mumble.ServerConfig.parseFrom(data);
-            case PermissionDenied:
-                return Mumble.PermissionDenied.parseFrom(data);
-            case UDPTunnel:
-                return Mumble.UDPTunnel.parseFrom(data);
-            case UserState:
-                return Mumble.UserState.parseFrom(data);
-            case UserRemove:
-                return Mumble.UserRemove.parseFrom(data);
-            case ChannelState:
-                return Mumble.ChannelState.parseFrom(data);
-            case ChannelRemove:
-                return Mumble.ChannelRemove.parseFrom(data);
-            case TextMessage:
-                return Mumble.TextMessage.parseFrom(data);
-            case ACL:
-                return Mumble.ACL.parseFrom(data);
-            case QueryUsers:
-                return Mumble.QueryUsers.parseFrom(data);
-            case Ping:
-                return Mumble.Ping.parseFrom(data);
-            case CryptSetup:
-                return Mumble.CryptSetup.parseFrom(data);
-            case ContextAction:
-                return Mumble.ContextAction.parseFrom(data);
-            case ContextActionModify:
-                return Mumble.ContextActionModify.parseFrom(data);
-            case Version:
-                return Mumble.Version.parseFrom(data);
-            case UserList:
-                return Mumble.UserList.parseFrom(data);
-            case PermissionQuery:
-                return Mumble.PermissionQuery.parseFrom(data);
-            case CodecVersion:
-                return Mumble.CodecVersion.parseFrom(data);
-            case UserStats:
-                return Mumble.UserStats.parseFrom(data);
-            case RequestBlob:
-                return Mumble.RequestBlob.parseFrom(data);
-            case SuggestConfig:
-                return Mumble.SuggestConfig.parseFrom(data);
-            default:
-                throw new InvalidProtocolBufferException("Unknown TCP data passed.");
-        }
+    public static MessageLite getProtobufMessage(byte[] data, HumlaTCPMessageType messageType) throws InvalidProtocolBufferException {
+        return TCPMessageDispatcher.parse(messageType, data);
     }
 
 
@@ -773,109 +1155,26 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
      * @param msg Protobuf message.
      * @param messageType The type of the message.
      */
-    public final void broadcastTCPMessage(HumlaTCPMessageListener handler, Message msg, HumlaTCPMessageType messageType) {
-        switch (messageType) {
-            case Authenticate:
-                handler.messageAuthenticate((Mumble.Authenticate) msg);
-                break;
-            case BanList:
-                handler.messageBanList((Mumble.BanList) msg);
-                break;
-            case Reject:
-                handler.messageReject((Mumble.Reject) msg);
-                break;
-            case ServerSync:
-                handler.messageServerSync((Mumble.ServerSync) msg);
-                break;
-            case ServerConfig:
-                handler.messageServerConfig((Mumble.ServerConfig) msg);
-                break;
-            case PermissionDenied:
-                handler.messagePermissionDenied((Mumble.PermissionDenied) msg);
-                break;
-            case UDPTunnel:
-                handler.messageUDPTunnel((Mumble.UDPTunnel) msg);
-                break;
-            case UserState:
-                handler.messageUserState((Mumble.UserState) msg);
-                break;
-            case UserRemove:
-                handler.messageUserRemove((Mumble.UserRemove) msg);
-                break;
-            case ChannelState:
-                handler.messageChannelState((Mumble.ChannelState) msg);
-                break;
-            case ChannelRemove:
-                handler.messageChannelRemove((Mumble.ChannelRemove) msg);
-                break;
-            case TextMessage:
-                handler.messageTextMessage((Mumble.TextMessage) msg);
-                break;
-            case ACL:
-                handler.messageACL((Mumble.ACL) msg);
-                break;
-            case QueryUsers:
-                handler.messageQueryUsers((Mumble.QueryUsers) msg);
-                break;
-            case Ping:
-                handler.messagePing((Mumble.Ping) msg);
-                break;
-            case CryptSetup:
-                handler.messageCryptSetup((Mumble.CryptSetup) msg);
-                break;
-            case ContextAction:
-                handler.messageContextAction((Mumble.ContextAction) msg);
-                break;
-            case ContextActionModify:
-                Mumble.ContextActionModify actionModify = (Mumble.ContextActionModify) msg;
-                if (actionModify.getOperation() == Mumble.ContextActionModify.Operation.Add)
-                    handler.messageContextActionModify(actionModify);
-                else if (actionModify.getOperation() == Mumble.ContextActionModify.Operation.Remove)
-                    handler.messageRemoveContextAction(actionModify);
-                break;
-            case Version:
-                handler.messageVersion((Mumble.Version) msg);
-                break;
-            case UserList:
-                handler.messageUserList((Mumble.UserList) msg);
-                break;
-            case PermissionQuery:
-                handler.messagePermissionQuery((Mumble.PermissionQuery) msg);
-                break;
-            case CodecVersion:
-                handler.messageCodecVersion((Mumble.CodecVersion) msg);
-                break;
-            case UserStats:
-                handler.messageUserStats((Mumble.UserStats) msg);
-                break;
-            case RequestBlob:
-                handler.messageRequestBlob((Mumble.RequestBlob) msg);
-                break;
-            case SuggestConfig:
-                handler.messageSuggestConfig((Mumble.SuggestConfig) msg);
-                break;
-            case VoiceTarget:
-                handler.messageVoiceTarget((Mumble.VoiceTarget) msg);
-                break;
-        }
+    public final void broadcastTCPMessage(HumlaTCPMessageListener handler, MessageLite msg, HumlaTCPMessageType messageType) {
+        TCPMessageDispatcher.deliver(handler, msg, messageType);
     }
 
     /**
      * Reroutes UDP messages into the various responder methods of the passed handler.
      * @param handler Handler to notify.
-     * @param data Raw UDP data of the message.
+     * @param packet Raw UDP data of the message.
      * @param messageType The type of the message.
      */
-    public final void broadcastUDPMessage(HumlaUDPMessageListener handler, byte[] data, HumlaUDPMessageType messageType) {
+    public final void broadcastUDPMessage(HumlaUDPMessageListener handler, PooledPacket packet, HumlaUDPMessageType messageType) {
         switch (messageType) {
             case UDPPing:
-                handler.messageUDPPing(data);
+                handler.messageUDPPing(packet);
                 break;
             case UDPVoiceCELTAlpha:
             case UDPVoiceSpeex:
             case UDPVoiceCELTBeta:
             case UDPVoiceOpus:
-                handler.messageVoiceData(data, messageType);
+                handler.messageVoiceData(packet, messageType);
                 break;
         }
     }
@@ -888,6 +1187,20 @@ public class HumlaConnection implements HumlaTCP.TCPConnectionListener, HumlaUDP
         return mError;
     }
 
+    /**
+     * State of the UDP voice path.
+     */
+    public enum UDPState {
+        /** Voice is sent over UDP. */
+        ACTIVE,
+        /** The UDP socket failed; voice is tunneled over TCP until it is recreated. */
+        RECONNECTING,
+        /** Voice is tunneled over TCP while UDP pings check whether the path works. */
+        PROBING,
+        /** UDP is not used, as TCP is forced or the connection is closed. */
+        DISABLED
+    }
+
     public interface HumlaConnectionListener {
         /**
          * Called when the socket to the remote server has opened.
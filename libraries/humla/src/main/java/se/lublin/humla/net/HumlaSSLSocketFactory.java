@@ -17,14 +17,16 @@
 
 package se.lublin.humla.net;
 
+import android.os.Build;
 import android.util.Log;
 
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -33,10 +35,14 @@ import java.security.NoSuchProviderException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
 
 import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -93,22 +99,110 @@ public class HumlaSSLSocketFactory {
     }
 
     /**
-     * Creates a new SSLSocket that runs through a SOCKS5 proxy to reach its destination.
+     * Creates a client mode TLS engine for the given server. The host name is passed on for SNI
+     * and session caching. Forgets the chain of the previous handshake, as a resumed session does
+     * not check the server's certificate again and would otherwise report a stale one.
      */
-    public SSLSocket createTorSocket(String host, int port, String proxyHost, int proxyPort) throws IOException {
-        Proxy proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(proxyHost, proxyPort));
-        Socket socket = new Socket(proxy);
-        socket.connect(InetSocketAddress.createUnresolved(host, port));
-        return (SSLSocket) mContext.getSocketFactory().createSocket(socket, host, port, true);
+    public SSLEngine createSSLEngine(String host, int port) {
+        mTrustWrapper.clearServerChain();
+        SSLEngine engine = mContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            try {
+                SSLParameters parameters = engine.getSSLParameters();
+                parameters.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(host)));
+                engine.setSSLParameters(parameters);
+            } catch (IllegalArgumentException e) {
+                // Not a valid host name (e.g. an IP address); no SNI then.
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Opens a socket channel that runs through a SOCKS5 proxy to reach its destination. The
+     * proxy handshake is done in blocking mode; the channel is returned connected and still
+     * blocking.
+     * @param timeout How long connecting to the proxy, and each read of its replies, may take,
+     *                in milliseconds.
+     */
+    public SocketChannel createTorChannel(String host, int port, String proxyHost, int proxyPort,
+                                          int timeout) throws IOException {
+        final byte[] name = host.getBytes("US-ASCII");
+        if (name.length > 255) {
+            throw new IOException("Host name too long for SOCKS5: " + host);
+        }
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(proxyHost, proxyPort), timeout);
+            // Only reads through the socket's stream time out, not those on the channel.
+            channel.socket().setSoTimeout(timeout);
+            final InputStream input = channel.socket().getInputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(262);
+
+            // Greeting, offering no authentication.
+            buffer.put((byte) 5).put((byte) 1).put((byte) 0).flip();
+            writeFully(channel, buffer);
+            readFully(input, buffer, 2);
+            if (buffer.get(0) != 5 || buffer.get(1) != 0) {
+                throw new IOException("SOCKS5 proxy refused authentication method");
+            }
+
+            // Connect by domain name, so that the proxy resolves it.
+            buffer.clear();
+            buffer.put((byte) 5).put((byte) 1).put((byte) 0).put((byte) 3);
+            buffer.put((byte) name.length).put(name).putShort((short) port).flip();
+            writeFully(channel, buffer);
+            readFully(input, buffer, 4);
+            if (buffer.get(1) != 0) {
+                throw new IOException("SOCKS5 connect failed with status " + buffer.get(1));
+            }
+            switch (buffer.get(3)) {
+                case 1:
+                    readFully(input, buffer, 4 + 2);
+                    break;
+                case 3:
+                    readFully(input, buffer, 1);
+                    readFully(input, buffer, (buffer.get(0) & 0xFF) + 2);
+                    break;
+                case 4:
+                    readFully(input, buffer, 16 + 2);
+                    break;
+                default:
+                    throw new IOException("SOCKS5 reply has unknown address type");
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
     }
 
-    public SSLSocket createSocket(String host, int port) throws IOException {
-        return (SSLSocket) mContext.getSocketFactory().createSocket(InetAddress.getByName(host), port);
+    /**
+     * Reads exactly the given number of bytes into the start of the heap buffer.
+     */
+    private static void readFully(InputStream input, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            final int count = input.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (count < 0) {
+                throw new EOFException("SOCKS5 proxy closed the connection");
+            }
+            buffer.position(buffer.position() + count);
+        }
     }
 
     /**
-     * Gets the certificate chain of the remote host.
-     * @return The remote server's certificate chain, or null if a connection has not reached handshake yet.
+     * Gets the certificate chain of the remote host, if it failed validation.
+     * @return The remote server's certificate chain, or null if the last engine created has not
+     *         been sent an untrusted one.
      */
     public X509Certificate[] getServerChain() {
         return mTrustWrapper.getServerChain();
@@ -122,7 +216,7 @@ public class HumlaSSLSocketFactory {
 
         private X509TrustManager mDefaultTrustManager;
         private X509TrustManager mTrustManager;
-        private X509Certificate[] mServerChain;
+        private volatile X509Certificate[] mServerChain;
 
         public HumlaTrustManagerWrapper(X509TrustManager trustManager) throws NoSuchAlgorithmException, KeyStoreException {
             TrustManagerFactory dmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
@@ -143,12 +237,16 @@ public class HumlaSSLSocketFactory {
 
         @Override
         public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-            mServerChain = chain;
             try {
                 mDefaultTrustManager.checkServerTrusted(chain, authType);
             } catch (CertificateException e) {
-                if(mTrustManager != null) mTrustManager.checkServerTrusted(chain, authType);
-                else throw e;
+                try {
+                    if(mTrustManager != null) mTrustManager.checkServerTrusted(chain, authType);
+                    else throw e;
+                } catch (CertificateException untrusted) {
+                    mServerChain = chain;
+                    throw untrusted;
+                }
             }
         }
 
@@ -160,5 +258,9 @@ public class HumlaSSLSocketFactory {
         public X509Certificate[] getServerChain() {
             return mServerChain;
         }
+
+        public void clearServerChain() {
+            mServerChain = null;
+        }
     }
 }
@@ -17,204 +17,644 @@
 
 package se.lublin.humla.net;
 
-import android.net.SSLCertificateSocketFactory;
-import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 
-import com.google.protobuf.Message;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.SSLSocket;
 
+import se.lublin.humla.Constants;
 import se.lublin.humla.util.HumlaException;
 
 /**
  * Class to maintain and interface with the TCP connection to a Mumble server.
  * Parses Mumble protobuf packets according to the Mumble protocol specification.
+ *
+ * All socket I/O runs on the connection's {@link NetworkReactor}: the channel is non-blocking and
+ * TLS is done by an {@link javax.net.ssl.SSLEngine}, so no thread is parked on the socket.
  */
-public class HumlaTCP extends HumlaNetworkThread {
+public class HumlaTCP implements NetworkReactor.ChannelHandler {
     private static final String TAG = HumlaTCP.class.getName();
+    /** Length of the type and length prefix of every message. */
+    private static final int HEADER_SIZE = 6;
+    /** Messages claiming to be larger than this are treated as a protocol error. */
+    private static final int MAX_MESSAGE_SIZE = 8 * 1024 * 1024;
+    private static final HumlaTCPMessageType[] MESSAGE_TYPES = HumlaTCPMessageType.values();
+    /** The largest TLS record payload, so that a full batch is sealed as one record. */
+    private static final int SEND_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Socket send buffer size. Kept small so that bulk data waits in our queues, where voice can
+     * overtake it, rather than in the kernel.
+     */
+    private static final int SOCKET_SEND_BUFFER_SIZE = 32 * 1024;
+    private static final SendPriority[] PRIORITIES = SendPriority.values();
+    /** How long a connection attempt gets before the next address is tried alongside it. */
+    private static final long CONNECTION_ATTEMPT_DELAY = 250 * 1000000L;
+    /** How long connecting to the Tor proxy, and each step of its handshake, may take, in ms. */
+    private static final int TOR_TIMEOUT = 30 * 1000;
+
+    /**
+     * Classes of outgoing messages, in the order their queues are drained. Messages of one class
+     * keep their order.
+     */
+    public enum SendPriority {
+        /** Tunneled voice, and the voice targets it refers to. */
+        VOICE,
+        /** Pings and crypt resyncs, which are small and latency sensitive. */
+        CONTROL,
+        /** Everything else, including large messages such as avatars and comments. */
+        BULK;
+
+        public static SendPriority of(HumlaTCPMessageType type) {
+            switch (type) {
+                case UDPTunnel:
+                case VoiceTarget:
+                    return VOICE;
+                case Ping:
+                case CryptSetup:
+                    return CONTROL;
+                default:
+                    return BULK;
+            }
+        }
+    }
+
     private final HumlaSSLSocketFactory mSocketFactory;
+    private final NetworkReactor mReactor;
+    private final HostResolver mResolver;
+    private final Handler mMainHandler;
     private String mHost;
     private int mPort;
     private boolean mUseTor;
-    private SSLSocket mTCPSocket;
-    private DataInputStream mDataInput;
-    private DataOutputStream mDataOutput;
-    private boolean mRunning;
-    private boolean mConnected;
+    private volatile boolean mRunning;
+    private volatile boolean mConnected;
     private TCPConnectionListener mListener;
 
-    public HumlaTCP(HumlaSSLSocketFactory socketFactory) {
+    // Only touched on the reactor thread
+    private SocketChannel mChannel;
+    private TLSChannel mTLS;
+    private SelectionKey mKey;
+    /** Endpoints to connect to, in order, and the connection attempts still running. */
+    private List<HostResolver.Endpoint> mEndpoints;
+    private int mNextEndpoint;
+    private final List<ConnectAttempt> mAttempts = new ArrayList<>();
+    private IOException mLastConnectError;
+    private volatile InetSocketAddress mRemoteAddress;
+    /** Send buffer for batches of messages that fit into {@link #SEND_BUFFER_SIZE}. */
+    private final ByteBuffer mBatchBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+    /**
+     * Batch of serialized messages. Filled in write mode, then flipped and kept in read mode while
+     * {@link #mWritePending} is set. Either {@link #mBatchBuffer}, or a heap buffer of its own for
+     * a single message too large for it, which is dropped once written.
+     */
+    private ByteBuffer mSendBuffer = mBatchBuffer;
+    private final byte[] mSerializeArray = new byte[SEND_BUFFER_SIZE];
+    private boolean mWritePending;
+    /** Message taken off a queue that did not fit in the last batch; goes first in its class. */
+    private OutgoingMessage mHeldMessage;
+
+    /** Outgoing messages, by {@link SendPriority}. Only tunneled voice may be dropped. */
+    private final Queue<OutgoingMessage> mVoiceQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<OutgoingMessage> mControlQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<OutgoingMessage> mBulkQueue = new ConcurrentLinkedQueue<>();
+    /** Set while a send task is queued on the reactor, so that bursts of messages share one. */
+    private final AtomicBoolean mSendScheduled = new AtomicBoolean();
+    private volatile long mVoiceMaxAgeNanos = Long.MAX_VALUE;
+    private volatile long mFlushDelayNanos;
+    /** Only written by the reactor thread. */
+    private volatile long mStaleVoiceDrops;
+    private long mHandshakeStart;
+    private volatile boolean mSessionResumed;
+    private volatile ConnectionStatsRecorder mStats;
+
+    /**
+     * @param mainHandler Handler to post connection state callbacks on.
+     */
+    public HumlaTCP(HumlaSSLSocketFactory socketFactory, NetworkReactor reactor,
+                    HostResolver resolver, Handler mainHandler) {
         mSocketFactory = socketFactory;
+        mReactor = reactor;
+        mResolver = resolver;
+        mMainHandler = mainHandler;
     }
 
     public void setTCPConnectionListener(TCPConnectionListener listener) {
         mListener = listener;
     }
 
+    /**
+     * Resolves the host and connects on the reactor thread.
+     * @param port The server port, or 0 to look up the host's SRV record.
+     */
     public void connect(String host, int port, boolean useTor) throws ConnectException {
         if(mRunning) throw new ConnectException("TCP connection already established!");
         mHost = host;
         mPort = port;
         mUseTor = useTor;
-        startThreads();
+        mRunning = true;
+        mReactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
     }
 
     public boolean isRunning() {
         return mRunning;
     }
 
-    public void run() {
-        mRunning = true;
-        try {
-            Log.i(TAG, "Connecting");
-
-            if(mUseTor)
-                mTCPSocket = mSocketFactory.createTorSocket(mHost, mPort, HumlaConnection.TOR_HOST, HumlaConnection.TOR_PORT);
-            else
-                mTCPSocket = mSocketFactory.createSocket(mHost, mPort);
+    private void open() {
+        if (!mRunning) return;
+        Log.i(TAG, "Connecting");
+        if (mUseTor) {
+            // The proxy handshake blocks, so it runs on the resolver thread rather than holding
+            // up the reactor. The proxy resolves the host, so that no DNS query leaves the device.
+            final String host = mHost;
+            final int port = mPort != 0 ? mPort : Constants.DEFAULT_PORT;
+            mResolver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final SocketChannel channel;
+                    try {
+                        channel = mSocketFactory.createTorChannel(host, port,
+                                HumlaConnection.TOR_HOST, HumlaConnection.TOR_PORT, TOR_TIMEOUT);
+                    } catch (final IOException e) {
+                        mReactor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                fail("Could not open a connection to the host", e);
+                            }
+                        });
+                        return;
+                    }
+                    mReactor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onTorChannelConnected(channel, host);
+                        }
+                    });
+                }
+            });
+            return;
+        }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) { // SNI support requires at least API 17
-                SSLCertificateSocketFactory scsf = (SSLCertificateSocketFactory) SSLCertificateSocketFactory.getDefault(0);
-                scsf.setHostname(mTCPSocket, mHost);
+        mResolver.resolve(mHost, mPort, new HostResolver.Callback() {
+            @Override
+            public void onResolved(final List<HostResolver.Endpoint> endpoints) {
+                mReactor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mRunning) return;
+                        mEndpoints = endpoints;
+                        mNextEndpoint = 0;
+                        startNextAttempt();
+                    }
+                });
             }
 
-            mTCPSocket.setKeepAlive(true);
-            mTCPSocket.startHandshake();
-
-            Log.v(TAG, "Started handshake");
-
-            mDataInput = new DataInputStream(mTCPSocket.getInputStream());
-            mDataOutput = new DataOutputStream(mTCPSocket.getOutputStream());
-
-            Log.v(TAG, "Now listening");
-            mConnected = true;
-
-            if(mListener != null) {
-                executeOnMainThread(new Runnable() {
+            @Override
+            public void onResolveFailed(final IOException e) {
+                mReactor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        mListener.onTCPConnectionEstablished();
+                        fail("Could not resolve the host", e);
                     }
                 });
             }
+        });
+    }
+
+    /**
+     * Starts connecting to the next endpoint, if any, and gives it
+     * {@link #CONNECTION_ATTEMPT_DELAY} before starting another alongside it (RFC 8305). An
+     * attempt that fails starts the next one right away.
+     */
+    private void startNextAttempt() {
+        while (mNextEndpoint < mEndpoints.size()) {
+            final HostResolver.Endpoint endpoint = mEndpoints.get(mNextEndpoint++);
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                final ConnectAttempt attempt = new ConnectAttempt(channel, endpoint);
+                if (channel.connect(endpoint.getAddress())) {
+                    attempt.onConnected();
+                    return;
+                }
+                attempt.key = mReactor.register(channel, SelectionKey.OP_CONNECT, attempt);
+                mAttempts.add(attempt);
+                final int started = mNextEndpoint;
+                mReactor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Only if nothing connected or failed over in the meantime.
+                        if (mRunning && mChannel == null && mNextEndpoint == started) {
+                            startNextAttempt();
+                        }
+                    }
+                }, CONNECTION_ATTEMPT_DELAY);
+                return;
+            } catch (IOException e) {
+                Log.d(TAG, "Could not connect to " + endpoint + ": " + e);
+                mLastConnectError = e;
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        if (mAttempts.isEmpty()) {
+            fail("Could not open a connection to the host", mLastConnectError);
+        }
+    }
 
-            while(mConnected) {
-                final short messageType = mDataInput.readShort();
-                final int messageLength = mDataInput.readInt();
-                final byte[] data = new byte[messageLength];
-                mDataInput.readFully(data);
+    /**
+     * Takes over the channel the Tor proxy connected, unless disconnected in the meantime.
+     */
+    private void onTorChannelConnected(SocketChannel channel, String host) {
+        try {
+            if (!mRunning) {
+                channel.close();
+                return;
+            }
+            channel.configureBlocking(false);
+            onChannelConnected(channel, null, host);
+        } catch (IOException e) {
+            fail("Could not open a connection to the host", e);
+        }
+    }
 
-                if (messageType < 0 || messageType > (HumlaTCPMessageType.values().length - 1)) {
-                    Log.w(TAG, "Got unsupported messageType: " + messageType);
-                    continue;
+    /**
+     * Takes over the first channel to connect and starts the TLS handshake on it.
+     * @param key The channel's key if it is already registered, or null.
+     */
+    private void onChannelConnected(SocketChannel channel, SelectionKey key, String host)
+            throws IOException {
+        for (ConnectAttempt attempt : mAttempts) {
+            if (attempt.channel != channel) attempt.cancel();
+        }
+        mAttempts.clear();
+        mChannel = channel;
+        mRemoteAddress = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        Log.v(TAG, "Connected to " + mRemoteAddress + ", started handshake");
+        mChannel.socket().setKeepAlive(true);
+        mChannel.socket().setTcpNoDelay(true);
+        mChannel.socket().setSendBufferSize(SOCKET_SEND_BUFFER_SIZE);
+        mHandshakeStart = System.currentTimeMillis();
+        mTLS = new TLSChannel(mChannel, mSocketFactory.createSSLEngine(host, mRemoteAddress.getPort()), mStats);
+        if (key != null) {
+            key.attach(this);
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            mKey = key;
+        } else {
+            mKey = mReactor.register(mChannel, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            boolean readable = key.isReadable();
+            if (!mConnected) {
+                if (!mTLS.handshake()) {
+                    updateInterest();
+                    return;
                 }
+                onConnected();
+                // The server's first messages may have arrived with the end of the handshake.
+                readable = true;
+            }
 
-                final HumlaTCPMessageType tcpMessageType = HumlaTCPMessageType.values()[messageType];
-                if (mListener != null) {
-                    executeOnMainThread(new Runnable() {
+            if (readable) {
+                receive();
+            }
+            drainSendQueue(true);
+            updateInterest();
+        } catch (SocketException e) {
+            fail("Could not open a connection to the host", e);
+        } catch (SSLHandshakeException e) {
+            // Try and verify certificate manually.
+            final X509Certificate[] chain = mSocketFactory.getServerChain();
+            if (chain != null && mListener != null) {
+                if (mRunning) {
+                    mMainHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            mListener.onTCPMessageReceived(tcpMessageType, messageLength, data);
+                            mListener.onTLSHandshakeFailed(chain);
                         }
                     });
                 }
-            }
-        } catch (SocketException e) {
-            error("Could not open a connection to the host", e);
-        } catch (SSLHandshakeException e) {
-            // Try and verify certificate manually.
-            if(mSocketFactory.getServerChain() != null && mListener != null) {
-                if(!mRunning) return;
-                executeOnMainThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mListener.onTLSHandshakeFailed(mSocketFactory.getServerChain());
-                    }
-                });
+                close();
             } else {
-                error("Could not verify host certificate", e);
+                fail("The TLS handshake with the host failed", e);
             }
         } catch (IOException e) {
-            error("An error occurred when communicating with the host", e);
-        } finally {
-            mConnected = false;
-            try {
-                if (mDataInput != null) mDataInput.close();
-                if (mDataOutput != null) mDataOutput.close();
-                if (mTCPSocket != null) mTCPSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            mRunning = false;
+            fail("An error occurred when communicating with the host", e);
+        }
+    }
 
-            executeOnMainThread(new Runnable() {
+    private void onConnected() {
+        // A resumed session was created by an earlier handshake.
+        mSessionResumed = mTLS.getEngine().getSession().getCreationTime() < mHandshakeStart;
+        Log.v(TAG, mSessionResumed ? "Now listening, TLS session resumed" : "Now listening");
+        mConnected = true;
+        if(mListener != null) {
+            mMainHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mListener.onTCPConnectionDisconnect();
+                    mListener.onTCPConnectionEstablished();
                 }
             });
-            stopThreads();
         }
     }
 
+    private void updateInterest() {
+        if (mKey == null || !mKey.isValid()) return;
+        int ops = SelectionKey.OP_READ;
+        if (mTLS.hasPendingOutput() || mWritePending) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (mKey.interestOps() != ops) {
+            mKey.interestOps(ops);
+        }
+    }
+
+    /**
+     * Decrypts what the socket has available and hands every complete message to the listener,
+     * on the reactor thread.
+     */
+    private void receive() throws IOException {
+        mTLS.read();
+        final ByteBuffer in = mTLS.getAppIn();
+        in.flip();
+        int needed = 0;
+        while (in.remaining() >= HEADER_SIZE) {
+            final int position = in.position();
+            final short messageType = in.getShort(position);
+            final int messageLength = in.getInt(position + 2);
+            if (messageLength < 0 || messageLength > MAX_MESSAGE_SIZE) {
+                throw new IOException("Invalid message length " + messageLength);
+            }
+            if (in.remaining() < HEADER_SIZE + messageLength) {
+                needed = HEADER_SIZE + messageLength;
+                break;
+            }
+            in.position(position + HEADER_SIZE);
+            final byte[] data = new byte[messageLength];
+            in.get(data);
+            final ConnectionStatsRecorder stats = mStats;
+            if (stats != null) stats.onTCPReceived(HEADER_SIZE + messageLength);
+
+            if (messageType < 0 || messageType >= MESSAGE_TYPES.length) {
+                Log.w(TAG, "Got unsupported messageType: " + messageType);
+                continue;
+            }
+
+            if (mListener != null) {
+                mListener.onTCPMessageReceived(MESSAGE_TYPES[messageType], messageLength, data);
+            }
+        }
+        in.compact();
+        mTLS.ensureAppInCapacity(needed);
+    }
+
+    /**
+     * Sets how long tunneled voice may wait in the send queue before it is dropped as stale.
+     * @param maxAgeNanos The maximum age in nanoseconds.
+     */
+    public void setVoiceMaxAge(long maxAgeNanos) {
+        mVoiceMaxAgeNanos = maxAgeNanos;
+    }
+
+    /**
+     * Sets how long the first message of a batch may wait for more messages to share its TLS
+     * record. With no delay, only messages that queue up while the reactor is busy are batched.
+     * @param delayNanos The delay in nanoseconds.
+     */
+    public void setFlushDelay(long delayNanos) {
+        mFlushDelayNanos = delayNanos;
+    }
+
+    /**
+     * Sets the recorder to count messages and bytes in each direction on, or null for none.
+     */
+    public void setStatsRecorder(ConnectionStatsRecorder stats) {
+        mStats = stats;
+    }
+
+    /**
+     * @return The address the connection was made to, or null until connected. Null for
+     *         connections through Tor.
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return mUseTor ? null : mRemoteAddress;
+    }
+
+    /**
+     * @return Whether the TLS handshake resumed an earlier session instead of doing a full one.
+     */
+    public boolean isSessionResumed() {
+        return mSessionResumed;
+    }
+
+    /**
+     * @return The number of tunneled voice messages dropped for exceeding the maximum age.
+     */
+    public long getStaleVoiceDropCount() {
+        return mStaleVoiceDrops;
+    }
+
     /**
-     * Attempts to send a protobuf message over TCP. Thread-safe, executes on a single threaded executor.
+     * Attempts to send a protobuf message over TCP. Thread-safe, the message is written on the
+     * reactor thread.
      * @param message The message to send.
      * @param messageType The type of the message to send.
      */
-    public void sendMessage(final Message message, final HumlaTCPMessageType messageType) {
-        executeOnSendThread(new Runnable() {
-            @Override
-            public void run() {
-                if (!HumlaConnection.UNLOGGED_MESSAGES.contains(messageType))
-                    Log.v(TAG, "OUT: " + messageType);
-                try {
-                    mDataOutput.writeShort(messageType.ordinal());
-                    mDataOutput.writeInt(message.getSerializedSize());
-                    message.writeTo(mDataOutput);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    // TODO handle
-                }
-            }
-        });
+    public void sendMessage(final MessageLite message, final HumlaTCPMessageType messageType) {
+        enqueue(new OutgoingMessage(messageType, message, null, 0));
     }
+
     /**
-     * Attempts to send a protobuf message over TCP. Thread-safe, executes on a single threaded executor.
+     * Attempts to send a protobuf message over TCP. Thread-safe, the message is written on the
+     * reactor thread.
      * @param message The data to send.
      * @param length The length of the byte array.
      * @param messageType The type of the message to send.
      */
     public void sendMessage(final byte[] message, final int length, final HumlaTCPMessageType messageType) {
-        executeOnSendThread(new Runnable() {
-            @Override
-            public void run() {
-                if (!HumlaConnection.UNLOGGED_MESSAGES.contains(messageType))
-                    Log.v(TAG, "OUT: " + messageType);
+        enqueue(new OutgoingMessage(messageType, null, message, length));
+    }
+
+    private void enqueue(OutgoingMessage message) {
+        queue(message.priority).add(message);
+        if (mSendScheduled.compareAndSet(false, true)) {
+            final long delay = mFlushDelayNanos;
+            if (delay > 0) {
+                mReactor.schedule(mSendTask, delay);
+            } else {
+                mReactor.execute(mSendTask);
+            }
+        }
+    }
+
+    private final Runnable mSendTask = new Runnable() {
+        @Override
+        public void run() {
+            mSendScheduled.set(false);
+            if (!mConnected || mTLS == null) return; // Sent once the handshake completes.
+            try {
+                drainSendQueue(true);
+                updateInterest();
+            } catch (IOException e) {
+                fail("An error occurred when communicating with the host", e);
+            }
+        }
+    };
+
+    private Queue<OutgoingMessage> queue(SendPriority priority) {
+        switch (priority) {
+            case VOICE:
+                return mVoiceQueue;
+            case CONTROL:
+                return mControlQueue;
+            default:
+                return mBulkQueue;
+        }
+    }
+
+    /**
+     * Writes out queued messages until the queues are empty or the socket is full. Messages are
+     * serialized back to back into the send buffer, so that everything queued at once is sealed
+     * into as few TLS records as possible, and higher priority messages go first. Voice that has
+     * waited longer than the maximum age is dropped, as it would only add latency.
+     *
+     * A message cannot be split by another on the wire, so a large one is written a TLS record
+     * at a time instead: other channels get their turn between records, and the next batch is
+     * picked by priority again as soon as the message is out.
+     * @param yield Whether to return after each record of a large batch, leaving write interest
+     *              set to continue. Otherwise writes as much as the socket accepts.
+     */
+    private void drainSendQueue(boolean yield) throws IOException {
+        if (!mConnected) return;
+        while (true) {
+            if (mWritePending) {
+                final int limit = mSendBuffer.limit();
+                mSendBuffer.limit(Math.min(limit, mSendBuffer.position() + SEND_BUFFER_SIZE));
+                final boolean written;
                 try {
-                    mDataOutput.writeShort(messageType.ordinal());
-                    mDataOutput.writeInt(length);
-                    mDataOutput.write(message, 0, length);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    written = mTLS.write(mSendBuffer);
+                } finally {
+                    mSendBuffer.limit(limit);
+                }
+                if (!written) return;
+                if (mSendBuffer.hasRemaining()) {
+                    if (yield) return;
+                    continue;
                 }
+                mWritePending = false;
+                mSendBuffer = mBatchBuffer;
             }
-        });
+
+            mSendBuffer.clear();
+            OutgoingMessage message;
+            while ((message = nextMessage()) != null) {
+                final int length = message.message != null ?
+                        message.message.getSerializedSize() : message.length;
+                final int position = mSendBuffer.position();
+                if (position > 0 && position + HEADER_SIZE + length > SEND_BUFFER_SIZE) {
+                    mHeldMessage = message;
+                    break;
+                }
+                serialize(message, length);
+            }
+            if (mSendBuffer.position() == 0) return;
+            mSendBuffer.flip();
+            mWritePending = true;
+        }
+    }
+
+    /**
+     * @return The next message to send by priority, or null if the queues are empty.
+     */
+    private OutgoingMessage nextMessage() {
+        OutgoingMessage message;
+        for (SendPriority priority : PRIORITIES) {
+            if (mHeldMessage != null && mHeldMessage.priority == priority) {
+                message = mHeldMessage;
+                mHeldMessage = null;
+                return message;
+            }
+            final Queue<OutgoingMessage> queue = queue(priority);
+            while ((message = queue.poll()) != null) {
+                if (message.type != HumlaTCPMessageType.UDPTunnel ||
+                        System.nanoTime() - message.enqueuedNanos <= mVoiceMaxAgeNanos) {
+                    return message;
+                }
+                mStaleVoiceDrops++;
+            }
+        }
+        return null;
     }
 
     /**
-     * Attempts to disconnect gracefully on the Tx thread.
-     * Disconnects interrupt the socket listening on the Tx thread, suppressing any exceptions
-     * caused by this request. Any remaining protobuf messages will be dispatched first.
+     * Appends the message with its header to the send buffer, which must be in write mode. A
+     * message that does not fit into an empty batch buffer gets a heap buffer of its own instead,
+     * so that one large message does not keep a large buffer around for the whole session.
+     */
+    private void serialize(OutgoingMessage message, int length) throws IOException {
+        if (!HumlaConnection.UNLOGGED_MESSAGES.contains(message.type))
+            Log.v(TAG, "OUT: " + message.type);
+        if (mSendBuffer.capacity() < HEADER_SIZE + length) {
+            mSendBuffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        }
+        mSendBuffer.putShort((short) message.type.ordinal());
+        mSendBuffer.putInt(length);
+        if (message.message != null && mSendBuffer.hasArray()) {
+            final int position = mSendBuffer.position();
+            final CodedOutputStream output = CodedOutputStream.newInstance(mSendBuffer.array(),
+                    mSendBuffer.arrayOffset() + position, length);
+            message.message.writeTo(output);
+            output.checkNoSpaceLeft();
+            mSendBuffer.position(position + length);
+        } else if (message.message != null) {
+            // protobuf's unsafe direct buffer encoder is unsupported on Android, so encode on the
+            // heap and copy. Messages in the batch buffer always fit mSerializeArray.
+            final CodedOutputStream output = CodedOutputStream.newInstance(mSerializeArray, 0, length);
+            message.message.writeTo(output);
+            output.checkNoSpaceLeft();
+            mSendBuffer.put(mSerializeArray, 0, length);
+        } else {
+            mSendBuffer.put(message.data, 0, message.length);
+        }
+        final ConnectionStatsRecorder stats = mStats;
+        if (stats != null) {
+            stats.onTCPSent(HEADER_SIZE + length);
+            stats.onTCPQueueDelay(message.priority, System.nanoTime() - message.enqueuedNanos);
+        }
+    }
+
+    /**
+     * Attempts to disconnect gracefully on the reactor thread. Messages queued before the call are
+     * written first, as far as the socket accepts them without blocking.
      *
      * Suppresses all future errors on this connection.
      */
@@ -222,20 +662,37 @@ public class HumlaTCP extends HumlaNetworkThread {
         if (!mRunning) return;
 
         mRunning = false;
-        executeOnSendThread(new Runnable() {
+        mReactor.execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    if (mTCPSocket != null)
-                        mTCPSocket.close();
+                    drainSendQueue(false);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    // Closing anyway.
                 }
+                close();
             }
         });
 
         if(mListener != null) {
-            executeOnMainThread(new Runnable() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onTCPConnectionDisconnect();
+                }
+            });
+        }
+    }
+
+    /**
+     * Reports the error, unless the connection was already being shut down, and closes.
+     */
+    private void fail(String desc, Exception e) {
+        final boolean wasRunning = mRunning;
+        error(desc, e);
+        close();
+        if (wasRunning) {
+            mMainHandler.post(new Runnable() {
                 @Override
                 public void run() {
                     mListener.onTCPConnectionDisconnect();
@@ -244,13 +701,35 @@ public class HumlaTCP extends HumlaNetworkThread {
         }
     }
 
+    /**
+     * Closes the channel. Only called on the reactor thread.
+     */
+    private void close() {
+        mRunning = false;
+        mConnected = false;
+        for (ConnectAttempt attempt : mAttempts) {
+            attempt.cancel();
+        }
+        mAttempts.clear();
+        if (mKey != null) mKey.cancel();
+        if (mTLS != null) {
+            mTLS.close();
+        } else if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private void error(String desc, Exception e) {
         if (!mRunning)
             return; // Don't handle errors post-disconnection.
         final HumlaException ce = new HumlaException(desc, e,
                 HumlaException.HumlaDisconnectReason.CONNECTION_ERROR);
         if(mListener != null)
-            executeOnMainThread(new Runnable() {
+            mMainHandler.post(new Runnable() {
                 @Override
                 public void run() {
                     mListener.onTCPConnectionFailed(ce);
@@ -258,6 +737,72 @@ public class HumlaTCP extends HumlaNetworkThread {
             });
     }
 
+    /**
+     * A connection attempt to one endpoint, racing the others until one of them connects.
+     */
+    private final class ConnectAttempt implements NetworkReactor.ChannelHandler {
+        final SocketChannel channel;
+        final HostResolver.Endpoint endpoint;
+        SelectionKey key;
+
+        ConnectAttempt(SocketChannel channel, HostResolver.Endpoint endpoint) {
+            this.channel = channel;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                if (!channel.finishConnect()) return;
+            } catch (IOException e) {
+                Log.d(TAG, "Could not connect to " + endpoint + ": " + e);
+                mLastConnectError = e;
+                cancel();
+                mAttempts.remove(this);
+                startNextAttempt();
+                return;
+            }
+            onConnected();
+        }
+
+        void onConnected() {
+            try {
+                onChannelConnected(channel, key, endpoint.getHost());
+            } catch (IOException e) {
+                fail("Could not open a connection to the host", e);
+            }
+        }
+
+        void cancel() {
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    private static final class OutgoingMessage {
+        final HumlaTCPMessageType type;
+        final SendPriority priority;
+        final MessageLite message;
+        final byte[] data;
+        final int length;
+        final long enqueuedNanos = System.nanoTime();
+
+        OutgoingMessage(HumlaTCPMessageType type, MessageLite message, byte[] data, int length) {
+            this.type = type;
+            this.priority = SendPriority.of(type);
+            this.message = message;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Receives connection events on the main thread, and messages on the reactor thread.
+     */
     public interface TCPConnectionListener {
         public void onTCPConnectionEstablished();
         public void onTLSHandshakeFailed(X509Certificate[] chain);
@@ -24,10 +24,11 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -36,141 +37,264 @@ import javax.crypto.ShortBufferException;
 /**
  * Class to maintain and receive packets from the UDP connection to a Mumble server.
  * Public interface is not thread safe.
+ *
+ * The datagram channel is non-blocking and serviced by the connection's {@link NetworkReactor},
+ * which both receives and sends; no thread is dedicated to UDP.
  */
-public class HumlaUDP implements Runnable {
+public class HumlaUDP implements NetworkReactor.ChannelHandler {
     private static final String TAG = HumlaUDP.class.getName();
 
-    private static final int BUFFER_SIZE = 2048;
+    public static final int BUFFER_SIZE = 2048;
+    /** Default number of outgoing datagrams that can be queued, about a second of voice. */
+    public static final int DEFAULT_SEND_QUEUE_DEPTH = 64;
+    /** Datagrams received per readiness event at most, so that TCP gets its turn in bursts. */
+    private static final int RECEIVE_BATCH = 32;
     private final CryptState mCryptState;
 
-    private DatagramSocket mUDPSocket;
+    private final NetworkReactor mReactor;
     private UDPConnectionListener mListener;
-    private String mHost;
-    private int mPort;
-    private InetAddress mResolvedHost;
-    private boolean mConnected;
+    private InetSocketAddress mAddress;
+    private volatile boolean mConnected;
 
-    /** Main datagram thread hosting this runnable. */
-    private final Thread mDatagramThread;
+    // Only touched on the reactor thread
+    private DatagramChannel mChannel;
+    private SelectionKey mKey;
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] mReceiveData = new byte[BUFFER_SIZE];
+    private final ByteBuffer mSendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 
-    /** Handler to invoke listener callback invocations on. */
+    /** Handler to invoke non-audio listener callback invocations on. */
     private final Handler mCallbackHandler;
 
-    /** Unbounded queue of outgoing packets to be sent. */
-    private final BlockingQueue<DatagramPacket> mSendQueue;
+    /** Voice datagrams dispatched, and the time from socket receive until dispatch returned. */
+    private volatile long mVoiceDispatchCount;
+    private volatile long mVoiceDispatchTotalNanos;
+    private volatile long mVoiceDispatchMaxNanos;
+
+    /** Pool that decrypted datagrams are received into. */
+    private final PacketPool mPacketPool;
+
+    /** Preallocated ring of encrypted outgoing datagrams. */
+    private final DatagramRing mSendRing;
+    private volatile long mVoiceMaxAgeNanos = Long.MAX_VALUE;
+    /** Only written by the reactor thread. */
+    private volatile long mStaleVoiceDrops;
+    /** Serializes producers, as the ring only supports one and encryption order must be kept. */
+    private final Object mSendLock = new Object();
+    /** Set while a flush of the ring is queued on the reactor, so that bursts share one wakeup. */
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private volatile ConnectionStatsRecorder mStats;
 
     /**
      * Sets up a new UDP connection context.
      * @param cryptState Cryptographic state provider.
-     * @param listener Callback target. Messages will be posted on the callback handler given.
-     * @param callbackHandler Handler to post listener invocations on.
+     * @param listener Callback target. Voice data is delivered on the reactor thread, everything
+     *                 else is posted on the callback handler given.
+     * @param callbackHandler Handler to post non-audio listener invocations on.
+     * @param packetPool Pool to receive decrypted datagrams into. Buffers must be at least
+     *                   {@link #BUFFER_SIZE} bytes.
+     * @param reactor The reactor to do socket I/O and dispatch voice on.
+     * @param sendQueueDepth The number of outgoing datagrams that can be queued before new ones
+     *                       are dropped.
      */
     public HumlaUDP(@NotNull CryptState cryptState, @NotNull UDPConnectionListener listener,
-                     @NotNull Handler callbackHandler) {
+                     @NotNull Handler callbackHandler, @NotNull PacketPool packetPool,
+                     @NotNull NetworkReactor reactor, int sendQueueDepth) {
         mCryptState = cryptState;
+        mPacketPool = packetPool;
         mListener = listener;
         mCallbackHandler = callbackHandler;
-        mDatagramThread = new Thread(this);
-        mSendQueue = new LinkedBlockingQueue<>();
+        mReactor = reactor;
+        mSendRing = new DatagramRing(sendQueueDepth, BUFFER_SIZE);
     }
 
-    public void connect(@NotNull String host, @NotNull int port) {
-        mHost = host;
-        mPort = port;
-        mDatagramThread.start();
+    /**
+     * @param address The server address, already resolved so that the reactor does not block.
+     */
+    public void connect(@NotNull InetSocketAddress address) {
+        mAddress = address;
+        mConnected = true;
+        mReactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
     }
 
     public boolean isRunning() {
         return mConnected;
     }
 
-    @Override
-    public void run() {
-        Thread outgoingConsumerThread = null;
-        mConnected = true;
+    private void open() {
+        if (!mConnected) return;
         try {
-            mResolvedHost = InetAddress.getByName(mHost);
-            mUDPSocket = new DatagramSocket();
-
-            mUDPSocket.connect(mResolvedHost, mPort);
+            mChannel = DatagramChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.connect(mAddress);
+            mKey = mReactor.register(mChannel, SelectionKey.OP_READ, this);
             Log.d(TAG, "Created socket");
+            // Anything queued while the channel was opening.
+            flushSendRing();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
 
-            // Start outgoing consumer once the UDP socket is open, as a child thread.
-            final OutgoingConsumer outgoingConsumer = new OutgoingConsumer(mUDPSocket, mSendQueue);
-            outgoingConsumerThread = new Thread(outgoingConsumer);
-            outgoingConsumerThread.start();
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                receive();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flushSendRing();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
 
-            final DatagramPacket packet = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
-            while (mConnected) {
-                mUDPSocket.receive(packet);
-                final byte[] data = packet.getData();
-                final int length = packet.getLength();
+    /**
+     * Receives, decrypts and dispatches the datagrams waiting on the socket.
+     */
+    private void receive() throws IOException {
+        for (int i = 0; i < RECEIVE_BATCH && mConnected; i++) {
+            mReceiveBuffer.clear();
+            final int length = mChannel.read(mReceiveBuffer);
+            if (length <= 0) {
+                return;
+            }
+            final long receivedNanos = System.nanoTime();
 
-                if (!mCryptState.isValid()) {
-                    Log.d(TAG, "CryptState invalid, discarding packet");
-                    continue;
-                }
-                if (length < 5) {
-                    Log.d(TAG, "Packet too short, discarding");
-                    continue;
-                }
+            if (!mCryptState.isValid()) {
+                Log.d(TAG, "CryptState invalid, discarding packet");
+                continue;
+            }
+            if (length < 5) {
+                Log.d(TAG, "Packet too short, discarding");
+                continue;
+            }
 
-                try {
-                    final byte[] buffer = mCryptState.decrypt(data, length);
+            final ConnectionStatsRecorder stats = mStats;
+            if (stats != null) stats.onUDPReceived(length);
 
-                    if (mListener != null) {
-                        if (buffer != null) {
-                            mCallbackHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mListener.onUDPDataReceived(buffer);
-                                }
-                            });
-                        } else if (mCryptState.getLastGoodElapsed() > 5000000 &&
-                                mCryptState.getLastRequestElapsed() > 5000000) {
-                            mCryptState.resetLastRequestTime();
-                            mCallbackHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mListener.resyncCryptState();
+            mReceiveBuffer.flip();
+            mReceiveBuffer.get(mReceiveData, 0, length);
+            final PooledPacket plain = mPacketPool.acquire();
+            try {
+                final int plainLength = mCryptState.decrypt(mReceiveData, 0, length, plain.getData(), 0);
+
+                if (mListener != null) {
+                    if (plainLength > 0 && isVoice(plain.getData())) {
+                        plain.setLength(plainLength);
+                        mListener.onUDPDataReceived(plain);
+                        recordVoiceDispatch(System.nanoTime() - receivedNanos);
+                    } else if (plainLength > 0) {
+                        plain.setLength(plainLength);
+                        plain.retain();
+                        mCallbackHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    mListener.onUDPDataReceived(plain);
+                                } finally {
+                                    plain.release();
                                 }
-                            });
-                            Log.d(TAG, "Packet failed to decrypt, discarding and requesting crypt state resync");
-                        } else {
-                            Log.d(TAG, "Packet failed to decrypt, discarding");
-                        }
+                            }
+                        });
+                    } else if (plainLength < 0 && mCryptState.getLastGoodElapsed() > 5000000 &&
+                            mCryptState.getLastRequestElapsed() > 5000000) {
+                        mCryptState.resetLastRequestTime();
+                        mCallbackHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mListener.resyncCryptState();
+                            }
+                        });
+                        Log.d(TAG, "Packet failed to decrypt, discarding and requesting crypt state resync");
+                    } else if (plainLength < 0) {
+                        Log.d(TAG, "Packet failed to decrypt, discarding");
                     }
-                } catch (BadPaddingException | IllegalBlockSizeException | ShortBufferException e) {
-                    Log.d(TAG, "Discarding packet", e);
                 }
+            } catch (BadPaddingException | IllegalBlockSizeException | ShortBufferException e) {
+                Log.d(TAG, "Discarding packet", e);
+            } finally {
+                plain.release();
             }
-        } catch (final IOException e) {
-            // If mConnected is false, then this is a user-triggered disconnection. Report no error.
-            if (mConnected) {
-                Log.d(TAG, "UDP socket closed unexpectedly");
-                mCallbackHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mListener.onUDPConnectionError(e);
-                    }
-                });
-            } else {
-                Log.d(TAG, "UDP socket closed in response to user disconnect");
-            }
-        } finally {
-            mConnected = false;
+        }
+    }
+
+    /**
+     * Reports a socket failure, unless the connection was being shut down, and closes.
+     */
+    private void fail(final IOException e) {
+        // If mConnected is false, then this is a user-triggered disconnection. Report no error.
+        if (mConnected) {
+            Log.d(TAG, "UDP socket closed unexpectedly");
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onUDPConnectionError(e);
+                }
+            });
+        } else {
+            Log.d(TAG, "UDP socket closed in response to user disconnect");
+        }
+        close();
+    }
 
-            // We want to interrupt the outgoing queue consumer thread to avoid sends after socket
-            // cleanup. Blocking shouldn't be necessary.
-            if (outgoingConsumerThread != null) {
-                outgoingConsumerThread.interrupt();
+    /**
+     * Closes the channel. Only called on the reactor thread.
+     */
+    private void close() {
+        mConnected = false;
+        if (mKey != null) mKey.cancel();
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }
+    }
 
-            // Clear the outgoing queue, in case the caller decides to reconnect with the same socket.
-            mSendQueue.clear();
+    private static boolean isVoice(byte[] data) {
+        return (data[0] >> 5 & 0x7) != HumlaUDPMessageType.UDPPing.ordinal();
+    }
 
-            mUDPSocket.close();
+    /**
+     * Only called from the reactor thread, so plain read-modify-write of the volatiles is safe.
+     */
+    private void recordVoiceDispatch(long nanos) {
+        mVoiceDispatchTotalNanos += nanos;
+        if (nanos > mVoiceDispatchMaxNanos) {
+            mVoiceDispatchMaxNanos = nanos;
         }
+        mVoiceDispatchCount++;
+    }
+
+    /**
+     * @return The number of voice datagrams dispatched to the listener.
+     */
+    public long getVoiceDispatchCount() {
+        return mVoiceDispatchCount;
+    }
+
+    /**
+     * @return The mean time in nanoseconds from a voice datagram leaving the socket until it has
+     *         been queued in the jitter buffer, or 0 if none were received.
+     */
+    public long getAverageVoiceDispatchNanos() {
+        final long count = mVoiceDispatchCount;
+        return count > 0 ? mVoiceDispatchTotalNanos / count : 0;
+    }
+
+    /**
+     * @return The worst observed socket to jitter buffer time in nanoseconds.
+     */
+    public long getMaxVoiceDispatchNanos() {
+        return mVoiceDispatchMaxNanos;
     }
 
     public void sendMessage(@NotNull final byte[] data, final int length) {
@@ -183,12 +307,23 @@ public class HumlaUDP implements Runnable {
             return;
         }
 
+        if (length + 4 > BUFFER_SIZE) {
+            Log.w(TAG, "Dropping oversized UDP message of " + length + " bytes.");
+            return;
+        }
+
         try {
-            byte[] encryptedData = mCryptState.encrypt(data, length);
-            final DatagramPacket packet = new DatagramPacket(encryptedData, encryptedData.length);
-            packet.setAddress(mResolvedHost);
-            packet.setPort(mPort);
-            mSendQueue.add(packet);
+            synchronized (mSendLock) {
+                final byte[] slot = mSendRing.claim();
+                if (slot == null) {
+                    // Outbox full; the link can't keep up, so newer audio is the one to lose.
+                    return;
+                }
+                mSendRing.publish(mCryptState.encrypt(data, 0, length, slot, 0), isVoice(data));
+            }
+            if (mFlushScheduled.compareAndSet(false, true)) {
+                mReactor.execute(mFlushTask);
+            }
         } catch (BadPaddingException e) {
             // TODO
             e.printStackTrace();
@@ -201,56 +336,108 @@ public class HumlaUDP implements Runnable {
         }
     }
 
+    /**
+     * Sets how long a voice datagram may wait in the send queue before it is dropped as stale.
+     * Pings are never dropped.
+     * @param maxAgeNanos The maximum age in nanoseconds.
+     */
+    public void setVoiceMaxAge(long maxAgeNanos) {
+        mVoiceMaxAgeNanos = maxAgeNanos;
+    }
+
+    /**
+     * Sets the recorder to count datagrams and bytes in each direction on, or null for none.
+     */
+    public void setStatsRecorder(ConnectionStatsRecorder stats) {
+        mStats = stats;
+    }
+
+    /**
+     * @return The number of voice datagrams dropped for exceeding the maximum age.
+     */
+    public long getStaleVoiceDropCount() {
+        return mStaleVoiceDrops;
+    }
+
+    /**
+     * @return The number of outgoing datagrams dropped because the send queue was full.
+     */
+    public long getSendOverflowCount() {
+        return mSendRing.getOverflowCount();
+    }
+
+    /**
+     * @return The number of outgoing datagrams waiting to be sent.
+     */
+    public int getSendQueueSize() {
+        return mSendRing.size();
+    }
+
     /**
      * Lazy, non-blocking idempotent disconnect.
      */
     public void disconnect() {
+        if (!mConnected) return;
         mConnected = false;
-        // Closing a socket will trigger an IOException on the consumer thread.
-        if (mUDPSocket != null) {
-            mUDPSocket.close();
-        }
+        mReactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
     }
 
     /**
-     * Note that all connection state related calls are made on the main thread.
-     * onUDPDataReceived is always called on the UDP receive thread.
+     * Note that all connection state related calls are made on the callback handler.
+     * onUDPDataReceived is called on the reactor thread for voice data, so that audio never
+     * waits on the main looper, and on the callback handler for pings. The packet is released
+     * once the call returns; retain it to keep it longer.
      */
     public interface UDPConnectionListener {
-        void onUDPDataReceived(byte[] data);
+        void onUDPDataReceived(PooledPacket packet);
         void onUDPConnectionError(Exception e);
         void resyncCryptState();
     }
 
-    /**
-     * Runnable that reads from a shared blocking queue, dispatching datagrams when available.
-     */
-    private static class OutgoingConsumer implements Runnable {
-        private final DatagramSocket mSocket;
-        private final BlockingQueue<DatagramPacket> mQueue;
-
-        public OutgoingConsumer(@NotNull DatagramSocket socket,
-                                @NotNull BlockingQueue<DatagramPacket> queue) {
-            mSocket = socket;
-            mQueue = queue;
-        }
-
+    private final Runnable mFlushTask = new Runnable() {
         @Override
         public void run() {
-            Log.d(TAG, "Datagram outbox consumer active");
-            boolean interrupted = false;
-            while (!interrupted) {
-                try {
-                    DatagramPacket packet = mQueue.take();
-                    mSocket.send(packet);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } catch (InterruptedException e) {
-                    // Our datagram thread interrupted us. We should stop reading.
-                    interrupted = true;
+            mFlushScheduled.set(false);
+            flushSendRing();
+        }
+    };
+
+    /**
+     * Drains the outgoing datagram ring, skipping voice that has gone stale, until it is empty or
+     * the socket buffer is full. In the latter case write readiness is requested to resume.
+     */
+    private void flushSendRing() {
+        if (mKey == null || !mKey.isValid()) return;
+        DatagramPacket packet;
+        while ((packet = mSendRing.poll()) != null) {
+            if (mSendRing.isStale(mVoiceMaxAgeNanos)) {
+                mStaleVoiceDrops++;
+                mSendRing.advance();
+                continue;
+            }
+            mSendBuffer.clear();
+            mSendBuffer.put(packet.getData(), 0, packet.getLength());
+            mSendBuffer.flip();
+            try {
+                if (mChannel.write(mSendBuffer) == 0) {
+                    mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
                 }
+                final ConnectionStatsRecorder stats = mStats;
+                if (stats != null) stats.onUDPSent(packet.getLength());
+            } catch (IOException e) {
+                // Typically an ICMP error from an earlier datagram; this one is lost either way.
+                e.printStackTrace();
             }
-            Log.d(TAG, "Datagram outbox consumer shutdown");
+            mSendRing.advance();
+        }
+        if (mKey.interestOps() != SelectionKey.OP_READ) {
+            mKey.interestOps(SelectionKey.OP_READ);
         }
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES block backend using the platform's "AES/ECB/NoPadding" JCE provider.
+ * Not thread safe; each caller that may run concurrently needs its own instance.
+ */
+public class JceBlockCipher128 implements BlockCipher128 {
+    private static final String AES_TRANSFORMATION = "AES/ECB/NoPadding";
+
+    private Cipher mEncryptCipher;
+    private Cipher mDecryptCipher;
+
+    @Override
+    public void init(byte[] key) throws GeneralSecurityException {
+        final SecretKeySpec cryptKey = new SecretKeySpec(key, "AES");
+        final Cipher encryptCipher = Cipher.getInstance(AES_TRANSFORMATION);
+        final Cipher decryptCipher = Cipher.getInstance(AES_TRANSFORMATION);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, cryptKey);
+        decryptCipher.init(Cipher.DECRYPT_MODE, cryptKey);
+        mEncryptCipher = encryptCipher;
+        mDecryptCipher = decryptCipher;
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        try {
+            mEncryptCipher.doFinal(in, inOffset, CryptState.AES_BLOCK_SIZE, out, outOffset);
+        } catch (GeneralSecurityException e) {
+            // Cannot happen for a single, correctly sized block in ECB mode.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        try {
+            mDecryptCipher.doFinal(in, inOffset, CryptState.AES_BLOCK_SIZE, out, outOffset);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "jce";
+    }
+}
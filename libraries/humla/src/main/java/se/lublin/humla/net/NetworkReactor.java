@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import android.os.Debug;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single selector thread that owns the socket I/O of a connection. The TLS control channel and the
+ * voice datagram channel are both registered here, so a connection needs one network thread, and
+ * a burst of packets costs one wakeup rather than one per thread it passes through.
+ *
+ * A reactor is single use: once shut down it cannot be started again. {@link NetworkRuntime}
+ * keeps one across connections and replaces it on restart.
+ *
+ * Channels may only be registered, and their interest ops changed, on the reactor thread. Other
+ * threads hand work over with {@link #execute(Runnable)}.
+ */
+public class NetworkReactor implements Runnable {
+    private static final String TAG = NetworkReactor.class.getName();
+
+    /**
+     * Receives readiness events for a registered channel, on the reactor thread.
+     */
+    public interface ChannelHandler {
+        void onReady(SelectionKey key);
+    }
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final int mPriority;
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    /** Delayed tasks by deadline. Only touched on the reactor thread. */
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<>();
+    private long mTimerSequence;
+    /** Set while a selector wakeup is outstanding, so that bursts of tasks only wake it once. */
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+    private volatile boolean mRunning;
+    /** CPU time of the reactor thread as of its last loop iteration, in nanoseconds. */
+    private volatile long mCpuTimeNanos;
+
+    /**
+     * @param name The name of the reactor thread.
+     * @param priority The Android thread priority to run at, see {@link Process}.
+     */
+    public NetworkReactor(String name, int priority) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this, name);
+        mPriority = priority;
+    }
+
+    public void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Stops the reactor once the tasks already queued have run, and closes every channel still
+     * registered with it.
+     */
+    public void shutdown() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the reactor thread. Tasks run in the order they were submitted.
+     */
+    public void execute(Runnable task) {
+        mTasks.add(task);
+        if (Thread.currentThread() != mThread && mWakeupPending.compareAndSet(false, true)) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the reactor thread once the delay has passed. Timers are only as precise
+     * as {@link Selector#select(long)}, i.e. about a millisecond.
+     * @param delayNanos The delay in nanoseconds.
+     */
+    public void schedule(final Runnable task, long delayNanos) {
+        final long deadline = System.nanoTime() + delayNanos;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mTimers.add(new Timer(deadline, mTimerSequence++, task));
+            }
+        });
+    }
+
+    /**
+     * @return Whether the reactor is running, i.e. has been started and has not stopped.
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return The CPU time the reactor thread has used, as of its last wakeup, in nanoseconds.
+     */
+    public long getCpuTimeNanos() {
+        return mCpuTimeNanos;
+    }
+
+    /**
+     * @return Whether the caller is running on the reactor thread.
+     */
+    public boolean isReactorThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Registers a channel with the reactor. Must be called on the reactor thread.
+     * @param channel A channel in non-blocking mode.
+     * @param ops The initial interest set.
+     * @param handler The handler to notify when the channel is ready.
+     * @return The key of the registration.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler)
+            throws ClosedChannelException {
+        return channel.register(mSelector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        // Voice is dispatched straight from this thread into the jitter buffers.
+        Process.setThreadPriority(mPriority);
+        try {
+            while (mRunning) {
+                mWakeupPending.set(false);
+                runTasks();
+                final long timeout = runTimers();
+                if (!mRunning) break;
+
+                if (!mTasks.isEmpty() || timeout == 0) {
+                    mSelector.selectNow();
+                } else if (timeout < 0) {
+                    mSelector.select();
+                } else {
+                    mSelector.select(timeout);
+                }
+
+                final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        ((ChannelHandler) key.attachment()).onReady(key);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Channel handler failed", e);
+                    }
+                }
+                mCpuTimeNanos = Debug.threadCpuTimeNanos();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Selector failed", e);
+        } finally {
+            mRunning = false;
+            for (SelectionKey key : mSelector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs the timers that are due.
+     * @return Milliseconds until the next timer is due, 0 if one is due already, or -1 if there
+     *         are none.
+     */
+    private long runTimers() {
+        Timer timer;
+        while ((timer = mTimers.peek()) != null) {
+            final long remaining = timer.deadline - System.nanoTime();
+            if (remaining > 0) {
+                // Round up, so that the timer does not fire early and spin.
+                return (remaining + 999999) / 1000000;
+            }
+            mTimers.poll();
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Reactor timer failed", e);
+            }
+        }
+        return -1;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Reactor task failed", e);
+            }
+        }
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        /** Keeps timers with the same deadline in submission order. */
+        final long sequence;
+        final Runnable task;
+
+        Timer(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            final long difference = deadline - other.deadline;
+            if (difference != 0) return difference < 0 ? -1 : 1;
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+}
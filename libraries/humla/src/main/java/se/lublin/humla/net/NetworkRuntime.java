@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The threads that connections run on, kept across connections so that reconnecting does not
+ * tear down and recreate them. Owned by the service; a connection without one creates its own.
+ *
+ * There is one thread per {@link Subsystem}: the {@link NetworkReactor} for socket I/O and
+ * incoming voice, a scheduler for pings and other timers, one that dispatches control messages
+ * to the listeners that do not want the main thread, and one for DNS lookups, which exits while
+ * idle. The CPU time each of them uses is accounted for in {@link #getCpuTimeNanos}.
+ *
+ * {@link #start()} and {@link #stop()} are idempotent, and starting again after a stop, or after
+ * the reactor failed, brings up fresh threads. Thread-safe.
+ */
+public class NetworkRuntime {
+    /** How long the resolver thread lingers after its last lookup, in seconds. */
+    private static final long RESOLVER_KEEP_ALIVE = 30;
+
+    public enum Subsystem {
+        /** Socket I/O and dispatch of incoming voice. */
+        NETWORK("HumlaNetwork", Process.THREAD_PRIORITY_URGENT_AUDIO),
+        /** Pings and connection timers. */
+        TIMER("HumlaTimer", Process.THREAD_PRIORITY_DEFAULT),
+        /** Control messages for listeners off the main thread. */
+        DISPATCH("HumlaDispatch", Process.THREAD_PRIORITY_AUDIO),
+        /** DNS lookups. */
+        RESOLVER("HumlaResolver", Process.THREAD_PRIORITY_BACKGROUND);
+
+        final String threadName;
+        final int priority;
+
+        Subsystem(String threadName, int priority) {
+            this.threadName = threadName;
+            this.priority = priority;
+        }
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final HostResolver mHostResolver;
+    /** CPU time by subsystem ordinal, of tasks that have completed and of stopped reactors. */
+    private final AtomicLongArray mCpuTime = new AtomicLongArray(Subsystem.values().length);
+
+    // Guarded by this
+    private NetworkReactor mReactor;
+    private AccountedExecutor mScheduler;
+    private AccountedExecutor mDispatchExecutor;
+    private AccountedExecutor mResolverExecutor;
+
+    public NetworkRuntime() {
+        mHostResolver = new HostResolver(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                getResolverExecutor().execute(task);
+            }
+        });
+    }
+
+    /**
+     * Starts whatever threads are not running. Replaces a reactor that has stopped, e.g. because
+     * its selector failed.
+     * @throws IOException if the reactor's selector could not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (mReactor == null || !mReactor.isRunning()) {
+            if (mReactor != null) retireReactor();
+            final NetworkReactor reactor = new NetworkReactor(Subsystem.NETWORK.threadName,
+                    Subsystem.NETWORK.priority);
+            reactor.start();
+            mReactor = reactor;
+        }
+        if (mScheduler == null) mScheduler = new AccountedExecutor(Subsystem.TIMER);
+        if (mDispatchExecutor == null) mDispatchExecutor = new AccountedExecutor(Subsystem.DISPATCH);
+    }
+
+    /**
+     * Stops all threads once their queued tasks have run. Pending timers are dropped. The
+     * channels still registered with the reactor are closed.
+     */
+    public synchronized void stop() {
+        if (mReactor != null) {
+            mReactor.shutdown();
+            retireReactor();
+        }
+        if (mScheduler != null) mScheduler.shutdown();
+        if (mDispatchExecutor != null) mDispatchExecutor.shutdown();
+        if (mResolverExecutor != null) mResolverExecutor.shutdown();
+        mScheduler = null;
+        mDispatchExecutor = null;
+        mResolverExecutor = null;
+    }
+
+    /**
+     * Stops all threads and starts fresh ones.
+     */
+    public synchronized void restart() throws IOException {
+        stop();
+        start();
+    }
+
+    /**
+     * @return The reactor, or null if the runtime is not started.
+     */
+    public synchronized NetworkReactor getReactor() {
+        return mReactor;
+    }
+
+    /**
+     * @return The scheduler for pings and timers. Rejects tasks once the runtime is stopped.
+     */
+    public synchronized ScheduledExecutorService getScheduler() {
+        if (mScheduler == null) throw new RejectedExecutionException("Network runtime not started");
+        return mScheduler;
+    }
+
+    /**
+     * @return The executor for control message listeners that do not run on the main thread.
+     *         Rejects tasks once the runtime is stopped.
+     */
+    public synchronized Executor getDispatchExecutor() {
+        if (mDispatchExecutor == null) throw new RejectedExecutionException("Network runtime not started");
+        return mDispatchExecutor;
+    }
+
+    /**
+     * @return The handler for callbacks on the main thread.
+     */
+    public Handler getMainHandler() {
+        return mMainHandler;
+    }
+
+    /**
+     * @return The resolver, whose DNS cache outlives connections and restarts.
+     */
+    public HostResolver getHostResolver() {
+        return mHostResolver;
+    }
+
+    /**
+     * @return The CPU time in nanoseconds the subsystem's threads have used since the runtime
+     *         was created. Time of tasks still running is not counted yet.
+     */
+    public long getCpuTimeNanos(Subsystem subsystem) {
+        long time = mCpuTime.get(subsystem.ordinal());
+        if (subsystem == Subsystem.NETWORK) {
+            synchronized (this) {
+                if (mReactor != null) time += mReactor.getCpuTimeNanos();
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Started on demand, as lookups are rare and the thread exits while idle.
+     */
+    private synchronized Executor getResolverExecutor() {
+        if (mResolverExecutor == null) {
+            mResolverExecutor = new AccountedExecutor(Subsystem.RESOLVER);
+            mResolverExecutor.setKeepAliveTime(RESOLVER_KEEP_ALIVE, TimeUnit.SECONDS);
+            mResolverExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mResolverExecutor;
+    }
+
+    private void retireReactor() {
+        mCpuTime.addAndGet(Subsystem.NETWORK.ordinal(), mReactor.getCpuTimeNanos());
+        mReactor = null;
+    }
+
+    /**
+     * A single thread executor that runs at the subsystem's priority and adds the CPU time of
+     * each task to the subsystem's total.
+     */
+    private final class AccountedExecutor extends ScheduledThreadPoolExecutor {
+        private final Subsystem mSubsystem;
+        private final ThreadLocal<long[]> mTaskStart = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        AccountedExecutor(final Subsystem subsystem) {
+            super(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(subsystem.priority);
+                            r.run();
+                        }
+                    }, subsystem.threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mSubsystem = subsystem;
+            setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+            setRemoveOnCancelPolicy(true);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            mTaskStart.get()[0] = Debug.threadCpuTimeNanos();
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            final long start = mTaskStart.get()[0];
+            final long end = Debug.threadCpuTimeNanos();
+            // -1 where the platform does not support thread CPU time.
+            if (start >= 0 && end >= start) {
+                mCpuTime.addAndGet(mSubsystem.ordinal(), end - start);
+            }
+        }
+    }
+}
@@ -17,14 +17,24 @@
 
 package se.lublin.humla.net;
 
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 /**
  * A {@link java.nio.ByteBuffer} based class for constructing Mumble protocol messages.
+ *
+ * Varints, floats and doubles are decoded and encoded with absolute indexing: the length of each
+ * value is worked out from its first byte (or its magnitude when writing), bounds are checked
+ * once, and the position is moved once. Heap buffers are accessed through their backing array,
+ * direct buffers through absolute gets and puts, so neither is sliced or copied. Values are never
+ * partially consumed; an underflow or overflow leaves the position where it was.
  */
 public class PacketBuffer {
     private ByteBuffer mBuffer;
+    /** Backing array of a heap buffer, or null for direct and read-only buffers. */
+    private final byte[] mArray;
+    private final int mArrayOffset;
 
     public static PacketBuffer allocate(int len) {
         return new PacketBuffer(ByteBuffer.allocate(len));
@@ -36,10 +46,17 @@ public class PacketBuffer {
 
     public PacketBuffer(ByteBuffer buffer) {
         mBuffer = buffer;
+        if (buffer.hasArray()) {
+            mArray = buffer.array();
+            mArrayOffset = buffer.arrayOffset();
+        } else {
+            mArray = null;
+            mArrayOffset = 0;
+        }
     }
 
     public PacketBuffer(byte[] data, int len) {
-        mBuffer = ByteBuffer.wrap(data);
+        this(ByteBuffer.wrap(data));
         mBuffer.limit(len);
     }
 
@@ -110,62 +127,111 @@ public class PacketBuffer {
     }
 
     public double readDouble() {
-        if (left() < 8) {
+        final int position = mBuffer.position();
+        if (mBuffer.limit() - position < 8) {
             throw new BufferUnderflowException();
         }
-
-        final long i = next() | next() << 8 | next() << 16 | next() << 24 |
-                next() << 32 | next() << 40 | next() << 48 |
-                next() << 56;
-        return i;
+        final long i = (getInt(position) & 0xFFFFFFFFL) | (long) getInt(position + 4) << 32;
+        mBuffer.position(position + 8);
+        return Double.longBitsToDouble(i);
     }
 
     public float readFloat() {
-        if (left() < 4) {
+        final int position = mBuffer.position();
+        if (mBuffer.limit() - position < 4) {
             throw new BufferUnderflowException();
         }
-
-        final int i = next() | next() << 8 | next() << 16 | next() << 24;
+        final int i = getInt(position);
+        mBuffer.position(position + 4);
         return Float.intBitsToFloat(i);
     }
 
     public long readLong() {
-        long i = 0;
-        final long v = next();
+        final int position = mBuffer.position();
+        final int limit = mBuffer.limit();
+        if (position >= limit) {
+            throw new BufferUnderflowException();
+        }
+        final int v = get(position);
 
+        // Single byte values first, as they are by far the most common.
         if ((v & 0x80) == 0x00) {
-            i = v & 0x7F;
-        } else if ((v & 0xC0) == 0x80) {
-            i = (v & 0x3F) << 8 | next();
-        } else if ((v & 0xF0) == 0xF0) {
-            final int tmp = (int) (v & 0xFC);
-            switch (tmp) {
-                case 0xF0:
-                    i = next() << 24 | next() << 16 | next() << 8 | next();
-                    break;
-                case 0xF4:
-                    i = next() << 56 | next() << 48 | next() << 40 | next() << 32 |
-                            next() << 24 | next() << 16 | next() << 8 | next();
-                    break;
-                case 0xF8:
-                    i = readLong();
-                    i = ~i;
-                    break;
-                case 0xFC:
-                    i = v & 0x03;
-                    i = ~i;
-                    break;
-                default:
-                    throw new BufferUnderflowException();
+            mBuffer.position(position + 1);
+            return v;
+        }
+        if ((v & 0xFC) == 0xFC) {
+            mBuffer.position(position + 1);
+            return ~(v & 0x03);
+        }
+        if ((v & 0xFC) == 0xF8) {
+            // Negated varint; the recursion checks its own bounds and restores on failure.
+            mBuffer.position(position + 1);
+            try {
+                return ~readLong();
+            } catch (BufferUnderflowException e) {
+                mBuffer.position(position);
+                throw e;
             }
-        } else if ((v & 0xF0) == 0xE0) {
-            i = (v & 0x0F) << 24 | next() << 16 | next() << 8 | next();
-        } else if ((v & 0xE0) == 0xC0) {
-            i = (v & 0x1F) << 16 | next() << 8 | next();
         }
+
+        final int length = varintLength(v);
+        if (limit - position < length) {
+            throw new BufferUnderflowException();
+        }
+        final long i;
+        switch (length) {
+            case 2:
+                i = (v & 0x3F) << 8 | get(position + 1);
+                break;
+            case 3:
+                i = (v & 0x1F) << 16 | get(position + 1) << 8 | get(position + 2);
+                break;
+            case 4:
+                i = (v & 0x0F) << 24 | get(position + 1) << 16 | get(position + 2) << 8 |
+                        get(position + 3);
+                break;
+            case 5:
+                i = getIntBE(position + 1) & 0xFFFFFFFFL;
+                break;
+            default:
+                i = (long) getIntBE(position + 1) << 32 | (getIntBE(position + 5) & 0xFFFFFFFFL);
+                break;
+        }
+        mBuffer.position(position + length);
         return i;
     }
 
+    /**
+     * @return The encoded length of a varint, given its first byte. Does not include the nested
+     *         varint of the negated (0xF8) form.
+     */
+    private static int varintLength(int first) {
+        if ((first & 0x80) == 0x00) return 1;
+        if ((first & 0xC0) == 0x80) return 2;
+        if ((first & 0xE0) == 0xC0) return 3;
+        if ((first & 0xF0) == 0xE0) return 4;
+        if ((first & 0xFC) == 0xF0) return 5;
+        if ((first & 0xFC) == 0xF4) return 9;
+        return 1;
+    }
+
+    /**
+     * @return The number of bytes {@link #writeLong(long)} encodes the given value to.
+     */
+    public static int varintSize(long value) {
+        if (value < 0) {
+            if (value >= -4) return 1;
+            if (~value < 0x100000000L) return 1 + varintSize(~value);
+            return 9;
+        }
+        if (value < 0x80) return 1;
+        if (value < 0x4000) return 2;
+        if (value < 0x200000) return 3;
+        if (value < 0x10000000) return 4;
+        if (value < 0x100000000L) return 5;
+        return 9;
+    }
+
     public void rewind() {
         mBuffer.rewind();
     }
@@ -176,77 +242,117 @@ public class PacketBuffer {
     }
 
     public void writeDouble(double v) {
+        final int position = reserve(8);
         final long i = Double.doubleToLongBits(v);
-        append(i & 0xFF);
-        append((i >> 8) & 0xFF);
-        append((i >> 16) & 0xFF);
-        append((i >> 24) & 0xFF);
-        append((i >> 32) & 0xFF);
-        append((i >> 40) & 0xFF);
-        append((i >> 48) & 0xFF);
-        append((i >> 56) & 0xFF);
+        putInt(position, (int) i);
+        putInt(position + 4, (int) (i >>> 32));
+        mBuffer.position(position + 8);
     }
 
     public void writeFloat(float v) {
-        final int i = Float.floatToIntBits(v);
-
-        append(i & 0xFF);
-        append((i >> 8) & 0xFF);
-        append((i >> 16) & 0xFF);
-        append((i >> 24) & 0xFF);
+        final int position = reserve(4);
+        putInt(position, Float.floatToIntBits(v));
+        mBuffer.position(position + 4);
     }
 
     public void writeLong(long value) {
+        final int size = varintSize(value);
+        int position = reserve(size);
         long i = value;
 
-        if (((i & 0x8000000000000000L) > 0) && (~i < 0x100000000L)) {
-            // Signed number.
-            i = ~i;
-            if (i <= 0x3) {
+        if (i < 0) {
+            if (i >= -4) {
                 // Shortcase for -1 to -4
-                append(0xFC | i);
+                put(position, 0xFC | (int) ~i);
+                mBuffer.position(position + 1);
                 return;
-            } else {
-                append(0xF8);
+            } else if (size < 9) {
+                // Small negative number, written as the complement of a positive one.
+                put(position++, 0xF8);
+                i = ~i;
             }
         }
 
-        if (i < 0x80) {
-            // Need top bit clear
-            append(i);
-        } else if (i < 0x4000) {
-            // Need top two bits clear
-            append((i >> 8) | 0x80);
-            append(i & 0xFF);
-        } else if (i < 0x200000) {
-            // Need top three bits clear
-            append((i >> 16) | 0xC0);
-            append((i >> 8) & 0xFF);
-            append(i & 0xFF);
-        } else if (i < 0x10000000) {
-            // Need top four bits clear
-            append((i >> 24) | 0xE0);
-            append((i >> 16) & 0xFF);
-            append((i >> 8) & 0xFF);
-            append(i & 0xFF);
-        } else if (i < 0x100000000L) {
-            // It's a full 32-bit integer.
-            append(0xF0);
-            append((i >> 24) & 0xFF);
-            append((i >> 16) & 0xFF);
-            append((i >> 8) & 0xFF);
-            append(i & 0xFF);
+        switch (size - (position - mBuffer.position())) {
+            case 1:
+                // Need top bit clear
+                put(position, (int) i);
+                break;
+            case 2:
+                // Need top two bits clear
+                put(position, (int) (i >> 8) | 0x80);
+                put(position + 1, (int) i);
+                break;
+            case 3:
+                // Need top three bits clear
+                put(position, (int) (i >> 16) | 0xC0);
+                put(position + 1, (int) (i >> 8));
+                put(position + 2, (int) i);
+                break;
+            case 4:
+                // Need top four bits clear
+                putIntBE(position, (int) i | 0xE0000000);
+                break;
+            case 5:
+                // It's a full 32-bit integer.
+                put(position, 0xF0);
+                putIntBE(position + 1, (int) i);
+                break;
+            default:
+                // It's a 64-bit value.
+                put(position, 0xF4);
+                putIntBE(position + 1, (int) (i >>> 32));
+                putIntBE(position + 5, (int) i);
+                break;
+        }
+        mBuffer.position(mBuffer.position() + size);
+    }
+
+    /**
+     * Checks that there is room for the given number of bytes.
+     * @return The current position.
+     */
+    private int reserve(int size) {
+        final int position = mBuffer.position();
+        if (mBuffer.limit() - position < size) {
+            throw new BufferOverflowException();
+        }
+        return position;
+    }
+
+    private int get(int index) {
+        return (mArray != null ? mArray[mArrayOffset + index] : mBuffer.get(index)) & 0xFF;
+    }
+
+    private void put(int index, int value) {
+        if (mArray != null) {
+            mArray[mArrayOffset + index] = (byte) value;
         } else {
-            // It's a 64-bit value.
-            append(0xF4);
-            append((i >> 56) & 0xFF);
-            append((i >> 48) & 0xFF);
-            append((i >> 40) & 0xFF);
-            append((i >> 32) & 0xFF);
-            append((i >> 24) & 0xFF);
-            append((i >> 16) & 0xFF);
-            append((i >> 8) & 0xFF);
-            append(i & 0xFF);
+            mBuffer.put(index, (byte) value);
         }
     }
+
+    /** Reads a little-endian int, as used for floats and doubles. */
+    private int getInt(int index) {
+        return get(index) | get(index + 1) << 8 | get(index + 2) << 16 | get(index + 3) << 24;
+    }
+
+    private void putInt(int index, int value) {
+        put(index, value);
+        put(index + 1, value >>> 8);
+        put(index + 2, value >>> 16);
+        put(index + 3, value >>> 24);
+    }
+
+    /** Reads a big-endian int, as used in varints. */
+    private int getIntBE(int index) {
+        return get(index) << 24 | get(index + 1) << 16 | get(index + 2) << 8 | get(index + 3);
+    }
+
+    private void putIntBE(int index, int value) {
+        put(index, value >>> 24);
+        put(index + 1, value >>> 16);
+        put(index + 2, value >>> 8);
+        put(index + 3, value);
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of fixed size {@link PooledPacket}s for the receive path.
+ *
+ * When the pool is empty a new packet is allocated and counted as a miss. Released packets are
+ * kept up to the pool's capacity and dropped beyond it, so bursts never grow it unboundedly.
+ *
+ * With leak detection enabled, each acquisition records its stack trace, and packets that are
+ * garbage collected without having been released are reported along with it.
+ */
+public class PacketPool {
+    private final int mBufferSize;
+    private final PooledPacket[] mFree;
+    private int mFreeCount;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mLeaks = new AtomicLong();
+
+    private final boolean mDetectLeaks;
+    private final ReferenceQueue<PooledPacket> mLeakQueue;
+    private final Set<LeakRecord> mLeakRecords;
+
+    /**
+     * @param capacity The maximum number of idle packets kept for reuse.
+     * @param bufferSize The size of each packet's buffer.
+     * @param detectLeaks Whether to track unreleased packets. Costs a stack trace per acquisition,
+     *                    so it should only be enabled in debug builds.
+     */
+    public PacketPool(int capacity, int bufferSize, boolean detectLeaks) {
+        mBufferSize = bufferSize;
+        mFree = new PooledPacket[capacity];
+        mDetectLeaks = detectLeaks;
+        mLeakQueue = detectLeaks ? new ReferenceQueue<PooledPacket>() : null;
+        mLeakRecords = detectLeaks ?
+                Collections.newSetFromMap(new ConcurrentHashMap<LeakRecord, Boolean>()) : null;
+    }
+
+    /**
+     * Borrows a packet with a single reference and a length of zero.
+     * @return A recycled packet, or a newly allocated one if none was idle.
+     */
+    public PooledPacket acquire() {
+        PooledPacket packet = null;
+        synchronized (this) {
+            if (mFreeCount > 0) {
+                packet = mFree[--mFreeCount];
+                mFree[mFreeCount] = null;
+            }
+        }
+
+        if (packet != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+            packet = new PooledPacket(this, new byte[mBufferSize]);
+            if (mDetectLeaks) {
+                packet.mLeakRecord = new LeakRecord(packet, mLeakQueue);
+                mLeakRecords.add(packet.mLeakRecord);
+            }
+        }
+
+        if (mDetectLeaks) {
+            reportLeaks();
+            packet.mLeakRecord.mAcquiredAt = new Throwable("Packet acquired here");
+        }
+        packet.reset();
+        return packet;
+    }
+
+    void recycle(PooledPacket packet) {
+        synchronized (this) {
+            if (mFreeCount < mFree.length) {
+                mFree[mFreeCount++] = packet;
+                return;
+            }
+        }
+
+        // Over capacity; let the packet go without flagging it as a leak.
+        if (packet.mLeakRecord != null) {
+            mLeakRecords.remove(packet.mLeakRecord);
+            packet.mLeakRecord.clear();
+        }
+    }
+
+    /**
+     * Reports packets that were garbage collected while still referenced.
+     * Called on every acquisition when leak detection is enabled.
+     */
+    public void reportLeaks() {
+        if (!mDetectLeaks) return;
+        LeakRecord record;
+        while ((record = (LeakRecord) mLeakQueue.poll()) != null) {
+            if (mLeakRecords.remove(record)) {
+                mLeaks.incrementAndGet();
+                new IllegalStateException("Pooled packet was never released",
+                        record.mAcquiredAt).printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return The number of acquisitions served from idle packets.
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return The number of acquisitions that had to allocate a new packet.
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return The number of leaked packets detected so far. Always 0 without leak detection.
+     */
+    public long getLeaks() {
+        return mLeaks.get();
+    }
+
+    /**
+     * @return The number of idle packets ready for reuse.
+     */
+    public synchronized int getIdleCount() {
+        return mFreeCount;
+    }
+
+    static final class LeakRecord extends WeakReference<PooledPacket> {
+        volatile Throwable mAcquiredAt;
+
+        LeakRecord(PooledPacket packet, ReferenceQueue<PooledPacket> queue) {
+            super(packet, queue);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted datagram buffer, usually borrowed from a {@link PacketPool}.
+ *
+ * A listener handed a packet may read it for the duration of the call. To keep it any longer it
+ * must call {@link #retain()}, and {@link #release()} once done; the buffer is recycled when the
+ * last reference is released.
+ */
+public final class PooledPacket {
+    private final PacketPool mPool;
+    private final byte[] mData;
+    private final AtomicInteger mReferences = new AtomicInteger();
+    private int mLength;
+
+    /** Leak tracking record, only set if the pool detects leaks. */
+    PacketPool.LeakRecord mLeakRecord;
+
+    PooledPacket(PacketPool pool, byte[] data) {
+        mPool = pool;
+        mData = data;
+    }
+
+    /**
+     * Wraps an existing array in an unpooled packet holding a single reference.
+     * @param data The data to wrap. Not copied.
+     * @param length The number of valid bytes in data.
+     * @return A packet whose last release simply drops it.
+     */
+    public static PooledPacket wrap(byte[] data, int length) {
+        PooledPacket packet = new PooledPacket(null, data);
+        packet.mLength = length;
+        packet.mReferences.set(1);
+        return packet;
+    }
+
+    /**
+     * @return The backing array. Only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public void setLength(int length) {
+        if (length < 0 || length > mData.length) {
+            throw new IllegalArgumentException("Invalid packet length " + length);
+        }
+        mLength = length;
+    }
+
+    /**
+     * @return The number of outstanding references.
+     */
+    public int refCount() {
+        return mReferences.get();
+    }
+
+    public PooledPacket retain() {
+        int references;
+        do {
+            references = mReferences.get();
+            if (references <= 0) {
+                throw new IllegalStateException("Packet retained after release");
+            }
+        } while (!mReferences.compareAndSet(references, references + 1));
+        return this;
+    }
+
+    /**
+     * Drops a reference, returning the buffer to its pool once none are left.
+     */
+    public void release() {
+        final int references = mReferences.decrementAndGet();
+        if (references == 0) {
+            if (mPool != null) {
+                mPool.recycle(this);
+            }
+        } else if (references < 0) {
+            mReferences.incrementAndGet();
+            throw new IllegalStateException("Packet released more often than retained");
+        }
+    }
+
+    /**
+     * Hands out a recycled packet with a single reference.
+     */
+    void reset() {
+        mLength = 0;
+        mReferences.set(1);
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import se.lublin.humla.protobuf.Mumble;
+import se.lublin.humla.protocol.HumlaTCPMessageListener;
+import se.lublin.humla.util.HumlaNetworkListener;
+
+/**
+ * Parses control messages on the network thread and routes them to the registered listeners, on
+ * the thread each listener was registered for.
+ *
+ * Routing goes through a table, rebuilt whenever a listener is added or removed, of the listeners
+ * that override the handler of each message type. A message that no listener on a thread handles
+ * is never handed to that thread, and one that nobody handles is not parsed at all.
+ */
+public class TCPMessageDispatcher {
+    private static final HumlaTCPMessageType[] TYPES = HumlaTCPMessageType.values();
+    private static final HumlaTCPMessageListener.Dispatch[] DISPATCHES =
+            HumlaTCPMessageListener.Dispatch.values();
+    private static final HumlaTCPMessageListener[] NO_LISTENERS = new HumlaTCPMessageListener[0];
+    /**
+     * Messages delivered per run on a dispatch thread, so that a burst such as the initial sync
+     * does not hold the main thread for its whole length.
+     */
+    private static final int DELIVERY_BATCH = 32;
+
+    private static final Class<?>[] MESSAGE_CLASSES = new Class<?>[TYPES.length];
+    private static final Parser<?>[] PARSERS = new Parser<?>[TYPES.length];
+
+    static {
+        put(HumlaTCPMessageType.Version, Mumble.Version.class, Mumble.Version.parser());
+        put(HumlaTCPMessageType.UDPTunnel, Mumble.UDPTunnel.class, Mumble.UDPTunnel.parser());
+        put(HumlaTCPMessageType.Authenticate, Mumble.Authenticate.class, Mumble.Authenticate.parser());
+        put(HumlaTCPMessageType.Ping, Mumble.Ping.class, Mumble.Ping.parser());
+        put(HumlaTCPMessageType.Reject, Mumble.Reject.class, Mumble.Reject.parser());
+        put(HumlaTCPMessageType.ServerSync, Mumble.ServerSync.class, Mumble.ServerSync.parser());
+        put(HumlaTCPMessageType.ChannelRemove, Mumble.ChannelRemove.class, Mumble.ChannelRemove.parser());
+        put(HumlaTCPMessageType.ChannelState, Mumble.ChannelState.class, Mumble.ChannelState.parser());
+        put(HumlaTCPMessageType.UserRemove, Mumble.UserRemove.class, Mumble.UserRemove.parser());
+        put(HumlaTCPMessageType.UserState, Mumble.UserState.class, Mumble.UserState.parser());
+        put(HumlaTCPMessageType.BanList, Mumble.BanList.class, Mumble.BanList.parser());
+        put(HumlaTCPMessageType.TextMessage, Mumble.TextMessage.class, Mumble.TextMessage.parser());
+        put(HumlaTCPMessageType.PermissionDenied, Mumble.PermissionDenied.class, Mumble.PermissionDenied.parser());
+        put(HumlaTCPMessageType.ACL, Mumble.ACL.class, Mumble.ACL.parser());
+        put(HumlaTCPMessageType.QueryUsers, Mumble.QueryUsers.class, Mumble.QueryUsers.parser());
+        put(HumlaTCPMessageType.CryptSetup, Mumble.CryptSetup.class, Mumble.CryptSetup.parser());
+        put(HumlaTCPMessageType.ContextActionModify, Mumble.ContextActionModify.class, Mumble.ContextActionModify.parser());
+        put(HumlaTCPMessageType.ContextAction, Mumble.ContextAction.class, Mumble.ContextAction.parser());
+        put(HumlaTCPMessageType.UserList, Mumble.UserList.class, Mumble.UserList.parser());
+        put(HumlaTCPMessageType.VoiceTarget, Mumble.VoiceTarget.class, Mumble.VoiceTarget.parser());
+        put(HumlaTCPMessageType.PermissionQuery, Mumble.PermissionQuery.class, Mumble.PermissionQuery.parser());
+        put(HumlaTCPMessageType.CodecVersion, Mumble.CodecVersion.class, Mumble.CodecVersion.parser());
+        put(HumlaTCPMessageType.UserStats, Mumble.UserStats.class, Mumble.UserStats.parser());
+        put(HumlaTCPMessageType.RequestBlob, Mumble.RequestBlob.class, Mumble.RequestBlob.parser());
+        put(HumlaTCPMessageType.ServerConfig, Mumble.ServerConfig.class, Mumble.ServerConfig.parser());
+        put(HumlaTCPMessageType.SuggestConfig, Mumble.SuggestConfig.class, Mumble.SuggestConfig.parser());
+    }
+
+    private static void put(HumlaTCPMessageType type, Class<? extends MessageLite> messageClass,
+                            Parser<? extends MessageLite> parser) {
+        MESSAGE_CLASSES[type.ordinal()] = messageClass;
+        PARSERS[type.ordinal()] = parser;
+    }
+
+    private final List<Registration> mRegistrations = new ArrayList<>();
+    /** Listeners by dispatch, then by message type. Replaced as a whole on every change. */
+    private volatile HumlaTCPMessageListener[][][] mTable;
+    private final DeliveryQueue[] mQueues = new DeliveryQueue[DISPATCHES.length];
+
+    /**
+     * @param main Runs tasks on the main thread.
+     * @param audio Runs tasks on the audio thread, in order.
+     */
+    public TCPMessageDispatcher(Executor main, Executor audio) {
+        mQueues[HumlaTCPMessageListener.Dispatch.MAIN.ordinal()] =
+                new DeliveryQueue(HumlaTCPMessageListener.Dispatch.MAIN, main);
+        mQueues[HumlaTCPMessageListener.Dispatch.AUDIO.ordinal()] =
+                new DeliveryQueue(HumlaTCPMessageListener.Dispatch.AUDIO, audio);
+        rebuildTable();
+    }
+
+    public synchronized void addListener(HumlaTCPMessageListener listener,
+                                         HumlaTCPMessageListener.Dispatch dispatch) {
+        mRegistrations.add(new Registration(listener, dispatch, handledTypes(listener)));
+        rebuildTable();
+    }
+
+    /**
+     * Unregisters the listener. Messages queued for it but not yet delivered are dropped, though
+     * one being delivered on another thread at the time may still complete.
+     */
+    public synchronized void removeListener(HumlaTCPMessageListener listener) {
+        for (int i = mRegistrations.size() - 1; i >= 0; i--) {
+            if (mRegistrations.get(i).listener == listener) {
+                mRegistrations.remove(i);
+            }
+        }
+        rebuildTable();
+    }
+
+    private void rebuildTable() {
+        final HumlaTCPMessageListener[][][] table =
+                new HumlaTCPMessageListener[DISPATCHES.length][TYPES.length][];
+        final List<HumlaTCPMessageListener> listeners = new ArrayList<>();
+        for (HumlaTCPMessageListener.Dispatch dispatch : DISPATCHES) {
+            for (HumlaTCPMessageType type : TYPES) {
+                listeners.clear();
+                for (Registration registration : mRegistrations) {
+                    if (registration.dispatch == dispatch && registration.handled[type.ordinal()]) {
+                        listeners.add(registration.listener);
+                    }
+                }
+                table[dispatch.ordinal()][type.ordinal()] = listeners.isEmpty() ?
+                        NO_LISTENERS : listeners.toArray(NO_LISTENERS);
+            }
+        }
+        mTable = table;
+    }
+
+    /**
+     * Parses the message and hands it to the listeners that handle its type. Listeners registered
+     * for {@link HumlaTCPMessageListener.Dispatch#NETWORK} are called before this returns.
+     * @param type The type of the message.
+     * @param data The serialized message.
+     * @throws InvalidProtocolBufferException If the message could not be parsed.
+     */
+    public void dispatch(HumlaTCPMessageType type, byte[] data) throws InvalidProtocolBufferException {
+        final HumlaTCPMessageListener[][][] table = mTable;
+        final int index = type.ordinal();
+        boolean handled = false;
+        for (HumlaTCPMessageListener[][] byType : table) {
+            handled |= byType[index].length > 0;
+        }
+        if (!handled) return;
+
+        final MessageLite message = parse(type, data);
+        for (HumlaTCPMessageListener.Dispatch dispatch : DISPATCHES) {
+            final HumlaTCPMessageListener[] listeners = table[dispatch.ordinal()][index];
+            if (listeners.length == 0) continue;
+            if (dispatch == HumlaTCPMessageListener.Dispatch.NETWORK) {
+                for (HumlaTCPMessageListener listener : listeners) {
+                    deliver(listener, message, type);
+                }
+            } else {
+                mQueues[dispatch.ordinal()].add(new Delivery(type, message, listeners));
+            }
+        }
+    }
+
+    /**
+     * Parses without copying bytes fields: blobs such as avatar textures are slices of the data
+     * array, and are only copied if a listener keeps them.
+     * @param type The type of the message.
+     * @param data The serialized message. Must not be modified while the message is in use.
+     * @return The parsed protobuf message.
+     * @throws InvalidProtocolBufferException If the data does not hold a message of the type.
+     */
+    public static MessageLite parse(HumlaTCPMessageType type, byte[] data) throws InvalidProtocolBufferException {
+        final Parser<?> parser = PARSERS[type.ordinal()];
+        if (parser == null) {
+            throw new InvalidProtocolBufferException("Unknown TCP data passed.");
+        }
+        final CodedInputStream input = CodedInputStream.newInstance(data);
+        input.enableAliasing(true);
+        return (MessageLite) parser.parseFrom(input);
+    }
+
+    /**
+     * Finds the message types the listener overrides a handler for. Handlers inherited from the
+     * no-op base classes do not count.
+     */
+    static boolean[] handledTypes(HumlaTCPMessageListener listener) {
+        final boolean[] handled = new boolean[TYPES.length];
+        for (Method method : HumlaTCPMessageListener.class.getMethods()) {
+            final Class<?>[] parameters = method.getParameterTypes();
+            if (parameters.length != 1) continue;
+            final int index = indexOf(parameters[0]);
+            if (index < 0) continue;
+            try {
+                final Class<?> declaring = listener.getClass()
+                        .getMethod(method.getName(), parameters).getDeclaringClass();
+                if (declaring == HumlaTCPMessageListener.Stub.class ||
+                        declaring == HumlaNetworkListener.class) {
+                    continue;
+                }
+            } catch (NoSuchMethodException e) {
+                // Implemented somewhere we cannot see; assume it is handled.
+            }
+            handled[index] = true;
+        }
+        return handled;
+    }
+
+    private static int indexOf(Class<?> messageClass) {
+        for (int i = 0; i < MESSAGE_CLASSES.length; i++) {
+            if (MESSAGE_CLASSES[i] == messageClass) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reroutes TCP messages into the various responder methods of the listener.
+     * @param listener Listener to notify.
+     * @param msg Protobuf message.
+     * @param messageType The type of the message.
+     */
+    public static void deliver(HumlaTCPMessageListener listener, MessageLite msg, HumlaTCPMessageType messageType) {
+        switch (messageType) {
+            case Authenticate:
+                listener.messageAuthenticate((Mumble.Authenticate) msg);
+                break;
+            case BanList:
+                listener.messageBanList((Mumble.BanList) msg);
+                break;
+            case Reject:
+                listener.messageReject((Mumble.Reject) msg);
+                break;
+            case ServerSync:
+                listener.messageServerSync((Mumble.ServerSync) msg);
+                break;
+            case ServerConfig:
+                listener.messageServerConfig((Mumble.ServerConfig) msg);
+                break;
+            case PermissionDenied:
+                listener.messagePermissionDenied((Mumble.PermissionDenied) msg);
+                break;
+            case UDPTunnel:
+                listener.messageUDPTunnel((Mumble.UDPTunnel) msg);
+                break;
+            case UserState:
+                listener.messageUserState((Mumble.UserState) msg);
+                break;
+            case UserRemove:
+                listener.messageUserRemove((Mumble.UserRemove) msg);
+                break;
+            case ChannelState:
+                listener.messageChannelState((Mumble.ChannelState) msg);
+                break;
+            case ChannelRemove:
+                listener.messageChannelRemove((Mumble.ChannelRemove) msg);
+                break;
+            case TextMessage:
+                listener.messageTextMessage((Mumble.TextMessage) msg);
+                break;
+            case ACL:
+                listener.messageACL((Mumble.ACL) msg);
+                break;
+            case QueryUsers:
+                listener.messageQueryUsers((Mumble.QueryUsers) msg);
+                break;
+            case Ping:
+                listener.messagePing((Mumble.Ping) msg);
+                break;
+            case CryptSetup:
+                listener.messageCryptSetup((Mumble.CryptSetup) msg);
+                break;
+            case ContextAction:
+                listener.messageContextAction((Mumble.ContextAction) msg);
+                break;
+            case ContextActionModify:
+                Mumble.ContextActionModify actionModify = (Mumble.ContextActionModify) msg;
+                if (actionModify.getOperation() == Mumble.ContextActionModify.Operation.Add)
+                    listener.messageContextActionModify(actionModify);
+                else if (actionModify.getOperation() == Mumble.ContextActionModify.Operation.Remove)
+                    listener.messageRemoveContextAction(actionModify);
+                break;
+            case Version:
+                listener.messageVersion((Mumble.Version) msg);
+                break;
+            case UserList:
+                listener.messageUserList((Mumble.UserList) msg);
+                break;
+            case PermissionQuery:
+                listener.messagePermissionQuery((Mumble.PermissionQuery) msg);
+                break;
+            case CodecVersion:
+                listener.messageCodecVersion((Mumble.CodecVersion) msg);
+                break;
+            case UserStats:
+                listener.messageUserStats((Mumble.UserStats) msg);
+                break;
+            case RequestBlob:
+                listener.messageRequestBlob((Mumble.RequestBlob) msg);
+                break;
+            case SuggestConfig:
+                listener.messageSuggestConfig((Mumble.SuggestConfig) msg);
+                break;
+            case VoiceTarget:
+                listener.messageVoiceTarget((Mumble.VoiceTarget) msg);
+                break;
+        }
+    }
+
+    private static final class Registration {
+        final HumlaTCPMessageListener listener;
+        final HumlaTCPMessageListener.Dispatch dispatch;
+        final boolean[] handled;
+
+        Registration(HumlaTCPMessageListener listener, HumlaTCPMessageListener.Dispatch dispatch,
+                     boolean[] handled) {
+            this.listener = listener;
+            this.dispatch = dispatch;
+            this.handled = handled;
+        }
+    }
+
+    private static final class Delivery {
+        final HumlaTCPMessageType type;
+        final MessageLite message;
+        final HumlaTCPMessageListener[] listeners;
+
+        Delivery(HumlaTCPMessageType type, MessageLite message, HumlaTCPMessageListener[] listeners) {
+            this.type = type;
+            this.message = message;
+            this.listeners = listeners;
+        }
+    }
+
+    /**
+     * @return Whether the listener is still registered for the type on the dispatch.
+     */
+    private boolean isRegistered(HumlaTCPMessageListener listener,
+                                 HumlaTCPMessageListener.Dispatch dispatch,
+                                 HumlaTCPMessageType type) {
+        for (HumlaTCPMessageListener registered : mTable[dispatch.ordinal()][type.ordinal()]) {
+            if (registered == listener) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Messages waiting for one dispatch thread. A burst of messages shares one task on the
+     * thread instead of posting one each. Listeners removed while a message waited are skipped.
+     */
+    private final class DeliveryQueue implements Runnable {
+        private final HumlaTCPMessageListener.Dispatch mDispatch;
+        private final Executor mExecutor;
+        private final Queue<Delivery> mDeliveries = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+        DeliveryQueue(HumlaTCPMessageListener.Dispatch dispatch, Executor executor) {
+            mDispatch = dispatch;
+            mExecutor = executor;
+        }
+
+        void add(Delivery delivery) {
+            mDeliveries.add(delivery);
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            mScheduled.set(false);
+            for (int i = 0; i < DELIVERY_BATCH; i++) {
+                final Delivery delivery = mDeliveries.poll();
+                if (delivery == null) return;
+                for (HumlaTCPMessageListener listener : delivery.listeners) {
+                    if (isRegistered(listener, mDispatch, delivery.type)) {
+                        deliver(listener, delivery.message, delivery.type);
+                    }
+                }
+            }
+            // Yield to the thread's other work before delivering the rest.
+            if (!mDeliveries.isEmpty() && mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS over a non-blocking socket channel, driven by an {@link SSLEngine} on the reactor thread.
+ *
+ * The network and application buffers are direct and reused for the lifetime of the connection.
+ * They only grow if a message or record is larger than the session's advertised sizes. None of
+ * the methods block; the caller watches {@link #hasPendingOutput()} to decide whether it needs
+ * write readiness. Not thread safe.
+ */
+class TLSChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel mChannel;
+    private final SSLEngine mEngine;
+    private final ConnectionStatsRecorder mStats;
+    /** Bytes read from the socket and not yet unwrapped. Kept in write mode. */
+    private ByteBuffer mNetIn;
+    /** Wrapped bytes not yet written to the socket. Kept in read mode. */
+    private ByteBuffer mNetOut;
+    /** Decrypted bytes not yet consumed by the caller. Kept in write mode. */
+    private ByteBuffer mAppIn;
+    private boolean mHandshakeStarted;
+    private boolean mInboundClosed;
+
+    /**
+     * @param stats The recorder to count records on, or null.
+     */
+    TLSChannel(SocketChannel channel, SSLEngine engine, ConnectionStatsRecorder stats) {
+        mChannel = channel;
+        mEngine = engine;
+        mStats = stats;
+        final SSLSession session = engine.getSession();
+        mNetIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        mNetOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        mNetOut.flip();
+        mAppIn = ByteBuffer.allocateDirect(session.getApplicationBufferSize());
+    }
+
+    SSLEngine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Advances the handshake as far as possible without blocking.
+     * @return Whether the handshake has completed.
+     */
+    boolean handshake() throws IOException {
+        if (!mHandshakeStarted) {
+            mEngine.beginHandshake();
+            mHandshakeStarted = true;
+        }
+        while (true) {
+            if (!flush()) return false;
+            switch (mEngine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                    if (!unwrap()) {
+                        if (mInboundClosed) throw new EOFException("Connection closed during handshake");
+                        return false;
+                    }
+                    break;
+                case NEED_TASK:
+                    // Certificate checks; run inline, as there is nothing else for this
+                    // connection to do until they are done.
+                    Runnable task;
+                    while ((task = mEngine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                default:
+                    return flush();
+            }
+        }
+    }
+
+    /**
+     * Reads what the socket has available and decrypts it into the application buffer.
+     * @return Whether any application data was produced.
+     * @throws EOFException If the peer closed the connection.
+     */
+    boolean read() throws IOException {
+        final int before = mAppIn.position();
+        while (unwrap() && mEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            // Post-handshake messages, such as TLS 1.3 key updates, may need a reply.
+            handshake();
+        }
+        if (mInboundClosed && mAppIn.position() == before) {
+            throw new EOFException("Connection closed by peer");
+        }
+        return mAppIn.position() > before;
+    }
+
+    /**
+     * @return The decrypted data, in write mode. The caller flips it, consumes what it can and
+     *         compacts it again.
+     */
+    ByteBuffer getAppIn() {
+        return mAppIn;
+    }
+
+    /**
+     * Grows the application buffer so that it can hold at least the given number of bytes.
+     * Must be called with the buffer in write mode.
+     */
+    void ensureAppInCapacity(int capacity) {
+        mAppIn = ensureCapacity(mAppIn, capacity);
+    }
+
+    /**
+     * Encrypts and writes the remaining bytes of the source buffer. The engine seals up to 16 KiB
+     * per record, so passing a batch of messages at once costs one record instead of one each.
+     * @return Whether everything was written. If not, the rest is kept in the source buffer and
+     *         the network buffer, and the caller should call again once the socket is writable.
+     */
+    boolean write(ByteBuffer src) throws IOException {
+        while (true) {
+            if (!flush()) return false;
+            if (!src.hasRemaining()) return true;
+            wrap(src);
+        }
+    }
+
+    /**
+     * Writes out previously encrypted data.
+     * @return Whether the network buffer is now empty.
+     */
+    boolean flush() throws IOException {
+        if (mNetOut.hasRemaining()) {
+            mChannel.write(mNetOut);
+        }
+        return !mNetOut.hasRemaining();
+    }
+
+    boolean hasPendingOutput() {
+        return mNetOut.hasRemaining();
+    }
+
+    /**
+     * Sends close_notify if possible and closes the socket.
+     */
+    void close() {
+        try {
+            mEngine.closeOutbound();
+            if (flush()) {
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Encrypts as much of the source as fits in the network buffer.
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        mNetOut.compact();
+        try {
+            while (true) {
+                final SSLEngineResult result = mEngine.wrap(src, mNetOut);
+                if (mStats != null && result.bytesProduced() > 0) {
+                    mStats.onTLSRecordSent(result.bytesProduced());
+                }
+                switch (result.getStatus()) {
+                    case OK:
+                        if (!src.hasRemaining() || result.bytesProduced() == 0) return;
+                        break;
+                    case BUFFER_OVERFLOW:
+                        if (mNetOut.position() > 0) return; // Flush before wrapping more.
+                        mNetOut = ensureCapacity(mNetOut, mEngine.getSession().getPacketBufferSize());
+                        break;
+                    case CLOSED:
+                        if (result.bytesProduced() > 0) return; // close_notify
+                        throw new SSLException("TLS session closed");
+                    default:
+                        throw new SSLException("Unexpected wrap result " + result);
+                }
+            }
+        } finally {
+            mNetOut.flip();
+        }
+    }
+
+    /**
+     * Reads from the socket and decrypts as much as possible into the application buffer,
+     * stopping early if the handshake needs to write or run a task.
+     * @return Whether any network data was consumed.
+     */
+    private boolean unwrap() throws IOException {
+        if (!mInboundClosed && mChannel.read(mNetIn) < 0) {
+            mInboundClosed = true;
+        }
+        mNetIn.flip();
+        boolean consumed = false;
+        try {
+            while (mNetIn.hasRemaining()) {
+                final SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+                if (result.bytesConsumed() > 0) {
+                    consumed = true;
+                    if (mStats != null) mStats.onTLSRecordReceived(result.bytesConsumed());
+                }
+                switch (result.getStatus()) {
+                    case OK:
+                        final SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP ||
+                                status == SSLEngineResult.HandshakeStatus.NEED_TASK ||
+                                result.bytesConsumed() == 0) {
+                            return consumed;
+                        }
+                        break;
+                    case BUFFER_OVERFLOW:
+                        mAppIn = ensureCapacity(mAppIn, mAppIn.position() +
+                                mEngine.getSession().getApplicationBufferSize());
+                        break;
+                    case BUFFER_UNDERFLOW:
+                        // Partial record; make room for the rest of it if needed.
+                        final int packetSize = mEngine.getSession().getPacketBufferSize();
+                        if (mNetIn.capacity() < packetSize) {
+                            mNetIn.compact();
+                            mNetIn = ensureCapacity(mNetIn, packetSize);
+                            mNetIn.flip();
+                        }
+                        return consumed;
+                    case CLOSED:
+                        mInboundClosed = true;
+                        return consumed;
+                }
+            }
+            return consumed;
+        } finally {
+            mNetIn.compact();
+        }
+    }
+
+    /**
+     * @param buffer A buffer in write mode.
+     * @return The buffer, or a larger direct copy of it.
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        if (buffer.capacity() >= capacity) return buffer;
+        final ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
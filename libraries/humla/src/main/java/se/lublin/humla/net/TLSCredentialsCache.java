@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the socket factory, and so the initialized {@link javax.net.ssl.SSLContext}, of each
+ * server across connections. Reconnecting then skips decoding the client certificate and setting
+ * up the trust managers, and the context's session cache lets the TLS handshake resume the
+ * previous session instead of doing a full one.
+ *
+ * Entries are keyed by the server and everything the context is built from: the certificate, its
+ * password and the trust store, including the modification time and size of the trust store file.
+ * Changing any of them, e.g. accepting a server certificate into the trust store, therefore
+ * results in a new context. Thread-safe.
+ */
+public class TLSCredentialsCache {
+    /** Number of servers to keep contexts for. */
+    private static final int MAX_ENTRIES = 8;
+
+    private final Map<Key, HumlaSSLSocketFactory> mFactories =
+            new LinkedHashMap<Key, HumlaSSLSocketFactory>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, HumlaSSLSocketFactory> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * @return The factory cached for the key, or null if there is none.
+     */
+    public synchronized HumlaSSLSocketFactory get(Key key) {
+        return mFactories.get(key);
+    }
+
+    public synchronized void put(Key key, HumlaSSLSocketFactory factory) {
+        mFactories.put(key, factory);
+    }
+
+    /**
+     * Drops all cached contexts, and with them their TLS sessions.
+     */
+    public synchronized void invalidate() {
+        mFactories.clear();
+    }
+
+    /**
+     * Identifies a server and the credentials used to connect to it.
+     */
+    public static final class Key {
+        private final Object[] mParts;
+
+        /**
+         * @param certificate PKCS12 client certificate, or null. Only its digest is kept.
+         * @param trustStorePath Path of the trust store file, or null for the system one.
+         */
+        public Key(String host, int port, byte[] certificate, String certificatePassword,
+                   String trustStorePath, String trustStorePassword, String trustStoreFormat) {
+            long trustStoreModified = 0;
+            long trustStoreLength = 0;
+            if (trustStorePath != null) {
+                final File file = new File(trustStorePath);
+                trustStoreModified = file.lastModified();
+                trustStoreLength = file.length();
+            }
+            mParts = new Object[] { host, port, digest(certificate), certificatePassword,
+                    trustStorePath, trustStorePassword, trustStoreFormat, trustStoreModified,
+                    trustStoreLength };
+        }
+
+        private static String digest(byte[] data) {
+            if (data == null) return null;
+            try {
+                final byte[] hash = MessageDigest.getInstance("SHA-1").digest(data);
+                final StringBuilder builder = new StringBuilder(hash.length * 2);
+                for (byte b : hash) {
+                    builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    builder.append(Character.forDigit(b & 0xF, 16));
+                }
+                return builder.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e); // Required on every Java and Android platform.
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(mParts, ((Key) o).mParts);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(mParts);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.security.InvalidKeyException;
+
+/**
+ * Pure-Java, table based AES-128 block backend with a preexpanded key schedule.
+ *
+ * Uses the same round table layout as Spongy Castle's AESFastEngine (four rotated 256 word tables
+ * per direction, little-endian state words), but the tables are computed once at class load
+ * instead of being embedded, and the round state is kept in locals. Once initialized, an instance
+ * can be shared between threads.
+ */
+public class TableBlockCipher128 implements BlockCipher128 {
+    private static final int ROUNDS = 10;
+    private static final int KEY_WORDS = 4 * (ROUNDS + 1);
+
+    private static final byte[] S = new byte[256];
+    private static final byte[] SI = new byte[256];
+    private static final int[] T = new int[1024];
+    private static final int[] TINV = new int[1024];
+    private static final int[] RCON = {
+            0x01, 0x02, 0x04, 0x08, 0x10, 0x20, 0x40, 0x80, 0x1b, 0x36 };
+
+    static {
+        // Generate the S-box by walking the multiplicative group of GF(2^8) with generator 3.
+        int p = 1, q = 1;
+        do {
+            p = p ^ ((p << 1) & 0xFF) ^ (((p & 0x80) != 0) ? 0x1B : 0);
+            q ^= q << 1;
+            q ^= q << 2;
+            q ^= q << 4;
+            q &= 0xFF;
+            if ((q & 0x80) != 0) q ^= 0x09;
+            int x = q ^ rotl8(q, 1) ^ rotl8(q, 2) ^ rotl8(q, 3) ^ rotl8(q, 4);
+            S[p] = (byte) (x ^ 0x63);
+        } while (p != 1);
+        S[0] = 0x63;
+
+        for (int i = 0; i < 256; i++) {
+            SI[S[i] & 0xFF] = (byte) i;
+        }
+
+        for (int i = 0; i < 256; i++) {
+            int s = S[i] & 0xFF;
+            int t = mul(s, 2) | s << 8 | s << 16 | mul(s, 3) << 24;
+            int si = SI[i] & 0xFF;
+            int tinv = mul(si, 14) | mul(si, 9) << 8 | mul(si, 13) << 16 | mul(si, 11) << 24;
+            for (int j = 0; j < 4; j++) {
+                T[(j << 8) + i] = Integer.rotateLeft(t, 8 * j);
+                TINV[(j << 8) + i] = Integer.rotateLeft(tinv, 8 * j);
+            }
+        }
+    }
+
+    private int[] mEncryptKey;
+    private int[] mDecryptKey;
+
+    @Override
+    public void init(byte[] key) throws InvalidKeyException {
+        if (key == null || key.length != CryptState.AES_BLOCK_SIZE) {
+            throw new InvalidKeyException("Key length not 128 bits.");
+        }
+
+        final int[] w = new int[KEY_WORDS];
+        for (int i = 0; i < 4; i++) {
+            w[i] = unpack(key, i * 4);
+        }
+        for (int i = 4; i < KEY_WORDS; i++) {
+            int temp = w[i - 1];
+            if ((i & 3) == 0) {
+                temp = subWord(Integer.rotateRight(temp, 8)) ^ RCON[(i >> 2) - 1];
+            }
+            w[i] = w[i - 4] ^ temp;
+        }
+
+        final int[] dw = w.clone();
+        for (int i = 4; i < KEY_WORDS - 4; i++) {
+            dw[i] = invMixColumn(dw[i]);
+        }
+
+        mEncryptKey = w;
+        mDecryptKey = dw;
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        final int[] kw = mEncryptKey;
+        int c0 = unpack(in, inOffset) ^ kw[0];
+        int c1 = unpack(in, inOffset + 4) ^ kw[1];
+        int c2 = unpack(in, inOffset + 8) ^ kw[2];
+        int c3 = unpack(in, inOffset + 12) ^ kw[3];
+
+        int k = 4;
+        for (int r = 1; r < ROUNDS; r++, k += 4) {
+            final int r0 = T[c0 & 255] ^ T[256 + ((c1 >>> 8) & 255)] ^ T[512 + ((c2 >>> 16) & 255)] ^ T[768 + (c3 >>> 24)] ^ kw[k];
+            final int r1 = T[c1 & 255] ^ T[256 + ((c2 >>> 8) & 255)] ^ T[512 + ((c3 >>> 16) & 255)] ^ T[768 + (c0 >>> 24)] ^ kw[k + 1];
+            final int r2 = T[c2 & 255] ^ T[256 + ((c3 >>> 8) & 255)] ^ T[512 + ((c0 >>> 16) & 255)] ^ T[768 + (c1 >>> 24)] ^ kw[k + 2];
+            final int r3 = T[c3 & 255] ^ T[256 + ((c0 >>> 8) & 255)] ^ T[512 + ((c1 >>> 16) & 255)] ^ T[768 + (c2 >>> 24)] ^ kw[k + 3];
+            c0 = r0;
+            c1 = r1;
+            c2 = r2;
+            c3 = r3;
+        }
+
+        // The final round has no MixColumns, so it is a plain S-box lookup.
+        pack(sub(S, c0, c1, c2, c3) ^ kw[k], out, outOffset);
+        pack(sub(S, c1, c2, c3, c0) ^ kw[k + 1], out, outOffset + 4);
+        pack(sub(S, c2, c3, c0, c1) ^ kw[k + 2], out, outOffset + 8);
+        pack(sub(S, c3, c0, c1, c2) ^ kw[k + 3], out, outOffset + 12);
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        final int[] kw = mDecryptKey;
+        int k = KEY_WORDS - 4;
+        int c0 = unpack(in, inOffset) ^ kw[k];
+        int c1 = unpack(in, inOffset + 4) ^ kw[k + 1];
+        int c2 = unpack(in, inOffset + 8) ^ kw[k + 2];
+        int c3 = unpack(in, inOffset + 12) ^ kw[k + 3];
+
+        k -= 4;
+        for (int r = 1; r < ROUNDS; r++, k -= 4) {
+            final int r0 = TINV[c0 & 255] ^ TINV[256 + ((c3 >>> 8) & 255)] ^ TINV[512 + ((c2 >>> 16) & 255)] ^ TINV[768 + (c1 >>> 24)] ^ kw[k];
+            final int r1 = TINV[c1 & 255] ^ TINV[256 + ((c0 >>> 8) & 255)] ^ TINV[512 + ((c3 >>> 16) & 255)] ^ TINV[768 + (c2 >>> 24)] ^ kw[k + 1];
+            final int r2 = TINV[c2 & 255] ^ TINV[256 + ((c1 >>> 8) & 255)] ^ TINV[512 + ((c0 >>> 16) & 255)] ^ TINV[768 + (c3 >>> 24)] ^ kw[k + 2];
+            final int r3 = TINV[c3 & 255] ^ TINV[256 + ((c2 >>> 8) & 255)] ^ TINV[512 + ((c1 >>> 16) & 255)] ^ TINV[768 + (c0 >>> 24)] ^ kw[k + 3];
+            c0 = r0;
+            c1 = r1;
+            c2 = r2;
+            c3 = r3;
+        }
+
+        pack(sub(SI, c0, c3, c2, c1) ^ kw[0], out, outOffset);
+        pack(sub(SI, c1, c0, c3, c2) ^ kw[1], out, outOffset + 4);
+        pack(sub(SI, c2, c1, c0, c3) ^ kw[2], out, outOffset + 8);
+        pack(sub(SI, c3, c2, c1, c0) ^ kw[3], out, outOffset + 12);
+    }
+
+    @Override
+    public String getName() {
+        return "table";
+    }
+
+    /**
+     * Substitutes byte n of word n (for n = 0..3) through the given box into a single word.
+     */
+    private static int sub(byte[] box, int a, int b, int c, int d) {
+        return (box[a & 255] & 255)
+                | (box[(b >>> 8) & 255] & 255) << 8
+                | (box[(c >>> 16) & 255] & 255) << 16
+                | (box[d >>> 24] & 255) << 24;
+    }
+
+    private static int subWord(int x) {
+        return sub(S, x, x, x, x);
+    }
+
+    private static int invMixColumn(int x) {
+        int result = 0;
+        for (int i = 0; i < 4; i++) {
+            result ^= Integer.rotateLeft(TINV[S[(x >>> (8 * i)) & 255] & 255], 8 * i);
+        }
+        return result;
+    }
+
+    private static int rotl8(int x, int shift) {
+        return ((x << shift) | (x >>> (8 - shift))) & 0xFF;
+    }
+
+    /**
+     * Multiplies two elements of GF(2^8) modulo the AES polynomial.
+     */
+    private static int mul(int a, int b) {
+        int result = 0;
+        while (b != 0) {
+            if ((b & 1) != 0) result ^= a;
+            a <<= 1;
+            if ((a & 0x100) != 0) a ^= 0x11B;
+            b >>= 1;
+        }
+        return result;
+    }
+
+    private static int unpack(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+                | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16
+                | bytes[offset + 3] << 24;
+    }
+
+    private static void pack(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+}
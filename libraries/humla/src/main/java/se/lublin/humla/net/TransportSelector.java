@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.net;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses between UDP and the TCP tunnel for voice, based on smoothed round trip time, jitter and
+ * loss estimates of both paths.
+ *
+ * RTT and jitter are smoothed as in RFC 6298 (gains of 1/8 and 1/4). UDP loss is smoothed over
+ * unanswered pings and the lost packet counters of both crypt states. Each path is scored as
+ * {@code srtt + 4 * jitter}, plus a penalty proportional to loss for UDP. Switching away from UDP
+ * needs a clearly worse score than switching back to it, and no switch happens within
+ * {@link #MIN_DWELL_NANOS} of the last one, so that the choice does not flap.
+ *
+ * Thread safe. Times are in microseconds unless noted otherwise.
+ */
+public class TransportSelector {
+    public enum Transport { UDP, TCP }
+
+    /** Minimum time between two switches. */
+    static final long MIN_DWELL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    /** UDP samples needed before its estimates are trusted. */
+    static final int MIN_UDP_SAMPLES = 3;
+    /** Score added per unit of UDP loss, i.e. a second at 100% loss. */
+    static final double LOSS_PENALTY = 1000000;
+    /** UDP loss at which voice leaves UDP regardless of latency. */
+    static final double MAX_UDP_LOSS = 0.10;
+    /** UDP loss that must be undercut before voice returns to UDP. */
+    static final double RETURN_UDP_LOSS = 0.05;
+    /** Score margins for leaving and returning to UDP. */
+    static final double LEAVE_MARGIN = 50000;
+    static final double RETURN_MARGIN = 20000;
+
+    private static final double RTT_GAIN = 1.0 / 8;
+    private static final double JITTER_GAIN = 1.0 / 4;
+    private static final double LOSS_GAIN = 1.0 / 8;
+
+    private final PathEstimate mUDP = new PathEstimate();
+    private final PathEstimate mTCP = new PathEstimate();
+    private double mUDPLoss;
+    private boolean mUDPPingOutstanding;
+    private long mUDPPingsSent;
+    private long mUDPPingsAnswered;
+
+    private int mLastGood, mLastLate, mLastLost;
+    private int mLastRemoteGood, mLastRemoteLate, mLastRemoteLost;
+
+    private Transport mCurrent = Transport.UDP;
+    private long mLastSwitchNanos;
+    private int mSwitchCount;
+    private String mReason = "Initial";
+
+    public TransportSelector(long nowNanos) {
+        mLastSwitchNanos = nowNanos;
+    }
+
+    /**
+     * Records that a UDP ping was sent. A previous ping still unanswered counts as lost.
+     */
+    public synchronized void onUDPPingSent() {
+        if (mUDPPingOutstanding) {
+            addUDPLossSample(1);
+        }
+        mUDPPingOutstanding = true;
+        mUDPPingsSent++;
+    }
+
+    public synchronized void onUDPPingReply(long rtt) {
+        if (mUDPPingOutstanding) {
+            mUDPPingOutstanding = false;
+            addUDPLossSample(0);
+        }
+        mUDPPingsAnswered++;
+        mUDP.addSample(rtt);
+    }
+
+    public synchronized void onTCPPingReply(long rtt) {
+        mTCP.addSample(rtt);
+    }
+
+    /**
+     * Feeds the cumulative UDP counters of the local and remote crypt states.
+     * Loss is taken from the growth since the previous call.
+     */
+    public synchronized void onCryptCounters(int good, int late, int lost,
+                                             int remoteGood, int remoteLate, int remoteLost) {
+        addCounterSample(good - mLastGood, late - mLastLate, lost - mLastLost);
+        addCounterSample(remoteGood - mLastRemoteGood, remoteLate - mLastRemoteLate,
+                remoteLost - mLastRemoteLost);
+        mLastGood = good;
+        mLastLate = late;
+        mLastLost = lost;
+        mLastRemoteGood = remoteGood;
+        mLastRemoteLate = remoteLate;
+        mLastRemoteLost = remoteLost;
+    }
+
+    private void addCounterSample(int good, int late, int lost) {
+        final int total = good + late + lost;
+        if (total > 0 && lost >= 0) {
+            addUDPLossSample((double) lost / total);
+        }
+    }
+
+    private void addUDPLossSample(double loss) {
+        mUDPLoss += LOSS_GAIN * (loss - mUDPLoss);
+    }
+
+    /**
+     * Tells the selector which transport voice is actually using, e.g. after the UDP socket failed.
+     */
+    public synchronized void setCurrent(Transport transport, String reason, long nowNanos) {
+        if (transport != mCurrent) {
+            mCurrent = transport;
+            mLastSwitchNanos = nowNanos;
+            mSwitchCount++;
+            mReason = reason;
+        }
+    }
+
+    /**
+     * Decides which transport voice should use, switching if the estimates clearly favour the
+     * other one and the last switch is long enough ago.
+     * @return The chosen transport.
+     */
+    public synchronized Transport evaluate(long nowNanos) {
+        if (nowNanos - mLastSwitchNanos < MIN_DWELL_NANOS) {
+            return mCurrent;
+        }
+
+        final double udpScore = getUDPScore();
+        final double tcpScore = mTCP.samples > 0 ? mTCP.getScore() : Double.NaN;
+        if (mCurrent == Transport.UDP) {
+            if (mUDPLoss > MAX_UDP_LOSS) {
+                setCurrent(Transport.TCP, String.format(Locale.US, "UDP loss %.0f%% above %.0f%%",
+                        mUDPLoss * 100, MAX_UDP_LOSS * 100), nowNanos);
+            } else if (mUDP.samples >= MIN_UDP_SAMPLES && !Double.isNaN(tcpScore)
+                    && udpScore > tcpScore + LEAVE_MARGIN) {
+                setCurrent(Transport.TCP, String.format(Locale.US, "UDP score %.0fms worse than TCP %.0fms",
+                        udpScore / 1000, tcpScore / 1000), nowNanos);
+            }
+        } else if (mUDP.samples >= MIN_UDP_SAMPLES && mUDPLoss < RETURN_UDP_LOSS
+                && (Double.isNaN(tcpScore) || udpScore < tcpScore + RETURN_MARGIN)) {
+            setCurrent(Transport.UDP, String.format(Locale.US, "UDP score %.0fms, loss %.0f%%",
+                    udpScore / 1000, mUDPLoss * 100), nowNanos);
+        }
+        return mCurrent;
+    }
+
+    private double getUDPScore() {
+        return mUDP.getScore() + mUDPLoss * LOSS_PENALTY;
+    }
+
+    public synchronized Transport getCurrent() {
+        return mCurrent;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(this);
+    }
+
+    /**
+     * Smoothed RTT and jitter of one path.
+     */
+    private static final class PathEstimate {
+        double srtt;
+        double jitter;
+        int samples;
+
+        void addSample(long rtt) {
+            if (rtt < 0) return;
+            if (samples == 0) {
+                srtt = rtt;
+                jitter = rtt / 2.0;
+            } else {
+                jitter += JITTER_GAIN * (Math.abs(srtt - rtt) - jitter);
+                srtt += RTT_GAIN * (rtt - srtt);
+            }
+            samples++;
+        }
+
+        double getScore() {
+            return srtt + 4 * jitter;
+        }
+    }
+
+    /**
+     * Snapshot of the estimates and the last decision, for display and diagnostics.
+     */
+    public static final class Stats {
+        private final Transport mTransport;
+        private final String mReason;
+        private final int mSwitchCount;
+        private final double mUDPRtt, mUDPJitter, mUDPLoss;
+        private final double mTCPRtt, mTCPJitter;
+        private final int mUDPSamples, mTCPSamples;
+        private final long mUDPPingsSent, mUDPPingsAnswered;
+
+        private Stats(TransportSelector selector) {
+            mTransport = selector.mCurrent;
+            mReason = selector.mReason;
+            mSwitchCount = selector.mSwitchCount;
+            mUDPRtt = selector.mUDP.srtt;
+            mUDPJitter = selector.mUDP.jitter;
+            mUDPLoss = selector.mUDPLoss;
+            mUDPSamples = selector.mUDP.samples;
+            mTCPRtt = selector.mTCP.srtt;
+            mTCPJitter = selector.mTCP.jitter;
+            mTCPSamples = selector.mTCP.samples;
+            mUDPPingsSent = selector.mUDPPingsSent;
+            mUDPPingsAnswered = selector.mUDPPingsAnswered;
+        }
+
+        /** @return The transport voice is using. */
+        public Transport getTransport() {
+            return mTransport;
+        }
+
+        /** @return Why the current transport was chosen. */
+        public String getReason() {
+            return mReason;
+        }
+
+        public int getSwitchCount() {
+            return mSwitchCount;
+        }
+
+        /** @return Smoothed UDP round trip time in microseconds. */
+        public double getUDPRtt() {
+            return mUDPRtt;
+        }
+
+        /** @return Smoothed UDP round trip time variation in microseconds. */
+        public double getUDPJitter() {
+            return mUDPJitter;
+        }
+
+        /** @return Smoothed UDP loss ratio, from 0 to 1. */
+        public double getUDPLoss() {
+            return mUDPLoss;
+        }
+
+        public int getUDPSamples() {
+            return mUDPSamples;
+        }
+
+        /** @return Smoothed TCP round trip time in microseconds. */
+        public double getTCPRtt() {
+            return mTCPRtt;
+        }
+
+        /** @return Smoothed TCP round trip time variation in microseconds. */
+        public double getTCPJitter() {
+            return mTCPJitter;
+        }
+
+        public int getTCPSamples() {
+            return mTCPSamples;
+        }
+
+        public long getUDPPingsSent() {
+            return mUDPPingsSent;
+        }
+
+        public long getUDPPingsAnswered() {
+            return mUDPPingsAnswered;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s (%s); UDP rtt %.1fms jitter %.1fms loss %.1f%%; TCP rtt %.1fms jitter %.1fms",
+                    mTransport, mReason, mUDPRtt / 1000, mUDPJitter / 1000, mUDPLoss * 100,
+                    mTCPRtt / 1000, mTCPJitter / 1000);
+        }
+    }
+}
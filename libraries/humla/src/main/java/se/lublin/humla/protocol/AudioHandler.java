@@ -23,9 +23,12 @@ import android.media.AudioManager;
 import android.os.Build;
 import android.util.Log;
 
+import java.util.List;
+
 import se.lublin.humla.R;
 import se.lublin.humla.audio.AudioInput;
 import se.lublin.humla.audio.AudioOutput;
+import se.lublin.humla.audio.PlayoutStats;
 import se.lublin.humla.audio.encoder.CELT11Encoder;
 import se.lublin.humla.audio.encoder.CELT7Encoder;
 import se.lublin.humla.audio.encoder.IEncoder;
@@ -40,6 +43,7 @@ import se.lublin.humla.model.User;
 import se.lublin.humla.net.HumlaConnection;
 import se.lublin.humla.net.HumlaUDPMessageType;
 import se.lublin.humla.net.PacketBuffer;
+import se.lublin.humla.net.PooledPacket;
 import se.lublin.humla.protobuf.Mumble;
 import se.lublin.humla.util.HumlaLogger;
 import se.lublin.humla.util.HumlaNetworkListener;
@@ -81,9 +85,13 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
     private final IInputMode mInputMode;
     private final float mAmplitudeBoost;
 
-    private boolean mInitialized;
+    /**
+     * Cleared by shutdown() under mEncoderLock, so that message handlers on the dispatch thread
+     * that check it under the lock never act on a handler that was shut down.
+     */
+    private volatile boolean mInitialized;
     /** True if the user is muted on the server. */
-    private boolean mMuted;
+    private volatile boolean mMuted;
     private boolean mBluetoothOn;
     private boolean mHalfDuplex;
     private boolean mPreprocessorEnabled;
@@ -105,7 +113,8 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
                         int sampleRate, int targetBitrate, int targetFramesPerPacket,
                         IInputMode inputMode, byte targetId, float amplitudeBoost,
                         boolean bluetoothEnabled, boolean halfDuplexEnabled,
-                        boolean preprocessorEnabled, AudioEncodeListener encodeListener,
+                        boolean preprocessorEnabled, int jitterBuffer,
+                        AudioEncodeListener encodeListener,
                         AudioOutput.AudioOutputListener outputListener) throws AudioInitializationException, NativeAudioException {
         mContext = context;
         mLogger = logger;
@@ -128,7 +137,7 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
         mEncoderLock = new Object();
 
         mInput = new AudioInput(this, mAudioSource, mSampleRate);
-        mOutput = new AudioOutput(mOutputListener);
+        mOutput = new AudioOutput(mOutputListener, jitterBuffer);
         
         // Set initial normal gain (1.0x = no amplification)
         mInput.setInputGain(1.0f);
@@ -206,6 +215,65 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
         }
     }
 
+    /**
+     * @return The playback thread's mean time in nanoseconds to mix one output buffer.
+     */
+    public long getAverageRenderNanos() {
+        return mOutput.getAverageRenderNanos();
+    }
+
+    /**
+     * @return The playback thread's longest time in nanoseconds to mix one output buffer.
+     */
+    public long getMaxRenderNanos() {
+        return mOutput.getMaxRenderNanos();
+    }
+
+    /**
+     * @return How often a speaking user's samples were not decoded in time for playback.
+     */
+    public long getOutputUnderrunCount() {
+        return mOutput.getUnderrunCount();
+    }
+
+    /**
+     * @return The jitter buffer delay, late packets and concealed frames of every user currently
+     *         speaking.
+     */
+    public List<PlayoutStats> getPlayoutStats() {
+        return mOutput.getPlayoutStats();
+    }
+
+    /**
+     * @return The mean time in nanoseconds to get a decoder and jitter buffer for a user who
+     *         started talking.
+     */
+    public long getAverageDecoderSetupNanos() {
+        return mOutput.getAverageSetupNanos();
+    }
+
+    /**
+     * @return The mean time in nanoseconds from the first packet of a talk spurt arriving to its
+     *         first frame being decoded.
+     */
+    public long getAverageFirstFrameNanos() {
+        return mOutput.getAverageFirstFrameNanos();
+    }
+
+    /**
+     * @return The number of decoders and jitter buffers created for playback.
+     */
+    public int getDecoderCreateCount() {
+        return mOutput.getDecoderPool().getCreateCount();
+    }
+
+    /**
+     * @return The number of decoders and jitter buffers destroyed, after idling in the pool.
+     */
+    public int getDecoderDestroyCount() {
+        return mOutput.getDecoderPool().getDestroyCount();
+    }
+
     /**
      * Inject external audio data (e.g., roger beep) to be transmitted to Mumble.
      * This bypasses the microphone input and directly encodes and sends the audio.
@@ -429,6 +497,8 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
     /**
      * Sets the maximum bandwidth available for audio input as obtained from the server.
      * Adjusts the bitrate and frames per packet accordingly to meet the server's requirement.
+     * Called by initialize(), and after that by message handlers holding mEncoderLock once they
+     * checked that the handler was not shut down.
      * @param maxBandwidth The server-reported maximum bandwidth, in bps.
      */
     private void setMaxBandwidth(int maxBandwidth) throws AudioException {
@@ -453,13 +523,15 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
         }
         bitrate = Math.max(8000, bitrate);
 
-        if (bitrate != mBitrate ||
-                framesPerPacket != mFramesPerPacket) {
-            mBitrate = bitrate;
-            mFramesPerPacket = framesPerPacket;
+        synchronized (mEncoderLock) {
+            if (bitrate != mBitrate ||
+                    framesPerPacket != mFramesPerPacket) {
+                mBitrate = bitrate;
+                mFramesPerPacket = framesPerPacket;
 
-            mLogger.logInfo(mContext.getString(R.string.audio_max_bandwidth,
-                    maxBandwidth/1000, maxBandwidth/1000, framesPerPacket * 10));
+                mLogger.logInfo(mContext.getString(R.string.audio_max_bandwidth,
+                        maxBandwidth/1000, maxBandwidth/1000, framesPerPacket * 10));
+            }
         }
     }
 
@@ -495,12 +567,12 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
             mOutput.stopPlaying();
         }
         synchronized (mEncoderLock) {
+            mInitialized = false;
             if (mEncoder != null) {
                 mEncoder.destroy();
                 mEncoder = null;
             }
         }
-        mInitialized = false;
         mBluetoothOn = false;
 
         mEncodeListener.onTalkingStateChanged(false);
@@ -521,11 +593,12 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
             codec = HumlaUDPMessageType.UDPVoiceCELTAlpha;
         }
 
-        if (codec != mCodec) {
+        synchronized (mEncoderLock) {
+            // Shut down since the check above, so must not create an encoder.
+            if (!mInitialized || codec == mCodec)
+                return;
             try {
-                synchronized (mEncoderLock) {
-                    setCodec(codec);
-                }
+                setCodec(codec);
             } catch (NativeAudioException e) {
                 e.printStackTrace();
             }
@@ -534,10 +607,18 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
 
     @Override
     public void messageServerSync(Mumble.ServerSync msg) {
-        try {
-            setMaxBandwidth(msg.hasMaxBandwidth() ? msg.getMaxBandwidth() : -1);
-        } catch (AudioException e) {
-            e.printStackTrace();
+        if (!mInitialized)
+            return; // initialize() takes the bandwidth from the first ServerSync.
+
+        synchronized (mEncoderLock) {
+            // Shut down since the check above.
+            if (!mInitialized)
+                return;
+            try {
+                setMaxBandwidth(msg.hasMaxBandwidth() ? msg.getMaxBandwidth() : -1);
+            } catch (AudioException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -549,18 +630,22 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
         // Stop audio input if the user is muted, and resume if the user has set talking enabled.
         if (msg.hasSession() && msg.getSession() == mSession &&
                 (msg.hasMute() || msg.hasSelfMute() || msg.hasSuppress())) {
-            try {
-                setServerMuted(msg.getMute() || msg.getSelfMute() || msg.getSuppress());
-            } catch (AudioException e) {
-                e.printStackTrace();
+            synchronized (mEncoderLock) {
+                if (!mInitialized)
+                    return;
+                try {
+                    setServerMuted(msg.getMute() || msg.getSelfMute() || msg.getSuppress());
+                } catch (AudioException e) {
+                    e.printStackTrace();
+                }
             }
         }
     }
 
     @Override
-    public void messageVoiceData(byte[] data, HumlaUDPMessageType messageType) {
+    public void messageVoiceData(PooledPacket packet, HumlaUDPMessageType messageType) {
         synchronized (mOutput) {
-            mOutput.queueVoiceData(data, messageType);
+            mOutput.queueVoiceData(packet, messageType);
         }
     }
 
@@ -780,6 +865,7 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
         private boolean mBluetoothEnabled;
         private boolean mHalfDuplexEnabled;
         private boolean mPreprocessorEnabled;
+        private int mJitterBuffer = AudioOutput.JITTER_BUFFER_ADAPTIVE;
         private IInputMode mInputMode;
         private AudioEncodeListener mEncodeListener;
         private AudioOutput.AudioOutputListener mTalkingListener;
@@ -839,6 +925,15 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
             return this;
         }
 
+        /**
+         * @param jitterBuffer {@link AudioOutput#JITTER_BUFFER_ADAPTIVE} or
+         *                     {@link AudioOutput#JITTER_BUFFER_SPEEX}.
+         */
+        public Builder setJitterBuffer(int jitterBuffer) {
+            mJitterBuffer = jitterBuffer;
+            return this;
+        }
+
         public Builder setEncodeListener(AudioEncodeListener encodeListener) {
             mEncodeListener = encodeListener;
             return this;
@@ -862,7 +957,7 @@ public class AudioHandler extends HumlaNetworkListener implements AudioInput.Aud
             AudioHandler handler = new AudioHandler(mContext, mLogger, mAudioStream, mAudioSource,
                     mInputSampleRate, mTargetBitrate, mTargetFramesPerPacket, mInputMode, targetId,
                     mAmplitudeBoost, mBluetoothEnabled, mHalfDuplexEnabled,
-                    mPreprocessorEnabled, mEncodeListener, mTalkingListener);
+                    mPreprocessorEnabled, mJitterBuffer, mEncodeListener, mTalkingListener);
             handler.initialize(self, maxBandwidth, codec);
             return handler;
         }
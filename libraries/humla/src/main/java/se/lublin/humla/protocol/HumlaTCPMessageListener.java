@@ -20,6 +20,20 @@ package se.lublin.humla.protocol;
 import se.lublin.humla.protobuf.Mumble;
 
 public interface HumlaTCPMessageListener {
+    /**
+     * The thread a listener receives messages on, chosen when it is registered with
+     * {@link se.lublin.humla.net.HumlaConnection#addTCPMessageHandler}. Messages reach each
+     * listener in the order they arrived, but listeners on different threads run independently.
+     */
+    enum Dispatch {
+        /** The main thread. For listeners that update the model the UI reads. */
+        MAIN,
+        /** A background thread shared by the audio listeners, which may block briefly. */
+        AUDIO,
+        /** The network thread, right after parsing. Listeners must be quick and thread safe. */
+        NETWORK
+    }
+
     public void messageAuthenticate(Mumble.Authenticate msg);
     public void messageBanList(Mumble.BanList msg);
     public void messageReject(Mumble.Reject msg);
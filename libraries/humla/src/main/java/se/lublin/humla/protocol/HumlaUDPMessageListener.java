@@ -18,19 +18,23 @@
 package se.lublin.humla.protocol;
 
 import se.lublin.humla.net.HumlaUDPMessageType;
+import se.lublin.humla.net.PooledPacket;
 
 /**
+ * Receives datagram messages, from UDP or tunneled over TCP.
+ * Packets are only valid for the duration of the call; {@link PooledPacket#retain()} them to keep
+ * them longer.
  * Created by andrew on 21/01/14.
  */
 
 public interface HumlaUDPMessageListener {
 
-    public void messageUDPPing(byte[] data);
-    public void messageVoiceData(byte[] data, HumlaUDPMessageType messageType);
+    public void messageUDPPing(PooledPacket packet);
+    public void messageVoiceData(PooledPacket packet, HumlaUDPMessageType messageType);
 
     public static class Stub implements HumlaUDPMessageListener {
 
-        public void messageUDPPing(byte[] data) {}
-        public void messageVoiceData(byte[] data, HumlaUDPMessageType messageType) {}
+        public void messageUDPPing(PooledPacket packet) {}
+        public void messageVoiceData(PooledPacket packet, HumlaUDPMessageType messageType) {}
     }
 }
\ No newline at end of file
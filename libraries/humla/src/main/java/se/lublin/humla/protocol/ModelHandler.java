@@ -27,8 +27,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import se.lublin.humla.R;
+import se.lublin.humla.model.BlobCache;
 import se.lublin.humla.model.Channel;
 import se.lublin.humla.model.IServerSettings;
 import se.lublin.humla.model.Message;
@@ -54,20 +56,24 @@ public class ModelHandler extends HumlaTCPMessageListener.Stub {
     private final List<Integer> mLocalIgnoreHistory;
     private final IHumlaObserver mObserver;
     private final HumlaLogger mLogger;
+    private final BlobCache mBlobs;
     private ServerSettings mServerSettings;
     private int mPermissions;
     private int mSession;
 
     public ModelHandler(Context context, IHumlaObserver observer, HumlaLogger logger,
+                        BlobCache blobs,
                         @Nullable List<Integer> localMuteHistory,
                         @Nullable List<Integer> localIgnoreHistory) {
         mContext = context;
         mChannels = new HashMap<Integer, Channel>();
-        mUsers = new HashMap<Integer, User>();
+        // Looked up from the network thread when voice arrives.
+        mUsers = new ConcurrentHashMap<Integer, User>();
         mLocalMuteHistory = localMuteHistory;
         mLocalIgnoreHistory = localIgnoreHistory;
         mObserver = observer;
         mLogger = logger;
+        mBlobs = blobs;
     }
 
     public Channel getChannel(int id) {
@@ -147,12 +153,16 @@ public class ModelHandler extends HumlaTCPMessageListener.Stub {
 
         if(msg.hasDescriptionHash()) {
             channel.setDescriptionHash(msg.getDescriptionHash().toByteArray());
-            channel.setDescription(null);
+            // Known already if it was seen before under the same hash.
+            channel.setDescription(mBlobs.find(msg.getDescriptionHash()));
         }
 
         if(msg.hasDescription()) {
-            channel.setDescription(msg.getDescription());
-            channel.setDescriptionHash(null);
+            final BlobCache.Blob description = mBlobs.put(msg.getDescriptionBytes());
+            channel.setDescription(description);
+            // The cache key is the SHA-1 the server would send in place of the description.
+            channel.setDescriptionHash(
+                    description != null ? description.getKey().toByteArray() : null);
         }
 
         if(msg.getLinksCount() > 0) {
@@ -389,25 +399,29 @@ public class ModelHandler extends HumlaTCPMessageListener.Stub {
         if(msg.hasName())
             user.setName(msg.getName());
 
+        // Blobs go to the cache; the user only keeps a handle, and nothing is decoded until the
+        // UI asks for it.
         if (msg.hasTextureHash()) {
             user.setTextureHash(msg.getTextureHash());
-            user.setTexture(null); // clear cached texture when we receive a new hash
+            user.setTexture(mBlobs.find(msg.getTextureHash()));
         }
 
         if (msg.hasTexture()) {
-            // FIXME: is it reasonable to create a bitmap here? How expensive?
-            user.setTexture(msg.getTexture());
-            user.setTextureHash(null);
+            final BlobCache.Blob texture = mBlobs.put(msg.getTexture());
+            user.setTexture(texture);
+            // The cache key is the SHA-1 the server would send in place of the texture.
+            user.setTextureHash(texture != null ? texture.getKey() : null);
         }
 
         if(msg.hasCommentHash()) {
             user.setCommentHash(msg.getCommentHash());
-            user.setComment(null);
+            user.setComment(mBlobs.find(msg.getCommentHash()));
         }
 
         if(msg.hasComment()) {
-            user.setComment(msg.getComment());
-            user.setCommentHash(null);
+            final BlobCache.Blob comment = mBlobs.put(msg.getCommentBytes());
+            user.setComment(comment);
+            user.setCommentHash(comment != null ? comment.getKey() : null);
         }
 
         if (newUser)
@@ -18,6 +18,7 @@
 package se.lublin.humla.util;
 
 import se.lublin.humla.net.HumlaUDPMessageType;
+import se.lublin.humla.net.PooledPacket;
 import se.lublin.humla.protobuf.Mumble;
 import se.lublin.humla.protocol.HumlaTCPMessageListener;
 import se.lublin.humla.protocol.HumlaUDPMessageListener;
@@ -162,12 +163,12 @@ public class HumlaNetworkListener implements HumlaTCPMessageListener, HumlaUDPMe
     }
 
     @Override
-    public void messageUDPPing(byte[] data) {
+    public void messageUDPPing(PooledPacket packet) {
 
     }
 
     @Override
-    public void messageVoiceData(byte[] data, HumlaUDPMessageType messageType) {
+    public void messageVoiceData(PooledPacket packet, HumlaUDPMessageType messageType) {
 
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import se.lublin.humla.audio.BasicClippingShortMixer;
+import se.lublin.humla.audio.IAudioMixerSource;
+import se.lublin.humla.audio.SoftLimitingShortMixer;
+
+/**
+ * Measures mixing one output buffer of speakers, as AudioOutput does for every buffer it plays:
+ * the clipping mixer followed by a separate output gain pass, as it used to, against the soft
+ * limiting mixer, which applies the gains and limits in the same pass.
+ *
+ * Run with the JMH runner on the unit test classpath, e.g.
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main MixerBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixerBenchmark {
+    /** Samples in an output buffer, 40 ms at 48 kHz. */
+    private static final int BUFFER_SIZE = 1920;
+    private static final float OUTPUT_GAIN = 1.5f;
+
+    @Param({ "1", "2", "4", "8", "16" })
+    public int sources;
+
+    private final List<IAudioMixerSource<float[]>> mSources = new ArrayList<>();
+    private final short[] mBuffer = new short[BUFFER_SIZE];
+    private BasicClippingShortMixer mClippingMixer;
+    private SoftLimitingShortMixer mLimitingMixer;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        mSources.clear();
+        for (int s = 0; s < sources; s++) {
+            final float[] samples = new float[BUFFER_SIZE];
+            for (int i = 0; i < BUFFER_SIZE; i++) {
+                samples[i] = (random.nextFloat() * 2 - 1) * 0.5f;
+            }
+            mSources.add(new Source(samples, 0.8f + 0.1f * s));
+        }
+        mClippingMixer = new BasicClippingShortMixer();
+        mLimitingMixer = new SoftLimitingShortMixer();
+        mLimitingMixer.setGain(OUTPUT_GAIN);
+    }
+
+    @Benchmark
+    public short[] clippingThenGain() {
+        mClippingMixer.mix(mSources, mBuffer, 0, BUFFER_SIZE);
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            mBuffer[i] = (short) Math.max(Math.min(mBuffer[i] * OUTPUT_GAIN, Short.MAX_VALUE),
+                    Short.MIN_VALUE);
+        }
+        return mBuffer;
+    }
+
+    @Benchmark
+    public short[] softLimiting() {
+        mLimitingMixer.mix(mSources, mBuffer, 0, BUFFER_SIZE);
+        return mBuffer;
+    }
+
+    private static class Source implements IAudioMixerSource<float[]> {
+        private final float[] mSamples;
+        private final float mGain;
+
+        Source(float[] samples, float gain) {
+            mSamples = samples;
+            mGain = gain;
+        }
+
+        @Override
+        public float[] getSamples() {
+            return mSamples;
+        }
+
+        @Override
+        public int getNumSamples() {
+            return mSamples.length;
+        }
+
+        @Override
+        public float getGain() {
+            return mGain;
+        }
+    }
+}
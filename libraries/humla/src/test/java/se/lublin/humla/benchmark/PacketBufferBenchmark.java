@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import se.lublin.humla.net.PacketBuffer;
+
+/**
+ * Measures the {@link PacketBuffer} varint codec on the header of an Opus voice packet (session,
+ * sequence number and length/terminator), as written by AudioHandler and read by AudioOutput.
+ *
+ * Run with the JMH runner on the unit test classpath, e.g.
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main PacketBufferBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBufferBenchmark {
+    @Param({ "heap", "direct" })
+    public String buffer;
+
+    private ByteBuffer mBuffer;
+    private PacketBuffer mPacket;
+    private long mSequence = 100000;
+
+    @Setup
+    public void setUp() {
+        mBuffer = "direct".equals(buffer) ? ByteBuffer.allocateDirect(1024) : ByteBuffer.allocate(1024);
+        mPacket = new PacketBuffer(mBuffer);
+    }
+
+    @Benchmark
+    public int writeVoiceHeader() {
+        mBuffer.clear();
+        mPacket.skip(1);
+        mPacket.writeLong(42);
+        mPacket.writeLong(mSequence += 2);
+        mPacket.writeLong(120 | (1 << 13));
+        return mPacket.size();
+    }
+
+    @Benchmark
+    public void readVoiceHeader(Blackhole blackhole) {
+        mBuffer.clear();
+        mPacket.skip(1);
+        mPacket.writeLong(42);
+        mPacket.writeLong(mSequence += 2);
+        mPacket.writeLong(120 | (1 << 13));
+        mBuffer.flip();
+        mPacket.skip(1);
+        blackhole.consume(mPacket.readLong());
+        blackhole.consume(mPacket.readLong());
+        blackhole.consume(mPacket.readLong());
+    }
+
+    @Benchmark
+    public void roundTripWideValues(Blackhole blackhole) {
+        mBuffer.clear();
+        mPacket.writeLong(0x7FFFFFFFL);
+        mPacket.writeLong(0x123456789ABCL);
+        mPacket.writeLong(-5);
+        mPacket.writeDouble(Math.PI);
+        mBuffer.flip();
+        blackhole.consume(mPacket.readLong());
+        blackhole.consume(mPacket.readLong());
+        blackhole.consume(mPacket.readLong());
+        blackhole.consume(mPacket.readDouble());
+    }
+}
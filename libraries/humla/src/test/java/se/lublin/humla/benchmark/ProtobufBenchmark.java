@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.benchmark;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import se.lublin.humla.benchmark.proto.MumbleFull;
+import se.lublin.humla.protobuf.Mumble;
+
+/**
+ * Compares the lite runtime build of Mumble.proto, which the library uses, with a full runtime
+ * build of the same file, generated for the unit tests only (see build.gradle).
+ *
+ * The cold start benchmarks run once per fresh JVM and time the first parse of a server
+ * {@code Version} message, which includes loading the generated classes and, for the full
+ * runtime, building the descriptors of the whole file. The parse benchmarks measure steady
+ * state throughput on a {@code Version} and a typical {@code UserState}.
+ *
+ * Run with the JMH runner on the unit test classpath, e.g.
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main ProtobufBenchmark}.
+ */
+public class ProtobufBenchmark {
+    /** Serialized by hand, so that no message class is loaded before the measured parse. */
+    private static final byte[] VERSION = {
+            0x08, (byte) 0x84, (byte) 0x88, 0x04,   // version_v1 = 0x10404
+            0x12, 0x05, '1', '.', '4', '.', '0',    // release
+            0x1a, 0x05, 'L', 'i', 'n', 'u', 'x',    // os
+            0x22, 0x02, '6', '1',                   // os_version
+    };
+
+    /**
+     * A serialized UserState. Only the parse benchmarks use it, as building it loads the lite
+     * classes.
+     */
+    @State(Scope.Thread)
+    public static class UserState {
+        final byte[] data = Mumble.UserState.newBuilder()
+                .setSession(42)
+                .setActor(7)
+                .setName("SM0ABC")
+                .setUserId(1234)
+                .setChannelId(3)
+                .setSelfMute(false)
+                .setSelfDeaf(false)
+                .setCommentHash(ByteString.copyFrom(new byte[20]))
+                .setHash("0123456789abcdef0123456789abcdef01234567")
+                .build().toByteArray();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(20)
+    public Object coldStartVersionLite() throws InvalidProtocolBufferException {
+        return Mumble.Version.parseFrom(VERSION);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(20)
+    public Object coldStartVersionFull() throws InvalidProtocolBufferException {
+        return MumbleFull.Version.parseFrom(VERSION);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public Object parseVersionLite() throws InvalidProtocolBufferException {
+        return Mumble.Version.parseFrom(VERSION);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public Object parseVersionFull() throws InvalidProtocolBufferException {
+        return MumbleFull.Version.parseFrom(VERSION);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public Object parseUserStateLite(UserState state) throws InvalidProtocolBufferException {
+        return Mumble.UserState.parseFrom(state.data);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public Object parseUserStateFull(UserState state) throws InvalidProtocolBufferException {
+        return MumbleFull.UserState.parseFrom(state.data);
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.benchmark;
+
+import android.os.Handler;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import se.lublin.humla.net.HostResolver;
+import se.lublin.humla.net.HumlaCertificateGenerator;
+import se.lublin.humla.net.HumlaSSLSocketFactory;
+import se.lublin.humla.net.HumlaTCP;
+import se.lublin.humla.net.HumlaTCPMessageType;
+import se.lublin.humla.net.NetworkReactor;
+import se.lublin.humla.protobuf.Mumble;
+import se.lublin.humla.util.HumlaException;
+
+/**
+ * Counts the TLS records the client sends for the same traffic, written the way HumlaTCP used to,
+ * with a DataOutputStream straight onto a blocking SSLSocket, and by HumlaTCP itself.
+ *
+ * Both connect through a relay on loopback that parses the record headers going to a local TLS
+ * server, which discards what it reads. Only records sent after the handshake are counted; bytes
+ * per record include the 5 byte record header.
+ *
+ * Not a JMH benchmark, as it counts records rather than timing code. Run on the unit test
+ * classpath, e.g. {@code java -cp <test classpath> se.lublin.humla.benchmark.TLSRecordBenchmark}.
+ */
+public class TLSRecordBenchmark {
+    private static final int VOICE_FRAMES = 250;
+    private static final int VOICE_FRAME_SIZE = 70;
+    private static final long VOICE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int BURSTS = 20;
+    private static final int BURST_SIZE = 40;
+    private static final long BURST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FLUSH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final String PASSWORD = "benchmark";
+
+    /** Sends messages to the server over one kind of connection. */
+    private interface Sender {
+        void send(MessageLite message, HumlaTCPMessageType type) throws IOException;
+        void send(byte[] data, int length, HumlaTCPMessageType type) throws IOException;
+        void close() throws IOException;
+    }
+
+    private final Relay mRelay;
+    private final SSLContext mLegacyContext;
+    private final File mTrustStore;
+    private final MessageLite mUserState = Mumble.UserState.newBuilder()
+            .setSession(42)
+            .setActor(7)
+            .setName("SM0ABC")
+            .setUserId(1234)
+            .setChannelId(3)
+            .setSelfMute(false)
+            .setSelfDeaf(false)
+            .setCommentHash(ByteString.copyFrom(new byte[20]))
+            .setHash("0123456789abcdef0123456789abcdef01234567")
+            .build();
+
+    public static void main(String[] args) throws Exception {
+        final TLSRecordBenchmark benchmark = new TLSRecordBenchmark();
+        try {
+            benchmark.run();
+        } finally {
+            benchmark.mTrustStore.delete();
+        }
+        System.exit(0);
+    }
+
+    private TLSRecordBenchmark() throws Exception {
+        final ByteArrayOutputStream keyStoreData = new ByteArrayOutputStream();
+        final X509Certificate certificate =
+                HumlaCertificateGenerator.generateCertificate(keyStoreData);
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12", new BouncyCastleProvider());
+        keyStore.load(new ByteArrayInputStream(keyStoreData.toByteArray()), new char[0]);
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, new char[0]);
+        final SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+        final KeyStore trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("server", certificate);
+        mTrustStore = File.createTempFile("trust", ".p12");
+        final OutputStream output = new FileOutputStream(mTrustStore);
+        trustStore.store(output, PASSWORD.toCharArray());
+        output.close();
+        final TrustManagerFactory trustManagers =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        mLegacyContext = SSLContext.getInstance("TLS");
+        mLegacyContext.init(null, trustManagers.getTrustManagers(), null);
+
+        final SSLServerSocket server = (SSLServerSocket) serverContext.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startDiscarding(server);
+        mRelay = new Relay(server.getLocalPort());
+    }
+
+    private void run() throws Exception {
+        System.out.println(String.format(Locale.US, "%-34s %6s %8s %11s %9s %9s",
+                "", "msgs", "records", "records/msg", "B/record", "records/s"));
+
+        System.out.println(String.format(Locale.US,
+                "tunneled voice, %d B every %d ms:", VOICE_FRAME_SIZE,
+                TimeUnit.NANOSECONDS.toMillis(VOICE_INTERVAL_NANOS)));
+        measureVoice("  blocking DataOutputStream", openLegacy());
+        measureVoice("  HumlaTCP", openHumla(0));
+
+        System.out.println(String.format(Locale.US, "%d bursts of %d UserState messages:",
+                BURSTS, BURST_SIZE));
+        measureBursts("  blocking DataOutputStream", openLegacy());
+        measureBursts("  HumlaTCP, no flush delay", openHumla(0));
+        measureBursts(String.format(Locale.US, "  HumlaTCP, %d ms flush delay",
+                TimeUnit.NANOSECONDS.toMillis(FLUSH_DELAY_NANOS)), openHumla(FLUSH_DELAY_NANOS));
+    }
+
+    private void measureVoice(String name, Sender sender) throws Exception {
+        final byte[] frame = new byte[VOICE_FRAME_SIZE];
+        final long records = mRelay.getRecords();
+        final long bytes = mRelay.getBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < VOICE_FRAMES; i++) {
+            sleepUntil(start + i * VOICE_INTERVAL_NANOS);
+            sender.send(frame, frame.length, HumlaTCPMessageType.UDPTunnel);
+        }
+        report(name, sender, VOICE_FRAMES, records, bytes, start);
+    }
+
+    private void measureBursts(String name, Sender sender) throws Exception {
+        final long records = mRelay.getRecords();
+        final long bytes = mRelay.getBytes();
+        final long start = System.nanoTime();
+        for (int burst = 0; burst < BURSTS; burst++) {
+            sleepUntil(start + burst * BURST_INTERVAL_NANOS);
+            for (int i = 0; i < BURST_SIZE; i++) {
+                sender.send(mUserState, HumlaTCPMessageType.UserState);
+            }
+        }
+        report(name, sender, BURSTS * BURST_SIZE, records, bytes, start);
+    }
+
+    /**
+     * Waits for the relay to go quiet, so that everything sent has been counted, and prints the
+     * records sent since the given counts.
+     */
+    private void report(String name, Sender sender, int messages, long recordsBefore,
+                        long bytesBefore, long start) throws Exception {
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        awaitQuiet();
+        final long records = mRelay.getRecords() - recordsBefore;
+        final long bytes = mRelay.getBytes() - bytesBefore;
+        sender.close();
+        System.out.println(String.format(Locale.US, "%-34s %6d %8d %11.2f %9.1f %9.1f",
+                name, messages, records, (double) records / messages, (double) bytes / records,
+                records / seconds));
+    }
+
+    /**
+     * Connects with a blocking SSLSocket and writes each message as the old send thread did.
+     */
+    private Sender openLegacy() throws Exception {
+        final SSLSocket socket = (SSLSocket) mLegacyContext.getSocketFactory()
+                .createSocket(InetAddress.getLoopbackAddress(), mRelay.getPort());
+        socket.setTcpNoDelay(true);
+        socket.startHandshake();
+        final DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        awaitQuiet();
+        return new Sender() {
+            @Override
+            public void send(MessageLite message, HumlaTCPMessageType type) throws IOException {
+                output.writeShort(type.ordinal());
+                output.writeInt(message.getSerializedSize());
+                message.writeTo(output);
+            }
+
+            @Override
+            public void send(byte[] data, int length, HumlaTCPMessageType type)
+                    throws IOException {
+                output.writeShort(type.ordinal());
+                output.writeInt(length);
+                output.write(data, 0, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    /**
+     * Connects with HumlaTCP on a reactor of its own, with the given flush delay.
+     */
+    private Sender openHumla(long flushDelayNanos) throws Exception {
+        final NetworkReactor reactor = new NetworkReactor("TLSRecordBenchmark", 0);
+        reactor.start();
+        final HumlaSSLSocketFactory factory = new HumlaSSLSocketFactory(null, null,
+                mTrustStore.getPath(), PASSWORD, "PKCS12");
+        final HumlaTCP tcp = new HumlaTCP(factory, reactor, new HostResolver(), new Handler() {
+            @Override
+            public boolean post(Runnable runnable) {
+                runnable.run();
+                return true;
+            }
+        });
+        final CountDownLatch connected = new CountDownLatch(1);
+        tcp.setTCPConnectionListener(new HumlaTCP.TCPConnectionListener() {
+            @Override
+            public void onTCPConnectionEstablished() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onTLSHandshakeFailed(X509Certificate[] chain) {
+                System.err.println("Server certificate not trusted");
+            }
+
+            @Override
+            public void onTCPConnectionFailed(HumlaException e) {
+                e.printStackTrace();
+            }
+
+            @Override
+            public void onTCPConnectionDisconnect() {
+            }
+
+            @Override
+            public void onTCPMessageReceived(HumlaTCPMessageType type, int length, byte[] data) {
+            }
+        });
+        tcp.setFlushDelay(flushDelayNanos);
+        tcp.connect(InetAddress.getLoopbackAddress().getHostAddress(), mRelay.getPort(), false);
+        if (!connected.await(10, TimeUnit.SECONDS)) {
+            throw new IOException("HumlaTCP did not connect");
+        }
+        awaitQuiet();
+        return new Sender() {
+            @Override
+            public void send(MessageLite message, HumlaTCPMessageType type) {
+                tcp.sendMessage(message, type);
+            }
+
+            @Override
+            public void send(byte[] data, int length, HumlaTCPMessageType type) {
+                tcp.sendMessage(data, length, type);
+            }
+
+            @Override
+            public void close() {
+                tcp.disconnect();
+                reactor.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Waits until the relay has seen no records for a while, e.g. after the handshake.
+     */
+    private void awaitQuiet() throws InterruptedException {
+        long last;
+        do {
+            last = mRelay.getRecords();
+            Thread.sleep(200);
+        } while (mRelay.getRecords() != last);
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private static void startDiscarding(final ServerSocket server) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    startThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                final InputStream input = socket.getInputStream();
+                                final byte[] buffer = new byte[16 * 1024];
+                                while (input.read(buffer) >= 0) {
+                                    // Discard.
+                                }
+                            } catch (IOException e) {
+                                // Client went away.
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void startThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Forwards connections to the server, counting the TLS records clients send.
+     */
+    private static final class Relay {
+        private final ServerSocket mSocket;
+        private final AtomicLong mRecords = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+
+        Relay(final int serverPort) throws IOException {
+            mSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            startThread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            final Socket client = mSocket.accept();
+                            final Socket server =
+                                    new Socket(InetAddress.getLoopbackAddress(), serverPort);
+                            client.setTcpNoDelay(true);
+                            server.setTcpNoDelay(true);
+                            forward(client, server, true);
+                            forward(server, client, false);
+                        } catch (IOException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        long getRecords() {
+            return mRecords.get();
+        }
+
+        long getBytes() {
+            return mBytes.get();
+        }
+
+        private void forward(final Socket from, final Socket to, final boolean count) {
+            startThread(new Runnable() {
+                @Override
+                public void run() {
+                    final byte[] buffer = new byte[16 * 1024];
+                    // Position within the current record, and the length of that record.
+                    final byte[] header = new byte[5];
+                    int headerRead = 0;
+                    int bodyLeft = 0;
+                    try {
+                        final InputStream input = from.getInputStream();
+                        final OutputStream output = to.getOutputStream();
+                        int read;
+                        while ((read = input.read(buffer)) >= 0) {
+                            output.write(buffer, 0, read);
+                            if (!count) continue;
+                            for (int i = 0; i < read; ) {
+                                if (bodyLeft > 0) {
+                                    final int skip = Math.min(bodyLeft, read - i);
+                                    bodyLeft -= skip;
+                                    i += skip;
+                                } else {
+                                    header[headerRead++] = buffer[i++];
+                                    if (headerRead == header.length) {
+                                        bodyLeft = ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+                                        headerRead = 0;
+                                        mRecords.incrementAndGet();
+                                        mBytes.addAndGet(header.length + bodyLeft);
+                                    }
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Either side closed.
+                    } finally {
+                        try {
+                            to.close();
+                        } catch (IOException e) {
+                            // Closing anyway.
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
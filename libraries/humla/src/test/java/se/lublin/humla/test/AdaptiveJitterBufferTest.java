@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import com.googlecode.javacpp.Loader;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import se.lublin.humla.audio.AdaptiveJitterBuffer;
+import se.lublin.humla.audio.JitterBuffer;
+import se.lublin.humla.audio.SpeexJitterBuffer;
+import se.lublin.humla.audio.javacpp.Speex;
+import se.lublin.humla.model.User;
+
+/**
+ * Tests ordering, late and duplicate handling of the adaptive jitter buffer, and replays
+ * recorded-style network traces through it, and through the Speex buffer where its native
+ * library loads, to compare playout delay and concealment.
+ */
+public class AdaptiveJitterBufferTest extends TestCase {
+    private static final int FRAME_SIZE = 480;
+    /** Frames per packet in the traces, as sent by clients at 20 ms. */
+    private static final int PACKET_FRAMES = 2;
+
+    private AdaptiveJitterBuffer mBuffer;
+    private final JitterBuffer.Packet mPacket = new JitterBuffer.Packet(64);
+
+    @Override
+    protected void setUp() throws Exception {
+        mBuffer = new AdaptiveJitterBuffer(FRAME_SIZE);
+    }
+
+    public void testReorderedPacketsPlayInOrder() {
+        put(3);
+        put(1);
+        put(2);
+        assertEquals(3, mBuffer.getAvailableCount());
+        for (int seq = 1; seq <= 3; seq++) {
+            assertEquals(JitterBuffer.OK, get());
+            assertEquals(seq * FRAME_SIZE, mPacket.timestamp);
+            assertEquals(seq, mPacket.data.get(0));
+            mBuffer.tick();
+        }
+        assertEquals(JitterBuffer.MISSING, get());
+    }
+
+    public void testBuffersBeforeStarting() {
+        put(1);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(JitterBuffer.BUFFERING, get());
+            assertEquals(0, mBuffer.getPointerTimestamp());
+            mBuffer.tick();
+        }
+        assertEquals(JitterBuffer.OK, get());
+        assertEquals(FRAME_SIZE, mBuffer.getPointerTimestamp());
+    }
+
+    public void testDuplicatePlaysOnce() {
+        put(1);
+        put(1);
+        put(2);
+        assertEquals(2, mBuffer.getAvailableCount());
+        assertEquals(JitterBuffer.OK, get());
+        mBuffer.tick();
+        assertEquals(JitterBuffer.OK, get());
+        assertEquals(2 * FRAME_SIZE, mPacket.timestamp);
+    }
+
+    public void testLatePacketDropped() {
+        put(1);
+        put(2);
+        assertEquals(JitterBuffer.OK, get());
+        mBuffer.tick();
+        assertEquals(JitterBuffer.OK, get());
+        mBuffer.tick();
+        assertEquals(JitterBuffer.MISSING, get()); // 3 lost
+        mBuffer.tick();
+        put(3);
+        assertEquals(1, mBuffer.getLateCount());
+        assertEquals(0, mBuffer.getAvailableCount());
+    }
+
+    public void testMissingPacketIsConcealedInPlace() {
+        put(1);
+        put(3);
+        assertEquals(JitterBuffer.OK, get());
+        mBuffer.tick();
+        assertEquals(JitterBuffer.MISSING, get());
+        mBuffer.tick();
+        assertEquals(JitterBuffer.OK, get());
+        assertEquals(3 * FRAME_SIZE, mPacket.timestamp);
+    }
+
+    public void testResetDropsPacketsAndKeepsDelay() {
+        put(1);
+        put(2);
+        get();
+        mBuffer.tick();
+        get();
+        mBuffer.tick();
+        put(4);
+        put(1); // Late
+        final int delay = mBuffer.getDelay();
+        mBuffer.reset();
+        assertEquals(0, mBuffer.getAvailableCount());
+        assertEquals(0, mBuffer.getPointerTimestamp());
+        assertEquals(0, mBuffer.getLateCount());
+        assertEquals(delay, mBuffer.getDelay());
+        assertEquals(JitterBuffer.MISSING, get());
+    }
+
+    /**
+     * A buffer reset for the user's next talk spurt should start it with the delay learned in
+     * the last one, and so conceal less of its start than a new buffer.
+     */
+    public void testResetKeepsDelayAcrossTalkSpurts() {
+        final Jitter jitter = new Jitter() {
+            @Override
+            public double next(Random random) {
+                return -Math.log(1 - random.nextDouble()) * 20;
+            }
+        };
+        final AdaptiveJitterBuffer reused = new AdaptiveJitterBuffer(FRAME_SIZE);
+        replay(reused, Trace.generate(4, 500, 0.01, jitter));
+        reused.reset();
+
+        final Trace next = Trace.generate(5, 50, 0, jitter);
+        final Result fresh = replay(new AdaptiveJitterBuffer(FRAME_SIZE), next);
+        final Result pooled = replay(reused, next);
+        assertTrue("reused " + pooled + ", new " + fresh,
+                pooled.concealedFrames < fresh.concealedFrames);
+    }
+
+    /**
+     * Steady arrivals with little jitter should play with a short delay and concealment for
+     * little more than the lost packets.
+     */
+    public void testReplaySteady() {
+        final Trace trace = Trace.generate(1, 3000, 0.01, new Jitter() {
+            @Override
+            public double next(Random random) {
+                return Math.abs(random.nextGaussian()) * 3;
+            }
+        });
+        final Result result = replay(new AdaptiveJitterBuffer(FRAME_SIZE), trace);
+        assertTrue(result.toString(), result.concealmentRate() < 0.02);
+        assertTrue(result.toString(), result.averageDelay() < 40);
+        assertEquals(result.toString(), 0, result.duplicatesPlayed);
+        compareWithSpeex(trace, result);
+    }
+
+    /**
+     * Heavy jitter should make the delay grow until few packets are late.
+     */
+    public void testReplayJittery() {
+        final Trace trace = Trace.generate(2, 3000, 0.01, new Jitter() {
+            @Override
+            public double next(Random random) {
+                return -Math.log(1 - random.nextDouble()) * 20;
+            }
+        });
+        final Result result = replay(new AdaptiveJitterBuffer(FRAME_SIZE), trace);
+        assertTrue(result.toString(), result.concealmentRate() < 0.05);
+        assertTrue(result.toString(), result.averageDelay() < 150);
+        compareWithSpeex(trace, result);
+    }
+
+    /**
+     * Occasional delay spikes should not keep the delay up once they passed.
+     */
+    public void testReplaySpikes() {
+        final Trace trace = Trace.generate(3, 3000, 0.01, new Jitter() {
+            @Override
+            public double next(Random random) {
+                return random.nextDouble() < 0.005 ? 200 : random.nextDouble() * 5;
+            }
+        });
+        final Result result = replay(new AdaptiveJitterBuffer(FRAME_SIZE), trace);
+        assertTrue(result.toString(), result.concealmentRate() < 0.05);
+        assertTrue(result.toString(), result.averageDelay() < 80);
+        compareWithSpeex(trace, result);
+    }
+
+    /**
+     * Replays the trace through the Speex buffer and checks that the adaptive one conceals
+     * about as rarely. Skipped where the native library is not available. To run it on the JVM,
+     * build libjnispeex for the host from the sources and flags in src/main/jni/Android.mk and
+     * pass its directory in {@code java.library.path}.
+     */
+    private static void compareWithSpeex(Trace trace, Result adaptive) {
+        final JitterBuffer speex;
+        try {
+            // Speex calls Loader.load() without its class, which finds none on newer JVMs.
+            Loader.load(Speex.class);
+            speex = new SpeexJitterBuffer(FRAME_SIZE, 10 * FRAME_SIZE, new User(1, "speex"));
+        } catch (LinkageError | RuntimeException e) {
+            return; // No native library
+        }
+        try {
+            final Result result = replay(speex, trace);
+            assertTrue("adaptive " + adaptive + ", speex " + result,
+                    adaptive.concealmentRate() <= result.concealmentRate() + 0.01);
+        } finally {
+            speex.destroy();
+        }
+    }
+
+    private void put(int seq) {
+        mPacket.data.clear();
+        mPacket.data.put(0, (byte) seq);
+        mPacket.length = 1;
+        mPacket.timestamp = seq * FRAME_SIZE;
+        mPacket.span = FRAME_SIZE;
+        mPacket.userData = 0;
+        mBuffer.put(mPacket);
+    }
+
+    private int get() {
+        return mBuffer.get(mPacket);
+    }
+
+    /**
+     * Plays the trace out in steps of one frame, the way the decode loop drives the buffer,
+     * putting each packet in during the step it arrives in.
+     */
+    private static Result replay(JitterBuffer buffer, Trace trace) {
+        final JitterBuffer.Packet packet = new JitterBuffer.Packet(64);
+        final boolean[] played = new boolean[trace.count];
+        final Result result = new Result();
+        final double frameMs = FRAME_SIZE / 48.0;
+        int next = 0;
+        int framesLeft = 0;
+        boolean started = false;
+        for (int step = 0; ; step++) {
+            final double now = (step + 1) * frameMs;
+            while (next < trace.arrivals.length && trace.arrivals[next].time < now) {
+                final Arrival arrival = trace.arrivals[next++];
+                packet.data.clear();
+                packet.data.putInt(0, arrival.index);
+                packet.length = 4;
+                packet.timestamp = (trace.firstSeq + arrival.index * PACKET_FRAMES) * FRAME_SIZE;
+                packet.span = PACKET_FRAMES * FRAME_SIZE;
+                packet.userData = 0;
+                buffer.put(packet);
+            }
+            if (next == trace.arrivals.length && framesLeft == 0
+                    && buffer.getAvailableCount() == 0) {
+                break;
+            }
+
+            if (framesLeft > 0) {
+                framesLeft--;
+            } else {
+                final int status = buffer.get(packet);
+                if (status == JitterBuffer.OK) {
+                    final int index = packet.data.getInt(0);
+                    if (played[index]) result.duplicatesPlayed++;
+                    played[index] = true;
+                    result.playedFrames += PACKET_FRAMES;
+                    result.totalDelay += now - trace.arrivalTime[index];
+                    result.playedPackets++;
+                    framesLeft = packet.span / FRAME_SIZE - 1;
+                    started = true;
+                } else if (status == JitterBuffer.MISSING) {
+                    buffer.updateDelay();
+                    if (started) result.concealedFrames++;
+                }
+            }
+            buffer.tick();
+        }
+        result.lateDrops = buffer.getLateCount();
+        return result;
+    }
+
+    private interface Jitter {
+        /** @return The queueing delay of the next packet, in milliseconds. */
+        double next(Random random);
+    }
+
+    private static final class Arrival {
+        final int index;
+        final double time;
+
+        Arrival(int index, double time) {
+            this.index = index;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Packets sent every 20 ms, some lost and some duplicated, arriving after a fixed network
+     * delay plus jitter. Generated from a seed, so every run replays the same arrivals.
+     */
+    private static final class Trace {
+        final int firstSeq = 100;
+        final int count;
+        final Arrival[] arrivals;
+        /** Arrival time by packet index, of the first copy. */
+        final double[] arrivalTime;
+
+        private Trace(int count, Arrival[] arrivals, double[] arrivalTime) {
+            this.count = count;
+            this.arrivals = arrivals;
+            this.arrivalTime = arrivalTime;
+        }
+
+        static Trace generate(long seed, int count, double loss, Jitter jitter) {
+            final Random random = new Random(seed);
+            final Arrival[] arrivals = new Arrival[count * 2];
+            final double[] arrivalTime = new double[count];
+            int arrived = 0;
+            for (int i = 0; i < count; i++) {
+                final double time = i * PACKET_FRAMES * FRAME_SIZE / 48.0 + 30 + jitter.next(random);
+                arrivalTime[i] = time;
+                if (random.nextDouble() < loss) continue;
+                arrivals[arrived++] = new Arrival(i, time);
+                if (random.nextDouble() < 0.005) {
+                    arrivals[arrived++] = new Arrival(i, time + 1);
+                }
+            }
+            final Arrival[] sorted = Arrays.copyOf(arrivals, arrived);
+            Arrays.sort(sorted, new Comparator<Arrival>() {
+                @Override
+                public int compare(Arrival a, Arrival b) {
+                    return Double.compare(a.time, b.time);
+                }
+            });
+            return new Trace(count, sorted, arrivalTime);
+        }
+    }
+
+    private static final class Result {
+        int playedPackets;
+        int playedFrames;
+        int concealedFrames;
+        int duplicatesPlayed;
+        int lateDrops;
+        double totalDelay;
+
+        double concealmentRate() {
+            return concealedFrames / (double) (playedFrames + concealedFrames);
+        }
+
+        /** @return The average time packets waited from arrival to playout, in milliseconds. */
+        double averageDelay() {
+            return totalDelay / playedPackets;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("delay %.1f ms, concealed %.2f%%, late %d",
+                    averageDelay(), concealmentRate() * 100, lateDrops);
+        }
+    }
+}
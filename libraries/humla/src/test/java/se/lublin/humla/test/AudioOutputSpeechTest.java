@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import se.lublin.humla.audio.AdaptiveJitterBuffer;
+import se.lublin.humla.audio.AudioOutputSpeech;
+import se.lublin.humla.audio.DecoderPool;
+import se.lublin.humla.audio.IDecoder;
+import se.lublin.humla.audio.JitterBuffer;
+import se.lublin.humla.exception.NativeAudioException;
+import se.lublin.humla.model.TalkState;
+import se.lublin.humla.model.User;
+import se.lublin.humla.net.HumlaUDPMessageType;
+import se.lublin.humla.protocol.AudioHandler;
+
+/**
+ * Runs the decode loop of a speaker against a Java decoder and jitter buffer, so that the
+ * packet and frame handling around the native code can be checked on the JVM. Also replays
+ * overs through speakers with and without the decoder pool, to compare how soon they start.
+ */
+public class AudioOutputSpeechTest extends TestCase {
+    private static final int FRAME_LENGTH = 40;
+    /** Duration of a frame, and of a step of the replays, in milliseconds. */
+    private static final double FRAME_MS = AudioHandler.FRAME_SIZE / 48.0;
+    /** Overs per replay, and packets per over. */
+    private static final int OVERS = 30;
+    private static final int OVER_PACKETS = 100;
+    /** The frames at the start of an over whose concealment is counted. */
+    private static final int START_FRAMES = 10;
+    private static final long NO_TIMEOUT = Long.MAX_VALUE / 2;
+
+    private final DecoderPool.Factory mPoolFactory = new DecoderPool.Factory() {
+        @Override
+        public IDecoder createDecoder(HumlaUDPMessageType codec) {
+            return new FakeDecoder();
+        }
+
+        @Override
+        public JitterBuffer createJitterBuffer(User user) {
+            return new AdaptiveJitterBuffer(AudioHandler.FRAME_SIZE);
+        }
+    };
+
+    private AudioOutputSpeech mSpeech;
+    private FakeDecoder mDecoder;
+    private User mUser;
+    private FifoJitterBuffer mJitterBuffer;
+    private TalkState mTalkState;
+    /** A CELT packet holding one frame, without a terminator. */
+    private final byte[] mPacket = new byte[1 + FRAME_LENGTH];
+    private int mSequence;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDecoder = new FakeDecoder();
+        mUser = new User(1, "test");
+        mJitterBuffer = new FifoJitterBuffer(16, 1 + FRAME_LENGTH);
+        mSpeech = new AudioOutputSpeech(mUser, HumlaUDPMessageType.UDPVoiceCELTAlpha,
+                AudioHandler.FRAME_SIZE, new AudioOutputSpeech.TalkStateListener() {
+            @Override
+            public void onTalkStateUpdated(int session, TalkState state) {
+                mTalkState = state;
+            }
+        }, mDecoder, mJitterBuffer);
+        mPacket[0] = FRAME_LENGTH;
+        for (int i = 1; i < mPacket.length; i++) {
+            mPacket[i] = (byte) i;
+        }
+        mSequence = 1;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSpeech.destroy();
+    }
+
+    public void testFramesReachDecoder() {
+        tick();
+        assertEquals(FRAME_LENGTH, mDecoder.mLastLength);
+        assertEquals(1, mDecoder.mLastFirstByte);
+        assertEquals(TalkState.TALKING, mTalkState);
+        assertEquals(AudioHandler.FRAME_SIZE, mSpeech.read());
+    }
+
+    /**
+     * Checks that a packet arriving after the speaker was released does not reach its jitter
+     * buffer, which the pool may have handed to another speaker already.
+     */
+    public void testPacketsAfterReleaseAreDropped() throws NativeAudioException {
+        DecoderPool pool = new DecoderPool(new DecoderPool.Factory() {
+            @Override
+            public IDecoder createDecoder(HumlaUDPMessageType codec) {
+                throw new AssertionError();
+            }
+
+            @Override
+            public JitterBuffer createJitterBuffer(User user) {
+                throw new AssertionError();
+            }
+        }, 4, Long.MAX_VALUE / 2);
+        mSpeech.release(pool);
+        final JitterBuffer reused = pool.takeJitterBuffer(mUser);
+        assertSame(mJitterBuffer, reused);
+
+        mSpeech.addFrameToBuffer(mPacket, 0, mPacket.length, (byte) 0, mSequence++);
+        assertEquals(0, reused.getAvailableCount());
+        assertEquals(0, mSpeech.getJitterDelay());
+        assertSame(mDecoder, pool.takeDecoder(HumlaUDPMessageType.UDPVoiceCELTAlpha));
+    }
+
+    /**
+     * Checks that feeding, decoding and mixing a speaker does not allocate once warmed up.
+     */
+    public void testSteadyStateDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return; // Allocation accounting not available on this VM.
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        // Warm up, so that lazily allocated state and JIT compilation are out of the way.
+        for (int i = 0; i < 20000; i++) {
+            tick();
+            mSpeech.read();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            tick();
+            mSpeech.read();
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertEquals("Steady-state decoding should not allocate", 0, allocated);
+        assertFalse(mSpeech.isFinished());
+    }
+
+    /**
+     * Replays a station's overs with steady arrivals, each through a new speaker, and checks
+     * that a jitter buffer from the pool plays the first frame of an over sooner than a new one,
+     * as it learned that the packets need little delay.
+     */
+    public void testPooledBufferStartsSteadyOversSooner() throws NativeAudioException {
+        final Jitter steady = new Jitter() {
+            @Override
+            public double next(Random random) {
+                return Math.abs(random.nextGaussian()) * 3;
+            }
+        };
+        final OverStats unpooled =
+                replayOvers(new DecoderPool(mPoolFactory, 0, NO_TIMEOUT), steady);
+        final OverStats pooled = replayOvers(new DecoderPool(mPoolFactory, 4, NO_TIMEOUT), steady);
+        assertTrue("pooled " + pooled + ", new " + unpooled,
+                pooled.firstFrameMs() < unpooled.firstFrameMs());
+        assertTrue("pooled " + pooled + ", new " + unpooled,
+                pooled.startConcealed() <= unpooled.startConcealed());
+    }
+
+    /**
+     * Replays a station's overs with heavy jitter, and checks that a jitter buffer from the pool
+     * starts each over with the delay the packets needed, so that it waits longer for the first
+     * frame than a new one but conceals less of the start of the over.
+     */
+    public void testPooledBufferStartsJitteryOversWithLearnedDelay()
+            throws NativeAudioException {
+        final Jitter jittery = new Jitter() {
+            @Override
+            public double next(Random random) {
+                return -Math.log(1 - random.nextDouble()) * 20;
+            }
+        };
+        final OverStats unpooled =
+                replayOvers(new DecoderPool(mPoolFactory, 0, NO_TIMEOUT), jittery);
+        final OverStats pooled = replayOvers(new DecoderPool(mPoolFactory, 4, NO_TIMEOUT), jittery);
+        assertTrue("pooled " + pooled + ", new " + unpooled,
+                pooled.startConcealed() < unpooled.startConcealed() / 2);
+        assertTrue("pooled " + pooled + ", new " + unpooled,
+                pooled.firstFrameMs() < 100);
+    }
+
+    /**
+     * Plays {@link #OVERS} overs of {@link #OVER_PACKETS} one-frame packets, sent a frame apart
+     * and arriving after 30 ms plus jitter, each through a new speaker whose decoder and jitter
+     * buffer come from the pool and go back to it. Steps a frame at a time, putting in the
+     * packets that arrived during the step and then decoding and mixing one frame.
+     */
+    private OverStats replayOvers(DecoderPool pool, Jitter jitter) throws NativeAudioException {
+        final User user = new User(2, "station");
+        final Random random = new Random(1);
+        // The last packet of an over ends with a terminator.
+        final byte[] last = new byte[2 + FRAME_LENGTH];
+        last[0] = (byte) (0x80 | FRAME_LENGTH);
+        final double[] arrivals = new double[OVER_PACKETS];
+        final OverStats stats = new OverStats();
+        int seq = 1;
+        for (int over = 0; over < OVERS; over++) {
+            final FakeDecoder decoder =
+                    (FakeDecoder) pool.takeDecoder(HumlaUDPMessageType.UDPVoiceCELTAlpha);
+            decoder.mDecodedFrames = 0;
+            final AudioOutputSpeech speech = new AudioOutputSpeech(user,
+                    HumlaUDPMessageType.UDPVoiceCELTAlpha, AudioHandler.FRAME_SIZE,
+                    new AudioOutputSpeech.TalkStateListener() {
+                @Override
+                public void onTalkStateUpdated(int session, TalkState state) {
+                }
+            }, decoder, pool.takeJitterBuffer(user));
+            for (int i = 0; i < OVER_PACKETS; i++) {
+                arrivals[i] = i * FRAME_MS + 30 + jitter.next(random);
+            }
+
+            int next = 0;
+            int firstPut = -1;
+            int firstFrame = -1;
+            for (int step = 0; !speech.isFinished() && step < 10 * OVER_PACKETS; step++) {
+                final double now = (step + 1) * FRAME_MS;
+                // Arrivals are out of order, so put in any that arrived by now.
+                for (int i = next; i < OVER_PACKETS; i++) {
+                    if (arrivals[i] >= now) continue;
+                    final byte[] packet = i == OVER_PACKETS - 1 ? last : mPacket;
+                    speech.addFrameToBuffer(packet, 0, packet.length, (byte) 0, seq + i);
+                    arrivals[i] = Double.MAX_VALUE;
+                    if (firstPut < 0) firstPut = step;
+                }
+                while (next < OVER_PACKETS && arrivals[next] == Double.MAX_VALUE) next++;
+
+                speech.decode(AudioHandler.FRAME_SIZE);
+                speech.read();
+                if (firstFrame < 0 && decoder.mDecodedFrames > 0) {
+                    firstFrame = step;
+                    stats.startConcealed -= speech.getConcealedFrames();
+                }
+                if (firstFrame >= 0 && step == firstFrame + START_FRAMES) {
+                    stats.startConcealed += speech.getConcealedFrames();
+                }
+            }
+            stats.overs++;
+            stats.firstFrameSteps += firstFrame - firstPut;
+            speech.release(pool);
+            // Leave a gap in the sequence numbers between overs, as the station stays silent.
+            seq += 2 * OVER_PACKETS;
+        }
+        return stats;
+    }
+
+    private void tick() {
+        mSpeech.addFrameToBuffer(mPacket, 0, mPacket.length, (byte) 0, mSequence++);
+        mSpeech.decode(AudioHandler.FRAME_SIZE);
+    }
+
+    private static class FakeDecoder implements IDecoder {
+        int mLastLength;
+        int mLastFirstByte;
+        int mDecodedFrames;
+
+        @Override
+        public int decodeFloat(ByteBuffer input, int inputSize, float[] output, int frameSize) {
+            if (input != null) {
+                mLastLength = inputSize;
+                mLastFirstByte = input.get(0);
+                mDecodedFrames++;
+            }
+            for (int i = 0; i < AudioHandler.FRAME_SIZE; i++) {
+                output[i] = input != null ? 0.5f : 0;
+            }
+            return AudioHandler.FRAME_SIZE;
+        }
+
+        @Override
+        public int decodeShort(ByteBuffer input, int inputSize, short[] output, int frameSize) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private interface Jitter {
+        /** @return The queueing delay of the next packet, in milliseconds. */
+        double next(Random random);
+    }
+
+    /**
+     * How the overs of a replay started.
+     */
+    private static final class OverStats {
+        int overs;
+        /** Frames from putting in the first packet to decoding the first frame, summed. */
+        long firstFrameSteps;
+        /** Frames concealed in the first {@link #START_FRAMES} after the first, summed. */
+        long startConcealed;
+
+        /**
+         * @return The average time from the first packet of an over to its first frame, in
+         *         replay time. Setting up the speaker is not included.
+         */
+        double firstFrameMs() {
+            return firstFrameSteps * FRAME_MS / overs;
+        }
+
+        double startConcealed() {
+            return startConcealed / (double) overs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("first frame after %.1f ms, %.2f frames concealed",
+                    firstFrameMs(), startConcealed());
+        }
+    }
+
+    /**
+     * Plays packets out in the order they were put, one per tick, from preallocated slots.
+     */
+    private static class FifoJitterBuffer implements JitterBuffer {
+        private final Packet[] mSlots;
+        private int mHead;
+        private int mCount;
+        private int mTimestamp;
+
+        FifoJitterBuffer(int slots, int capacity) {
+            mSlots = new Packet[slots];
+            for (int i = 0; i < slots; i++) {
+                mSlots[i] = new Packet(capacity);
+            }
+        }
+
+        @Override
+        public void put(Packet packet) {
+            if (mCount == mSlots.length) return;
+            copy(packet, mSlots[(mHead + mCount++) % mSlots.length]);
+        }
+
+        @Override
+        public int get(Packet packet) {
+            if (mCount == 0) return MISSING;
+            final Packet slot = mSlots[mHead];
+            mHead = (mHead + 1) % mSlots.length;
+            mCount--;
+            copy(slot, packet);
+            mTimestamp = slot.timestamp;
+            return OK;
+        }
+
+        private static void copy(Packet from, Packet to) {
+            for (int i = 0; i < from.length; i++) {
+                to.data.put(i, from.data.get(i));
+            }
+            to.length = from.length;
+            to.timestamp = from.timestamp;
+            to.span = from.span;
+            to.userData = from.userData;
+        }
+
+        @Override
+        public int getPointerTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public int getAvailableCount() {
+            return mCount;
+        }
+
+        @Override
+        public void updateDelay() {
+        }
+
+        @Override
+        public void tick() {
+        }
+
+        @Override
+        public int getDelay() {
+            return 0;
+        }
+
+        @Override
+        public int getLateCount() {
+            return 0;
+        }
+
+        @Override
+        public void reset() {
+            mHead = 0;
+            mCount = 0;
+            mTimestamp = 0;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import se.lublin.humla.model.BlobCache;
+import se.lublin.humla.net.HumlaTCPMessageType;
+import se.lublin.humla.net.TCPMessageDispatcher;
+import se.lublin.humla.protobuf.Mumble;
+
+/**
+ * Tests the content addressed store for textures, comments and descriptions.
+ */
+public class BlobCacheTest extends TestCase {
+    private static final int BLOB_SIZE = 10 * 1024;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = File.createTempFile("blobs", "");
+        assertTrue(mDirectory.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    private static ByteString blob(int seed) {
+        byte[] data = new byte[BLOB_SIZE];
+        new Random(seed).nextBytes(data);
+        return ByteString.copyFrom(data);
+    }
+
+    public void testKeyedBySha1() throws Exception {
+        BlobCache cache = new BlobCache(1024 * 1024);
+        ByteString data = blob(1);
+        BlobCache.Blob stored = cache.put(data);
+        byte[] sha1 = MessageDigest.getInstance("SHA-1").digest(data.toByteArray());
+        assertEquals(ByteString.copyFrom(sha1), stored.getKey());
+        assertEquals(BLOB_SIZE, stored.size());
+        assertNotNull("A blob should be found by its hash", cache.find(stored.getKey()));
+        assertNull(cache.put(ByteString.EMPTY));
+    }
+
+    public void testIdenticalBlobsStoredOnce() {
+        BlobCache cache = new BlobCache(1024 * 1024);
+        BlobCache.Blob first = cache.put(blob(1));
+        BlobCache.Blob second = cache.put(blob(1));
+        assertEquals(first.getKey(), second.getKey());
+        assertEquals(BLOB_SIZE, cache.getMemoryBytes());
+        assertSame("Reads should not copy", first.getBytes(), second.getBytes());
+    }
+
+    public void testSliceIsCopiedOnItsOwn() throws Exception {
+        ByteString texture = blob(2);
+        byte[] frame = Mumble.UserState.newBuilder().setSession(1).setTexture(texture)
+                .setComment("hello").build().toByteArray();
+        Mumble.UserState state = (Mumble.UserState) TCPMessageDispatcher.parse(
+                HumlaTCPMessageType.UserState, frame);
+
+        BlobCache cache = new BlobCache(1024 * 1024);
+        BlobCache.Blob stored = cache.put(state.getTexture());
+        assertEquals("Only the blob should be kept, not the frame", BLOB_SIZE, cache.getMemoryBytes());
+        assertTrue(Arrays.equals(texture.toByteArray(), stored.getBytes()));
+        assertEquals("hello", cache.put(state.getCommentBytes()).getString());
+    }
+
+    public void testMemoryOnlyCacheDropsOldest() {
+        BlobCache cache = new BlobCache(3 * BLOB_SIZE);
+        BlobCache.Blob[] blobs = new BlobCache.Blob[10];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = cache.put(blob(i));
+        }
+        assertTrue(cache.getMemoryBytes() <= 3 * BLOB_SIZE);
+        assertNull("The oldest blob should have been dropped", blobs[0].getBytes());
+        assertTrue(Arrays.equals(blob(9).toByteArray(), blobs[9].getBytes()));
+    }
+
+    public void testEvictedBlobsSpillToDisk() throws Exception {
+        BlobCache cache = new BlobCache(mDirectory, 3 * BLOB_SIZE, Long.MAX_VALUE);
+        BlobCache.Blob[] blobs = new BlobCache.Blob[10];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = cache.put(blob(i));
+        }
+        for (int i = 0; i < blobs.length; i++) {
+            assertTrue("Blob " + i + " should be readable",
+                    Arrays.equals(blob(i).toByteArray(), blobs[i].getBytes()));
+        }
+        cache.close();
+        awaitFiles(blobs.length);
+
+        // Written files outlive the cache, and are found by hash from a new one.
+        BlobCache reopened = new BlobCache(mDirectory, 3 * BLOB_SIZE, Long.MAX_VALUE);
+        for (int i = 0; i < blobs.length; i++) {
+            BlobCache.Blob again = reopened.find(blobs[i].getKey());
+            assertNotNull("Blob " + i + " should be found by hash", again);
+            assertTrue(Arrays.equals(blob(i).toByteArray(), again.getBytes()));
+        }
+        reopened.close();
+    }
+
+    /** Waits for the background writer to finish the given number of spill files. */
+    private void awaitFiles(int count) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            File[] files = mDirectory.listFiles();
+            int complete = 0;
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.getName().endsWith(".tmp")) complete++;
+                }
+            }
+            if (complete == count) return;
+            Thread.sleep(10);
+        }
+        fail("Spill files were not written");
+    }
+
+    public void testCorruptSpillFileIgnored() throws Exception {
+        BlobCache cache = new BlobCache(mDirectory, BLOB_SIZE, Long.MAX_VALUE);
+        BlobCache.Blob first = cache.put(blob(1));
+        cache.put(blob(2));
+        cache.close();
+        awaitFiles(2);
+
+        File[] files = mDirectory.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(new byte[] { 1, 2, 3 });
+            output.close();
+        }
+        BlobCache reopened = new BlobCache(mDirectory, BLOB_SIZE, Long.MAX_VALUE);
+        BlobCache.Blob found = reopened.find(first.getKey());
+        assertTrue(found == null || found.getBytes() == null);
+        reopened.close();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import se.lublin.humla.net.AutoBlockCipher128;
+import se.lublin.humla.net.BlockCipher128;
+import se.lublin.humla.net.CryptState;
+import se.lublin.humla.net.JceBlockCipher128;
+import se.lublin.humla.net.TableBlockCipher128;
+
+/**
+ * Tests the AES block backends used by {@link CryptState}.
+ */
+public class BlockCipher128Test extends TestCase {
+    // FIPS-197 appendix C.1 AES-128 example vector.
+    private static final byte[] FIPS_KEY = hex("000102030405060708090a0b0c0d0e0f");
+    private static final byte[] FIPS_PLAIN = hex("00112233445566778899aabbccddeeff");
+    private static final byte[] FIPS_CIPHER = hex("69c4e0d86a7b0430d8cdb78070b4c55a");
+
+    public void testTableKnownAnswer() throws Exception {
+        checkKnownAnswer(new TableBlockCipher128());
+    }
+
+    public void testJceKnownAnswer() throws Exception {
+        checkKnownAnswer(new JceBlockCipher128());
+    }
+
+    public void testAutoKnownAnswer() throws Exception {
+        AutoBlockCipher128 auto = new AutoBlockCipher128();
+        checkKnownAnswer(auto);
+        assertNotNull("Auto backend should select a candidate", auto.getSelected());
+    }
+
+    public void testTableMatchesJce() throws Exception {
+        Random random = new Random(7);
+        TableBlockCipher128 table = new TableBlockCipher128();
+        JceBlockCipher128 jce = new JceBlockCipher128();
+        byte[] key = new byte[CryptState.AES_BLOCK_SIZE];
+        byte[] in = new byte[CryptState.AES_BLOCK_SIZE + 3];
+        byte[] expected = new byte[CryptState.AES_BLOCK_SIZE];
+        byte[] actual = new byte[CryptState.AES_BLOCK_SIZE + 5];
+
+        for (int k = 0; k < 20; k++) {
+            random.nextBytes(key);
+            table.init(key);
+            jce.init(key);
+            for (int i = 0; i < 50; i++) {
+                random.nextBytes(in);
+                jce.encryptBlock(in, 3, expected, 0);
+                table.encryptBlock(in, 3, actual, 5);
+                assertTrue("Encryption should match JCE",
+                        Arrays.equals(expected, Arrays.copyOfRange(actual, 5, actual.length)));
+
+                jce.decryptBlock(in, 3, expected, 0);
+                table.decryptBlock(in, 3, actual, 5);
+                assertTrue("Decryption should match JCE",
+                        Arrays.equals(expected, Arrays.copyOfRange(actual, 5, actual.length)));
+            }
+        }
+    }
+
+    public void testInvalidKeyRejected() {
+        try {
+            new TableBlockCipher128().init(new byte[15]);
+            fail("Short key should be rejected");
+        } catch (Exception e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Datagrams encrypted with one backend must decrypt with another.
+     */
+    public void testCryptStateBackendsInteroperate() throws Exception {
+        byte[] key = hex("2b7e151628aed2a6abf7158809cf4f3c");
+        byte[] clientNonce = new byte[CryptState.AES_BLOCK_SIZE];
+        byte[] serverNonce = new byte[CryptState.AES_BLOCK_SIZE];
+        clientNonce[0] = 1;
+        serverNonce[0] = 2;
+
+        CryptState client = new CryptState(new TableBlockCipher128(), new TableBlockCipher128());
+        client.setKeys(key, clientNonce, serverNonce);
+        CryptState server = new CryptState(new JceBlockCipher128(), new JceBlockCipher128());
+        server.setKeys(key, serverNonce, clientNonce);
+
+        Random random = new Random(3);
+        for (int length = 1; length < 100; length++) {
+            byte[] plain = new byte[length];
+            random.nextBytes(plain);
+            byte[] encrypted = client.encrypt(plain, length);
+            assertTrue(Arrays.equals(plain, server.decrypt(encrypted, encrypted.length)));
+        }
+    }
+
+    private static void checkKnownAnswer(BlockCipher128 cipher) throws Exception {
+        cipher.init(FIPS_KEY);
+        byte[] out = new byte[CryptState.AES_BLOCK_SIZE];
+        cipher.encryptBlock(FIPS_PLAIN, 0, out, 0);
+        assertTrue(cipher.getName() + " encryption", Arrays.equals(FIPS_CIPHER, out));
+        byte[] back = new byte[CryptState.AES_BLOCK_SIZE];
+        cipher.decryptBlock(out, 0, back, 0);
+        assertTrue(cipher.getName() + " decryption", Arrays.equals(FIPS_PLAIN, back));
+    }
+
+    private static byte[] hex(String s) {
+        byte[] data = new byte[s.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+import se.lublin.humla.net.ConnectionStats;
+import se.lublin.humla.net.ConnectionStatsRecorder;
+import se.lublin.humla.net.CryptState;
+import se.lublin.humla.net.HumlaTCP;
+import se.lublin.humla.net.HumlaTCPMessageType;
+
+/**
+ * Tests the aggregation of connection quality counters into snapshots.
+ */
+public class ConnectionStatsTest extends TestCase {
+    private static final long MS = 1000000L;
+
+    private ConnectionStats snapshot(ConnectionStatsRecorder recorder, long now) {
+        return recorder.snapshot(now, new CryptState(), null, null, 0, 0);
+    }
+
+    /** Builds an Opus voice packet header for the given session and sequence number. */
+    private static byte[] voice(int session, int sequence) {
+        return new byte[] { (byte) (4 << 5), (byte) session, (byte) 0x80, (byte) sequence, 0 };
+    }
+
+    public void testTrafficRates() {
+        ConnectionStatsRecorder recorder = new ConnectionStatsRecorder(0);
+        for (int i = 0; i < 50; i++) {
+            recorder.onUDPReceived(100);
+            recorder.onUDPSent(60);
+        }
+        recorder.onTCPSent(20);
+        recorder.onTLSRecordSent(49);
+        ConnectionStats first = snapshot(recorder, 1000 * MS);
+        assertEquals(50, first.getUDPTraffic().getPacketsIn());
+        assertEquals(5000, first.getUDPTraffic().getBytesIn());
+        assertEquals(1, first.getTCPTraffic().getPacketsOut());
+        assertEquals(1, first.getTLSTraffic().getPacketsOut());
+        assertEquals(49, first.getTLSTraffic().getBytesOut());
+
+        for (int i = 0; i < 25; i++) {
+            recorder.onUDPReceived(100);
+            recorder.onTLSRecordReceived(80);
+        }
+        ConnectionStats second = snapshot(recorder, 1500 * MS);
+        assertEquals(500 * MS, second.getInterval());
+        assertEquals(50f, second.getUDPTraffic().getPacketsInPerSecond(), 0.01f);
+        assertEquals(5000f, second.getUDPTraffic().getBytesInPerSecond(), 0.01f);
+        assertEquals(0f, second.getUDPTraffic().getPacketsOutPerSecond(), 0.01f);
+        assertEquals(50f, second.getTLSTraffic().getPacketsInPerSecond(), 0.01f);
+    }
+
+    public void testQueueDelayPerClass() {
+        ConnectionStatsRecorder recorder = new ConnectionStatsRecorder(0);
+        recorder.onTCPQueueDelay(HumlaTCP.SendPriority.VOICE, 1 * MS);
+        recorder.onTCPQueueDelay(HumlaTCP.SendPriority.VOICE, 3 * MS);
+        recorder.onTCPQueueDelay(HumlaTCP.SendPriority.BULK, 40 * MS);
+        ConnectionStats first = snapshot(recorder, 1000 * MS);
+        ConnectionStats.QueueDelay voice = first.getTCPQueueDelay(HumlaTCP.SendPriority.VOICE);
+        assertEquals(2, voice.getMessages());
+        assertEquals(2000f, voice.getMean(), 0.01f);
+        assertEquals(3000, voice.getMax());
+        assertEquals(0, first.getTCPQueueDelay(HumlaTCP.SendPriority.CONTROL).getMessages());
+        assertEquals(40000, first.getTCPQueueDelay(HumlaTCP.SendPriority.BULK).getMax());
+
+        // Each snapshot only covers the messages sent since the previous one.
+        recorder.onTCPQueueDelay(HumlaTCP.SendPriority.VOICE, 2 * MS);
+        voice = snapshot(recorder, 2000 * MS).getTCPQueueDelay(HumlaTCP.SendPriority.VOICE);
+        assertEquals(1, voice.getMessages());
+        assertEquals(2000f, voice.getMean(), 0.01f);
+        assertEquals(2000, voice.getMax());
+        assertEquals(0f, snapshot(recorder, 3000 * MS)
+                .getTCPQueueDelay(HumlaTCP.SendPriority.BULK).getMean(), 0.01f);
+    }
+
+    public void testSendPriorities() {
+        assertEquals(HumlaTCP.SendPriority.VOICE,
+                HumlaTCP.SendPriority.of(HumlaTCPMessageType.UDPTunnel));
+        assertEquals(HumlaTCP.SendPriority.VOICE,
+                HumlaTCP.SendPriority.of(HumlaTCPMessageType.VoiceTarget));
+        assertEquals(HumlaTCP.SendPriority.CONTROL,
+                HumlaTCP.SendPriority.of(HumlaTCPMessageType.Ping));
+        assertEquals(HumlaTCP.SendPriority.CONTROL,
+                HumlaTCP.SendPriority.of(HumlaTCPMessageType.CryptSetup));
+        assertEquals(HumlaTCP.SendPriority.BULK,
+                HumlaTCP.SendPriority.of(HumlaTCPMessageType.UserState));
+        assertEquals(HumlaTCP.SendPriority.BULK,
+                HumlaTCP.SendPriority.of(HumlaTCPMessageType.TextMessage));
+    }
+
+    public void testRttPercentiles() {
+        ConnectionStatsRecorder recorder = new ConnectionStatsRecorder(0);
+        for (int i = 1; i <= 100; i++) {
+            recorder.onUDPPingReply(i * 1000);
+        }
+        ConnectionStats.Rtt rtt = snapshot(recorder, MS).getUDPRtt();
+        assertEquals(100, rtt.getSamples());
+        assertEquals(50000, rtt.getP50());
+        assertEquals(90000, rtt.getP90());
+        assertEquals(99000, rtt.getP99());
+        assertEquals(100000, rtt.getMax());
+        assertEquals(50500f, rtt.getMean(), 0.1f);
+        assertEquals(0, snapshot(recorder, 2 * MS).getTCPRtt().getSamples());
+    }
+
+    public void testRttWindowKeepsRecentSamples() {
+        ConnectionStatsRecorder recorder = new ConnectionStatsRecorder(0);
+        for (int i = 0; i < ConnectionStatsRecorder.RTT_WINDOW; i++) {
+            recorder.onTCPPingReply(1000000);
+        }
+        for (int i = 0; i < ConnectionStatsRecorder.RTT_WINDOW; i++) {
+            recorder.onTCPPingReply(1000);
+        }
+        assertEquals(2 * ConnectionStatsRecorder.RTT_WINDOW, recorder.getTCPPingCount());
+        assertEquals(1000, recorder.getTCPRtt().getMax());
+    }
+
+    public void testSpeakerJitterHistogram() {
+        ConnectionStatsRecorder recorder = new ConnectionStatsRecorder(0);
+        long now = 0;
+        // Speaker 7 sends two frames per packet, arriving exactly every 20ms.
+        for (int i = 0; i < 10; i++) {
+            recorder.onVoiceReceived(voice(7, i * 2), 5, now);
+            now += 20 * MS;
+        }
+        // Speaker 9 alternates between 10ms early and on time.
+        for (int i = 0; i < 10; i++) {
+            recorder.onVoiceReceived(voice(9, i), 5, i * 10 * MS + (i % 2 == 0 ? 0 : 10 * MS));
+        }
+
+        List<ConnectionStats.Speaker> speakers = snapshot(recorder, now).getSpeakers();
+        assertEquals(2, speakers.size());
+
+        ConnectionStats.Speaker steady = speakers.get(0);
+        assertEquals(7, steady.getSession());
+        assertEquals(10, steady.getPackets());
+        assertEquals(0f, steady.getJitter(), 0.001f);
+        assertEquals(9, steady.getJitterHistogram()[0]);
+
+        ConnectionStats.Speaker jittery = speakers.get(1);
+        assertEquals(9, jittery.getSession());
+        long[] histogram = jittery.getJitterHistogram();
+        assertEquals(0, histogram[0]);
+        assertEquals(0, histogram[1]);
+        assertEquals("Every transit deviation is 10ms", 9, histogram[2]);
+        assertTrue(jittery.getJitter() > 0);
+    }
+
+    public void testTalkSpurtRestartIsNotJitter() {
+        ConnectionStatsRecorder recorder = new ConnectionStatsRecorder(0);
+        recorder.onVoiceReceived(voice(3, 10), 5, 0);
+        recorder.onVoiceReceived(voice(3, 11), 5, 10 * MS);
+        // New talk spurt restarts the sequence long after the last packet.
+        recorder.onVoiceReceived(voice(3, 0), 5, 5000 * MS);
+        recorder.onVoiceReceived(voice(3, 1), 5, 5010 * MS);
+
+        ConnectionStats.Speaker speaker = snapshot(recorder, 6000 * MS).getSpeakers().get(0);
+        assertEquals(4, speaker.getPackets());
+        long total = 0;
+        for (long count : speaker.getJitterHistogram()) total += count;
+        assertEquals(2, total);
+        assertEquals(2, speaker.getJitterHistogram()[0]);
+    }
+
+    public void testTruncatedVoiceIgnored() {
+        ConnectionStatsRecorder recorder = new ConnectionStatsRecorder(0);
+        recorder.onVoiceReceived(new byte[] { (byte) (4 << 5), (byte) 0x80 }, 2, 0);
+        assertEquals(0, snapshot(recorder, MS).getSpeakers().size());
+    }
+}
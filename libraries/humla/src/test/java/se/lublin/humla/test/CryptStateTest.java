@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import se.lublin.humla.net.CryptState;
+
+/**
+ * Tests the OCB-AES128 crypt state, in particular the allocation-free buffer API.
+ */
+public class CryptStateTest extends TestCase {
+    private static final int PACKET_SIZE = 60;
+
+    private CryptState mClient;
+    private CryptState mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        Random random = new Random(42);
+        byte[] key = new byte[CryptState.AES_BLOCK_SIZE];
+        byte[] clientNonce = new byte[CryptState.AES_BLOCK_SIZE];
+        byte[] serverNonce = new byte[CryptState.AES_BLOCK_SIZE];
+        random.nextBytes(key);
+        random.nextBytes(clientNonce);
+        random.nextBytes(serverNonce);
+
+        mClient = new CryptState();
+        mClient.setKeys(key, clientNonce, serverNonce);
+        mServer = new CryptState();
+        mServer.setKeys(key, serverNonce, clientNonce);
+    }
+
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(1);
+        for (int length = 0; length < 200; length++) {
+            byte[] plain = new byte[length];
+            random.nextBytes(plain);
+            byte[] encrypted = mClient.encrypt(plain, length);
+            assertEquals("Datagram should carry a 4 byte header", length + 4, encrypted.length);
+            byte[] decrypted = mServer.decrypt(encrypted, encrypted.length);
+            assertTrue("Decrypted data should match for length " + length, Arrays.equals(plain, decrypted));
+        }
+    }
+
+    public void testTamperedPacketRejected() throws Exception {
+        byte[] plain = new byte[PACKET_SIZE];
+        byte[] encrypted = mClient.encrypt(plain, plain.length);
+        encrypted[encrypted.length - 1] ^= 0x01;
+        assertNull("Tampered packet should fail verification", mServer.decrypt(encrypted, encrypted.length));
+    }
+
+    public void testReplayRejected() throws Exception {
+        byte[] plain = new byte[PACKET_SIZE];
+        byte[] encrypted = mClient.encrypt(plain, plain.length);
+        assertNotNull(mServer.decrypt(encrypted, encrypted.length));
+        assertNull("Replayed packet should be rejected", mServer.decrypt(encrypted, encrypted.length));
+    }
+
+    public void testBufferApiMatchesArrayApi() throws Exception {
+        Random random = new Random(2);
+        byte[] plain = new byte[PACKET_SIZE];
+        random.nextBytes(plain);
+
+        ByteBuffer src = ByteBuffer.allocateDirect(PACKET_SIZE);
+        src.put(plain).flip();
+        ByteBuffer encrypted = ByteBuffer.allocateDirect(PACKET_SIZE + 4);
+        assertEquals(PACKET_SIZE + 4, mClient.encrypt(src, encrypted));
+        assertEquals("Source should be consumed", 0, src.remaining());
+        encrypted.flip();
+
+        ByteBuffer decrypted = ByteBuffer.allocate(PACKET_SIZE + 8);
+        decrypted.position(8);
+        assertEquals(PACKET_SIZE, mServer.decrypt(encrypted, decrypted));
+        assertEquals(PACKET_SIZE + 8, decrypted.position());
+
+        byte[] result = new byte[PACKET_SIZE];
+        System.arraycopy(decrypted.array(), 8, result, 0, PACKET_SIZE);
+        assertTrue(Arrays.equals(plain, result));
+    }
+
+    /**
+     * Encrypting outgoing and decrypting incoming packets on the same state from two threads at
+     * once must not corrupt either direction.
+     */
+    public void testFullDuplex() throws Exception {
+        final int count = 5000;
+        final byte[][] incoming = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            byte[] plain = new byte[PACKET_SIZE];
+            plain[0] = (byte) i;
+            incoming[i] = mServer.encrypt(plain, plain.length);
+        }
+
+        final Throwable[] failure = new Throwable[1];
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] plain = new byte[PACKET_SIZE];
+                    for (int i = 0; i < count; i++) {
+                        if (mClient.decrypt(incoming[i], 0, incoming[i].length, plain, 0) != PACKET_SIZE
+                                || plain[0] != (byte) i) {
+                            throw new AssertionError("Incoming packet " + i + " failed to decrypt");
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        receiver.start();
+
+        byte[] plain = new byte[PACKET_SIZE];
+        byte[] encrypted = new byte[PACKET_SIZE + 4];
+        byte[] decrypted = new byte[PACKET_SIZE];
+        for (int i = 0; i < count; i++) {
+            plain[0] = (byte) i;
+            mClient.encrypt(plain, 0, plain.length, encrypted, 0);
+            assertEquals(PACKET_SIZE, mServer.decrypt(encrypted, 0, encrypted.length, decrypted, 0));
+            assertEquals((byte) i, decrypted[0]);
+        }
+
+        receiver.join();
+        assertNull("Receive thread failed: " + failure[0], failure[0]);
+    }
+
+    /**
+     * Checks that encrypting and decrypting into preallocated buffers does not allocate once
+     * warmed up.
+     */
+    public void testSteadyStateDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return; // Allocation accounting not available on this VM.
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        byte[] plain = new byte[PACKET_SIZE];
+        byte[] encrypted = new byte[PACKET_SIZE + 4];
+        byte[] decrypted = new byte[PACKET_SIZE];
+        ByteBuffer plainBuffer = ByteBuffer.allocateDirect(PACKET_SIZE);
+        ByteBuffer encryptedBuffer = ByteBuffer.allocateDirect(PACKET_SIZE + 4);
+        ByteBuffer decryptedBuffer = ByteBuffer.allocateDirect(PACKET_SIZE);
+
+        // Warm up, so that lazily allocated state and JIT compilation are out of the way.
+        for (int i = 0; i < 20000; i++) {
+            cycle(plain, encrypted, decrypted, plainBuffer, encryptedBuffer, decryptedBuffer);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            cycle(plain, encrypted, decrypted, plainBuffer, encryptedBuffer, decryptedBuffer);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertEquals("Steady-state encrypt/decrypt should not allocate", 0, allocated);
+    }
+
+    private void cycle(byte[] plain, byte[] encrypted, byte[] decrypted,
+                       ByteBuffer plainBuffer, ByteBuffer encryptedBuffer,
+                       ByteBuffer decryptedBuffer) throws Exception {
+        mClient.encrypt(plain, 0, plain.length, encrypted, 0);
+        if (mServer.decrypt(encrypted, 0, encrypted.length, decrypted, 0) != PACKET_SIZE) {
+            fail("Decryption failed");
+        }
+
+        plainBuffer.clear();
+        encryptedBuffer.clear();
+        decryptedBuffer.clear();
+        mClient.encrypt(plainBuffer, encryptedBuffer);
+        encryptedBuffer.flip();
+        if (mServer.decrypt(encryptedBuffer, decryptedBuffer) != PACKET_SIZE) {
+            fail("Decryption failed");
+        }
+    }
+}
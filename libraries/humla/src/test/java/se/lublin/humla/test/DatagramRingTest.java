@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import java.net.DatagramPacket;
+
+import se.lublin.humla.net.DatagramRing;
+
+/**
+ * Tests ordering, overflow and staleness of the outgoing datagram ring.
+ */
+public class DatagramRingTest extends TestCase {
+
+    public void testFifoOrder() throws Exception {
+        DatagramRing ring = new DatagramRing(4, 16);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                byte[] slot = ring.claim();
+                assertNotNull(slot);
+                slot[0] = (byte) i;
+                ring.publish(i + 1);
+            }
+            for (int i = 0; i < 4; i++) {
+                DatagramPacket packet = ring.poll();
+                assertEquals(i, packet.getData()[0]);
+                assertEquals(i + 1, packet.getLength());
+                ring.advance();
+            }
+        }
+        assertNull("Empty ring should have nothing to poll", ring.poll());
+        assertEquals(0, ring.size());
+    }
+
+    public void testOverflowCounted() {
+        DatagramRing ring = new DatagramRing(2, 16);
+        ring.claim();
+        ring.publish(1);
+        ring.claim();
+        ring.publish(1);
+        assertNull("Full ring should refuse new datagrams", ring.claim());
+        assertNull(ring.claim());
+        assertEquals(2, ring.getOverflowCount());
+        assertEquals(2, ring.size());
+    }
+
+    public void testOnlyExpendableDatagramsGoStale() throws Exception {
+        DatagramRing ring = new DatagramRing(4, 16);
+        ring.claim();
+        ring.publish(1, true);
+        ring.claim();
+        ring.publish(1, false);
+        Thread.sleep(20);
+
+        assertNotNull(ring.poll());
+        assertFalse("Fresh enough datagrams are kept", ring.isStale(Long.MAX_VALUE));
+        assertTrue("Old voice should be stale", ring.isStale(1000000));
+        ring.advance();
+        assertNotNull(ring.poll());
+        assertFalse("Control datagrams never go stale", ring.isStale(1000000));
+        ring.advance();
+    }
+
+    public void testConcurrentConsumerKeepsOrder() throws Exception {
+        final DatagramRing ring = new DatagramRing(8, 16);
+        final int count = 100000;
+        final int[] received = new int[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        DatagramPacket packet;
+                        while ((packet = ring.poll()) == null) {
+                            Thread.yield();
+                        }
+                        if (packet.getData()[0] != (byte) i) {
+                            throw new AssertionError("Datagram " + i + " out of order");
+                        }
+                        ring.advance();
+                        received[0]++;
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        consumer.start();
+
+        for (int i = 0; i < count; i++) {
+            byte[] slot;
+            while ((slot = ring.claim()) == null) {
+                Thread.yield();
+            }
+            slot[0] = (byte) i;
+            ring.publish(1);
+        }
+        consumer.join(10000);
+        assertNull("Consumer failed: " + failure[0], failure[0]);
+        assertEquals(count, received[0]);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+import se.lublin.humla.audio.AdaptiveJitterBuffer;
+import se.lublin.humla.audio.DecoderPool;
+import se.lublin.humla.audio.IDecoder;
+import se.lublin.humla.audio.JitterBuffer;
+import se.lublin.humla.exception.NativeAudioException;
+import se.lublin.humla.model.User;
+import se.lublin.humla.net.HumlaUDPMessageType;
+import se.lublin.humla.protocol.AudioHandler;
+
+/**
+ * Tests reuse, keying, bounds and expiry of idle decoders and jitter buffers.
+ */
+public class DecoderPoolTest extends TestCase {
+    private static final long NO_TIMEOUT = Long.MAX_VALUE / 2;
+    private static final HumlaUDPMessageType OPUS = HumlaUDPMessageType.UDPVoiceOpus;
+    private static final HumlaUDPMessageType CELT = HumlaUDPMessageType.UDPVoiceCELTAlpha;
+
+    private final DecoderPool.Factory mFactory = new DecoderPool.Factory() {
+        @Override
+        public IDecoder createDecoder(HumlaUDPMessageType codec) {
+            return new FakeDecoder();
+        }
+
+        @Override
+        public JitterBuffer createJitterBuffer(User user) {
+            return new AdaptiveJitterBuffer(AudioHandler.FRAME_SIZE);
+        }
+    };
+
+    public void testReleasedDecoderIsResetAndReused() throws NativeAudioException {
+        DecoderPool pool = new DecoderPool(mFactory, 4, NO_TIMEOUT);
+        User user = new User(1, "one");
+        FakeDecoder decoder = (FakeDecoder) pool.takeDecoder(OPUS);
+        JitterBuffer buffer = pool.takeJitterBuffer(user);
+        pool.release(user, OPUS, decoder, buffer);
+        assertEquals(1, decoder.mResets);
+        assertEquals(2, pool.getIdleCount());
+
+        assertSame(decoder, pool.takeDecoder(OPUS));
+        assertSame(buffer, pool.takeJitterBuffer(user));
+        assertEquals(2, pool.getCreateCount());
+        assertEquals(2, pool.getReuseCount());
+        assertEquals(0, pool.getDestroyCount());
+    }
+
+    public void testDecodersAreKeptByCodec() throws NativeAudioException {
+        DecoderPool pool = new DecoderPool(mFactory, 4, NO_TIMEOUT);
+        User user = new User(1, "one");
+        IDecoder celt = pool.takeDecoder(CELT);
+        pool.release(user, CELT, celt, pool.takeJitterBuffer(user));
+        assertNotSame(celt, pool.takeDecoder(OPUS));
+        assertSame(celt, pool.takeDecoder(CELT));
+    }
+
+    public void testJitterBuffersAreKeptByUser() throws NativeAudioException {
+        DecoderPool pool = new DecoderPool(mFactory, 4, NO_TIMEOUT);
+        User one = new User(1, "one");
+        User two = new User(2, "two");
+        IDecoder decoder = pool.takeDecoder(OPUS);
+        JitterBuffer buffer = pool.takeJitterBuffer(one);
+        pool.release(one, OPUS, decoder, buffer);
+
+        // Any user may take the decoder, but only its user the jitter buffer.
+        assertSame(decoder, pool.takeDecoder(OPUS));
+        assertNotSame(buffer, pool.takeJitterBuffer(two));
+        assertSame(buffer, pool.takeJitterBuffer(one));
+    }
+
+    public void testJitterBufferIsNotReusedForNewUserOnSameSession() throws NativeAudioException {
+        DecoderPool pool = new DecoderPool(mFactory, 4, NO_TIMEOUT);
+        User gone = new User(1, "gone");
+        JitterBuffer buffer = pool.takeJitterBuffer(gone);
+        pool.release(gone, OPUS, pool.takeDecoder(OPUS), buffer);
+
+        // The server handed the session to someone else.
+        User next = new User(1, "next");
+        assertNotSame(buffer, pool.takeJitterBuffer(next));
+        assertSame(buffer, pool.takeJitterBuffer(gone));
+    }
+
+    public void testPoolIsBounded() throws NativeAudioException {
+        DecoderPool pool = new DecoderPool(mFactory, 2, NO_TIMEOUT);
+        FakeDecoder[] decoders = new FakeDecoder[3];
+        for (int i = 0; i < decoders.length; i++) {
+            decoders[i] = (FakeDecoder) pool.takeDecoder(OPUS);
+        }
+        for (int i = 0; i < decoders.length; i++) {
+            User user = new User(i + 1, "user");
+            pool.release(user, OPUS, decoders[i], pool.takeJitterBuffer(user));
+        }
+        assertEquals(4, pool.getIdleCount());
+        assertEquals(2, pool.getDestroyCount());
+        assertTrue("The decoder idle the longest should go first", decoders[0].mDestroyed);
+        assertFalse(decoders[2].mDestroyed);
+    }
+
+    public void testIdleTimeout() throws Exception {
+        DecoderPool pool = new DecoderPool(mFactory, 4, 1);
+        User user = new User(1, "one");
+        FakeDecoder decoder = (FakeDecoder) pool.takeDecoder(OPUS);
+        pool.release(user, OPUS, decoder, pool.takeJitterBuffer(user));
+        Thread.sleep(2);
+        assertNotSame(decoder, pool.takeDecoder(OPUS));
+        assertTrue(decoder.mDestroyed);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(2, pool.getDestroyCount());
+    }
+
+    public void testFailedResetDestroys() throws NativeAudioException {
+        DecoderPool pool = new DecoderPool(mFactory, 4, NO_TIMEOUT);
+        User user = new User(1, "one");
+        FakeDecoder decoder = (FakeDecoder) pool.takeDecoder(OPUS);
+        decoder.mFailReset = true;
+        pool.release(user, OPUS, decoder, pool.takeJitterBuffer(user));
+        assertTrue(decoder.mDestroyed);
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    public void testClearDestroysIdle() throws NativeAudioException {
+        DecoderPool pool = new DecoderPool(mFactory, 4, NO_TIMEOUT);
+        User user = new User(1, "one");
+        FakeDecoder decoder = (FakeDecoder) pool.takeDecoder(OPUS);
+        pool.release(user, OPUS, decoder, pool.takeJitterBuffer(user));
+        pool.clear();
+        assertTrue(decoder.mDestroyed);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(2, pool.getDestroyCount());
+    }
+
+    /**
+     * Replays a net of short overs from a few stations, without a pool and with one, and checks
+     * that the pool creates and destroys only once per station instead of once per over.
+     */
+    public void testTalkSpurtsCreateOncePerStation() throws NativeAudioException {
+        final int stations = 3;
+        final int overs = 60;
+
+        DecoderPool unpooled = new DecoderPool(mFactory, 0, NO_TIMEOUT);
+        runNet(unpooled, stations, overs);
+        assertEquals(2 * overs, unpooled.getCreateCount());
+        assertEquals(2 * overs, unpooled.getDestroyCount());
+
+        DecoderPool pooled = new DecoderPool(mFactory, 4, NO_TIMEOUT);
+        runNet(pooled, stations, overs);
+        // One decoder shared by the stations taking turns, and a jitter buffer for each.
+        assertEquals(1 + stations, pooled.getCreateCount());
+        assertEquals(0, pooled.getDestroyCount());
+        assertEquals(2 * overs - 1 - stations, pooled.getReuseCount());
+    }
+
+    private static void runNet(DecoderPool pool, int stations, int overs)
+            throws NativeAudioException {
+        final User[] users = new User[stations];
+        for (int i = 0; i < stations; i++) {
+            users[i] = new User(i + 1, "station " + i);
+        }
+        for (int over = 0; over < overs; over++) {
+            final User user = users[over % stations];
+            final IDecoder decoder = pool.takeDecoder(OPUS);
+            final JitterBuffer buffer = pool.takeJitterBuffer(user);
+            pool.release(user, OPUS, decoder, buffer);
+        }
+    }
+
+    private static class FakeDecoder implements IDecoder {
+        int mResets;
+        boolean mFailReset;
+        boolean mDestroyed;
+
+        @Override
+        public int decodeFloat(ByteBuffer input, int inputSize, float[] output, int frameSize) {
+            return frameSize;
+        }
+
+        @Override
+        public int decodeShort(ByteBuffer input, int inputSize, short[] output, int frameSize) {
+            return frameSize;
+        }
+
+        @Override
+        public void reset() throws NativeAudioException {
+            if (mFailReset) throw new NativeAudioException("reset failed");
+            mResets++;
+        }
+
+        @Override
+        public void destroy() {
+            mDestroyed = true;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+import org.minidns.record.Record;
+import org.minidns.record.SRV;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import se.lublin.humla.Constants;
+import se.lublin.humla.net.HostResolver;
+
+/**
+ * Tests endpoint ordering and caching of the host resolver, without touching the network.
+ */
+public class HostResolverTest extends TestCase {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Answers from fixed records, counting the queries.
+     */
+    private static class StubLookup implements HostResolver.Lookup {
+        final Map<String, List<Record<SRV>>> srv = new HashMap<>();
+        final Map<String, InetAddress[]> addresses = new HashMap<>();
+        int srvQueries;
+        int addressQueries;
+
+        void addSrv(String host, long ttl, int priority, int weight, int port, String target) {
+            final String name = "_mumble._tcp." + host;
+            if (!srv.containsKey(name)) srv.put(name, new ArrayList<Record<SRV>>());
+            srv.get(name).add(new Record<>(name, Record.TYPE.SRV, Record.CLASS.IN, ttl,
+                    new SRV(priority, weight, port, target), false));
+        }
+
+        @Override
+        public List<Record<SRV>> lookupSrv(String name) throws IOException {
+            srvQueries++;
+            final List<Record<SRV>> records = srv.get(name);
+            return records != null ? records : new ArrayList<Record<SRV>>();
+        }
+
+        @Override
+        public InetAddress[] lookupAddresses(String host) throws UnknownHostException {
+            addressQueries++;
+            final InetAddress[] result = addresses.get(host);
+            if (result == null) throw new UnknownHostException(host);
+            return result;
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+        long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+
+    private final StubLookup mLookup = new StubLookup();
+    private final FakeTicker mTicker = new FakeTicker();
+    private final HostResolver mResolver = new HostResolver(DIRECT, mLookup, mTicker);
+
+    private static InetAddress address(String literal) throws IOException {
+        return InetAddress.getByName(literal);
+    }
+
+    private static List<String> hosts(List<HostResolver.Endpoint> endpoints) {
+        final List<String> hosts = new ArrayList<>();
+        for (HostResolver.Endpoint endpoint : endpoints) {
+            hosts.add(endpoint.getHost() + ":" + endpoint.getAddress().getPort());
+        }
+        return hosts;
+    }
+
+    public void testInterleaveAlternatesFamilies() throws IOException {
+        List<InetAddress> ordered = HostResolver.interleave(Arrays.asList(
+                address("2001:db8::1"), address("2001:db8::2"), address("2001:db8::3"),
+                address("192.0.2.1"), address("192.0.2.2")));
+        assertEquals(Arrays.asList(address("2001:db8::1"), address("192.0.2.1"),
+                address("2001:db8::2"), address("192.0.2.2"), address("2001:db8::3")), ordered);
+    }
+
+    public void testInterleaveKeepsPreferredFamilyFirst() throws IOException {
+        List<InetAddress> ordered = HostResolver.interleave(Arrays.asList(
+                address("192.0.2.1"), address("2001:db8::1"), address("192.0.2.2")));
+        assertEquals(Arrays.asList(address("192.0.2.1"), address("2001:db8::1"),
+                address("192.0.2.2")), ordered);
+    }
+
+    public void testLiteralSkipsSrv() throws IOException {
+        HostResolver resolver = new HostResolver();
+        List<HostResolver.Endpoint> endpoints = resolver.resolve("192.0.2.7", 0);
+        assertEquals(1, endpoints.size());
+        assertEquals(address("192.0.2.7"), endpoints.get(0).getAddress().getAddress());
+        assertEquals(Constants.DEFAULT_PORT, endpoints.get(0).getAddress().getPort());
+
+        endpoints = resolver.resolve("2001:db8::7", 1234);
+        assertEquals(1234, endpoints.get(0).getAddress().getPort());
+        assertEquals("2001:db8::7", endpoints.get(0).getHost());
+    }
+
+    public void testAsyncResolve() throws Exception {
+        final AtomicReference<List<HostResolver.Endpoint>> result = new AtomicReference<>();
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new HostResolver().resolve("192.0.2.8", 4000, new HostResolver.Callback() {
+            @Override
+            public void onResolved(List<HostResolver.Endpoint> endpoints) {
+                result.set(endpoints);
+                thread.set(Thread.currentThread());
+                done.countDown();
+            }
+
+            @Override
+            public void onResolveFailed(IOException e) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(4000, result.get().get(0).getAddress().getPort());
+        assertNotSame(Thread.currentThread(), thread.get());
+    }
+
+    public void testResolveOnGivenExecutor() throws Exception {
+        final List<Runnable> tasks = new ArrayList<>();
+        final AtomicReference<List<HostResolver.Endpoint>> result = new AtomicReference<>();
+        HostResolver resolver = new HostResolver(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        resolver.resolve("192.0.2.9", 5000, new HostResolver.Callback() {
+            @Override
+            public void onResolved(List<HostResolver.Endpoint> endpoints) {
+                result.set(endpoints);
+            }
+
+            @Override
+            public void onResolveFailed(IOException e) {
+                fail(e.toString());
+            }
+        });
+        assertNull(result.get());
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(5000, result.get().get(0).getAddress().getPort());
+    }
+
+    public void testSrvOrderedByPriority() throws IOException {
+        mLookup.addSrv("example.org", 300, 20, 0, 64002, "b.example.org");
+        mLookup.addSrv("example.org", 300, 10, 0, 64001, "a.example.org");
+        mLookup.addSrv("example.org", 300, 30, 0, 64003, "c.example.org");
+        mLookup.addresses.put("a.example.org", new InetAddress[] { address("192.0.2.1") });
+        mLookup.addresses.put("b.example.org", new InetAddress[] { address("192.0.2.2") });
+        mLookup.addresses.put("c.example.org", new InetAddress[] { address("192.0.2.3") });
+
+        assertEquals(Arrays.asList("a.example.org:64001", "b.example.org:64002",
+                "c.example.org:64003"), hosts(mResolver.resolve("example.org", 0)));
+    }
+
+    public void testSrvSelectedByWeight() throws IOException {
+        mLookup.addSrv("example.org", 300, 10, 90, 64738, "heavy.example.org");
+        mLookup.addSrv("example.org", 300, 10, 10, 64738, "light.example.org");
+        mLookup.addSrv("example.org", 300, 20, 100, 64738, "backup.example.org");
+        mLookup.addresses.put("heavy.example.org", new InetAddress[] { address("192.0.2.1") });
+        mLookup.addresses.put("light.example.org", new InetAddress[] { address("192.0.2.2") });
+        mLookup.addresses.put("backup.example.org", new InetAddress[] { address("192.0.2.3") });
+
+        int heavyFirst = 0;
+        for (int i = 0; i < 1000; i++) {
+            final List<HostResolver.Endpoint> endpoints = mResolver.resolve("example.org", 0);
+            assertEquals(3, endpoints.size());
+            // Weight only orders targets of the same priority.
+            assertEquals("backup.example.org", endpoints.get(2).getHost());
+            if (endpoints.get(0).getHost().equals("heavy.example.org")) heavyFirst++;
+        }
+        // Expected 900, with a standard deviation of about 10.
+        assertTrue("heavy target first " + heavyFirst + " times",
+                heavyFirst > 800 && heavyFirst < 1000);
+        // The answer is cached, only the selection is redone.
+        assertEquals(1, mLookup.srvQueries);
+    }
+
+    public void testSrvTtlClampedToMinimum() throws IOException {
+        mLookup.addSrv("example.org", 5, 0, 0, 64738, "a.example.org");
+        mLookup.addresses.put("a.example.org", new InetAddress[] { address("192.0.2.1") });
+
+        mResolver.resolve("example.org", 0);
+        mTicker.nanos = TimeUnit.SECONDS.toNanos(29);
+        mResolver.resolve("example.org", 0);
+        assertEquals(1, mLookup.srvQueries);
+        mTicker.nanos = TimeUnit.SECONDS.toNanos(30);
+        mResolver.resolve("example.org", 0);
+        assertEquals(2, mLookup.srvQueries);
+    }
+
+    public void testSrvTtlClampedToMaximum() throws IOException {
+        mLookup.addSrv("example.org", TimeUnit.DAYS.toSeconds(1), 0, 0, 64738, "a.example.org");
+        mLookup.addresses.put("a.example.org", new InetAddress[] { address("192.0.2.1") });
+
+        mResolver.resolve("example.org", 0);
+        mTicker.nanos = TimeUnit.MINUTES.toNanos(59);
+        mResolver.resolve("example.org", 0);
+        assertEquals(1, mLookup.srvQueries);
+        mTicker.nanos = TimeUnit.HOURS.toNanos(1);
+        mResolver.resolve("example.org", 0);
+        assertEquals(2, mLookup.srvQueries);
+    }
+
+    public void testSrvTtlIsSmallestOfAnswer() throws IOException {
+        mLookup.addSrv("example.org", 600, 0, 0, 64738, "a.example.org");
+        mLookup.addSrv("example.org", 120, 1, 0, 64738, "b.example.org");
+        mLookup.addresses.put("a.example.org", new InetAddress[] { address("192.0.2.1") });
+
+        mResolver.resolve("example.org", 0);
+        mTicker.nanos = TimeUnit.SECONDS.toNanos(119);
+        mResolver.resolve("example.org", 0);
+        assertEquals(1, mLookup.srvQueries);
+        mTicker.nanos = TimeUnit.SECONDS.toNanos(120);
+        mResolver.resolve("example.org", 0);
+        assertEquals(2, mLookup.srvQueries);
+    }
+
+    public void testMissingSrvCachedForMinimum() throws IOException {
+        mLookup.addresses.put("example.org", new InetAddress[] { address("192.0.2.1") });
+
+        assertEquals(Arrays.asList("example.org:" + Constants.DEFAULT_PORT),
+                hosts(mResolver.resolve("example.org", 0)));
+        mTicker.nanos = TimeUnit.SECONDS.toNanos(29);
+        mResolver.resolve("example.org", 0);
+        assertEquals(1, mLookup.srvQueries);
+        mTicker.nanos = TimeUnit.SECONDS.toNanos(30);
+        mResolver.resolve("example.org", 0);
+        assertEquals(2, mLookup.srvQueries);
+    }
+
+    public void testFailedSrvFallsBackToHost() throws IOException {
+        final StubLookup lookup = new StubLookup() {
+            @Override
+            public List<Record<SRV>> lookupSrv(String name) throws IOException {
+                throw new IOException("timeout");
+            }
+        };
+        lookup.addresses.put("example.org", new InetAddress[] { address("192.0.2.1") });
+        final HostResolver resolver = new HostResolver(DIRECT, lookup, mTicker);
+        assertEquals(Arrays.asList("example.org:" + Constants.DEFAULT_PORT),
+                hosts(resolver.resolve("example.org", 0)));
+    }
+
+    public void testAddressesCached() throws IOException {
+        mLookup.addresses.put("example.org", new InetAddress[] { address("192.0.2.1") });
+
+        mResolver.resolve("example.org", 1234);
+        mTicker.nanos = TimeUnit.SECONDS.toNanos(29);
+        mResolver.resolve("example.org", 1234);
+        assertEquals(1, mLookup.addressQueries);
+        mTicker.nanos = TimeUnit.SECONDS.toNanos(30);
+        mResolver.resolve("example.org", 1234);
+        assertEquals(2, mLookup.addressQueries);
+        assertEquals(0, mLookup.srvQueries);
+    }
+
+    public void testFailoverPastUnresolvedTarget() throws IOException {
+        mLookup.addSrv("example.org", 300, 10, 0, 64001, "dead.example.org");
+        mLookup.addSrv("example.org", 300, 20, 0, 64002, "b.example.org");
+        mLookup.addSrv("example.org", 300, 30, 0, 64003, "c.example.org");
+        mLookup.addresses.put("b.example.org",
+                new InetAddress[] { address("2001:db8::2"), address("192.0.2.2") });
+        mLookup.addresses.put("c.example.org", new InetAddress[] { address("192.0.2.3") });
+
+        final List<HostResolver.Endpoint> endpoints = mResolver.resolve("example.org", 0);
+        assertEquals(Arrays.asList("b.example.org:64002", "b.example.org:64002",
+                "c.example.org:64003"), hosts(endpoints));
+        assertEquals(address("2001:db8::2"), endpoints.get(0).getAddress().getAddress());
+        assertEquals(address("192.0.2.2"), endpoints.get(1).getAddress().getAddress());
+    }
+
+    public void testAllTargetsUnresolved() throws IOException {
+        mLookup.addSrv("example.org", 300, 10, 0, 64001, "dead1.example.org");
+        mLookup.addSrv("example.org", 300, 20, 0, 64002, "dead2.example.org");
+        try {
+            mResolver.resolve("example.org", 0);
+            fail("resolved without addresses");
+        } catch (UnknownHostException e) {
+            assertEquals("dead2.example.org", e.getMessage());
+        }
+    }
+
+    public void testClearCache() throws IOException {
+        mLookup.addSrv("example.org", 300, 0, 0, 64738, "a.example.org");
+        mLookup.addresses.put("a.example.org", new InetAddress[] { address("192.0.2.1") });
+
+        mResolver.resolve("example.org", 0);
+        mResolver.clearCache();
+        mResolver.resolve("example.org", 0);
+        assertEquals(2, mLookup.srvQueries);
+        assertEquals(2, mLookup.addressQueries);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import android.os.Handler;
+
+import junit.framework.TestCase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import se.lublin.humla.net.HostResolver;
+import se.lublin.humla.net.HumlaSSLSocketFactory;
+import se.lublin.humla.net.HumlaTCP;
+import se.lublin.humla.net.HumlaTCPMessageType;
+import se.lublin.humla.net.NetworkReactor;
+import se.lublin.humla.util.HumlaException;
+
+/**
+ * Tests how HumlaTCP races connection attempts to the resolved endpoints, on loopback. The TLS
+ * handshake is never completed; a connection counts once the listener accepts it.
+ */
+public class HumlaTCPTest extends TestCase {
+    /** HumlaTCP's delay before it starts the next attempt alongside a pending one. */
+    private static final long ATTEMPT_DELAY_MS = 250;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final List<Closeable> mCloseables = new ArrayList<>();
+    private final CountDownLatch mFailed = new CountDownLatch(1);
+    private NetworkReactor mReactor;
+    private HumlaTCP mTCP;
+
+    @Override
+    protected void setUp() throws Exception {
+        mReactor = new NetworkReactor("HumlaTCPTest", 0);
+        mReactor.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mTCP != null) mTCP.disconnect();
+        mReactor.shutdown();
+        for (Closeable closeable : mCloseables) {
+            closeable.close();
+        }
+    }
+
+    /**
+     * Connects to the given endpoints, in order, as if the host had resolved to them.
+     * @return The {@link System#nanoTime()} the connection was started at.
+     */
+    private long connect(ServerSocket... servers) throws Exception {
+        final List<HostResolver.Endpoint> endpoints = new ArrayList<>();
+        for (ServerSocket server : servers) {
+            endpoints.add(new HostResolver.Endpoint("localhost",
+                    (InetSocketAddress) server.getLocalSocketAddress()));
+        }
+        final HostResolver resolver = new HostResolver() {
+            @Override
+            public void resolve(String host, int port, Callback callback) {
+                callback.onResolved(endpoints);
+            }
+        };
+        final Handler handler = new Handler() {
+            @Override
+            public boolean post(Runnable r) {
+                r.run();
+                return true;
+            }
+        };
+        mTCP = new HumlaTCP(new HumlaSSLSocketFactory(null, null, null, null, null), mReactor,
+                resolver, handler);
+        mTCP.setTCPConnectionListener(new HumlaTCP.TCPConnectionListener() {
+            @Override
+            public void onTCPConnectionEstablished() {
+            }
+
+            @Override
+            public void onTLSHandshakeFailed(X509Certificate[] chain) {
+            }
+
+            @Override
+            public void onTCPConnectionFailed(HumlaException e) {
+                mFailed.countDown();
+            }
+
+            @Override
+            public void onTCPConnectionDisconnect() {
+            }
+
+            @Override
+            public void onTCPMessageReceived(HumlaTCPMessageType type, int length, byte[] data) {
+            }
+        });
+        final long start = System.nanoTime();
+        mTCP.connect("localhost", 0, false);
+        return start;
+    }
+
+    private ServerSocket listen() throws IOException {
+        final ServerSocket server = new ServerSocket(0, 50, LOOPBACK);
+        server.setSoTimeout(5000);
+        mCloseables.add(server);
+        return server;
+    }
+
+    /**
+     * @return A listener whose accept queue is full, so that the kernel drops further SYNs and
+     *         connections to it neither complete nor fail.
+     */
+    private ServerSocket listenHanging() throws IOException {
+        final ServerSocket server = new ServerSocket(0, 1, LOOPBACK);
+        mCloseables.add(server);
+        for (int i = 0; i < 10; i++) {
+            final Socket filler = new Socket();
+            mCloseables.add(filler);
+            try {
+                filler.connect(server.getLocalSocketAddress(), 200);
+            } catch (SocketTimeoutException e) {
+                return server;
+            }
+        }
+        throw new IOException("Could not fill the accept queue");
+    }
+
+    /**
+     * @return A closed listener, so that connections to its port are refused.
+     */
+    private ServerSocket listenRefused() throws IOException {
+        final ServerSocket server = new ServerSocket(0, 1, LOOPBACK);
+        server.close();
+        return server;
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    public void testHangingEndpointRacedAfterDelay() throws Exception {
+        final ServerSocket hanging = listenHanging();
+        final ServerSocket next = listen();
+        final long start = connect(hanging, next);
+        mCloseables.add(next.accept());
+        final long elapsed = elapsedMillis(start);
+        assertTrue("next endpoint after " + elapsed + " ms", elapsed >= ATTEMPT_DELAY_MS);
+        assertTrue("next endpoint after " + elapsed + " ms", elapsed < 4 * ATTEMPT_DELAY_MS);
+    }
+
+    public void testRacesEachHangingEndpointInTurn() throws Exception {
+        final ServerSocket first = listenHanging();
+        final ServerSocket second = listenHanging();
+        final ServerSocket third = listen();
+        final long start = connect(first, second, third);
+        mCloseables.add(third.accept());
+        final long elapsed = elapsedMillis(start);
+        assertTrue("third endpoint after " + elapsed + " ms", elapsed >= 2 * ATTEMPT_DELAY_MS);
+        assertTrue("third endpoint after " + elapsed + " ms", elapsed < 6 * ATTEMPT_DELAY_MS);
+    }
+
+    public void testRefusedEndpointFailsOverAtOnce() throws Exception {
+        final ServerSocket next = listen();
+        final long start = connect(listenRefused(), next);
+        mCloseables.add(next.accept());
+        final long elapsed = elapsedMillis(start);
+        assertTrue("next endpoint after " + elapsed + " ms", elapsed < ATTEMPT_DELAY_MS);
+    }
+
+    public void testConnectedEndpointStopsRace() throws Exception {
+        final ServerSocket first = listen();
+        final ServerSocket second = listen();
+        connect(first, second);
+        mCloseables.add(first.accept());
+        second.setSoTimeout((int) (4 * ATTEMPT_DELAY_MS));
+        try {
+            mCloseables.add(second.accept());
+            fail("raced an endpoint after one connected");
+        } catch (SocketTimeoutException e) {
+            // Expected.
+        }
+    }
+
+    public void testAllEndpointsRefused() throws Exception {
+        connect(listenRefused(), listenRefused());
+        assertTrue(mFailed.await(5, TimeUnit.SECONDS));
+    }
+
+}
@@ -3,11 +3,14 @@ package se.lublin.humla.test;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 
 import se.lublin.humla.audio.BasicClippingShortMixer;
 import se.lublin.humla.audio.IAudioMixer;
 import se.lublin.humla.audio.IAudioMixerSource;
+import se.lublin.humla.audio.SoftLimitingShortMixer;
 
 /**
  * Created by andrew on 16/07/15.
@@ -44,13 +47,117 @@ public class MixerTest extends TestCase {
         testMixerCommutativity(new BasicClippingShortMixer());
     }
 
+    public void testSoftLimitingShortMixer() {
+        testMixerCommutativity(new SoftLimitingShortMixer());
+    }
+
+    /**
+     * Tests that the limiter leaves samples below the knee as a plain conversion would.
+     */
+    public void testSoftLimiterTransparentBelowKnee() {
+        SoftLimitingShortMixer mixer = new SoftLimitingShortMixer();
+        float[] samples = { 0.5f, -0.5f, 0.79f, 0.2f };
+        short[] output = new short[4];
+        mixer.mix(sources(new BasicSource<>(samples, 4)), output, 0, 4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals((short) (samples[i] * Short.MAX_VALUE), output[i]);
+        }
+    }
+
+    /**
+     * Tests that the limiter compresses monotonically and never reaches full scale.
+     */
+    public void testSoftLimiterBoundedAndMonotonic() {
+        SoftLimitingShortMixer mixer = new SoftLimitingShortMixer();
+        final int length = 400;
+        float[] ramp = new float[length];
+        for (int i = 0; i < length; i++) {
+            ramp[i] = i / 50f; // 0 to 8 times full scale
+        }
+        short[] output = new short[length];
+        mixer.mix(sources(new BasicSource<>(ramp, length)), output, 0, length);
+        for (int i = 1; i < length; i++) {
+            assertTrue("Limiter should be monotonic", output[i] >= output[i - 1]);
+            assertTrue("Limiter should stay below full scale", output[i] < Short.MAX_VALUE);
+        }
+        assertTrue(output[length - 1] > SoftLimitingShortMixer.KNEE * Short.MAX_VALUE);
+
+        float[] negative = new float[length];
+        for (int i = 0; i < length; i++) {
+            negative[i] = -ramp[i];
+        }
+        mixer.mix(sources(new BasicSource<>(negative, length)), output, 0, length);
+        for (int i = 1; i < length; i++) {
+            assertTrue(output[i] <= output[i - 1]);
+            assertTrue(output[i] > Short.MIN_VALUE);
+        }
+    }
+
+    public void testSourceAndMasterGain() {
+        SoftLimitingShortMixer mixer = new SoftLimitingShortMixer();
+        BasicSource<float[]> quiet = new BasicSource<>(new float[] { 0.4f, -0.4f }, 2, 0.5f);
+        BasicSource<float[]> loud = new BasicSource<>(new float[] { 0.1f, 0.1f }, 2, 2.0f);
+        short[] output = new short[2];
+
+        mixer.mix(sources(quiet, loud), output, 0, 2);
+        assertEquals((short) (0.4f * Short.MAX_VALUE), output[0]);
+        assertEquals(0, output[1]);
+
+        mixer.setGain(1.5f);
+        mixer.mix(sources(quiet, loud), output, 0, 2);
+        assertEquals((short) (0.6f * Short.MAX_VALUE), output[0], 1);
+        assertEquals(0, output[1]);
+    }
+
+    public void testMixesSilenceWithoutSources() {
+        short[] output = { 1, 2, 3, 4 };
+        new SoftLimitingShortMixer().mix(
+                Collections.<IAudioMixerSource<float[]>>emptyList(), output, 1, 2);
+        assertEquals(1, output[0]);
+        assertEquals(0, output[1]);
+        assertEquals(0, output[2]);
+        assertEquals(4, output[3]);
+    }
+
+    /**
+     * Tests that mixing a collection without random access, and into an offset, gives the same
+     * result as a list.
+     */
+    public void testSequentialSourcesAtOffset() {
+        SoftLimitingShortMixer mixer = new SoftLimitingShortMixer();
+        BasicSource<float[]> pcmA = new BasicSource<>(new float[] { 0.2f, 0.9f, -0.7f }, 3);
+        BasicSource<float[]> pcmB = new BasicSource<>(new float[] { 0.3f, 0.5f, -0.5f }, 3);
+        short[] expected = new short[3];
+        mixer.mix(sources(pcmA, pcmB), expected, 0, 3);
+
+        List<IAudioMixerSource<float[]>> linked = new LinkedList<>(sources(pcmA, pcmB));
+        short[] output = new short[5];
+        mixer.mix(linked, output, 2, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(expected[i], output[i + 2]);
+        }
+    }
+
+    @SafeVarargs
+    private static List<IAudioMixerSource<float[]>> sources(IAudioMixerSource<float[]>... sources) {
+        List<IAudioMixerSource<float[]>> list = new ArrayList<>();
+        Collections.addAll(list, sources);
+        return list;
+    }
+
     private static class BasicSource<T> implements IAudioMixerSource<T> {
         private T mSamples;
         private int mLength;
+        private float mGain;
 
         public BasicSource(T samples, int length) {
+            this(samples, length, 1.0f);
+        }
+
+        public BasicSource(T samples, int length, float gain) {
             mSamples = samples;
             mLength = length;
+            mGain = gain;
         }
 
         @Override
@@ -62,5 +169,10 @@ public class MixerTest extends TestCase {
         public int getNumSamples() {
             return mLength;
         }
+
+        @Override
+        public float getGain() {
+            return mGain;
+        }
     }
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import se.lublin.humla.net.PacketBuffer;
+
+/**
+ * Fuzzes the varint codec of {@link PacketBuffer} against the original byte-at-a-time
+ * implementation, over heap and direct buffers.
+ */
+public class PacketBufferTest extends TestCase {
+    private static final int ITERATIONS = 200000;
+
+    /**
+     * The codec as it was before the absolute indexing rewrite. Known to be wrong for negative
+     * values when writing, and for 32-bit values with the top bit set and 64-bit values when
+     * reading; the comparisons below stay clear of those.
+     */
+    private static class LegacyCodec {
+        private final ByteBuffer mBuffer;
+
+        LegacyCodec(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        private void append(long v) {
+            mBuffer.put((byte) v);
+        }
+
+        private int next() {
+            return mBuffer.get() & 0xFF;
+        }
+
+        long readLong() {
+            long i = 0;
+            final long v = next();
+
+            if ((v & 0x80) == 0x00) {
+                i = v & 0x7F;
+            } else if ((v & 0xC0) == 0x80) {
+                i = (v & 0x3F) << 8 | next();
+            } else if ((v & 0xF0) == 0xF0) {
+                final int tmp = (int) (v & 0xFC);
+                switch (tmp) {
+                    case 0xF0:
+                        i = next() << 24 | next() << 16 | next() << 8 | next();
+                        break;
+                    case 0xF4:
+                        i = next() << 56 | next() << 48 | next() << 40 | next() << 32 |
+                                next() << 24 | next() << 16 | next() << 8 | next();
+                        break;
+                    case 0xF8:
+                        i = readLong();
+                        i = ~i;
+                        break;
+                    case 0xFC:
+                        i = v & 0x03;
+                        i = ~i;
+                        break;
+                    default:
+                        throw new BufferUnderflowException();
+                }
+            } else if ((v & 0xF0) == 0xE0) {
+                i = (v & 0x0F) << 24 | next() << 16 | next() << 8 | next();
+            } else if ((v & 0xE0) == 0xC0) {
+                i = (v & 0x1F) << 16 | next() << 8 | next();
+            }
+            return i;
+        }
+
+        void writeLong(long i) {
+            if (i < 0x80) {
+                append(i);
+            } else if (i < 0x4000) {
+                append((i >> 8) | 0x80);
+                append(i & 0xFF);
+            } else if (i < 0x200000) {
+                append((i >> 16) | 0xC0);
+                append((i >> 8) & 0xFF);
+                append(i & 0xFF);
+            } else if (i < 0x10000000) {
+                append((i >> 24) | 0xE0);
+                append((i >> 16) & 0xFF);
+                append((i >> 8) & 0xFF);
+                append(i & 0xFF);
+            } else if (i < 0x100000000L) {
+                append(0xF0);
+                append((i >> 24) & 0xFF);
+                append((i >> 16) & 0xFF);
+                append((i >> 8) & 0xFF);
+                append(i & 0xFF);
+            } else {
+                append(0xF4);
+                append((i >> 56) & 0xFF);
+                append((i >> 48) & 0xFF);
+                append((i >> 40) & 0xFF);
+                append((i >> 32) & 0xFF);
+                append((i >> 24) & 0xFF);
+                append((i >> 16) & 0xFF);
+                append((i >> 8) & 0xFF);
+                append(i & 0xFF);
+            }
+        }
+    }
+
+    /** Picks values spread over every encoded length. */
+    private static long randomValue(Random random) {
+        final int bits = random.nextInt(64);
+        long value = random.nextLong() >>> (63 - bits);
+        return random.nextInt(8) == 0 ? ~value : value;
+    }
+
+    private static ByteBuffer buffer(boolean direct, int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * @return Whether the legacy reader decodes the varint at the given offset correctly.
+     */
+    private static boolean legacyReadable(byte[] data, int offset) {
+        final int v = data[offset] & 0xFF;
+        if ((v & 0xFC) == 0xF0) return offset + 1 < data.length && (data[offset + 1] & 0x80) == 0;
+        if ((v & 0xFC) == 0xF4) return false;
+        if ((v & 0xFC) == 0xF8) return offset + 1 < data.length && legacyReadable(data, offset + 1);
+        return true;
+    }
+
+    public void testEncodingMatchesLegacy() {
+        Random random = new Random(11);
+        for (boolean direct : new boolean[] { false, true }) {
+            ByteBuffer expected = ByteBuffer.allocate(16);
+            ByteBuffer actual = buffer(direct, 16);
+            PacketBuffer packet = new PacketBuffer(actual);
+            for (int i = 0; i < ITERATIONS; i++) {
+                final long value = randomValue(random) & Long.MAX_VALUE;
+                expected.clear();
+                new LegacyCodec(expected).writeLong(value);
+                actual.clear();
+                packet.writeLong(value);
+
+                assertEquals("Length of " + value, expected.position(), actual.position());
+                assertEquals(expected.position(), PacketBuffer.varintSize(value));
+                for (int j = 0; j < expected.position(); j++) {
+                    assertEquals("Byte " + j + " of " + value, expected.get(j), actual.get(j));
+                }
+            }
+        }
+    }
+
+    public void testDecodingMatchesLegacy() {
+        Random random = new Random(12);
+        byte[] data = new byte[64];
+        for (boolean direct : new boolean[] { false, true }) {
+            for (int i = 0; i < ITERATIONS / 10; i++) {
+                random.nextBytes(data);
+                final int length = 1 + random.nextInt(data.length);
+                ByteBuffer legacyBuffer = ByteBuffer.wrap(data, 0, length);
+                ByteBuffer buffer = buffer(direct, length);
+                buffer.put(data, 0, length).flip();
+                LegacyCodec legacy = new LegacyCodec(legacyBuffer);
+                PacketBuffer packet = new PacketBuffer(buffer);
+
+                while (legacyBuffer.hasRemaining() && legacyReadable(data, legacyBuffer.position())) {
+                    final int position = buffer.position();
+                    long expected;
+                    try {
+                        expected = legacy.readLong();
+                    } catch (BufferUnderflowException e) {
+                        try {
+                            packet.readLong();
+                            fail("Truncated varint should underflow");
+                        } catch (BufferUnderflowException expectedFailure) {
+                            assertEquals("Failed read should not move", position, buffer.position());
+                        }
+                        break;
+                    }
+                    assertEquals(expected, packet.readLong());
+                    assertEquals(legacyBuffer.position(), buffer.position());
+                }
+            }
+        }
+    }
+
+    public void testRoundTrip() {
+        Random random = new Random(13);
+        for (boolean direct : new boolean[] { false, true }) {
+            ByteBuffer buffer = buffer(direct, 1024);
+            long[] values = new long[100];
+            for (int i = 0; i < ITERATIONS / values.length; i++) {
+                buffer.clear();
+                PacketBuffer writer = new PacketBuffer(buffer);
+                int size = 0;
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = randomValue(random);
+                    writer.writeLong(values[j]);
+                    size += PacketBuffer.varintSize(values[j]);
+                }
+                assertEquals(size, writer.size());
+
+                buffer.flip();
+                PacketBuffer reader = new PacketBuffer(buffer);
+                for (long value : values) {
+                    assertEquals(value, reader.readLong());
+                }
+                assertEquals(0, reader.left());
+            }
+        }
+    }
+
+    public void testNegativeEncodings() {
+        PacketBuffer packet = PacketBuffer.allocate(16);
+        packet.writeLong(-1);
+        packet.writeLong(-4);
+        packet.writeLong(-5);
+        assertEquals(4, packet.size());
+        packet.rewind();
+        assertEquals(0xFC, packet.next());
+        assertEquals(0xFF, packet.next());
+        assertEquals(0xF8, packet.next());
+        assertEquals(0x04, packet.next());
+    }
+
+    public void testFloatingPointRoundTrip() {
+        Random random = new Random(14);
+        for (boolean direct : new boolean[] { false, true }) {
+            ByteBuffer buffer = buffer(direct, 12 * 1000);
+            PacketBuffer writer = new PacketBuffer(buffer);
+            double[] doubles = new double[1000];
+            float[] floats = new float[1000];
+            for (int i = 0; i < doubles.length; i++) {
+                doubles[i] = Double.longBitsToDouble(random.nextLong());
+                floats[i] = Float.intBitsToFloat(random.nextInt());
+                writer.writeDouble(doubles[i]);
+                writer.writeFloat(floats[i]);
+            }
+            buffer.flip();
+            PacketBuffer reader = new PacketBuffer(buffer);
+            for (int i = 0; i < doubles.length; i++) {
+                assertEquals(Double.doubleToLongBits(doubles[i]),
+                        Double.doubleToLongBits(reader.readDouble()));
+                assertEquals(Float.floatToIntBits(floats[i]),
+                        Float.floatToIntBits(reader.readFloat()));
+            }
+        }
+    }
+
+    public void testReadDoubleIsLittleEndianIeee() {
+        byte[] data = new byte[8];
+        long bits = Double.doubleToLongBits(-1234.5);
+        for (int i = 0; i < 8; i++) {
+            data[i] = (byte) (bits >>> (8 * i));
+        }
+        assertEquals(-1234.5, new PacketBuffer(data, data.length).readDouble());
+    }
+
+    public void testOverflowDoesNotWrite() {
+        PacketBuffer packet = PacketBuffer.allocate(4);
+        packet.skip(1);
+        try {
+            packet.writeLong(0x10000000L);
+            fail("Five byte varint should not fit");
+        } catch (BufferOverflowException e) {
+            assertEquals(1, packet.size());
+        }
+        packet.writeLong(0x1FFFFF);
+        assertEquals(4, packet.size());
+    }
+
+    public void testOffsetHeapBuffer() {
+        byte[] data = new byte[16];
+        ByteBuffer whole = ByteBuffer.wrap(data);
+        whole.position(4);
+        ByteBuffer slice = whole.slice();
+        PacketBuffer writer = new PacketBuffer(slice);
+        writer.writeLong(0x1234);
+        assertEquals((byte) 0x92, data[4]);
+        assertEquals((byte) 0x34, data[5]);
+        slice.flip();
+        assertEquals(0x1234, new PacketBuffer(slice).readLong());
+    }
+}
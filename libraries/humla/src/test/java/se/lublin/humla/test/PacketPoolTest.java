@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import se.lublin.humla.net.PacketPool;
+import se.lublin.humla.net.PooledPacket;
+
+/**
+ * Tests reuse, reference counting and leak detection of pooled receive buffers.
+ */
+public class PacketPoolTest extends TestCase {
+    private static final int BUFFER_SIZE = 64;
+
+    public void testReleasedPacketIsReused() {
+        PacketPool pool = new PacketPool(4, BUFFER_SIZE, false);
+        PooledPacket first = pool.acquire();
+        assertEquals(BUFFER_SIZE, first.getData().length);
+        assertEquals(1, first.refCount());
+        first.setLength(10);
+        first.release();
+
+        PooledPacket second = pool.acquire();
+        assertSame("Released packet should be handed out again", first, second);
+        assertEquals("Recycled packet should be reset", 0, second.getLength());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    public void testRetainedPacketIsNotRecycled() {
+        PacketPool pool = new PacketPool(4, BUFFER_SIZE, false);
+        PooledPacket packet = pool.acquire();
+        packet.retain();
+        packet.release();
+        assertEquals(0, pool.getIdleCount());
+        assertNotSame(packet, pool.acquire());
+        packet.release();
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    public void testPoolIsBounded() {
+        PacketPool pool = new PacketPool(2, BUFFER_SIZE, false);
+        PooledPacket[] packets = new PooledPacket[5];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = pool.acquire();
+        }
+        for (PooledPacket packet : packets) {
+            packet.release();
+        }
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(5, pool.getMisses());
+    }
+
+    public void testDoubleReleaseThrows() {
+        PacketPool pool = new PacketPool(4, BUFFER_SIZE, false);
+        PooledPacket packet = pool.acquire();
+        packet.release();
+        try {
+            packet.release();
+            fail("Releasing a released packet should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            packet.retain();
+            fail("Retaining a released packet should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testLeakDetected() throws Exception {
+        PacketPool pool = new PacketPool(4, BUFFER_SIZE, true);
+        pool.acquire(); // Never released.
+        pool.acquire().release();
+        pool.acquire().release();
+
+        for (int i = 0; i < 50 && pool.getLeaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            pool.reportLeaks();
+        }
+        assertEquals(1, pool.getLeaks());
+    }
+
+    public void testNoLeakReportedForDroppedPackets() throws Exception {
+        PacketPool pool = new PacketPool(1, BUFFER_SIZE, true);
+        PooledPacket first = pool.acquire();
+        PooledPacket second = pool.acquire();
+        first.release();
+        second.release(); // Over capacity, dropped.
+        second = null;
+
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(10);
+            pool.reportLeaks();
+        }
+        assertEquals(0, pool.getLeaks());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import se.lublin.humla.audio.PcmRing;
+
+/**
+ * Tests ordering, wrap-around and bounds of the decoded sample ring.
+ */
+public class PcmRingTest extends TestCase {
+
+    public void testCapacityRoundsUp() {
+        assertEquals(16, new PcmRing(10).capacity());
+        assertEquals(16, new PcmRing(16).capacity());
+        assertEquals(8192, new PcmRing(480 + 5760).capacity());
+    }
+
+    public void testOrderAcrossWrapAround() {
+        PcmRing ring = new PcmRing(16);
+        float[] chunk = new float[7];
+        float[] out = new float[5];
+        float next = 0, expected = 0;
+        for (int round = 0; round < 100; round++) {
+            if (ring.free() >= chunk.length) {
+                for (int i = 0; i < chunk.length; i++) chunk[i] = next++;
+                assertEquals(chunk.length, ring.write(chunk, 0, chunk.length));
+            }
+            int read = ring.read(out, 0, out.length);
+            for (int i = 0; i < read; i++) {
+                assertEquals(expected++, out[i]);
+            }
+        }
+    }
+
+    public void testWriteStopsWhenFull() {
+        PcmRing ring = new PcmRing(8);
+        float[] samples = new float[12];
+        assertEquals(8, ring.write(samples, 0, samples.length));
+        assertEquals(0, ring.free());
+        assertEquals(0, ring.writeSilence(4));
+        assertEquals(8, ring.available());
+    }
+
+    public void testReadStopsWhenEmpty() {
+        PcmRing ring = new PcmRing(8);
+        ring.write(new float[] { 1, 2, 3 }, 0, 3);
+        float[] out = { 9, 9, 9, 9, 9 };
+        assertEquals(3, ring.read(out, 0, out.length));
+        assertEquals(1f, out[0]);
+        assertEquals(3f, out[2]);
+        assertEquals(9f, out[3]);
+        assertEquals(0, ring.read(out, 0, out.length));
+    }
+
+    public void testSilenceOverwritesOldSamples() {
+        PcmRing ring = new PcmRing(4);
+        float[] out = new float[4];
+        ring.write(new float[] { 1, 1, 1, 1 }, 0, 4);
+        ring.read(out, 0, 4);
+        ring.writeSilence(3);
+        assertEquals(3, ring.read(out, 0, 4));
+        assertEquals(0f, out[0]);
+        assertEquals(0f, out[2]);
+    }
+
+    public void testClearDropsUnread() {
+        PcmRing ring = new PcmRing(8);
+        ring.write(new float[5], 0, 5);
+        ring.clear();
+        assertEquals(0, ring.available());
+        assertEquals(8, ring.free());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.lublin.humla.test;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import se.lublin.humla.net.HumlaTCPMessageType;
+import se.lublin.humla.net.TCPMessageDispatcher;
+import se.lublin.humla.protobuf.Mumble;
+import se.lublin.humla.protocol.HumlaTCPMessageListener;
+import se.lublin.humla.util.HumlaNetworkListener;
+
+/**
+ * Tests the routing of parsed control messages to listeners and their threads.
+ */
+public class TCPMessageDispatcherTest extends TestCase {
+    /** Collects tasks instead of running them, so that the test decides when a thread runs. */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        int runAll() {
+            int runs = 0;
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+                runs++;
+            }
+            return runs;
+        }
+    }
+
+    private static class UserStateRecorder extends HumlaTCPMessageListener.Stub {
+        final List<Integer> sessions = new ArrayList<>();
+
+        @Override
+        public void messageUserState(Mumble.UserState msg) {
+            sessions.add(msg.getSession());
+        }
+    }
+
+    private ManualExecutor mMain;
+    private ManualExecutor mAudio;
+    private TCPMessageDispatcher mDispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        mMain = new ManualExecutor();
+        mAudio = new ManualExecutor();
+        mDispatcher = new TCPMessageDispatcher(mMain, mAudio);
+    }
+
+    private static byte[] userState(int session) {
+        return Mumble.UserState.newBuilder().setSession(session).build().toByteArray();
+    }
+
+    public void testOnlyOverridingListenersReceive() throws Exception {
+        UserStateRecorder users = new UserStateRecorder();
+        final int[] pings = new int[1];
+        mDispatcher.addListener(users, HumlaTCPMessageListener.Dispatch.NETWORK);
+        mDispatcher.addListener(new HumlaTCPMessageListener.Stub() {
+            @Override
+            public void messagePing(Mumble.Ping msg) {
+                pings[0]++;
+            }
+        }, HumlaTCPMessageListener.Dispatch.MAIN);
+
+        mDispatcher.dispatch(HumlaTCPMessageType.UserState, userState(7));
+        assertEquals("Network listeners run inline", 1, users.sessions.size());
+        assertEquals(7, (int) users.sessions.get(0));
+        assertTrue("No main thread listener handles UserState", mMain.tasks.isEmpty());
+
+        mDispatcher.dispatch(HumlaTCPMessageType.Ping, Mumble.Ping.getDefaultInstance().toByteArray());
+        assertEquals(1, mMain.runAll());
+        assertEquals(1, pings[0]);
+        assertEquals(1, users.sessions.size());
+    }
+
+    public void testNetworkListenerBaseClassCounts() throws Exception {
+        final int[] codecs = new int[1];
+        mDispatcher.addListener(new HumlaNetworkListener() {
+            @Override
+            public void messageCodecVersion(Mumble.CodecVersion msg) {
+                codecs[0]++;
+            }
+        }, HumlaTCPMessageListener.Dispatch.AUDIO);
+
+        mDispatcher.dispatch(HumlaTCPMessageType.UserState, userState(1));
+        assertTrue(mAudio.tasks.isEmpty());
+        mDispatcher.dispatch(HumlaTCPMessageType.CodecVersion, Mumble.CodecVersion.newBuilder()
+                .setAlpha(0).setBeta(0).setPreferAlpha(false).build().toByteArray());
+        mAudio.runAll();
+        assertEquals(1, codecs[0]);
+    }
+
+    public void testBurstSharesTasksAndKeepsOrder() throws Exception {
+        UserStateRecorder users = new UserStateRecorder();
+        mDispatcher.addListener(users, HumlaTCPMessageListener.Dispatch.MAIN);
+        for (int i = 0; i < 100; i++) {
+            mDispatcher.dispatch(HumlaTCPMessageType.UserState, userState(i));
+        }
+        assertEquals("A burst should be posted once", 1, mMain.tasks.size());
+
+        mMain.tasks.remove(0).run();
+        assertTrue("A task should deliver a bounded batch", users.sessions.size() < 100);
+        assertEquals("The rest should be posted again", 1, mMain.tasks.size());
+
+        mMain.runAll();
+        assertEquals(100, users.sessions.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) users.sessions.get(i));
+        }
+    }
+
+    public void testUnhandledMessagesAreNotParsed() throws Exception {
+        byte[] garbage = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+        mDispatcher.dispatch(HumlaTCPMessageType.UserState, garbage);
+
+        mDispatcher.addListener(new UserStateRecorder(), HumlaTCPMessageListener.Dispatch.MAIN);
+        try {
+            mDispatcher.dispatch(HumlaTCPMessageType.UserState, garbage);
+            fail("Invalid data for a handled type should fail to parse");
+        } catch (InvalidProtocolBufferException e) {
+            // Expected.
+        }
+    }
+
+    public void testRemovedListenerStopsReceiving() throws Exception {
+        UserStateRecorder users = new UserStateRecorder();
+        mDispatcher.addListener(users, HumlaTCPMessageListener.Dispatch.NETWORK);
+        mDispatcher.dispatch(HumlaTCPMessageType.UserState, userState(1));
+        mDispatcher.removeListener(users);
+        mDispatcher.dispatch(HumlaTCPMessageType.UserState, userState(2));
+        assertEquals(1, users.sessions.size());
+    }
+
+    public void testListenerRemovedBeforeDeliveryGetsNothing() throws Exception {
+        UserStateRecorder removed = new UserStateRecorder();
+        UserStateRecorder kept = new UserStateRecorder();
+        mDispatcher.addListener(removed, HumlaTCPMessageListener.Dispatch.AUDIO);
+        mDispatcher.addListener(kept, HumlaTCPMessageListener.Dispatch.AUDIO);
+        mDispatcher.dispatch(HumlaTCPMessageType.UserState, userState(1));
+        mDispatcher.removeListener(removed);
+
+        mAudio.runAll();
+        assertTrue("Queued messages should not reach a removed listener",
+                removed.sessions.isEmpty());
+        assertEquals(1, kept.sessions.size());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.lublin.humla.test;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+import se.lublin.humla.net.TransportSelector;
+import se.lublin.humla.net.TransportSelector.Transport;
+
+/**
+ * Tests the RTT and loss driven choice between UDP and the TCP tunnel.
+ */
+public class TransportSelectorTest extends TestCase {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private long mNow;
+    private TransportSelector mSelector;
+
+    @Override
+    protected void setUp() throws Exception {
+        mNow = 0;
+        mSelector = new TransportSelector(mNow);
+    }
+
+    /**
+     * Simulates a second of pinging both paths, answering the UDP ping unless it was lost.
+     */
+    private void tick(long udpRtt, boolean udpLost, long tcpRtt) {
+        mNow += SECOND;
+        mSelector.onUDPPingSent();
+        if (!udpLost) {
+            mSelector.onUDPPingReply(udpRtt);
+        }
+        mSelector.onTCPPingReply(tcpRtt);
+    }
+
+    public void testHealthyUDPIsKept() {
+        for (int i = 0; i < 60; i++) {
+            tick(40000, false, 45000);
+            assertEquals(Transport.UDP, mSelector.evaluate(mNow));
+        }
+        assertEquals(0, mSelector.getStats().getSwitchCount());
+        assertEquals(40000, mSelector.getStats().getUDPRtt(), 1);
+    }
+
+    public void testLossyUDPFallsBackAndRecovers() {
+        for (int i = 0; i < 20; i++) {
+            tick(40000, false, 45000);
+            mSelector.evaluate(mNow);
+        }
+        for (int i = 0; i < 10; i++) {
+            tick(40000, i % 2 == 0, 45000);
+            mSelector.evaluate(mNow);
+        }
+        assertEquals(Transport.TCP, mSelector.getCurrent());
+        assertTrue(mSelector.getStats().getReason().contains("loss"));
+
+        int ticks = 0;
+        while (mSelector.evaluate(mNow) == Transport.TCP) {
+            tick(40000, false, 45000);
+            assertTrue("UDP should be chosen again once loss has cleared", ++ticks < 60);
+        }
+        assertEquals(2, mSelector.getStats().getSwitchCount());
+    }
+
+    public void testSlowUDPLosesToTCP() {
+        for (int i = 0; i < 30; i++) {
+            tick(400000, false, 50000);
+            mSelector.evaluate(mNow);
+        }
+        assertEquals(Transport.TCP, mSelector.getCurrent());
+    }
+
+    public void testNoFlappingWithinDwellTime() {
+        for (int i = 0; i < 20; i++) {
+            tick(40000, false, 45000);
+            mSelector.evaluate(mNow);
+        }
+        mSelector.setCurrent(Transport.TCP, "Socket failed", mNow);
+        for (int i = 0; i < 9; i++) {
+            tick(40000, false, 45000);
+            assertEquals("Must not switch back within the dwell time",
+                    Transport.TCP, mSelector.evaluate(mNow));
+        }
+        tick(40000, false, 45000);
+        tick(40000, false, 45000);
+        assertEquals(Transport.UDP, mSelector.evaluate(mNow));
+    }
+
+    public void testCounterLossIsTracked() {
+        mSelector.onCryptCounters(100, 0, 0, 100, 0, 0);
+        assertEquals(0, mSelector.getStats().getUDPLoss(), 1e-9);
+        mSelector.onCryptCounters(150, 0, 50, 200, 0, 0);
+        assertTrue(mSelector.getStats().getUDPLoss() > 0);
+    }
+}